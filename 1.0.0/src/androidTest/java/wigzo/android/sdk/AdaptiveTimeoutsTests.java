@@ -0,0 +1,199 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AdaptiveTimeoutsTests extends AndroidTestCase {
+    private static final String NAME = "wigzo";
+
+    Metrics metrics;
+    AdaptiveTimeouts timeouts;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        metrics = new Metrics();
+        timeouts = new AdaptiveTimeouts(NAME, metrics, 50, 5000, 3);
+    }
+
+    public void testInvalidParameters() {
+        final double[][] invalid = {{0, 5000, 3}, {100, 50, 3}, {50, 5000, 0.5}};
+        for (double[] args : invalid) {
+            try {
+                new AdaptiveTimeouts(NAME, metrics, (long) args[0], (long) args[1], args[2]);
+                fail("expected IllegalArgumentException");
+            } catch (IllegalArgumentException ignored) {
+                // success
+            }
+        }
+    }
+
+    public void testRequestTimeoutsApplyUntilEnoughSamples() {
+        for (int i = 0; i < AdaptiveTimeouts.MIN_SAMPLES - 1; i++) {
+            timeouts.onResponse(100);
+        }
+        assertEquals(-1, timeouts.getTimeoutMillis());
+        final Transport.Request request = timeouts.apply(new Transport.Request("GET", "http://server/i"));
+        assertEquals(Transport.Request.DEFAULT_TIMEOUT_IN_MILLISECONDS, request.getConnectTimeout());
+        assertEquals(Transport.Request.DEFAULT_TIMEOUT_IN_MILLISECONDS, request.getReadTimeout());
+    }
+
+    public void testTimeoutIsMultipleOfP99() {
+        for (int i = 0; i < 99; i++) {
+            timeouts.onResponse(100);
+        }
+        timeouts.onResponse(400);
+        assertEquals(100, timeouts.getP99Millis(), 100 * LatencySketch.RELATIVE_ACCURACY);
+        assertEquals(3 * timeouts.getP99Millis(), timeouts.getTimeoutMillis(), 1);
+        assertEquals((double) timeouts.getTimeoutMillis(), metrics.getGauge(AdaptiveTimeouts.METRIC_TIMEOUT + NAME));
+        assertEquals((double) timeouts.getP99Millis(), metrics.getGauge(AdaptiveTimeouts.METRIC_P99 + NAME));
+
+        final Transport.Request request = timeouts.apply(new Transport.Request("GET", "http://server/i"));
+        assertEquals(timeouts.getTimeoutMillis(), request.getConnectTimeout());
+        assertEquals(timeouts.getTimeoutMillis(), request.getReadTimeout());
+        // never longer than what the request was built with
+        final Transport.Request shortRequest = timeouts.apply(new Transport.Request("GET", "http://server/i").setTimeouts(100, 200));
+        assertEquals(100, shortRequest.getConnectTimeout());
+        assertEquals(200, shortRequest.getReadTimeout());
+    }
+
+    public void testTimeoutIsBounded() {
+        for (int i = 0; i < 50; i++) {
+            timeouts.onResponse(5);
+        }
+        assertEquals(50, timeouts.getTimeoutMillis());
+        for (int i = 0; i < 500; i++) {
+            timeouts.onResponse(60000);
+        }
+        assertEquals(5000, timeouts.getTimeoutMillis());
+    }
+
+    public void testTimeoutsInARowBackOff() {
+        for (int i = 0; i < 50; i++) {
+            timeouts.onResponse(100);
+        }
+        final long timeout = timeouts.getTimeoutMillis();
+        timeouts.onTimeout(timeout);
+        assertEquals(2 * timeout, timeouts.getTimeoutMillis(), timeout * 0.1);
+        // the censored samples raise the percentile too once they are more than 1% of them
+        timeouts.onTimeout(2 * timeout);
+        assertTrue(timeouts.getTimeoutMillis() >= 4 * timeout);
+        for (int i = 0; i < 10; i++) {
+            timeouts.onTimeout(timeouts.getTimeoutMillis());
+        }
+        assertEquals(5000, timeouts.getTimeoutMillis());
+        assertEquals(12, metrics.get(AdaptiveTimeouts.METRIC_EXPIRED + NAME));
+
+        // a response ends the back-off, the slow samples still count
+        timeouts.onResponse(100);
+        assertEquals(Math.min(5000, 3 * timeouts.getP99Millis()), timeouts.getTimeoutMillis(), 1);
+        for (int i = 0; i < 500; i++) {
+            timeouts.onResponse(100);
+        }
+        assertEquals(3 * timeouts.getP99Millis(), timeouts.getTimeoutMillis(), 1);
+        assertTrue(timeouts.getTimeoutMillis() < 2 * timeout);
+    }
+
+    // head-of-line blocking on a link that swallows requests
+
+    private static ConnectionProcessor newProcessor(final ConnectionStore store, final Transport transport) {
+        final DeviceId deviceId = mock(DeviceId.class);
+        when(deviceId.getId()).thenReturn("123");
+        return new ConnectionProcessor("http://server", store, deviceId, null, transport);
+    }
+
+    private static void queue(final ConnectionStore store, final int count) {
+        for (int i = 0; i < count; i++) {
+            store.addConnection("app_key=1&seq=" + i);
+        }
+    }
+
+    public void testStalledRequestBlocksForAFewRoundTrips() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport().setLatency(10);
+        try {
+            final MemoryConnectionStore store = new MemoryConnectionStore();
+            final ConnectionProcessor processor = newProcessor(store, transport);
+            timeouts = new AdaptiveTimeouts(NAME, metrics, 20, 5000, 3);
+            processor.setAdaptiveTimeouts(timeouts);
+            queue(store, AdaptiveTimeouts.MIN_SAMPLES);
+            processor.run();
+            assertTrue(store.isEmptyConnections());
+            final long timeout = timeouts.getTimeoutMillis();
+            assertTrue(timeout < 200);
+
+            // the next request is swallowed: it holds the lane until the derived timeout
+            transport.setStallRate(1);
+            queue(store, 5);
+            long start = System.nanoTime();
+            processor.run();
+            final long blockedMillis = (System.nanoTime() - start) / 1000000;
+            assertEquals(5, store.connections().length);
+            assertTrue(blockedMillis >= timeout);
+            assertTrue(blockedMillis < 1000);
+            assertEquals(1, metrics.get(AdaptiveTimeouts.METRIC_EXPIRED + NAME));
+
+            // the rest is delivered on the next run, the first request with twice the time
+            transport.setStallRate(0);
+            processor.run();
+            assertTrue(store.isEmptyConnections());
+            final int sent = transport.getRequests().size();
+            final int retried = transport.getRequests().get(sent - 5).getReadTimeout();
+            assertTrue(retried > 1.5 * timeout);
+            assertTrue(transport.getRequests().get(sent - 1).getReadTimeout() < retried);
+
+            // with the fixed timeouts the same request would hold the lane for 30 seconds
+            final LoopbackTransport fixedTransport = new LoopbackTransport().setLatency(10);
+            queue(store, 1);
+            newProcessor(store, fixedTransport).run();
+            assertEquals(30000, fixedTransport.getRequests().get(0).getReadTimeout());
+            fixedTransport.shutdown();
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    public void testPipelinedRequestIsCancelledAtDeadline() {
+        for (int i = 0; i < AdaptiveTimeouts.MIN_SAMPLES; i++) {
+            timeouts.onResponse(10);
+        }
+        final FutureTask<Transport.Response> neverAnswered = new FutureTask<>(new Callable<Transport.Response>() {
+            @Override
+            public Transport.Response call() {
+                return null;
+            }
+        });
+        final Transport transport = new Transport() {
+            @Override
+            public Response send(final Request request) throws IOException {
+                throw new IOException("not used");
+            }
+
+            @Override
+            public Future<Response> sendAsync(final Request request, final Callback callback) {
+                return neverAnswered;
+            }
+        };
+        final MemoryConnectionStore store = new MemoryConnectionStore();
+        queue(store, 1);
+        final ConnectionProcessor processor = newProcessor(store, transport);
+        processor.setMaxRequestsInFlight(4);
+        processor.setAdaptiveTimeouts(timeouts);
+
+        final long start = System.nanoTime();
+        processor.run();
+        final long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        // deadline is connect plus read timeout, 2 * 50 ms
+        assertTrue(elapsedMillis >= 100);
+        assertTrue(elapsedMillis < 1000);
+        assertTrue(neverAnswered.isCancelled());
+        assertEquals(1, store.connections().length);
+        assertEquals(1, metrics.get(AdaptiveTimeouts.METRIC_EXPIRED + NAME));
+    }
+}
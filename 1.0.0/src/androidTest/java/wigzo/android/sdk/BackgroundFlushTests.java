@@ -0,0 +1,223 @@
+package wigzo.android.sdk;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BackgroundFlushTests extends AndroidTestCase {
+    ConnectionQueue connQ;
+    FakeBackgroundFlushScheduler scheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        connQ = new ConnectionQueue();
+        scheduler = new FakeBackgroundFlushScheduler();
+        connQ.setBackgroundFlushScheduler(scheduler);
+    }
+
+    private static DeviceId deviceId() {
+        final DeviceId deviceId = mock(DeviceId.class);
+        when(deviceId.getId()).thenReturn("123");
+        return deviceId;
+    }
+
+    public void testScheduleBackgroundFlush() {
+        connQ.scheduleBackgroundFlush(false);
+        connQ.scheduleBackgroundFlush(true);
+        assertEquals(Arrays.asList(false, true), scheduler.getFlushes());
+    }
+
+    public void testScheduleBackgroundFlush_withoutScheduler() {
+        connQ.setBackgroundFlushScheduler(null);
+        connQ.scheduleBackgroundFlush(true);
+        assertEquals(1, scheduler.getCancellations());
+        assertTrue(scheduler.getFlushes().isEmpty());
+    }
+
+    public void testReplacingSchedulerCancelsPendingFlushes() {
+        connQ.setBackgroundFlushScheduler(scheduler);
+        assertEquals(0, scheduler.getCancellations());
+        connQ.setBackgroundFlushScheduler(new FakeBackgroundFlushScheduler());
+        assertEquals(1, scheduler.getCancellations());
+    }
+
+    public void testFlushSubmitsProcessorsEvenWhileRunning() throws Exception {
+        final WigzoStore store = mock(WigzoStore.class);
+        when(store.connections()).thenReturn(new String[0]);
+        final WigzoAppStore appStore = mock(WigzoAppStore.class);
+        when(appStore.connections()).thenReturn(new String[0]);
+        connQ.setServerURL("http://server");
+        connQ.setWigzoStore(store);
+        connQ.setWigzoAppStore(appStore);
+        connQ.setDeviceId(deviceId());
+        final Future<?> running = mock(Future.class);
+        connQ.setConnectionProcessorFuture(running);
+
+        final List<Future<?>> flushed = connQ.flush();
+        assertEquals(2, flushed.size());
+        assertFalse(flushed.contains(running));
+        for (Future<?> future : flushed) {
+            future.get();
+        }
+        // once by the expiry and once by the drain
+        verify(store, atLeastOnce()).connections();
+        verify(appStore, atLeastOnce()).connections();
+        connQ.getExecutor().shutdown();
+        connQ.getAppPipeline().getExecutor().shutdown();
+    }
+
+    public void testDrainSendsBothStores() {
+        final MemoryConnectionStore store = new MemoryConnectionStore("a=1&end_session=1", "a=2");
+        final MemoryConnectionStore appStore = new MemoryConnectionStore("a=1&end_session=1");
+        final LoopbackTransport transport = new LoopbackTransport();
+
+        assertTrue(BackgroundFlush.drain("http://server", null, deviceId(), transport, store, appStore));
+        assertEquals(3, transport.getRequests().size());
+        assertTrue(transport.getRequests().get(0).getUrl().startsWith(ConnectionProcessorWigzoApp.MOBILE_EVENTS_URL));
+        transport.shutdown();
+    }
+
+    public void testDrainFailureIsRetriedLater() {
+        final MemoryConnectionStore store = new MemoryConnectionStore("a=1&end_session=1");
+        final MemoryConnectionStore appStore = new MemoryConnectionStore();
+        final LoopbackTransport transport = new LoopbackTransport().setFailureRate(1);
+
+        assertFalse(BackgroundFlush.drain("http://server", null, deviceId(), transport, store, appStore));
+        assertEquals(Arrays.asList("a=1&end_session=1"), Arrays.asList(store.connections()));
+        // the failure is recorded in the store, so the queue's own processors back off as well
+        assertEquals(1, new RetryBackoff(store).getFailures());
+
+        // a job retried within the backoff delay does not touch the network
+        assertFalse(BackgroundFlush.drain("http://server", null, deviceId(), transport, store, appStore));
+        assertEquals(1, transport.getRequests().size());
+        transport.shutdown();
+    }
+
+    public void testDrainKeepsBulkOnMeteredNetworkWithoutBudget() {
+        final StringBuilder bulk = new StringBuilder("a=1&b=");
+        while (bulk.length() <= UploadPolicy.BULK_THRESHOLD_BYTES) {
+            bulk.append('x');
+        }
+        final MemoryConnectionStore store = new MemoryConnectionStore(bulk.toString(), "a=2");
+        final MemoryConnectionStore appStore = new MemoryConnectionStore();
+        final long today = System.currentTimeMillis() / (24 * 60 * 60 * 1000);
+        store.setPreference(UploadPolicy.PREFERENCE, today + ":" + UploadPolicy.DEFAULT_DAILY_METERED_BUDGET_BYTES);
+        final FakeConnectivityMonitor monitor = new FakeConnectivityMonitor(true);
+        monitor.setMetered(true);
+        final LoopbackTransport transport = new LoopbackTransport();
+
+        assertFalse(BackgroundFlush.drain(Arrays.asList("http://server"), null, deviceId(), transport, monitor, 0, store, appStore));
+        assertEquals(1, transport.getRequests().size());
+        assertEquals(Arrays.asList(bulk.toString()), Arrays.asList(store.connections()));
+        transport.shutdown();
+    }
+
+    public void testDrainHonorsRemoteConfig() {
+        final MemoryConnectionStore store = new MemoryConnectionStore("a=1");
+        final MemoryConnectionStore appStore = new MemoryConnectionStore();
+        final LoopbackTransport transport = new LoopbackTransport();
+
+        store.setPreference(RemoteConfigClient.PREFERENCE, "0\n\n{\"min_upload_interval_s\":60}");
+        assertFalse(BackgroundFlush.drain(Arrays.asList("http://server"), null, deviceId(), transport, null,
+                System.currentTimeMillis(), store, appStore));
+        store.setPreference(RemoteConfigClient.PREFERENCE, "0\n\n{\"uploads_enabled\":false}");
+        assertTrue(BackgroundFlush.drain(Arrays.asList("http://server"), null, deviceId(), transport, null, 0, store, appStore));
+        assertEquals(0, transport.getRequests().size());
+        assertEquals(Arrays.asList("a=1"), Arrays.asList(store.connections()));
+        transport.shutdown();
+    }
+
+    public void testDrainDropsExpiredRequests() {
+        final long now = System.currentTimeMillis();
+        final String expired = "a=1&timestamp=" + (now - 3 * 24L * 60 * 60 * 1000) / 1000 + "&session_duration=30";
+        final String current = "a=2&timestamp=" + now / 1000 + "&session_duration=30";
+        final MemoryConnectionStore store = new MemoryConnectionStore(expired, current);
+        final MemoryConnectionStore appStore = new MemoryConnectionStore(expired);
+        final LoopbackTransport transport = new LoopbackTransport();
+
+        assertTrue(BackgroundFlush.drain("http://server", null, deviceId(), transport, store, appStore));
+        assertEquals(1, transport.getRequests().size());
+        assertTrue(transport.getRequests().get(0).getUrl().contains("a=2"));
+        assertNotNull(store.getPreference(RequestExpiry.PREFERENCE));
+        assertNotNull(appStore.getPreference(RequestExpiry.PREFERENCE));
+        transport.shutdown();
+    }
+
+    public void testDrainSkipsCoolingServer() {
+        final MemoryConnectionStore store = new MemoryConnectionStore("a=1");
+        final MemoryConnectionStore appStore = new MemoryConnectionStore();
+        final EndpointSelector selector = new EndpointSelector(new Metrics());
+        selector.setEndpoints(Arrays.asList("http://primary", "http://secondary"));
+        selector.setStore(store);
+        selector.onFailure("http://primary", System.currentTimeMillis());
+        selector.save();
+        final LoopbackTransport transport = new LoopbackTransport();
+
+        assertTrue(BackgroundFlush.drain(Arrays.asList("http://primary", "http://secondary"), null, deviceId(), transport, null, 0,
+                store, appStore));
+        assertEquals(1, transport.getRequests().size());
+        assertTrue(transport.getRequests().get(0).getUrl().startsWith("http://secondary"));
+        transport.shutdown();
+    }
+
+    public void testJobSchedulerFlushScheduler() {
+        if (!JobSchedulerFlushScheduler.isAvailable()) {
+            return;
+        }
+        final Context context = mock(Context.class);
+        final JobScheduler jobScheduler = mock(JobScheduler.class);
+        when(context.getPackageName()).thenReturn("wigzo.android.sdk");
+        when(context.getSystemService(Context.JOB_SCHEDULER_SERVICE)).thenReturn(jobScheduler);
+        connQ.setServerURL("http://server");
+        connQ.setMobileEndpoint("https://proxy/mobile/i");
+        connQ.setDeviceId(deviceId());
+        final JobSchedulerFlushScheduler jobs = new JobSchedulerFlushScheduler(context, connQ);
+
+        jobs.scheduleFlush(true);
+        final ArgumentCaptor<JobInfo> job = ArgumentCaptor.forClass(JobInfo.class);
+        verify(jobScheduler).schedule(job.capture());
+        assertEquals(JobSchedulerFlushScheduler.EXPEDITED_JOB_ID, job.getValue().getId());
+        assertEquals(JobInfo.NETWORK_TYPE_ANY, job.getValue().getNetworkType());
+        assertEquals(JobSchedulerFlushScheduler.EXPEDITED_DEADLINE_MILLIS, job.getValue().getMaxExecutionDelayMillis());
+        assertEquals("http://server", job.getValue().getExtras().getString(BackgroundFlush.EXTRA_SERVER_URL));
+        assertEquals(Arrays.asList("http://server"), Arrays.asList(job.getValue().getExtras().getStringArray(BackgroundFlush.EXTRA_SERVER_URLS)));
+        assertEquals("123", job.getValue().getExtras().getString(BackgroundFlush.EXTRA_DEVICE_ID));
+        assertEquals("https://proxy/mobile/i", job.getValue().getExtras().getString(BackgroundFlush.EXTRA_MOBILE_ENDPOINT));
+
+        jobs.cancel();
+        verify(jobScheduler).cancel(JobSchedulerFlushScheduler.JOB_ID);
+        verify(jobScheduler).cancel(JobSchedulerFlushScheduler.EXPEDITED_JOB_ID);
+    }
+
+    public void testJobSchedulerFlushScheduler_regularFlushWaitsForExecutor() {
+        if (!JobSchedulerFlushScheduler.isAvailable()) {
+            return;
+        }
+        final Context context = mock(Context.class);
+        final JobScheduler jobScheduler = mock(JobScheduler.class);
+        when(context.getPackageName()).thenReturn("wigzo.android.sdk");
+        when(context.getSystemService(Context.JOB_SCHEDULER_SERVICE)).thenReturn(jobScheduler);
+        new JobSchedulerFlushScheduler(context, connQ).scheduleFlush(false);
+
+        final ArgumentCaptor<JobInfo> job = ArgumentCaptor.forClass(JobInfo.class);
+        verify(jobScheduler).schedule(job.capture());
+        assertEquals(JobSchedulerFlushScheduler.JOB_ID, job.getValue().getId());
+        assertEquals(JobSchedulerFlushScheduler.FLUSH_DELAY_MILLIS, job.getValue().getMinLatencyMillis());
+        // without a device ID the job can only flush an initialized SDK
+        assertNull(job.getValue().getExtras().getString(BackgroundFlush.EXTRA_DEVICE_ID));
+    }
+}
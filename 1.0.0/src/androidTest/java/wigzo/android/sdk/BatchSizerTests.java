@@ -0,0 +1,306 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BatchSizerTests extends AndroidTestCase {
+    private static final String NAME = "collector";
+    private static final long TARGET = 100;
+
+    Metrics metrics;
+    BatchSizer sizer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        metrics = new Metrics();
+        sizer = new BatchSizer(NAME, metrics, 20, 64 * 1024, TARGET);
+    }
+
+    public void testInvalidParameters() {
+        final int[][] invalid = {{0, 64 * 1024, 100}, {10, BatchSizer.MIN_BATCH_BYTES - 1, 100}, {10, 64 * 1024, 0}};
+        for (int[] args : invalid) {
+            try {
+                new BatchSizer(NAME, metrics, args[0], args[1], args[2]);
+                fail("expected IllegalArgumentException");
+            } catch (IllegalArgumentException ignored) {
+                // success
+            }
+        }
+    }
+
+    public void testInitialBatchSize() {
+        assertEquals(RemoteConfig.DEFAULT_FLUSH_THRESHOLD, new BatchSizer(NAME, metrics, RemoteConfig.DEFAULT_FLUSH_THRESHOLD).getBatchSize());
+        assertEquals(20, new BatchSizer(NAME, metrics, 50, 20, 64 * 1024, TARGET).getBatchSize());
+        try {
+            new BatchSizer(NAME, metrics, 0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testInitialState() {
+        assertEquals(BatchSizer.INITIAL_BATCH_SIZE, sizer.getBatchSize());
+        assertEquals(64 * 1024, sizer.getMaxBatchBytes());
+        assertTrue(sizer.getThroughput() < 0);
+        assertEquals((double) BatchSizer.INITIAL_BATCH_SIZE, metrics.getGauge(BatchSizer.METRIC_SIZE + NAME));
+    }
+
+    public void testGrowsAdditivelyWhileFast() {
+        for (int i = 0; i < 30; i++) {
+            sizer.onAcknowledged(sizer.getBatchSize(), 1000, 10);
+        }
+        assertEquals(20, sizer.getBatchSize());
+        assertEquals(0, metrics.get(BatchSizer.METRIC_DECREASES + NAME));
+    }
+
+    public void testPartialBatchDoesNotGrow() {
+        sizer.onAcknowledged(1, 100, 10);
+        assertEquals(BatchSizer.INITIAL_BATCH_SIZE, sizer.getBatchSize());
+    }
+
+    public void testHalvesWhenSlow() {
+        for (int i = 0; i < 12; i++) {
+            sizer.onAcknowledged(sizer.getBatchSize(), 1000, 10);
+        }
+        assertEquals(16, sizer.getBatchSize());
+        sizer.onAcknowledged(16, 1000, TARGET + 1);
+        assertEquals(8, sizer.getBatchSize());
+        sizer.onTimeout();
+        assertEquals(4, sizer.getBatchSize());
+        sizer.onTimeout();
+        sizer.onTimeout();
+        sizer.onTimeout();
+        assertEquals(1, sizer.getBatchSize());
+        assertEquals(4, metrics.get(BatchSizer.METRIC_DECREASES + NAME));
+    }
+
+    public void testRejectedBatchIsolatesRequests() {
+        sizer.onRejected();
+        assertEquals(1, sizer.getBatchSize());
+        sizer.onAcknowledged(1, 100, 10);
+        assertEquals(2, sizer.getBatchSize());
+    }
+
+    public void testMaxBytesFollowThroughput() {
+        // 8 KB in 50 ms, 160 KB/s moves 16 KB within the target latency
+        sizer.onAcknowledged(1, 8000, 50);
+        assertEquals(160000.0, sizer.getThroughput());
+        assertEquals(16000, sizer.getMaxBatchBytes());
+        assertEquals(16000.0, metrics.getGauge(BatchSizer.METRIC_MAX_BYTES + NAME));
+        assertEquals(160000.0, metrics.getGauge(BatchSizer.METRIC_THROUGHPUT + NAME));
+
+        sizer.onTimeout();
+        assertEquals(80000.0, sizer.getThroughput());
+        assertEquals(8000, sizer.getMaxBatchBytes());
+
+        // bounded below and above
+        sizer.onAcknowledged(1, 10, 1000);
+        sizer.onAcknowledged(1, 10, 1000);
+        assertTrue(sizer.getThroughput() < 40000);
+        for (int i = 0; i < 20; i++) {
+            sizer.onAcknowledged(1, 10, 1000);
+        }
+        assertEquals(BatchSizer.MIN_BATCH_BYTES, sizer.getMaxBatchBytes());
+        for (int i = 0; i < 20; i++) {
+            sizer.onAcknowledged(1, 10000000, 1);
+        }
+        assertEquals(64 * 1024, sizer.getMaxBatchBytes());
+    }
+
+    // end-to-end over a simulated link
+
+    private static final String ENDPOINT = "http://collector/bulk";
+
+    private SinkConnectionProcessor newProcessor(final ConnectionStore store, final Transport transport) {
+        final DeviceId deviceId = mock(DeviceId.class);
+        when(deviceId.getId()).thenReturn("123");
+        final SinkConnectionProcessor processor = new SinkConnectionProcessor(new EndpointSink(NAME, ENDPOINT, Sink.Encoding.BULK), store, deviceId, null, transport);
+        processor.setBatchSizer(sizer);
+        return processor;
+    }
+
+    private static MemoryConnectionStore queue(final int count) {
+        final MemoryConnectionStore store = new MemoryConnectionStore();
+        final StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            padding.append('x');
+        }
+        for (int i = 0; i < count; i++) {
+            store.addConnection("app_key=1&seq=" + i + "&events=" + padding);
+        }
+        return store;
+    }
+
+    private static List<String> entries(final Transport.Request request) throws Exception {
+        final String body = new String(request.getBody(), "UTF-8");
+        final JSONArray requests = new JSONArray(URLDecoder.decode(body.substring("requests=".length()), "UTF-8"));
+        final List<String> entries = new ArrayList<>();
+        for (int i = 0; i < requests.length(); i++) {
+            entries.add(requests.getString(i));
+        }
+        return entries;
+    }
+
+    /**
+     * Sends until the store is empty, at most the specified number of runs.
+     */
+    private static void drain(final ConnectionProcessor processor, final ConnectionStore store, final int runs) {
+        for (int i = 0; i < runs && !store.isEmptyConnections(); i++) {
+            processor.run();
+        }
+        assertTrue(store.isEmptyConnections());
+    }
+
+    public void testBatchesFollowBandwidthChanges() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport().setLatency(5).setBandwidth(10 * 1000 * 1000);
+        try {
+            // fast link: batches grow to the maximum
+            MemoryConnectionStore store = queue(200);
+            drain(newProcessor(store, transport), store, 1);
+            final int fastSize = sizer.getBatchSize();
+            final int fastBytes = sizer.getMaxBatchBytes();
+            assertEquals(20, fastSize);
+            assertEquals(0, metrics.get(BatchSizer.METRIC_DECREASES + NAME));
+
+            // the link drops to 20 KB/s: a full batch takes 300 ms, beyond the target latency
+            transport.setBandwidth(20 * 1000);
+            final int sent = transport.getRequests().size();
+            store = queue(40);
+            drain(newProcessor(store, transport), store, 1);
+            assertTrue(sizer.getBatchSize() < fastSize);
+            assertTrue(sizer.getMaxBatchBytes() < fastBytes);
+            assertTrue(metrics.get(BatchSizer.METRIC_DECREASES + NAME) > 0);
+            final List<Transport.Request> slowRequests = transport.getRequests().subList(sent, transport.getRequests().size());
+            final Transport.Request lastRequest = slowRequests.get(slowRequests.size() - 1);
+            assertTrue(entries(lastRequest).size() < fastSize);
+
+            // every entry was sent exactly once
+            final Set<String> seen = new HashSet<>();
+            int total = 0;
+            for (Transport.Request request : transport.getRequests()) {
+                for (String entry : entries(request)) {
+                    assertTrue(seen.add(entry + "@" + (total < 200 ? "fast" : "slow")));
+                    total++;
+                }
+            }
+            assertEquals(240, total);
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    public void testTimeoutsShrinkBatchesUntilTheyFit() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport();
+        // a 2G-like link that cannot move more than 3 entries before the read timeout
+        transport.setHandler(new LoopbackTransport.Handler() {
+            @Override
+            public Transport.Response handle(final Transport.Request request) throws IOException {
+                try {
+                    if (entries(request).size() > 3) {
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+                return LoopbackTransport.SUCCESS_HANDLER.handle(request);
+            }
+        });
+        try {
+            final MemoryConnectionStore store = queue(12);
+            final SinkConnectionProcessor processor = newProcessor(store, transport);
+            for (int i = 0; i < 3; i++) {
+                sizer.onAcknowledged(sizer.getBatchSize(), 1000, 10);
+            }
+            assertEquals(7, sizer.getBatchSize());
+
+            drain(processor, store, 10);
+            // 7 timed out, then 3 fit and the size grew to 4, which timed out again and halved to 2
+            final List<Transport.Request> requests = transport.getRequests();
+            assertEquals(7, entries(requests.get(0)).size());
+            assertEquals(3, entries(requests.get(1)).size());
+            assertTrue(metrics.get(BatchSizer.METRIC_DECREASES + NAME) >= 2);
+            assertTrue(sizer.getBatchSize() <= 4);
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    public void testEventsPerRequestFollowLatencyOfSingleRequestDestination() throws Exception {
+        final BatchSizer eventSizer = new BatchSizer(NAME, metrics, 10);
+        final JSONArray events = new JSONArray();
+        for (int i = 0; i < 10; i++) {
+            events.put(new JSONObject().put("key", "e" + i).put("count", 1));
+        }
+        final String eventsRequest = "app_key=1&events=" + URLEncoder.encode(events.toString(), "UTF-8");
+        final DeviceId deviceId = mock(DeviceId.class);
+        when(deviceId.getId()).thenReturn("123");
+        final LoopbackTransport transport = new LoopbackTransport();
+        try {
+            MemoryConnectionStore store = new MemoryConnectionStore(eventsRequest, "app_key=1&begin_session=1");
+            ConnectionProcessor processor = new ConnectionProcessor("http://server", store, deviceId, null, transport);
+            processor.setBatchSizer(eventSizer);
+            drain(processor, store, 1);
+            // a full events request was fast, the session request holds no events
+            assertEquals(11, eventSizer.getBatchSize());
+
+            transport.setHandler(new LoopbackTransport.Handler() {
+                @Override
+                public Transport.Response handle(final Transport.Request request) throws IOException {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+            });
+            store = new MemoryConnectionStore(eventsRequest);
+            processor = new ConnectionProcessor("http://server", store, deviceId, null, transport);
+            processor.setBatchSizer(eventSizer);
+            processor.run();
+            assertEquals(5, eventSizer.getBatchSize());
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    public void testRejectedBatchIsSplitToFindTheBadRequest() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport();
+        transport.setHandler(new LoopbackTransport.Handler() {
+            @Override
+            public Transport.Response handle(final Transport.Request request) throws IOException {
+                final String body = new String(request.getBody(), "UTF-8");
+                return body.contains("seq%3D2%26")
+                        ? new Transport.Response(400, "{\"result\":\"Bad request\"}".getBytes("UTF-8"))
+                        : LoopbackTransport.SUCCESS_HANDLER.handle(request);
+            }
+        });
+        try {
+            final MemoryConnectionStore store = queue(4);
+            final SinkConnectionProcessor processor = newProcessor(store, transport);
+            final DeadLetterStore deadLetters = new DeadLetterStore(new MemoryConnectionStore());
+            processor.setDeadLetterStore(deadLetters);
+            drain(processor, store, 1);
+            assertEquals(1, deadLetters.size());
+            // each rejection drops to single requests, each success grows the batch again:
+            // 0-3, 0, 1-2, 1, 2-3, 2 (dead-lettered), 3
+            assertEquals(7, transport.getRequests().size());
+            assertEquals(1, entries(transport.getRequests().get(6)).size());
+        } finally {
+            transport.shutdown();
+        }
+    }
+}
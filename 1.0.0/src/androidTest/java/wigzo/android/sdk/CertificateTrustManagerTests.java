@@ -0,0 +1,233 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+import android.util.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+public class CertificateTrustManagerTests extends AndroidTestCase {
+    // self-signed RSA certificates valid until 2125
+    private static final String CERT_A =
+            "MIIC1TCCAb2gAwIBAgIIVRipUyAaURswDQYJKoZIhvcNAQELBQAwGDEWMBQGA1UEAxMNYS5leGFtcGxlLmNvbTAgFw0yNjEw"
+            + "MTkxNTUyNDBaGA8yMTI2MDkyNTE1NTI0MFowGDEWMBQGA1UEAxMNYS5leGFtcGxlLmNvbTCCASIwDQYJKoZIhvcNAQEBBQAD"
+            + "ggEPADCCAQoCggEBAL9MDmENR/f2VoT84ndfhgFyvyw+pkBdp+FxZQe5AKKrH2VzmsDWBnhuCzZM0Mi9BZUd1LQaWPo94jFd"
+            + "OJJ+fUT5jVbC62RsF/0BSK7TV8xJvKlPQtuccmRp8S2pgneoanGRzHMUMuZ1IqPkRtAHKAUChqvKkw5yPswIEtv/LgwWH9PP"
+            + "YJOGiYpjZj1pul4c5YBTPPFIIFYwf2ZF0ArMxhsiNJEVwxDQ/UW973wdVv7hJ2aYwmxzgSUFoNjmGmbh3XKblrCrtSI2b9p+"
+            + "BDjh2HtEWAQZs9IN5U7xZhUikJGA6HBG4C6UMu5ZnHRdyn3WVU+kRWVsV9o7xUnI1KUBfXkCAwEAAaMhMB8wHQYDVR0OBBYE"
+            + "FJSLBGx4Os/sWzNTnR50y6hEp5RdMA0GCSqGSIb3DQEBCwUAA4IBAQC3OwA/h1lRJJCvw6k385SIBU+oY5oyjrN8tnFMr+KS"
+            + "rKveWxHWibWZQMEHVYMuDyshwKVg9IaBd/DxHmddZSSy5CebOpTVSnjcxREEnQ0fq9YTynM0+YYnjs1EAUhimzjwhxZB4BjK"
+            + "j+hH55WjqFSyy4U50ABQUoqQu22tYKZbFrlOiED1vM1jFbUy1zdESYBBO5qbWysqYBikVP7+GzE9WXkmfO9O60bRMzQAe3zH"
+            + "/NVSC5B01RyXvTVQiwtEqEQ/NMQYptnhlkDEm8ZSzk5wWG3QYynWvAlfGTfTepOJOyjRtAxqTaX6T2/nfd1FjZW6e7agNGDU"
+            + "RMgsar2QfxQO";
+    private static final String CERT_B =
+            "MIIC1TCCAb2gAwIBAgIIQznoYfabqoQwDQYJKoZIhvcNAQELBQAwGDEWMBQGA1UEAxMNYi5leGFtcGxlLmNvbTAgFw0yNjEw"
+            + "MTkxNTUyNDNaGA8yMTI2MDkyNTE1NTI0M1owGDEWMBQGA1UEAxMNYi5leGFtcGxlLmNvbTCCASIwDQYJKoZIhvcNAQEBBQAD"
+            + "ggEPADCCAQoCggEBAK1chsM3nKaRsurR5dcexT5SaRmZcnU2Yto3a5cMtY3rlPH+xtfTTKXuYX4e03W6yrhHw/np4p17N0bP"
+            + "Pkz2uQgRnyl9K8LcMiZO0VSk6gh0ptD4BhixpO8UDon/SG5BGt0v+7MtRVMH/NDEnuOKG6eohx/IYP4TJrelejxV1HVDb/ZP"
+            + "LmEFtHC9QBxop5QpDOtEGbXNJn6oH2PuzIuXtG9MygBIihMdxQhJa4UZBbApnxkfkQ69pltpoqQmvCLEUbT5eVFr1ddz5vqB"
+            + "34XGuOCHX+szagVXya3/n6GaE+Lk88HCTU1jmuFW4hhl87i3TYJEpV3XP3qZXmnYAyi4qrcCAwEAAaMhMB8wHQYDVR0OBBYE"
+            + "FBIwG8eu33calW0nK+heEvTPYlYTMA0GCSqGSIb3DQEBCwUAA4IBAQCZcg5a2MEHv26bF3cbEVfOoz5ufC1Ajc4FGv7t0i3v"
+            + "lP6ON7TdpUTda9iLvGw9/tv6j1SPzVobhzIQQh197r+q4WGMWE/MeJqSIui1A+V018FXjSRhMIyN3g6TZuzCDnN0j3sSAo6a"
+            + "RelgLYeW2GmoVmXgJDb57k6k/tB8YZOtZd5Cq0H3b0Mfsg7Qr7vmdeiuehUyfL4wUEsnxKQk8j9SXAFoKJ1XAFaNrYhyO8Ll"
+            + "uf0mtntzqFJAVDTGRfsh8UiXudC5p2hCbWf3h2uYieT3XLuGRoiPfIcBKUAz13ojumefSc9dFgwNV1xhxMNnvTag9bTITnci"
+            + "XdiK7yMsOtpM";
+    private static final long NOW = 1000000;
+
+    CountingTrustManager platform;
+    X509Certificate[] chainA;
+    X509Certificate[] chainB;
+
+    /**
+     * Platform trust manager that accepts every chain and counts the checks.
+     */
+    static class CountingTrustManager implements X509TrustManager {
+        int checks;
+        boolean reject;
+
+        @Override
+        public void checkClientTrusted(final X509Certificate[] chain, final String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(final X509Certificate[] chain, final String authType) throws CertificateException {
+            checks++;
+            if (reject) {
+                throw new CertificateException("untrusted");
+            }
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        platform = new CountingTrustManager();
+        chainA = new X509Certificate[]{certificate(CERT_A)};
+        chainB = new X509Certificate[]{certificate(CERT_B)};
+    }
+
+    private static X509Certificate certificate(final String base64) throws CertificateException {
+        return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(Base64.decode(base64, Base64.DEFAULT)));
+    }
+
+    private CertificateTrustManager newTrustManager(final long cacheTtlMillis) throws CertificateException {
+        return new CertificateTrustManager(Collections.singletonList(CERT_A), new X509TrustManager[]{platform}, cacheTtlMillis);
+    }
+
+    public void testConstructor_noCertificates() throws Exception {
+        try {
+            new CertificateTrustManager(Collections.<String>emptyList());
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testPinnedKeyIsTrusted() throws Exception {
+        newTrustManager(0).checkServerTrusted(chainA, "RSA", NOW);
+        assertEquals(1, platform.checks);
+    }
+
+    public void testOtherKeyIsRejected() throws Exception {
+        final CertificateTrustManager trustManager = newTrustManager(CertificateTrustManager.CACHE_TTL_MILLIS);
+        try {
+            trustManager.checkServerTrusted(chainB, "RSA", NOW);
+            fail("expected CertificateException");
+        } catch (CertificateException ignored) {
+            // success
+        }
+        assertEquals(0, trustManager.getCachedChains());
+    }
+
+    public void testPlatformRejectionIsNotCached() throws Exception {
+        final CertificateTrustManager trustManager = newTrustManager(CertificateTrustManager.CACHE_TTL_MILLIS);
+        platform.reject = true;
+        for (int i = 0; i < 2; i++) {
+            try {
+                trustManager.checkServerTrusted(chainA, "RSA", NOW);
+                fail("expected CertificateException");
+            } catch (CertificateException ignored) {
+                // success
+            }
+        }
+        assertEquals(2, platform.checks);
+    }
+
+    public void testAuthTypeMustBeRSA() throws Exception {
+        try {
+            newTrustManager(0).checkServerTrusted(chainA, "ECDSA", NOW);
+            fail("expected CertificateException");
+        } catch (CertificateException ignored) {
+            // success
+        }
+    }
+
+    public void testVerifiedChainIsCachedWithinTtl() throws Exception {
+        final CertificateTrustManager trustManager = newTrustManager(CertificateTrustManager.CACHE_TTL_MILLIS);
+        trustManager.checkServerTrusted(chainA, "RSA", NOW);
+        trustManager.checkServerTrusted(chainA, "RSA", NOW + 1);
+        trustManager.checkServerTrusted(chainA, "RSA", NOW + CertificateTrustManager.CACHE_TTL_MILLIS - 1);
+        assertEquals(1, platform.checks);
+        assertEquals(2, trustManager.getCacheHits());
+
+        trustManager.checkServerTrusted(chainA, "RSA", NOW + CertificateTrustManager.CACHE_TTL_MILLIS);
+        assertEquals(2, platform.checks);
+    }
+
+    public void testCacheNeverOutlivesCertificate() throws Exception {
+        final long notAfter = chainA[0].getNotAfter().getTime();
+        final CertificateTrustManager trustManager = newTrustManager(CertificateTrustManager.CACHE_TTL_MILLIS);
+        trustManager.checkServerTrusted(chainA, "RSA", notAfter - 10);
+        trustManager.checkServerTrusted(chainA, "RSA", notAfter);
+        assertEquals(2, platform.checks);
+    }
+
+    public void testCacheDisabled() throws Exception {
+        final CertificateTrustManager trustManager = newTrustManager(0);
+        trustManager.checkServerTrusted(chainA, "RSA", NOW);
+        trustManager.checkServerTrusted(chainA, "RSA", NOW);
+        assertEquals(2, platform.checks);
+        assertEquals(0, trustManager.getCachedChains());
+    }
+
+    public void testSystemTrustManagersAreBuiltOnce() throws Exception {
+        assertSame(CertificateTrustManager.systemTrustManagers(), CertificateTrustManager.systemTrustManagers());
+    }
+
+    /**
+     * Platform trust manager that, like the previous implementation, builds a trust manager
+     * factory on every handshake and then validates the chain against it.
+     */
+    static class RebuildingTrustManager extends CountingTrustManager {
+        final KeyStore trustStore;
+
+        RebuildingTrustManager(final KeyStore trustStore) {
+            this.trustStore = trustStore;
+        }
+
+        @Override
+        public void checkServerTrusted(final X509Certificate[] chain, final String authType) throws CertificateException {
+            checks++;
+            try {
+                final TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                tmf.init(trustStore);
+                ((X509TrustManager) tmf.getTrustManagers()[0]).checkServerTrusted(chain, authType);
+            } catch (CertificateException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CertificateException(e);
+            }
+        }
+    }
+
+    private static long nanosPerHandshake(final CertificateTrustManager trustManager, final X509Certificate[] chain) throws Exception {
+        final int warmUps = 200;
+        final int handshakes = 1000;
+        for (int i = 0; i < warmUps; i++) {
+            trustManager.checkServerTrusted(chain, "RSA", NOW);
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < handshakes; i++) {
+            trustManager.checkServerTrusted(chain, "RSA", NOW);
+        }
+        return (System.nanoTime() - start) / handshakes;
+    }
+
+    /**
+     * Compares the cost of a repeat handshake before and after: before, the trust manager
+     * factory was rebuilt and the chain validated on every handshake; now the chain is found
+     * in the verified-chain cache. The test certificate stands in for a system CA, since the
+     * system CA store cannot validate it.
+     */
+    public void testBenchmarkHandshakeCost() throws Exception {
+        final KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("a", chainA[0]);
+
+        final RebuildingTrustManager rebuilding = new RebuildingTrustManager(trustStore);
+        final CertificateTrustManager before = new CertificateTrustManager(Collections.singletonList(CERT_A), new X509TrustManager[]{rebuilding}, 0);
+        final long beforeNanos = nanosPerHandshake(before, chainA);
+
+        final TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trustStore);
+        final CertificateTrustManager after = new CertificateTrustManager(Collections.singletonList(CERT_A),
+                new X509TrustManager[]{(X509TrustManager) tmf.getTrustManagers()[0]}, CertificateTrustManager.CACHE_TTL_MILLIS);
+        final long afterNanos = nanosPerHandshake(after, chainA);
+
+        assertEquals(1200, rebuilding.checks);
+        assertEquals(1199, after.getCacheHits());
+        assertTrue("before " + beforeNanos + " ns, after " + afterNanos + " ns per handshake", afterNanos * 3 < beforeNanos);
+    }
+}
@@ -1,22 +1,23 @@
-
 package wigzo.android.sdk;
 
 import android.test.AndroidTestCase;
 
-import java.io.ByteArrayInputStream;
+import org.mockito.ArgumentCaptor;
+
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
-import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 public class ConnectionProcessorTests extends AndroidTestCase {
@@ -24,6 +25,7 @@ public class ConnectionProcessorTests extends AndroidTestCase {
     WigzoStore mockStore;
     WigzoAppStore wigzoAppStore;
     DeviceId mockDeviceId;
+    Transport mockTransport;
     String testDeviceId;
 
     @Override
@@ -32,7 +34,8 @@ public class ConnectionProcessorTests extends AndroidTestCase {
         mockStore = mock(WigzoStore.class);
         wigzoAppStore = mock(WigzoAppStore.class);
         mockDeviceId = mock(DeviceId.class);
-        connectionProcessor = new ConnectionProcessor("http://server", mockStore, mockDeviceId, null);
+        mockTransport = mock(Transport.class);
+        connectionProcessor = new ConnectionProcessor("http://server", mockStore, mockDeviceId, null, mockTransport);
         testDeviceId = "123";
     }
 
@@ -46,271 +49,273 @@ public class ConnectionProcessorTests extends AndroidTestCase {
         assertEquals(serverURL, connectionProcessor1.getServerURL());
         assertSame(mockStore, connectionProcessor1.getWigzoStore());
         assertSame(mockDeviceId, connectionProcessor1.getDeviceId());
+        assertTrue(connectionProcessor1.getTransport() instanceof HttpURLConnectionTransport);
 
-        final ConnectionProcessorWigzoApp connectionProcessor2 = new ConnectionProcessorWigzoApp(serverURL, wigzoAppStore, mockDeviceId, null);
+        final ConnectionProcessorWigzoApp connectionProcessor2 = new ConnectionProcessorWigzoApp(serverURL, wigzoAppStore, mockDeviceId, null, mockTransport);
         assertEquals(serverURL, connectionProcessor2.getServerURL());
         assertSame(wigzoAppStore, connectionProcessor2.getWigzoAppStore());
         assertSame(mockDeviceId, connectionProcessor2.getDeviceId());
+        assertSame(mockTransport, connectionProcessor2.getTransport());
+    }
+
+    public void testConstructor_nullTransport() {
+        try {
+            new ConnectionProcessor("http://server", mockStore, mockDeviceId, null, null);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
     }
 
-    public void testUrlConnectionForEventData() throws IOException {
+    public void testRequestForEventData() throws IOException {
         final String eventData = "blahblahblah";
-        final URLConnection urlConnection = connectionProcessor.urlConnectionForEventData(eventData);
-        assertEquals(30000, urlConnection.getConnectTimeout());
-        assertEquals(30000, urlConnection.getReadTimeout());
-        assertFalse(urlConnection.getUseCaches());
-        assertTrue(urlConnection.getDoInput());
-        assertFalse(urlConnection.getDoOutput());
-        assertEquals(new URL(connectionProcessor.getServerURL() + "/i?" + eventData), urlConnection.getURL());
+        final Transport.Request request = connectionProcessor.requestForEventData(eventData);
+        assertEquals(30000, request.getConnectTimeout());
+        assertEquals(30000, request.getReadTimeout());
+        assertEquals("GET", request.getMethod());
+        assertNull(request.getBody());
+        assertEquals(connectionProcessor.getServerURL() + "/i?" + eventData, request.getUrl());
+    }
+
+    public void testRequestForEventData_crashIsPosted() throws IOException {
+        final String eventData = "app_key=1&crash=boom";
+        final Transport.Request request = connectionProcessor.requestForEventData(eventData);
+        assertEquals("POST", request.getMethod());
+        assertEquals(connectionProcessor.getServerURL() + "/i?", request.getUrl());
+        assertEquals(eventData, new String(request.getBody(), "UTF-8"));
+    }
+
+    public void testRequestForEventData_mobileEndpoint() throws IOException {
+        final ConnectionProcessorWigzoApp mobileProcessor = new ConnectionProcessorWigzoApp("http://server", wigzoAppStore, mockDeviceId, null, mockTransport);
+        final Transport.Request request = mobileProcessor.requestForEventData("a=1");
+        assertEquals("GET", request.getMethod());
+        assertEquals(ConnectionProcessorWigzoApp.MOBILE_EVENTS_URL + "a=1", request.getUrl());
+        assertEquals("Application/json", request.getHeader("Content-Type"));
+        assertNull(mobileProcessor.requestForEventData("a=1&crash=boom"));
+    }
+
+    public void testRun_mobileDropsCrashReports() throws IOException {
+        final String crashData = "a=1&crash=boom";
+        when(wigzoAppStore.connections()).thenReturn(new String[]{crashData}, new String[0]);
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        new ConnectionProcessorWigzoApp("http://server", wigzoAppStore, mockDeviceId, null, mockTransport).run();
+        verify(wigzoAppStore).removeConnection(crashData);
+        verifyZeroInteractions(mockTransport);
     }
 
     public void testRun_storeReturnsNullConnections() throws IOException {
         connectionProcessor = spy(connectionProcessor);
         when(mockStore.connections()).thenReturn(null);
-        when(wigzoAppStore.connections()).thenReturn(null);
         connectionProcessor.run();
         verify(mockStore).connections();
-        verify(wigzoAppStore).connections();
-        verify(connectionProcessor, times(0)).urlConnectionForEventData(anyString());
+        verify(connectionProcessor, times(0)).requestForEventData(anyString());
+        verifyZeroInteractions(mockTransport);
     }
 
     public void testRun_storeReturnsEmptyConnections() throws IOException {
         connectionProcessor = spy(connectionProcessor);
         when(mockStore.connections()).thenReturn(new String[0]);
-        when(wigzoAppStore.connections()).thenReturn(new String[0]);
         connectionProcessor.run();
         verify(mockStore).connections();
-        verify(wigzoAppStore).connections();
-        verify(connectionProcessor, times(0)).urlConnectionForEventData(anyString());
-    }
-
-    private static class TestInputStream extends InputStream {
-        int readCount = 0;
-        boolean fullyRead() { return readCount >= 2; }
-        boolean closed = false;
-
-        @Override
-        public int read() throws IOException {
-            return readCount++ < 1 ? 1 : -1;
-        }
-
-        @Override
-        public void close() throws IOException {
-            super.close();
-            closed = true;
-        }
+        verify(connectionProcessor, times(0)).requestForEventData(anyString());
+        verifyZeroInteractions(mockTransport);
     }
 
-    private static class WigzoResponseStream extends ByteArrayInputStream {
-        boolean closed = false;
-
-        WigzoResponseStream(final String result) throws UnsupportedEncodingException {
-            super(("{\"result\":\"" + result + "\"}").getBytes("UTF-8"));
-        }
-
-        boolean fullyRead() { return pos == buf.length; }
-
-        @Override
-        public void close() throws IOException {
-            super.close();
-            closed = true;
-        }
+    private static Transport.Response wigzoResponse(final int code, final String result) throws UnsupportedEncodingException {
+        return new Transport.Response(code, ("{\"result\":\"" + result + "\"}").getBytes("UTF-8"));
     }
 
     public void testRun_storeHasSingleConnection() throws IOException {
         final String eventData = "blahblahblah";
-        connectionProcessor = spy(connectionProcessor);
         when(mockStore.connections()).thenReturn(new String[]{eventData}, new String[0]);
-        when(wigzoAppStore.connections()).thenReturn(new String[]{eventData}, new String[0]);
         when(mockDeviceId.getId()).thenReturn(testDeviceId);
-        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
-        final WigzoResponseStream testInputStream = new WigzoResponseStream("Success");
-        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
-        when(mockURLConnection.getResponseCode()).thenReturn(200);
-        doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
+        when(mockTransport.send(any(Transport.Request.class))).thenReturn(wigzoResponse(200, "Success"));
         connectionProcessor.run();
         verify(mockStore, times(2)).connections();
-        verify(wigzoAppStore, times(2)).connections();
-        verify(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
-        verify(mockURLConnection).connect();
-        verify(mockURLConnection).getInputStream();
-        verify(mockURLConnection).getResponseCode();
-        assertTrue(testInputStream.fullyRead());
+        final ArgumentCaptor<Transport.Request> request = ArgumentCaptor.forClass(Transport.Request.class);
+        verify(mockTransport).send(request.capture());
+        assertEquals("http://server/i?" + eventData + "&device_id=" + testDeviceId, request.getValue().getUrl());
         verify(mockStore).removeConnection(eventData);
-        verify(wigzoAppStore).removeConnection(eventData);
-        assertTrue(testInputStream.closed);
-        verify(mockURLConnection).disconnect();
     }
 
     public void testRun_storeHasSingleConnection_butHTTPResponseCodeWasNot2xx() throws IOException {
         final String eventData = "blahblahblah";
-        connectionProcessor = spy(connectionProcessor);
         when(mockStore.connections()).thenReturn(new String[]{eventData}, new String[0]);
-        when(wigzoAppStore.connections()).thenReturn(new String[]{eventData}, new String[0]);
         when(mockDeviceId.getId()).thenReturn(testDeviceId);
-        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
-        final WigzoResponseStream testInputStream = new WigzoResponseStream("Success");
-        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
-        when(mockURLConnection.getResponseCode()).thenReturn(300);
-        doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
+        when(mockTransport.send(any(Transport.Request.class))).thenReturn(wigzoResponse(300, "Success"));
         connectionProcessor.run();
         verify(mockStore).connections();
-        verify(wigzoAppStore).connections();
-        verify(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
-        verify(mockURLConnection).connect();
-        verify(mockURLConnection).getInputStream();
-        verify(mockURLConnection).getResponseCode();
-        assertTrue(testInputStream.fullyRead());
+        verify(mockTransport).send(any(Transport.Request.class));
         verify(mockStore, times(0)).removeConnection(eventData);
-        verify(wigzoAppStore, times(0)).removeConnection(eventData);
-        assertTrue(testInputStream.closed);
-        verify(mockURLConnection).disconnect();
     }
 
     public void testRun_storeHasSingleConnection_butResponseWasNotJSON() throws IOException {
         final String eventData = "blahblahblah";
-        connectionProcessor = spy(connectionProcessor);
         when(mockStore.connections()).thenReturn(new String[]{eventData}, new String[0]);
-        when(wigzoAppStore.connections()).thenReturn(new String[]{eventData}, new String[0]);
         when(mockDeviceId.getId()).thenReturn(testDeviceId);
-        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
-        final TestInputStream testInputStream = new TestInputStream();
-        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
-        when(mockURLConnection.getResponseCode()).thenReturn(200);
-        doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
+        when(mockTransport.send(any(Transport.Request.class))).thenReturn(new Transport.Response(200, new byte[]{1}));
         connectionProcessor.run();
         verify(mockStore).connections();
-        verify(wigzoAppStore).connections();
-        verify(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
-        verify(mockURLConnection).connect();
-        verify(mockURLConnection).getInputStream();
-        verify(mockURLConnection).getResponseCode();
-        assertTrue(testInputStream.fullyRead());
+        verify(mockTransport).send(any(Transport.Request.class));
         verify(mockStore, times(0)).removeConnection(eventData);
-        verify(wigzoAppStore, times(0)).removeConnection(eventData);
-        assertTrue(testInputStream.closed);
-        verify(mockURLConnection).disconnect();
     }
 
     public void testRun_storeHasSingleConnection_butResponseJSONWasNotSuccess() throws IOException {
         final String eventData = "blahblahblah";
-        connectionProcessor = spy(connectionProcessor);
         when(mockStore.connections()).thenReturn(new String[]{eventData}, new String[0]);
-        when(wigzoAppStore.connections()).thenReturn(new String[]{eventData}, new String[0]);
         when(mockDeviceId.getId()).thenReturn(testDeviceId);
-        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
-        final WigzoResponseStream testInputStream = new WigzoResponseStream("Failed");
-        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
-        when(mockURLConnection.getResponseCode()).thenReturn(200);
-        doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
+        when(mockTransport.send(any(Transport.Request.class))).thenReturn(wigzoResponse(200, "Failed"));
         connectionProcessor.run();
         verify(mockStore).connections();
-        verify(wigzoAppStore).connections();
-        verify(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
-        verify(mockURLConnection).connect();
-        verify(mockURLConnection).getInputStream();
-        assertTrue(testInputStream.fullyRead());
-        verify(mockURLConnection).getResponseCode();
+        verify(mockTransport).send(any(Transport.Request.class));
         verify(mockStore, times(0)).removeConnection(eventData);
-        verify(wigzoAppStore, times(0)).removeConnection(eventData);
-        assertTrue(testInputStream.closed);
-        verify(mockURLConnection).disconnect();
     }
 
     public void testRun_storeHasSingleConnection_successCheckIsCaseInsensitive() throws IOException {
         final String eventData = "blahblahblah";
-        connectionProcessor = spy(connectionProcessor);
         when(mockStore.connections()).thenReturn(new String[]{eventData}, new String[0]);
-        when(wigzoAppStore.connections()).thenReturn(new String[]{eventData}, new String[0]);
         when(mockDeviceId.getId()).thenReturn(testDeviceId);
-        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
-        final WigzoResponseStream testInputStream = new WigzoResponseStream("SuCcEsS");
-        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
-        when(mockURLConnection.getResponseCode()).thenReturn(200);
-        doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
+        when(mockTransport.send(any(Transport.Request.class))).thenReturn(wigzoResponse(200, "SuCcEsS"));
         connectionProcessor.run();
         verify(mockStore, times(2)).connections();
-        verify(wigzoAppStore, times(2)).connections();
-        verify(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
-        verify(mockURLConnection).connect();
-        verify(mockURLConnection).getInputStream();
-        verify(mockURLConnection).getResponseCode();
-        assertTrue(testInputStream.fullyRead());
+        verify(mockTransport).send(any(Transport.Request.class));
         verify(mockStore).removeConnection(eventData);
-        verify(wigzoAppStore).removeConnection(eventData);
-        assertTrue(testInputStream.closed);
-        verify(mockURLConnection).disconnect();
     }
 
     public void testRun_storeHasTwoConnections() throws IOException {
         final String eventData1 = "blahblahblah";
         final String eventData2 = "123523523432";
-        connectionProcessor = spy(connectionProcessor);
         when(mockStore.connections()).thenReturn(new String[]{eventData1, eventData2}, new String[]{eventData2}, new String[0]);
-        when(wigzoAppStore.connections()).thenReturn(new String[]{eventData1, eventData2}, new String[]{eventData2}, new String[0]);
         when(mockDeviceId.getId()).thenReturn(testDeviceId);
-        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
-        final WigzoResponseStream testInputStream1 = new WigzoResponseStream("Success");
-        final WigzoResponseStream testInputStream2 = new WigzoResponseStream("Success");
-        when(mockURLConnection.getInputStream()).thenReturn(testInputStream1, testInputStream2);
-        doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForEventData(eventData1 + "&device_id=" + testDeviceId);
-        doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForEventData(eventData2 + "&device_id=" + testDeviceId);
-        when(mockURLConnection.getResponseCode()).thenReturn(200, 200);
+        when(mockTransport.send(any(Transport.Request.class))).thenReturn(wigzoResponse(200, "Success"), wigzoResponse(200, "Success"));
         connectionProcessor.run();
         verify(mockStore, times(3)).connections();
-        verify(wigzoAppStore, times(3)).connections();
-        verify(connectionProcessor).urlConnectionForEventData(eventData1 + "&device_id=" + testDeviceId);
-        verify(connectionProcessor).urlConnectionForEventData(eventData2 + "&device_id=" + testDeviceId);
-        verify(mockURLConnection, times(2)).connect();
-        verify(mockURLConnection, times(2)).getInputStream();
-        verify(mockURLConnection, times(2)).getResponseCode();
-        assertTrue(testInputStream1.fullyRead());
-        assertTrue(testInputStream2.fullyRead());
+        verify(mockTransport, times(2)).send(any(Transport.Request.class));
         verify(mockStore).removeConnection(eventData1);
-        verify(wigzoAppStore).removeConnection(eventData1);
         verify(mockStore).removeConnection(eventData2);
-        verify(wigzoAppStore).removeConnection(eventData2);
-        assertTrue(testInputStream1.closed);
-        assertTrue(testInputStream2.closed);
-        verify(mockURLConnection, times(2)).disconnect();
     }
 
-    private static class TestInputStream2 extends InputStream {
-        boolean closed = false;
+    public void testRun_storeHasTwoConnections_butFirstOneThrows() throws IOException {
+        final String eventData1 = "blahblahblah";
+        final String eventData2 = "123523523432";
+        when(mockStore.connections()).thenReturn(new String[]{eventData1, eventData2}, new String[]{eventData2}, new String[0]);
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        when(mockTransport.send(any(Transport.Request.class))).thenThrow(new IOException());
+        connectionProcessor.run();
+        verify(mockStore).connections();
+        verify(mockTransport).send(any(Transport.Request.class));
+        verify(mockStore, times(0)).removeConnection(anyString());
+    }
+
+    public void testSetMaxRequestsInFlight_invalid() {
+        try {
+            connectionProcessor.setMaxRequestsInFlight(0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testIsOrdered() {
+        assertTrue(ConnectionProcessor.isOrdered("app_key=1&begin_session=1"));
+        assertTrue(ConnectionProcessor.isOrdered("app_key=1&session_duration=30"));
+        assertTrue(ConnectionProcessor.isOrdered("app_key=1&end_session=1"));
+        assertFalse(ConnectionProcessor.isOrdered("app_key=1&events=%5B%5D"));
+    }
+
+    /**
+     * Records how many requests were already outstanding when each request was sent.
+     */
+    private static class RecordingTransport implements Transport {
+        final LoopbackTransport delegate;
+        final List<String> sent = new ArrayList<>();
+        final List<Integer> outstandingAtSend = new ArrayList<>();
+        int outstanding;
+
+        RecordingTransport(final LoopbackTransport delegate) {
+            this.delegate = delegate;
+        }
 
         @Override
-        public int read() throws IOException {
-            throw new IOException();
+        public Response send(final Request request) throws IOException {
+            return delegate.send(request);
         }
 
         @Override
-        public void close() throws IOException {
-            super.close();
-            closed = true;
+        public synchronized Future<Response> sendAsync(final Request request, final Callback callback) {
+            sent.add(request.getUrl());
+            outstandingAtSend.add(outstanding++);
+            return delegate.sendAsync(request, new Callback() {
+                @Override
+                public void onResponse(final Request request, final Response response) {
+                    done();
+                }
+
+                @Override
+                public void onFailure(final Request request, final IOException e) {
+                    done();
+                }
+            });
+        }
+
+        synchronized void done() {
+            outstanding--;
+        }
+
+        synchronized int outstandingAtSend(final String storedEvent) {
+            for (int i = 0; i < sent.size(); i++) {
+                if (sent.get(i).contains("?" + storedEvent + "&")) {
+                    return outstandingAtSend.get(i);
+                }
+            }
+            throw new AssertionError(storedEvent + " was not sent");
         }
     }
 
-    public void testRun_storeHasTwoConnections_butFirstOneThrowsWhenInputStreamIsRead() throws IOException {
-        final String eventData1 = "blahblahblah";
-        final String eventData2 = "123523523432";
-        connectionProcessor = spy(connectionProcessor);
-        when(mockStore.connections()).thenReturn(new String[]{eventData1, eventData2}, new String[]{eventData2}, new String[0]);
-        when(wigzoAppStore.connections()).thenReturn(new String[]{eventData1, eventData2}, new String[]{eventData2}, new String[0]);
+    public void testRun_pipelinedKeepsSessionRequestsOrdered() {
+        final LoopbackTransport loopback = new LoopbackTransport().setLatency(20);
+        final RecordingTransport transport = new RecordingTransport(loopback);
+        final String[] stored = {"e=0", "a=1&begin_session=1", "e=1", "e=2", "e=3", "a=1&end_session=1", "e=4", "e=5"};
+        final MemoryConnectionStore store = new MemoryConnectionStore(stored);
         when(mockDeviceId.getId()).thenReturn(testDeviceId);
-        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
-        final TestInputStream2 testInputStream = new TestInputStream2();
-        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
-        doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForEventData(eventData1 + "&device_id=" + testDeviceId);
+        connectionProcessor = new ConnectionProcessor("http://server", store, mockDeviceId, null, transport);
+        connectionProcessor.setMaxRequestsInFlight(4);
+
         connectionProcessor.run();
-        verify(mockStore).connections();
-        verify(wigzoAppStore).connections();
-        verify(connectionProcessor).urlConnectionForEventData(eventData1 + "&device_id=" + testDeviceId);
-        verify(connectionProcessor, times(0)).urlConnectionForEventData(eventData2 + "&device_id=" + testDeviceId);
-        verify(mockURLConnection).connect();
-        verify(mockURLConnection).getInputStream();
-        verify(mockStore, times(0)).removeConnection(anyString());
-        verify(wigzoAppStore, times(0)).removeConnection(anyString());
-        assertTrue(testInputStream.closed);
-        verify(mockURLConnection).disconnect();
+        loopback.shutdown();
+
+        assertTrue(store.isEmptyConnections());
+        assertEquals(stored.length, transport.sent.size());
+        // session requests go out alone, and the requests right after them wait for their ack
+        assertEquals(0, transport.outstandingAtSend("a=1&begin_session=1"));
+        assertEquals(0, transport.outstandingAtSend("e=1"));
+        assertEquals(0, transport.outstandingAtSend("a=1&end_session=1"));
+        assertEquals(0, transport.outstandingAtSend("e=4"));
+        // independent requests overlap
+        assertEquals(2, transport.outstandingAtSend("e=3"));
+        assertEquals(1, transport.outstandingAtSend("e=5"));
+    }
+
+    public void testRun_pipelinedStopsSendingAfterFailureButKeepsDeliveredEntriesRemoved() {
+        final LoopbackTransport loopback = new LoopbackTransport().setLatency(20).setHandler(new LoopbackTransport.Handler() {
+            @Override
+            public Transport.Response handle(final Transport.Request request) throws IOException {
+                if (request.getUrl().contains("?e=1&")) {
+                    throw new IOException("dropped");
+                }
+                return LoopbackTransport.SUCCESS_HANDLER.handle(request);
+            }
+        });
+        final MemoryConnectionStore store = new MemoryConnectionStore("e=0", "e=1", "e=2", "e=3", "e=4", "e=5");
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        connectionProcessor = new ConnectionProcessor("http://server", store, mockDeviceId, null, loopback);
+        connectionProcessor.setMaxRequestsInFlight(4);
+
+        connectionProcessor.run();
+        loopback.shutdown();
+
+        // the ack of e=0 lets e=4 in; e=1 fails, so e=5 is not sent, but e=2..e=4 are still applied
+        assertEquals(5, loopback.getRequests().size());
+        assertEquals(Arrays.asList("e=1", "e=5"), Arrays.asList(store.connections()));
     }
 }
@@ -0,0 +1,114 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ConnectionWarmUpTests extends AndroidTestCase {
+    private static final long CONNECT_LATENCY_MILLIS = 300;
+    private static final long LATENCY_MILLIS = 20;
+
+    LoopbackTransport transport;
+    ConnectionQueue connQ;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        transport = new LoopbackTransport().setLatency(LATENCY_MILLIS).setConnectLatency(CONNECT_LATENCY_MILLIS);
+        final DeviceId deviceId = mock(DeviceId.class);
+        when(deviceId.getId()).thenReturn("123");
+        connQ = new ConnectionQueue();
+        connQ.setServerURL("http://server");
+        connQ.setDeviceId(deviceId);
+        connQ.setTransport(transport);
+        connQ.getPipeline().setStore(new MemoryConnectionStore());
+        connQ.getAppPipeline().setStore(new MemoryConnectionStore());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        transport.shutdown();
+        super.tearDown();
+    }
+
+    private static void await(final List<Future<?>> futures) throws Exception {
+        for (Future<?> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private void queueAndFlush() throws Exception {
+        connQ.getPipeline().offer("app_key=1&events=%5B%5D", Sink.EventType.EVENTS);
+        connQ.getAppPipeline().offer("app_key=1&events=%5B%5D", Sink.EventType.EVENTS);
+        await(connQ.flush());
+    }
+
+    public void testLoopbackChargesConnectionSetupOncePerHost() throws Exception {
+        transport.send(new Transport.Request("GET", "http://server/i?a=1"));
+        transport.send(new Transport.Request("GET", "http://server/i?a=2"));
+        assertEquals(1, transport.getConnections());
+        transport.preconnect("https://other/i");
+        transport.send(new Transport.Request("GET", "https://other/i?a=1"));
+        assertEquals(2, transport.getConnections());
+    }
+
+    public void testTimeToFirstAckWithoutWarmUp() throws Exception {
+        queueAndFlush();
+        assertTrue(connQ.getPipeline().getFirstAckMillis() >= CONNECT_LATENCY_MILLIS);
+        assertTrue(connQ.getAppPipeline().getFirstAckMillis() >= CONNECT_LATENCY_MILLIS);
+        assertEquals(connQ.getPipeline().getFirstAckMillis(),
+                (long) connQ.getMetrics().getGauge(ConnectionQueue.METRIC_FIRST_ACK + ConnectionQueue.SINK_NAME));
+    }
+
+    public void testTimeToFirstAckWithWarmUp() throws Exception {
+        final List<Future<?>> warmUps = connQ.warmUp();
+        assertEquals(2, warmUps.size());
+        await(warmUps);
+        assertEquals(2, transport.getConnections());
+        assertTrue(transport.getRequests().isEmpty());
+        assertTrue(connQ.getMetrics().getGauge(ConnectionQueue.METRIC_WARM_UP + ConnectionQueue.SINK_NAME) >= CONNECT_LATENCY_MILLIS);
+
+        queueAndFlush();
+        assertEquals(2, transport.getConnections());
+        assertTrue(connQ.getPipeline().getFirstAckMillis() < CONNECT_LATENCY_MILLIS);
+        assertTrue(connQ.getAppPipeline().getFirstAckMillis() < CONNECT_LATENCY_MILLIS);
+    }
+
+    public void testDrainSubmittedDuringWarmUpReusesTheConnection() throws Exception {
+        connQ.warmUp();
+        queueAndFlush();
+        assertEquals(2, transport.getConnections());
+    }
+
+    public void testNoWarmUpWhileOffline() {
+        connQ.setConnectivityMonitor(new FakeConnectivityMonitor(false));
+        assertTrue(connQ.warmUp().isEmpty());
+        assertEquals(0, transport.getConnections());
+    }
+
+    public void testMobileEndpointIsConfigurable() throws Exception {
+        assertEquals(ConnectionProcessorWigzoApp.DEFAULT_ENDPOINT, connQ.getMobileEndpoint());
+        connQ.setMobileEndpoint("https://proxy.example.com/mobile/i");
+        queueAndFlush();
+        boolean sentToProxy = false;
+        for (Transport.Request request : transport.getRequests()) {
+            assertFalse(request.getUrl().startsWith(ConnectionProcessorWigzoApp.DEFAULT_ENDPOINT));
+            sentToProxy |= request.getUrl().startsWith("https://proxy.example.com/mobile/i?app_key=1");
+        }
+        assertTrue(sentToProxy);
+
+        connQ.setMobileEndpoint(null);
+        assertEquals(ConnectionProcessorWigzoApp.DEFAULT_ENDPOINT, connQ.getMobileEndpoint());
+        try {
+            connQ.setMobileEndpoint("not a url");
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+}
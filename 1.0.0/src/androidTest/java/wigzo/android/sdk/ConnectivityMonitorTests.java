@@ -0,0 +1,121 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class ConnectivityMonitorTests extends AndroidTestCase {
+    ConnectionQueue connQ;
+    FakeConnectivityMonitor monitor;
+    LoopbackTransport transport;
+    WigzoStore mockStore;
+    WigzoAppStore mockAppStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        monitor = new FakeConnectivityMonitor(false);
+        transport = new LoopbackTransport();
+        mockStore = mock(WigzoStore.class);
+        mockAppStore = mock(WigzoAppStore.class);
+        final DeviceId mockDeviceId = mock(DeviceId.class);
+        when(mockDeviceId.getId()).thenReturn("123");
+
+        connQ = new ConnectionQueue();
+        connQ.setServerURL("http://server");
+        connQ.setWigzoStore(mockStore);
+        connQ.setWigzoAppStore(mockAppStore);
+        connQ.setDeviceId(mockDeviceId);
+        connQ.setTransport(transport);
+        connQ.setMaxRequestsInFlight(1);
+        connQ.setConnectivityMonitor(monitor);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        transport.shutdown();
+        super.tearDown();
+    }
+
+    public void testSetConnectivityMonitor_replacesListener() {
+        final FakeConnectivityMonitor other = new FakeConnectivityMonitor(true);
+        connQ.setConnectivityMonitor(other);
+        assertNull(monitor.getListener());
+        assertNotNull(other.getListener());
+        connQ.setConnectivityMonitor(null);
+        assertNull(other.getListener());
+    }
+
+    public void testTick_offlineDoesNotSubmit() {
+        final ExecutorService mockExecutor = mock(ExecutorService.class);
+        connQ.setExecutor(mockExecutor);
+        when(mockStore.isEmptyConnections()).thenReturn(false);
+        connQ.tick();
+        connQ.tick();
+        verifyZeroInteractions(mockExecutor);
+    }
+
+    public void testOfflineMakesNoConnectionAttemptsAndDrainsOnceOnReconnect() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        connQ.setExecutor(executor);
+        when(mockStore.isEmptyConnections()).thenReturn(false);
+        // the first read is the expiry's
+        when(mockStore.connections()).thenReturn(new String[]{"a=1", "a=2"}, new String[]{"a=1", "a=2"}, new String[]{"a=2"}, new String[0]);
+        when(mockAppStore.connections()).thenReturn(new String[0]);
+
+        // events recorded while offline each tick the queue
+        for (int i = 0; i < 10; i++) {
+            connQ.tick();
+        }
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+        assertEquals(0, transport.getRequests().size());
+        verify(mockStore, times(0)).connections();
+
+        monitor.setConnected(true);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(2, transport.getRequests().size());
+        verify(mockStore).removeConnection("a=1");
+        verify(mockStore).removeConnection("a=2");
+    }
+
+    public void testNetworkLostDuringRunDoesNotCountAsServerFailure() {
+        final MemoryConnectionStore store = new MemoryConnectionStore("a=1");
+        final RetryBackoff backoff = new RetryBackoff(store);
+        final DeviceId mockDeviceId = mock(DeviceId.class);
+        when(mockDeviceId.getId()).thenReturn("123");
+        transport.setFailureRate(1);
+        monitor.setConnected(false);
+        final ConnectionProcessor processor = new ConnectionProcessor("http://server", store, mockDeviceId, null, transport);
+        processor.setRetryBackoff(backoff);
+        processor.setConnectivityMonitor(monitor);
+
+        processor.run();
+
+        assertEquals(1, transport.getRequests().size());
+        assertEquals(0, backoff.getFailures());
+        assertFalse(store.isEmptyConnections());
+    }
+
+    public void testReconnectWithoutQueueDoesNothing() {
+        final ExecutorService mockExecutor = mock(ExecutorService.class);
+        connQ.setExecutor(mockExecutor);
+        when(mockStore.isEmptyConnections()).thenReturn(true);
+        monitor.setConnected(true);
+        verify(mockExecutor, times(0)).submit(any(Runnable.class));
+    }
+}
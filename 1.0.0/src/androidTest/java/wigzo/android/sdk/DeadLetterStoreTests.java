@@ -0,0 +1,174 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DeadLetterStoreTests extends AndroidTestCase {
+    MemoryConnectionStore store;
+    DeadLetterStore deadLetters;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        store = new MemoryConnectionStore();
+        deadLetters = new DeadLetterStore(store, 3);
+    }
+
+    public void testConstructor_invalid() {
+        try {
+            new DeadLetterStore(null);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+        try {
+            new DeadLetterStore(store, 0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testAdd() {
+        deadLetters.add("a=1", "http_400");
+        assertEquals(1, deadLetters.size());
+        assertEquals("http_400", deadLetters.entries().get(0).reason);
+        assertEquals("a=1", deadLetters.entries().get(0).data);
+    }
+
+    public void testAdd_emptyIgnored() {
+        deadLetters.add(null, "http_400");
+        deadLetters.add("", "http_400");
+        assertEquals(0, deadLetters.size());
+    }
+
+    public void testAdd_reasonIsSanitized() {
+        deadLetters.add("a=1&b=with space", "bad request:::x");
+        final DeadLetterStore restored = new DeadLetterStore(store);
+        assertEquals("bad_request_x", restored.entries().get(0).reason);
+        assertEquals("a=1&b=with space", restored.entries().get(0).data);
+    }
+
+    public void testOldestEntriesAreDiscardedWhenFull() {
+        deadLetters.add("a=1", "http_400");
+        deadLetters.add("a=2", "http_400");
+        deadLetters.add("a=3", "http_400");
+        deadLetters.add("a=4", "http_400");
+        assertEquals(3, deadLetters.size());
+        assertEquals("a=2", deadLetters.entries().get(0).data);
+    }
+
+    public void testEntriesSurviveRestart() {
+        deadLetters.add("a=1", "http_400");
+        deadLetters.add("a=2", "rejected");
+        final DeadLetterStore restored = new DeadLetterStore(store);
+        assertEquals(2, restored.size());
+        assertEquals("rejected", restored.entries().get(1).reason);
+    }
+
+    public void testPurge() {
+        deadLetters.add("a=1", "http_400");
+        deadLetters.add("a=2", "http_400");
+        assertEquals(2, deadLetters.purge());
+        assertEquals(0, deadLetters.size());
+        assertNull(store.getPreference(DeadLetterStore.PREFERENCE));
+        assertTrue(store.isEmptyConnections());
+    }
+
+    public void testReplay() {
+        store.addConnection("a=0");
+        deadLetters.add("a=1", "http_400");
+        deadLetters.add("a=2", "http_400");
+        assertEquals(2, deadLetters.replay());
+        assertEquals(0, deadLetters.size());
+        assertEquals(Arrays.asList("a=0", "a=1", "a=2"), Arrays.asList(store.connections()));
+    }
+
+    public void testIsPermanentFailure() {
+        assertTrue(ConnectionProcessor.isPermanentFailure("http_400"));
+        assertTrue(ConnectionProcessor.isPermanentFailure("http_404"));
+        assertTrue(ConnectionProcessor.isPermanentFailure(ConnectionProcessor.REASON_REJECTED));
+        assertTrue(ConnectionProcessor.isPermanentFailure(ConnectionProcessor.REASON_MALFORMED));
+        assertFalse(ConnectionProcessor.isPermanentFailure("http_408"));
+        assertFalse(ConnectionProcessor.isPermanentFailure("http_429"));
+        assertFalse(ConnectionProcessor.isPermanentFailure("http_500"));
+        assertFalse(ConnectionProcessor.isPermanentFailure("http_503"));
+        assertFalse(ConnectionProcessor.isPermanentFailure(ConnectionProcessor.REASON_NOT_JSON));
+        assertFalse(ConnectionProcessor.isPermanentFailure(null));
+    }
+
+    private ConnectionProcessor processor(final Transport transport, final int maxRequestsInFlight) {
+        final DeviceId deviceId = mock(DeviceId.class);
+        when(deviceId.getId()).thenReturn("123");
+        final ConnectionProcessor processor = new ConnectionProcessor("http://server", store, deviceId, null, transport);
+        processor.setDeadLetterStore(deadLetters);
+        processor.setMaxRequestsInFlight(maxRequestsInFlight);
+        return processor;
+    }
+
+    private static LoopbackTransport serverAnswering(final String poisoned, final int code, final String result) {
+        return new LoopbackTransport().setHandler(new LoopbackTransport.Handler() {
+            @Override
+            public Transport.Response handle(final Transport.Request request) throws IOException {
+                if (request.getUrl().contains("?" + poisoned + "&")) {
+                    return new Transport.Response(code, DeflateDictionary.toBytes("{\"result\":\"" + result + "\"}"));
+                }
+                return LoopbackTransport.SUCCESS_HANDLER.handle(request);
+            }
+        });
+    }
+
+    public void testPoisonedRequestDoesNotBlockQueue() {
+        for (int maxRequestsInFlight : new int[]{1, 4}) {
+            store = new MemoryConnectionStore("a=bad", "a=2", "a=3");
+            deadLetters = new DeadLetterStore(store, 3);
+            final LoopbackTransport transport = serverAnswering("a=bad", 400, "Error");
+            processor(transport, maxRequestsInFlight).run();
+            transport.shutdown();
+
+            assertTrue(store.isEmptyConnections());
+            assertEquals(1, deadLetters.size());
+            assertEquals("a=bad", deadLetters.entries().get(0).data);
+            assertEquals("http_400", deadLetters.entries().get(0).reason);
+        }
+    }
+
+    public void testRejectedResultIsDeadLettered() {
+        store.addConnection("a=bad");
+        store.addConnection("a=2");
+        final LoopbackTransport transport = serverAnswering("a=bad", 200, "Invalid app key");
+        processor(transport, 1).run();
+        transport.shutdown();
+
+        assertTrue(store.isEmptyConnections());
+        assertEquals(ConnectionProcessor.REASON_REJECTED, deadLetters.entries().get(0).reason);
+    }
+
+    public void testServerErrorIsTransient() {
+        store.addConnection("a=bad");
+        store.addConnection("a=2");
+        final LoopbackTransport transport = serverAnswering("a=bad", 500, "Error");
+        processor(transport, 1).run();
+        transport.shutdown();
+
+        assertEquals(Arrays.asList("a=bad", "a=2"), Arrays.asList(store.connections()));
+        assertEquals(0, deadLetters.size());
+    }
+
+    public void testMissingPictureIsDeadLettered() {
+        store.addConnection("a=1&" + UserData.PICTURE_PATH_KEY + "=%2Fno%2Fsuch%2Ffile.png");
+        store.addConnection("a=2");
+        final LoopbackTransport transport = new LoopbackTransport();
+        processor(transport, 1).run();
+        transport.shutdown();
+
+        assertTrue(store.isEmptyConnections());
+        assertEquals(ConnectionProcessor.REASON_MALFORMED, deadLetters.entries().get(0).reason);
+        assertEquals(1, transport.getRequests().size());
+    }
+}
@@ -0,0 +1,179 @@
+package wigzo.android.sdk;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+
+/**
+ * Stand-in for the Wigzo server for {@link LoopbackTransport}, which counts what the requests
+ * it receives add up to and applies every request only once per idempotency key, like the
+ * server is expected to. Requests without a key are applied every time they arrive.
+ *
+ * It takes requests in every encoding the SDK sends: query strings, compressed bodies, JSON
+ * bodies and bulk requests, in which every entry is applied on its own.
+ *
+ * The response loss rate is the probability that the response to a request that was
+ * applied never reaches the SDK, which then sees a timeout and sends the request again.
+ * Comparing what was applied with what was queued shows whether data is counted twice.
+ */
+class DeduplicatingServer implements LoopbackTransport.Handler {
+    private final Random random_;
+    private final Set<String> keys_ = new HashSet<>();
+    private double responseLossRate_;
+    private int received_;
+    private int applied_;
+    private int duplicates_;
+    private long eventCount_;
+    private long sessionSeconds_;
+
+    DeduplicatingServer(final Random random) {
+        random_ = random;
+    }
+
+    /**
+     * Sets the probability, between 0 and 1, that the response to an applied request is lost.
+     */
+    synchronized DeduplicatingServer setResponseLossRate(final double responseLossRate) {
+        if (responseLossRate < 0 || responseLossRate > 1) {
+            throw new IllegalArgumentException("response loss rate must be between 0 and 1");
+        }
+        responseLossRate_ = responseLossRate;
+        return this;
+    }
+
+    @Override
+    public synchronized Transport.Response handle(final Transport.Request request) throws IOException {
+        final String contentType = request.getHeader("Content-Type");
+        final byte[] body = request.getBody();
+        if (body == null || body.length == 0 || (contentType != null && contentType.startsWith("multipart/"))) {
+            final int query = request.getUrl().indexOf('?');
+            apply(parameters(query < 0 ? "" : request.getUrl().substring(query + 1)));
+        } else if (contentType != null && contentType.startsWith("application/json")) {
+            try {
+                apply(toParameters(new JSONObject(new String(body, "UTF-8"))));
+            } catch (JSONException e) {
+                return new Transport.Response(400, DeflateDictionary.toBytes("{\"result\":\"Invalid JSON\"}"));
+            }
+        } else {
+            String form;
+            if (DeflateDictionary.CONTENT_ENCODING.equals(request.getHeader("Content-Encoding"))) {
+                try {
+                    form = new String(DeflateDictionary.decompress(body), "UTF-8");
+                } catch (DataFormatException e) {
+                    return new Transport.Response(400, DeflateDictionary.toBytes("{\"result\":\"Invalid body\"}"));
+                }
+            } else {
+                form = new String(body, "UTF-8");
+            }
+            if (form.startsWith("requests=")) {
+                try {
+                    final JSONArray requests = new JSONArray(URLDecoder.decode(form.substring("requests=".length()), "UTF-8"));
+                    for (int i = 0; i < requests.length(); i++) {
+                        apply(parameters(requests.getString(i)));
+                    }
+                } catch (JSONException e) {
+                    return new Transport.Response(400, DeflateDictionary.toBytes("{\"result\":\"Invalid requests\"}"));
+                }
+            } else {
+                apply(parameters(form));
+            }
+        }
+        if (responseLossRate_ > 0 && random_.nextDouble() < responseLossRate_) {
+            throw new SocketTimeoutException("response lost");
+        }
+        return new Transport.Response(200, DeflateDictionary.toBytes("{\"result\":\"Success\"}"));
+    }
+
+    /**
+     * Applies one request unless a request with its idempotency key was applied before.
+     */
+    private void apply(final Map<String, String> parameters) {
+        received_++;
+        final String key = parameters.get(IdempotencyKeys.PARAMETER);
+        if (key != null && !keys_.add(key)) {
+            duplicates_++;
+            return;
+        }
+        applied_++;
+        final String duration = parameters.get("session_duration");
+        if (duration != null) {
+            try {
+                sessionSeconds_ += Long.parseLong(duration);
+            } catch (NumberFormatException ignored) {
+                // not counted
+            }
+        }
+        final String events = parameters.get("events");
+        if (events != null) {
+            try {
+                final JSONArray array = new JSONArray(events);
+                for (int i = 0; i < array.length(); i++) {
+                    final JSONObject event = array.optJSONObject(i);
+                    eventCount_ += event == null ? 1 : event.optInt("count", 1);
+                }
+            } catch (JSONException ignored) {
+                // not counted
+            }
+        }
+    }
+
+    private static Map<String, String> parameters(final String query) throws UnsupportedEncodingException {
+        final Map<String, String> parameters = new HashMap<>();
+        for (String pair : query.split("&")) {
+            if (pair.length() == 0) {
+                continue;
+            }
+            final int equals = pair.indexOf('=');
+            parameters.put(URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8"),
+                    equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+        }
+        return parameters;
+    }
+
+    private static Map<String, String> toParameters(final JSONObject json) {
+        final Map<String, String> parameters = new HashMap<>();
+        final Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            parameters.put(key, String.valueOf(json.opt(key)));
+        }
+        return parameters;
+    }
+
+    /**
+     * Returns the number of requests received, counting every entry of a bulk request.
+     */
+    synchronized int getReceived() { return received_; }
+
+    /**
+     * Returns the number of requests applied, each once.
+     */
+    synchronized int getApplied() { return applied_; }
+
+    /**
+     * Returns the number of requests that were received again and ignored.
+     */
+    synchronized int getDuplicates() { return duplicates_; }
+
+    /**
+     * Returns the number of events applied, counting each event's count.
+     */
+    synchronized long getEventCount() { return eventCount_; }
+
+    /**
+     * Returns the session seconds applied.
+     */
+    synchronized long getSessionSeconds() { return sessionSeconds_; }
+}
@@ -0,0 +1,216 @@
+package wigzo.android.sdk;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Regenerates the contents of {@link DeflateDictionary} from a corpus of captured requests.
+ *
+ * The tool lives with the tests, so it is not part of the library. Only plain Java is used,
+ * so it can be run from the compiled classes without Android:
+ * <pre>
+ * java -cp build/intermediates/classes/androidTest/debug:build/intermediates/classes/debug \
+ *     wigzo.android.sdk.DeflateDictionaryBuilder 2048 captured.txt ...
+ * </pre>
+ * Each corpus file holds one stored request (the query string as kept in WigzoStore) per line.
+ * The tool prints a Java string literal to paste into {@link DeflateDictionary#CONTENT},
+ * followed by the average request size on the corpus with and without the dictionary.
+ *
+ * Candidate fragments are the substrings that start and end on a field boundary
+ * ('&amp;', '=', or an URL-encoded JSON quote, comma or brace), so variable values
+ * such as timestamps are naturally cut out. Each fragment is scored by the number
+ * of requests it appears in times its length, and the best non-overlapping fragments
+ * are packed until the size limit, with the best ones last.
+ */
+class DeflateDictionaryBuilder {
+    private static final int MIN_FRAGMENT_LENGTH = 4;
+    private static final int MAX_FRAGMENT_LENGTH = 96;
+    private static final String[] BOUNDARIES = {"&", "=", "%22", "%2C", "%3A", "%7B", "%7D", "%5B", "%5D"};
+
+    /**
+     * Builds a dictionary of at most maxSize characters from the specified requests.
+     * @param corpus captured requests, must not be null
+     * @param maxSize maximum dictionary length in characters, must be positive
+     * @return dictionary content with the most valuable fragments at the end
+     */
+    static String build(final List<String> corpus, final int maxSize) {
+        if (corpus == null) {
+            throw new IllegalArgumentException("corpus must not be null");
+        }
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+
+        // document frequency of each fragment
+        final Map<String, Integer> frequencies = new HashMap<>();
+        for (String request : corpus) {
+            final Set<String> seen = new HashSet<>();
+            final List<Integer> cuts = boundaries(request);
+            for (int i = 0; i < cuts.size(); i++) {
+                for (int j = i + 1; j < cuts.size(); j++) {
+                    final int length = cuts.get(j) - cuts.get(i);
+                    if (length > MAX_FRAGMENT_LENGTH) {
+                        break;
+                    }
+                    if (length >= MIN_FRAGMENT_LENGTH) {
+                        seen.add(request.substring(cuts.get(i), cuts.get(j)));
+                    }
+                }
+            }
+            for (String fragment : seen) {
+                final Integer count = frequencies.get(fragment);
+                frequencies.put(fragment, count == null ? 1 : count + 1);
+            }
+        }
+
+        final List<Map.Entry<String, Integer>> candidates = new ArrayList<>(frequencies.entrySet());
+        Collections.sort(candidates, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(final Map.Entry<String, Integer> e1, final Map.Entry<String, Integer> e2) {
+                final long s1 = score(e1), s2 = score(e2);
+                return s1 == s2 ? e1.getKey().compareTo(e2.getKey()) : (s1 > s2 ? -1 : 1);
+            }
+        });
+
+        // greedily take the best fragments that are not already covered by a better one
+        final List<String> selected = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<String, Integer> candidate : candidates) {
+            if (candidate.getValue() < 2) {
+                break;
+            }
+            final String fragment = candidate.getKey();
+            if (size + fragment.length() > maxSize || isCovered(fragment, selected)) {
+                continue;
+            }
+            selected.add(fragment);
+            size += fragment.length();
+        }
+
+        final StringBuilder builder = new StringBuilder(size);
+        for (int i = selected.size() - 1; i >= 0; i--) {
+            builder.append(selected.get(i));
+        }
+        return builder.toString();
+    }
+
+    private static long score(final Map.Entry<String, Integer> entry) {
+        return (long) entry.getValue() * (entry.getKey().length() - 3);
+    }
+
+    private static boolean isCovered(final String fragment, final List<String> selected) {
+        for (String s : selected) {
+            if (s.contains(fragment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Integer> boundaries(final String request) {
+        final List<Integer> cuts = new ArrayList<>();
+        cuts.add(0);
+        for (int i = 0; i < request.length(); i++) {
+            for (String boundary : BOUNDARIES) {
+                if (request.startsWith(boundary, i)) {
+                    cuts.add(i);
+                    cuts.add(i + boundary.length());
+                    break;
+                }
+            }
+        }
+        cuts.add(request.length());
+        // de-duplicate while keeping order
+        final List<Integer> unique = new ArrayList<>(cuts.size());
+        for (Integer cut : cuts) {
+            if (unique.isEmpty() || !unique.get(unique.size() - 1).equals(cut)) {
+                unique.add(cut);
+            }
+        }
+        return unique;
+    }
+
+    /**
+     * Returns the average zlib-compressed size of the corpus requests, optionally primed with a dictionary.
+     */
+    static double averageCompressedSize(final List<String> corpus, final String dictionary) {
+        if (corpus.isEmpty()) {
+            return 0;
+        }
+        long total = 0;
+        final byte[] buffer = new byte[4096];
+        for (String request : corpus) {
+            final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try {
+                if (dictionary != null) {
+                    deflater.setDictionary(DeflateDictionary.toBytes(dictionary));
+                }
+                deflater.setInput(DeflateDictionary.toBytes(request));
+                deflater.finish();
+                while (!deflater.finished()) {
+                    total += deflater.deflate(buffer);
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        return (double) total / corpus.size();
+    }
+
+    /**
+     * Formats dictionary content as a Java string literal split over several lines.
+     */
+    static String toJavaLiteral(final String content) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < content.length(); i += 100) {
+            builder.append(i == 0 ? "            \"" : "            + \"");
+            final String line = content.substring(i, Math.min(content.length(), i + 100));
+            builder.append(line.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"\n");
+        }
+        return builder.toString();
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: DeflateDictionaryBuilder <max size> <corpus file>...");
+            System.exit(1);
+        }
+        final int maxSize = Integer.parseInt(args[0]);
+        final List<String> corpus = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(args[i]), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.length() > 0) {
+                        corpus.add(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        final String dictionary = build(corpus, maxSize);
+        System.out.print(toJavaLiteral(dictionary));
+        long plain = 0;
+        for (String request : corpus) {
+            plain += DeflateDictionary.toBytes(request).length;
+        }
+        System.err.println("requests: " + corpus.size() + ", dictionary: " + dictionary.length() + " chars");
+        System.err.println("average bytes: plain " + (corpus.isEmpty() ? 0 : plain / corpus.size())
+                + ", deflate " + Math.round(averageCompressedSize(corpus, null))
+                + ", deflate+dictionary " + Math.round(averageCompressedSize(corpus, dictionary)));
+    }
+}
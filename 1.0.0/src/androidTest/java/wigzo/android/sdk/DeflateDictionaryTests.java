@@ -0,0 +1,152 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DeflateDictionaryTests extends AndroidTestCase {
+    private static final String BEGIN_SESSION = "app_key=abcDeFgHiJkLmNoPQRstuVWxyz&orgId=wigzo-test&timestamp=1460000000&hour=12&dow=3"
+            + "&sdk_version=1.0&begin_session=1&metrics=%7B%22_device%22%3A%22Nexus+5%22%2C%22_os%22%3A%22Android%22"
+            + "%2C%22_os_version%22%3A%226.0.1%22%2C%22_carrier%22%3A%22Vodafone%22%2C%22_resolution%22%3A%221080x1776%22"
+            + "%2C%22_density%22%3A%22XXHDPI%22%2C%22_locale%22%3A%22en_IN%22%2C%22_app_version%22%3A%222.3%22%7D";
+    private static final String EVENTS = "app_key=abcDeFgHiJkLmNoPQRstuVWxyz&orgId=wigzo-test&timestamp=1460000060&hour=12&dow=3"
+            + "&events=%5B%7B%22key%22%3A%22purchase%22%2C%22count%22%3A1%2C%22timestamp%22%3A1460000042%2C%22hour%22%3A12"
+            + "%2C%22dow%22%3A3%2C%22segmentation%22%3A%7B%22sku%22%3A%22A-1%22%7D%2C%22sum%22%3A9.99%7D%5D";
+
+    LocalTestServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new LocalTestServer().start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+        super.tearDown();
+    }
+
+    private static int plainDeflateSize(final byte[] input) {
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(input);
+        deflater.finish();
+        int size = 0;
+        final byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            size += deflater.deflate(buffer);
+        }
+        deflater.end();
+        return size;
+    }
+
+    public void testRoundTrip() throws DataFormatException {
+        final byte[] input = DeflateDictionary.toBytes(EVENTS);
+        assertTrue(Arrays.equals(input, DeflateDictionary.decompress(DeflateDictionary.compress(input))));
+    }
+
+    public void testDictionaryBeatsPlainDeflateOnSmallRequests() {
+        for (String request : new String[]{BEGIN_SESSION, EVENTS}) {
+            final byte[] input = DeflateDictionary.toBytes(request);
+            final int withDictionary = DeflateDictionary.compress(input).length;
+            final int plain = plainDeflateSize(input);
+            assertTrue("dictionary " + withDictionary + " vs plain " + plain, withDictionary * 4 < plain * 3);
+        }
+    }
+
+    public void testDecompressRejectsOtherDictionary() {
+        final Deflater deflater = new Deflater();
+        deflater.setDictionary(DeflateDictionary.toBytes("some other dictionary"));
+        deflater.setInput(DeflateDictionary.toBytes(EVENTS));
+        deflater.finish();
+        final byte[] buffer = new byte[1024];
+        final int length = deflater.deflate(buffer);
+        deflater.end();
+        try {
+            DeflateDictionary.decompress(Arrays.copyOf(buffer, length));
+            fail("expected DataFormatException");
+        } catch (DataFormatException ignored) {
+            // success
+        }
+    }
+
+    public void testBuilderKeepsSharedFragmentsOnly() {
+        final List<String> corpus = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            corpus.add("app_key=abc&orgId=org&timestamp=" + (1460000000 + i * 7919) + "&session_duration=" + (i * 31 + 7));
+        }
+        final String dictionary = DeflateDictionaryBuilder.build(corpus, 256);
+        assertTrue(dictionary, dictionary.contains("app_key=abc&orgId=org&timestamp="));
+        assertTrue(dictionary, dictionary.contains("&session_duration="));
+        assertFalse(dictionary, dictionary.contains("1460000000"));
+        assertTrue(DeflateDictionaryBuilder.averageCompressedSize(corpus, dictionary)
+                < DeflateDictionaryBuilder.averageCompressedSize(corpus, null));
+    }
+
+    public void testBuilderRespectsMaxSize() {
+        final List<String> corpus = Arrays.asList(BEGIN_SESSION, EVENTS, BEGIN_SESSION, EVENTS);
+        assertTrue(DeflateDictionaryBuilder.build(corpus, 64).length() <= 64);
+    }
+
+    public void testProcessorSendsCompressedBody() throws Exception {
+        final WigzoStore mockStore = mock(WigzoStore.class);
+        final DeviceId mockDeviceId = mock(DeviceId.class);
+        when(mockStore.connections()).thenReturn(new String[]{EVENTS}, new String[0]);
+        when(mockDeviceId.getId()).thenReturn("123");
+        final RequestCompressor compressor = new RequestCompressor();
+        compressor.setEnabled(true);
+
+        final ConnectionProcessor processor = new ConnectionProcessor(server.url(), mockStore, mockDeviceId, null);
+        processor.setRequestCompressor(compressor);
+        processor.run();
+
+        final List<LocalTestServer.Request> requests = server.requests();
+        assertEquals(1, requests.size());
+        final LocalTestServer.Request request = requests.get(0);
+        assertEquals("POST", request.method);
+        assertEquals("/i", request.path);
+        assertEquals("deflate", request.header("Content-Encoding"));
+        assertEquals(String.valueOf(DeflateDictionary.VERSION), request.header(DeflateDictionary.HEADER));
+        assertEquals(EVENTS + "&device_id=123", new String(DeflateDictionary.decompress(request.body), "UTF-8"));
+        verify(mockStore).removeConnection(EVENTS);
+    }
+
+    public void testProcessorFallsBackWhenServerRejectsCompression() throws Exception {
+        server.setHandler(new LocalTestServer.Handler() {
+            @Override
+            public LocalTestServer.Response handle(final LocalTestServer.Request request) {
+                if (request.header("Content-Encoding") != null) {
+                    return new LocalTestServer.Response(415, "{\"result\":\"Unsupported\"}");
+                }
+                return LocalTestServer.Response.success();
+            }
+        });
+        final WigzoStore mockStore = mock(WigzoStore.class);
+        final DeviceId mockDeviceId = mock(DeviceId.class);
+        when(mockStore.connections()).thenReturn(new String[]{EVENTS}, new String[]{EVENTS}, new String[0]);
+        when(mockDeviceId.getId()).thenReturn("123");
+        final RequestCompressor compressor = new RequestCompressor();
+        compressor.setEnabled(true);
+
+        final ConnectionProcessor processor = new ConnectionProcessor(server.url(), mockStore, mockDeviceId, null);
+        processor.setRequestCompressor(compressor);
+        processor.run();
+
+        final List<LocalTestServer.Request> requests = server.requests();
+        assertEquals(2, requests.size());
+        assertEquals("POST", requests.get(0).method);
+        assertEquals("GET", requests.get(1).method);
+        assertEquals(EVENTS + "&device_id=123", requests.get(1).query);
+        assertTrue(compressor.isRejected());
+        assertFalse(compressor.isActive());
+        verify(mockStore).removeConnection(EVENTS);
+    }
+}
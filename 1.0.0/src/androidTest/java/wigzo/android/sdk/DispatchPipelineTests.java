@@ -0,0 +1,167 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DispatchPipelineTests extends AndroidTestCase {
+    SdkScheduler scheduler;
+    DispatchPipeline pipeline;
+    DispatchPipeline appPipeline;
+    DeviceId deviceId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        scheduler = new SdkScheduler(new Metrics());
+        pipeline = new DispatchPipeline(new EndpointSink("Upload", "http://server/i", Sink.Encoding.QUERY_STRING), scheduler);
+        appPipeline = new DispatchPipeline(ConnectionProcessorWigzoApp.SINK, scheduler);
+        deviceId = mock(DeviceId.class);
+        when(deviceId.getId()).thenReturn("123");
+    }
+
+    public void testConstructor_invalid() {
+        try {
+            new DispatchPipeline(null, scheduler);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+        try {
+            new DispatchPipeline(ConnectionProcessorWigzoApp.SINK, null);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testBacklogAndIdle() {
+        assertFalse(pipeline.hasBacklog());
+        assertTrue(pipeline.isIdle());
+        final MemoryConnectionStore store = new MemoryConnectionStore("a=1");
+        pipeline.setStore(store);
+        assertTrue(pipeline.hasBacklog());
+        assertNotNull(pipeline.getRetryBackoff());
+        assertNotNull(pipeline.getDeadLetterStore());
+
+        final Future<?> running = mock(Future.class);
+        pipeline.setFuture(running);
+        assertFalse(pipeline.isIdle());
+        when(running.isDone()).thenReturn(true);
+        assertTrue(pipeline.isIdle());
+
+        pipeline.setStore(null);
+        assertFalse(pipeline.hasBacklog());
+        assertNull(pipeline.getRetryBackoff());
+    }
+
+    public void testOfferOnlyQueuesAcceptedTypes() {
+        final MemoryConnectionStore appStore = new MemoryConnectionStore();
+        assertFalse(appPipeline.offer("a=1&events=x", Sink.EventType.EVENTS));
+        appPipeline.setStore(appStore);
+        assertTrue(appPipeline.offer("a=1&events=x", Sink.EventType.EVENTS));
+        assertFalse(appPipeline.offer("a=1&crash=x", Sink.EventType.CRASH));
+        assertEquals(1, appStore.connections().length);
+    }
+
+    public void testSlowDestinationDoesNotDelayTheOther() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final LoopbackTransport transport = new LoopbackTransport().setHandler(new LoopbackTransport.Handler() {
+            @Override
+            public Transport.Response handle(final Transport.Request request) throws IOException {
+                if (request.getUrl().startsWith(ConnectionProcessorWigzoApp.MOBILE_EVENTS_URL)) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                return LoopbackTransport.SUCCESS_HANDLER.handle(request);
+            }
+        });
+        final MemoryConnectionStore store = new MemoryConnectionStore("a=1", "a=2");
+        final MemoryConnectionStore appStore = new MemoryConnectionStore("a=1");
+        pipeline.setStore(store);
+        appPipeline.setStore(appStore);
+
+        final Future<?> mobile = appPipeline.submit(new ConnectionProcessorWigzoApp("http://server", appStore, deviceId, null, transport), null);
+        final Future<?> main = pipeline.submit(new ConnectionProcessor("http://server", store, deviceId, null, transport), null);
+
+        main.get(5, TimeUnit.SECONDS);
+        assertTrue(store.isEmptyConnections());
+        assertFalse(mobile.isDone());
+        assertFalse(appPipeline.isIdle());
+        assertTrue(pipeline.isIdle());
+
+        release.countDown();
+        mobile.get(5, TimeUnit.SECONDS);
+        assertTrue(appStore.isEmptyConnections());
+        transport.shutdown();
+    }
+
+    public void testRetryStateIsPerDestination() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport().setHandler(new LoopbackTransport.Handler() {
+            @Override
+            public Transport.Response handle(final Transport.Request request) throws IOException {
+                if (request.getUrl().startsWith(ConnectionProcessorWigzoApp.MOBILE_EVENTS_URL)) {
+                    return new Transport.Response(500, null);
+                }
+                return LoopbackTransport.SUCCESS_HANDLER.handle(request);
+            }
+        });
+        final MemoryConnectionStore store = new MemoryConnectionStore("a=1");
+        final MemoryConnectionStore appStore = new MemoryConnectionStore("a=1");
+        pipeline.setStore(store);
+        appPipeline.setStore(appStore);
+
+        appPipeline.submit(new ConnectionProcessorWigzoApp("http://server", appStore, deviceId, null, transport), null).get(5, TimeUnit.SECONDS);
+        pipeline.submit(new ConnectionProcessor("http://server", store, deviceId, null, transport), null).get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, appPipeline.getRetryBackoff().getFailures());
+        assertEquals(0, pipeline.getRetryBackoff().getFailures());
+        assertTrue(store.isEmptyConnections());
+        assertFalse(appStore.isEmptyConnections());
+        transport.shutdown();
+    }
+
+    public void testAfterwardsRunsWhenTheDrainHasFinished() throws Exception {
+        final MemoryConnectionStore store = new MemoryConnectionStore("a=1");
+        pipeline.setStore(store);
+        final LoopbackTransport transport = new LoopbackTransport();
+        final boolean[] emptyAfterwards = new boolean[1];
+        pipeline.submit(new ConnectionProcessor("http://server", store, deviceId, null, transport), new Runnable() {
+            @Override
+            public void run() {
+                emptyAfterwards[0] = store.isEmptyConnections();
+            }
+        }).get(5, TimeUnit.SECONDS);
+        assertTrue(emptyAfterwards[0]);
+        transport.shutdown();
+    }
+
+    public void testTickSubmitsOnlyToIdlePipelines() {
+        final ConnectionQueue connQ = new ConnectionQueue();
+        connQ.setServerURL("http://server");
+        connQ.setWigzoStore(mock(WigzoStore.class));
+        connQ.setWigzoAppStore(mock(WigzoAppStore.class));
+        connQ.setDeviceId(deviceId);
+        connQ.setExecutor(mock(ExecutorService.class));
+        connQ.getAppPipeline().setExecutor(mock(ExecutorService.class));
+
+        // the main server is still draining, the mobile endpoint is idle
+        connQ.setConnectionProcessorFuture(mock(Future.class));
+        connQ.tick();
+        verify(connQ.getExecutor(), never()).submit(any(Runnable.class));
+        verify(connQ.getAppPipeline().getExecutor()).submit(any(ConnectionProcessorWigzoApp.class));
+    }
+}
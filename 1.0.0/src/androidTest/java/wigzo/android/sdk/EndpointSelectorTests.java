@@ -0,0 +1,348 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class EndpointSelectorTests extends AndroidTestCase {
+    private static final String A = "http://a.example.com";
+    private static final String B = "http://b.example.com";
+    private static final String C = "http://c.example.com";
+    private static final long COOLING_MILLIS = 1000;
+    private static final long MAX_COOLING_MILLIS = 8000;
+    private static final long NOW = 1000000;
+
+    Metrics metrics;
+    MemoryConnectionStore store;
+    EndpointSelector selector;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        metrics = new Metrics();
+        store = new MemoryConnectionStore();
+        selector = newSelector();
+    }
+
+    private EndpointSelector newSelector() {
+        final EndpointSelector endpointSelector = new EndpointSelector(metrics, COOLING_MILLIS, MAX_COOLING_MILLIS);
+        endpointSelector.setEndpoints(Arrays.asList(A, B, C));
+        endpointSelector.setStore(store);
+        return endpointSelector;
+    }
+
+    public void testInvalidParameters() {
+        try {
+            new EndpointSelector(null);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+        try {
+            new EndpointSelector(metrics, 1000, 999);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testNoEndpoints() {
+        final EndpointSelector empty = new EndpointSelector(metrics);
+        assertNull(empty.select(NOW));
+        assertTrue(empty.takeProbes(NOW).isEmpty());
+    }
+
+    public void testUnmeasuredEndpointsInConfiguredOrder() {
+        assertEquals(A, selector.select(NOW));
+        assertEquals(0, metrics.get(EndpointSelector.METRIC_FAILOVERS));
+    }
+
+    public void testSelectsLowestRoundTripTime() {
+        selector.onSuccess(A, 200, NOW);
+        selector.onSuccess(B, 50, NOW);
+        selector.onSuccess(C, 100, NOW);
+        assertEquals(B, selector.select(NOW));
+        assertEquals(1.0, metrics.getGauge(EndpointSelector.METRIC_ACTIVE));
+        assertEquals(50.0, metrics.getGauge(EndpointSelector.METRIC_PREFIX + "1.rtt_ms"));
+    }
+
+    public void testMeasuredEndpointsRankBeforeUnmeasured() {
+        selector.onSuccess(C, 500, NOW);
+        assertEquals(C, selector.select(NOW));
+    }
+
+    public void testErrorRateWeighsRoundTripTime() {
+        selector.onSuccess(A, 100, NOW);
+        selector.onSuccess(B, 120, NOW);
+        assertEquals(A, selector.select(NOW));
+        // A fails once, recovers quickly, but keeps an error rate that outweighs its speed
+        selector.onFailure(A, NOW);
+        selector.onSuccess(A, 100, NOW + COOLING_MILLIS);
+        assertTrue(selector.getEndpoint(A).errorRate > 0);
+        assertEquals(B, selector.select(NOW + COOLING_MILLIS));
+    }
+
+    public void testSwitchMarginPreventsFlapping() {
+        selector.onSuccess(A, 100, NOW);
+        assertEquals(A, selector.select(NOW));
+        selector.onSuccess(B, 90, NOW);
+        assertEquals(A, selector.select(NOW));
+        selector.onSuccess(B, 10, NOW);
+        selector.onSuccess(B, 10, NOW);
+        assertEquals(B, selector.select(NOW));
+        assertEquals(1, metrics.get(EndpointSelector.METRIC_FAILOVERS));
+    }
+
+    public void testFailoverAndRecovery() {
+        assertEquals(A, selector.select(NOW));
+        assertEquals(NOW + COOLING_MILLIS, selector.onFailure(A, NOW));
+        assertFalse(selector.isHealthy(A, NOW));
+        assertEquals(B, selector.select(NOW));
+        assertEquals(1, metrics.get(EndpointSelector.METRIC_FAILOVERS));
+
+        // the cooling period doubles with every consecutive failure, up to the maximum
+        assertEquals(NOW + 2 * COOLING_MILLIS, selector.onFailure(A, NOW));
+        assertEquals(NOW + 4 * COOLING_MILLIS, selector.onFailure(A, NOW));
+        assertEquals(NOW + 8 * COOLING_MILLIS, selector.onFailure(A, NOW));
+        assertEquals(NOW + MAX_COOLING_MILLIS, selector.onFailure(A, NOW));
+
+        assertTrue(selector.isHealthy(A, NOW + MAX_COOLING_MILLIS));
+        selector.onSuccess(A, 10, NOW + MAX_COOLING_MILLIS);
+        assertEquals(0, selector.getEndpoint(A).consecutiveFailures);
+        assertEquals(A, selector.select(NOW + MAX_COOLING_MILLIS));
+    }
+
+    public void testAllUnhealthyUsesTheOneRecoveringFirst() {
+        selector.onFailure(A, NOW);
+        selector.onFailure(A, NOW);
+        selector.onFailure(B, NOW);
+        selector.onFailure(C, NOW + 10);
+        assertEquals(B, selector.select(NOW + 20));
+    }
+
+    public void testTakeProbes() {
+        assertEquals(Arrays.asList(A, B, C), selector.takeProbes(NOW));
+        assertTrue(selector.takeProbes(NOW + 1).isEmpty());
+        selector.onFailure(B, NOW + EndpointSelector.PROBE_INTERVAL_MILLIS);
+        assertEquals(Arrays.asList(A, C), selector.takeProbes(NOW + EndpointSelector.PROBE_INTERVAL_MILLIS));
+
+        final EndpointSelector single = new EndpointSelector(metrics);
+        single.setEndpoints(Collections.singletonList(A));
+        assertTrue(single.takeProbes(NOW).isEmpty());
+    }
+
+    public void testStateSurvivesRestart() {
+        selector.onSuccess(A, 30, NOW);
+        selector.onSuccess(B, 60, NOW);
+        selector.onFailure(A, NOW);
+        selector.save();
+        assertNotNull(store.getPreference(EndpointSelector.PREFERENCE));
+
+        final EndpointSelector restarted = newSelector();
+        assertEquals(B, restarted.select(NOW + 1));
+        assertEquals(30.0, restarted.getEndpoint(A).rttMillis);
+        assertEquals(1, restarted.getEndpoint(A).consecutiveFailures);
+        assertTrue(restarted.isHealthy(A, NOW + COOLING_MILLIS));
+    }
+
+    public void testStateOfRemovedEndpointsIsDropped() {
+        selector.onSuccess(C, 30, NOW);
+        selector.save();
+        final EndpointSelector restarted = new EndpointSelector(metrics, COOLING_MILLIS, MAX_COOLING_MILLIS);
+        restarted.setEndpoints(Arrays.asList(A, B));
+        restarted.setStore(store);
+        assertEquals(A, restarted.select(NOW));
+        assertNull(restarted.getEndpoint(C));
+    }
+
+    public void testCorruptStateIsIgnored() {
+        store.setPreference(EndpointSelector.PREFERENCE, A + " x 0 0 0 0\ngarbage");
+        assertEquals(-1.0, selector.getEndpoint(A).rttMillis);
+        assertEquals(A, selector.select(NOW));
+    }
+
+    // multi-server harness: every queued request must reach exactly one server
+
+    private static class RecordingServer implements LocalTestServer.Handler {
+        final Set<String> delivered = Collections.synchronizedSet(new HashSet<String>());
+        final List<String> duplicates = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger successesLeft;
+
+        RecordingServer(final int successes) {
+            successesLeft = new AtomicInteger(successes);
+        }
+
+        @Override
+        public LocalTestServer.Response handle(final LocalTestServer.Request request) {
+            if ("HEAD".equals(request.method)) {
+                return LocalTestServer.Response.success();
+            }
+            if (successesLeft.getAndDecrement() <= 0) {
+                return new LocalTestServer.Response(503, "{\"result\":\"Unavailable\"}");
+            }
+            if (!delivered.add(request.query)) {
+                duplicates.add(request.query);
+            }
+            return LocalTestServer.Response.success();
+        }
+    }
+
+    private ConnectionQueue newConnectionQueue(final String... serverURLs) {
+        final DeviceId deviceId = mock(DeviceId.class);
+        when(deviceId.getId()).thenReturn("123");
+        final ConnectionQueue connQ = new ConnectionQueue();
+        connQ.setServerURLs(Arrays.asList(serverURLs));
+        connQ.setDeviceId(deviceId);
+        connQ.getPipeline().setStore(store);
+        connQ.getEndpointSelector().setStore(store);
+        connQ.getAppPipeline().setStore(new MemoryConnectionStore());
+        return connQ;
+    }
+
+    private static void awaitDrained(final ConnectionQueue connQ, final List<Future<?>> futures) throws Exception {
+        for (Future<?> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        // the run that fails over submits another one to the lane
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!connQ.getPipeline().isIdle() || connQ.getPipeline().hasBacklog()) {
+            assertTrue("queue not drained in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    private static Set<String> queue(final ConnectionQueue connQ, final int count) {
+        final Set<String> expected = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            connQ.getPipeline().offer("app_key=1&seq=" + i, Sink.EventType.OTHER);
+            expected.add("app_key=1&seq=" + i + "&request_seq=" + i + "&device_id=123&idempotency_key=123:" + i);
+        }
+        return expected;
+    }
+
+    public void testFailoverWhenServerDegradesMidway() throws Exception {
+        final RecordingServer handlerA = new RecordingServer(5);
+        final RecordingServer handlerB = new RecordingServer(Integer.MAX_VALUE);
+        final LocalTestServer serverA = new LocalTestServer(handlerA).start();
+        final LocalTestServer serverB = new LocalTestServer(handlerB).start();
+        try {
+            final ConnectionQueue connQ = newConnectionQueue(serverA.url(), serverB.url());
+            final Set<String> expected = queue(connQ, 20);
+
+            awaitDrained(connQ, connQ.flush());
+
+            assertEquals(5, handlerA.delivered.size());
+            assertEquals(15, handlerB.delivered.size());
+            final Set<String> delivered = new HashSet<>(handlerA.delivered);
+            delivered.addAll(handlerB.delivered);
+            assertEquals(expected, delivered);
+            assertTrue(handlerA.duplicates.isEmpty());
+            assertTrue(handlerB.duplicates.isEmpty());
+            assertEquals(serverB.url(), connQ.getActiveServerURL());
+            assertEquals(1, connQ.getMetrics().get(EndpointSelector.METRIC_FAILOVERS));
+            // the failover did not wait for the backoff of the failed server
+            assertEquals(0, connQ.getRetryBackoff().getFailures());
+        } finally {
+            serverA.stop();
+            serverB.stop();
+        }
+    }
+
+    public void testLateAcknowledgementDoesNotUndoFailover() throws Exception {
+        final CountDownLatch failed = new CountDownLatch(1);
+        final LocalTestServer serverA = new LocalTestServer(new LocalTestServer.Handler() {
+            @Override
+            public LocalTestServer.Response handle(final LocalTestServer.Request request) throws Exception {
+                if (request.query.contains("&seq=1&")) {
+                    failed.countDown();
+                    return new LocalTestServer.Response(503, "{\"result\":\"Unavailable\"}");
+                }
+                if (request.query.contains("&seq=0&")) {
+                    // acknowledged after the request behind it failed
+                    failed.await(5, TimeUnit.SECONDS);
+                    Thread.sleep(200);
+                }
+                return LocalTestServer.Response.success();
+            }
+        }).start();
+        final RecordingServer handlerB = new RecordingServer(Integer.MAX_VALUE);
+        final LocalTestServer serverB = new LocalTestServer(handlerB).start();
+        try {
+            final ConnectionQueue connQ = newConnectionQueue(serverA.url(), serverB.url());
+            queue(connQ, 10);
+
+            awaitDrained(connQ, connQ.flush());
+
+            assertTrue(handlerB.delivered.contains("app_key=1&seq=1&request_seq=1&device_id=123&idempotency_key=123:1"));
+            assertEquals(serverB.url(), connQ.getActiveServerURL());
+            assertFalse(connQ.getEndpointSelector().isHealthy(serverA.url(), System.currentTimeMillis()));
+        } finally {
+            serverA.stop();
+            serverB.stop();
+        }
+    }
+
+    public void testFailoverWhenServerIsDown() throws Exception {
+        final RecordingServer handlerB = new RecordingServer(Integer.MAX_VALUE);
+        final LocalTestServer serverA = new LocalTestServer().start();
+        final LocalTestServer serverB = new LocalTestServer(handlerB).start();
+        final String urlA = serverA.url();
+        serverA.stop();
+        try {
+            final ConnectionQueue connQ = newConnectionQueue(urlA, serverB.url());
+            final Set<String> expected = queue(connQ, 10);
+
+            awaitDrained(connQ, connQ.flush());
+
+            assertEquals(expected, handlerB.delivered);
+            assertTrue(handlerB.duplicates.isEmpty());
+            assertFalse(connQ.getEndpointSelector().isHealthy(urlA, System.currentTimeMillis()));
+        } finally {
+            serverB.stop();
+        }
+    }
+
+    public void testProbesMoveUploadsToTheFasterServer() throws Exception {
+        final LocalTestServer serverA = new LocalTestServer(new LocalTestServer.Handler() {
+            @Override
+            public LocalTestServer.Response handle(final LocalTestServer.Request request) throws Exception {
+                Thread.sleep(200);
+                return LocalTestServer.Response.success();
+            }
+        }).start();
+        final LocalTestServer serverB = new LocalTestServer().start();
+        try {
+            final ConnectionQueue connQ = newConnectionQueue(serverA.url(), serverB.url());
+            assertEquals(serverA.url(), connQ.getActiveServerURL());
+            final List<Future<?>> probes = connQ.probeServers();
+            assertEquals(2, probes.size());
+            for (Future<?> probe : probes) {
+                probe.get(5, TimeUnit.SECONDS);
+            }
+            assertEquals(serverB.url(), connQ.getActiveServerURL());
+            assertTrue(connQ.probeServers().isEmpty());
+        } finally {
+            serverA.stop();
+            serverB.stop();
+        }
+    }
+
+    public void testSingleServerURLIsNotProbed() {
+        final ConnectionQueue connQ = newConnectionQueue(A);
+        assertEquals(A, connQ.getServerURL());
+        assertEquals(A, connQ.getActiveServerURL());
+        assertTrue(connQ.probeServers().isEmpty());
+    }
+}
@@ -0,0 +1,34 @@
+package wigzo.android.sdk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * BackgroundFlushScheduler that records the flushes requested instead of scheduling jobs.
+ */
+class FakeBackgroundFlushScheduler implements BackgroundFlushScheduler {
+    private final List<Boolean> flushes_ = new ArrayList<>();
+    private int cancellations_;
+
+    @Override
+    public synchronized void scheduleFlush(final boolean expedited) {
+        flushes_.add(expedited);
+    }
+
+    @Override
+    public synchronized void cancel() {
+        cancellations_++;
+    }
+
+    /**
+     * Returns the expedited flag of every flush requested, in order.
+     */
+    synchronized List<Boolean> getFlushes() {
+        return Collections.unmodifiableList(new ArrayList<>(flushes_));
+    }
+
+    synchronized int getCancellations() {
+        return cancellations_;
+    }
+}
@@ -0,0 +1,47 @@
+package wigzo.android.sdk;
+
+/**
+ * ConnectivityMonitor whose state is set by the test; setConnected() notifies the
+ * listener synchronously on the calling thread.
+ */
+class FakeConnectivityMonitor implements ConnectivityMonitor {
+    private volatile boolean connected_;
+    private volatile boolean metered_;
+    private volatile Listener listener_;
+
+    FakeConnectivityMonitor(final boolean connected) {
+        connected_ = connected;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected_;
+    }
+
+    @Override
+    public boolean isMetered() {
+        return metered_;
+    }
+
+    void setMetered(final boolean metered) {
+        metered_ = metered;
+    }
+
+    @Override
+    public void setListener(final Listener listener) {
+        listener_ = listener;
+    }
+
+    Listener getListener() {
+        return listener_;
+    }
+
+    void setConnected(final boolean connected) {
+        final boolean changed = connected != connected_;
+        connected_ = connected;
+        final Listener listener = listener_;
+        if (changed && listener != null) {
+            listener.onConnectivityChanged(connected);
+        }
+    }
+}
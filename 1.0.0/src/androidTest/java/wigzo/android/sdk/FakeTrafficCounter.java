@@ -0,0 +1,21 @@
+package wigzo.android.sdk;
+
+/**
+ * TrafficCounter whose byte count is advanced by the test.
+ */
+class FakeTrafficCounter implements TrafficCounter {
+    private volatile long totalBytes_;
+
+    @Override
+    public long getTotalBytes() {
+        return totalBytes_;
+    }
+
+    void add(final long bytes) {
+        totalBytes_ += bytes;
+    }
+
+    void setTotalBytes(final long totalBytes) {
+        totalBytes_ = totalBytes;
+    }
+}
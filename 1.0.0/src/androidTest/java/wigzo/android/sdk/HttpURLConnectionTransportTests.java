@@ -0,0 +1,231 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class HttpURLConnectionTransportTests extends AndroidTestCase {
+    LocalTestServer server;
+    Metrics metrics;
+    HttpURLConnectionTransport transport;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new LocalTestServer().start();
+        metrics = new Metrics();
+        transport = new HttpURLConnectionTransport(new SdkScheduler(metrics));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+        super.tearDown();
+    }
+
+    public void testConstructor_nullScheduler() {
+        try {
+            new HttpURLConnectionTransport(null);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testSend_get() throws Exception {
+        final Transport.Response response = transport.send(new Transport.Request("GET", server.url() + "/i?a=1"));
+        assertEquals(200, response.getCode());
+        assertTrue(response.isSuccessful());
+        assertEquals("{\"result\":\"Success\"}", new String(response.getBody(), "UTF-8"));
+        assertEquals("GET", server.requests().get(0).method);
+        assertEquals("a=1", server.requests().get(0).query);
+    }
+
+    public void testSendAsync_runsOnSchedulerThreads() throws Exception {
+        final String[] thread = new String[1];
+        final Transport.Response response = transport.sendAsync(new Transport.Request("GET", server.url() + "/i?a=1"), new Transport.Callback() {
+            @Override
+            public void onResponse(final Transport.Request request, final Transport.Response response) {
+                thread[0] = Thread.currentThread().getName();
+            }
+
+            @Override
+            public void onFailure(final Transport.Request request, final IOException e) {
+                fail(e.toString());
+            }
+        }).get(5, TimeUnit.SECONDS);
+        assertEquals(200, response.getCode());
+        assertTrue(thread[0], thread[0].startsWith("Wigzo-Io-"));
+    }
+
+    public void testSend_postWithHeaders() throws Exception {
+        final Transport.Request request = new Transport.Request("POST", server.url() + "/i")
+                .setHeader("X-Test", "yes")
+                .setBody(LocalTestServer.bytes("a=1&b=2"));
+        transport.send(request);
+        final LocalTestServer.Request received = server.requests().get(0);
+        assertEquals("POST", received.method);
+        assertEquals("yes", received.header("X-Test"));
+        assertEquals("a=1&b=2", new String(received.body, "UTF-8"));
+    }
+
+    public void testSend_errorResponseBodyIsRead() throws Exception {
+        server.setHandler(new LocalTestServer.Handler() {
+            @Override
+            public LocalTestServer.Response handle(final LocalTestServer.Request request) {
+                return new LocalTestServer.Response(500, "{\"result\":\"Error\"}");
+            }
+        });
+        final Transport.Response response = transport.send(new Transport.Request("GET", server.url() + "/i?a=1"));
+        assertEquals(500, response.getCode());
+        assertFalse(response.isSuccessful());
+        assertEquals("{\"result\":\"Error\"}", new String(response.getBody(), "UTF-8"));
+    }
+
+    public void testPreconnectLeavesConnectionForTheFirstRequest() throws Exception {
+        transport.preconnect(server.url() + "/i");
+        final Transport.Response response = transport.send(new Transport.Request("GET", server.url() + "/i?a=1"));
+        assertEquals(200, response.getCode());
+        assertEquals(2, server.requests().size());
+        assertEquals("HEAD", server.requests().get(0).method);
+        assertEquals(1, server.connectionCount());
+        assertEquals(1, metrics.get(HttpURLConnectionTransport.METRIC_PRECONNECTS));
+        assertEquals(1, metrics.get(HttpURLConnectionTransport.METRIC_CONNECTIONS_REUSED));
+    }
+
+    public void testQueuedRequestsShareOneConnection() {
+        final String[] stored = {"a=1", "a=2", "a=3", "a=4", "a=5"};
+        final WigzoStore mockStore = mock(WigzoStore.class);
+        final DeviceId mockDeviceId = mock(DeviceId.class);
+        when(mockStore.connections()).thenReturn(stored, new String[]{"a=2", "a=3", "a=4", "a=5"},
+                new String[]{"a=3", "a=4", "a=5"}, new String[]{"a=4", "a=5"}, new String[]{"a=5"}, new String[0]);
+        when(mockDeviceId.getId()).thenReturn("123");
+
+        // processors are re-created on every tick, the transport is not
+        new ConnectionProcessor(server.url(), mockStore, mockDeviceId, null, transport).run();
+
+        assertEquals(5, server.requests().size());
+        assertEquals(1, server.connectionCount());
+        assertEquals(5, metrics.get(HttpURLConnectionTransport.METRIC_CONNECTIONS_OPENED));
+        assertEquals(4, metrics.get(HttpURLConnectionTransport.METRIC_CONNECTIONS_REUSED));
+        assertEquals(0.8, transport.getReuseRatio(), 0.0001);
+        assertEquals(0.8, metrics.getGauge(HttpURLConnectionTransport.METRIC_REUSE_RATIO), 0.0001);
+        for (String data : stored) {
+            verify(mockStore).removeConnection(data);
+        }
+    }
+
+    public void testReleaseKeepsConnectionOpenAfterSuccess() throws Exception {
+        final HttpURLConnection conn = mock(HttpURLConnection.class);
+        final InputStream response = new ByteArrayInputStream(new byte[]{1, 2, 3});
+        transport.release(conn, response, false);
+        assertEquals(-1, response.read());
+        verify(conn, never()).disconnect();
+    }
+
+    public void testReleaseClosesWithoutDrainingAfterFailure() {
+        final HttpURLConnection conn = mock(HttpURLConnection.class);
+        final ResponseParserTests.CountingStream response = new ResponseParserTests.CountingStream(1000);
+        transport.release(conn, response, true);
+        assertEquals(0, response.read);
+        verify(conn).disconnect();
+    }
+
+    public void testReadFullyRejectsOversizedResponse() throws Exception {
+        try {
+            transport.readFully(new ResponseParserTests.CountingStream(ResponseParser.MAX_RESPONSE_BYTES + 1));
+            fail("expected ResponseTooLargeException");
+        } catch (ResponseParser.ResponseTooLargeException ignored) {
+            // success
+        }
+    }
+
+    public void testReleaseDisconnectsAfterFailure() {
+        final HttpURLConnection conn = mock(HttpURLConnection.class);
+        transport.release(conn, null, true);
+        verify(conn).disconnect();
+    }
+
+    public void testReleaseDisconnectsWhenServerClosesConnection() {
+        final HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getHeaderField("Connection")).thenReturn("close");
+        transport.release(conn, null, false);
+        verify(conn).disconnect();
+    }
+
+    public void testIdleConnectionsExpire() throws Exception {
+        transport = new HttpURLConnectionTransport(new SdkScheduler(metrics), 1, 0);
+        final URL url = new URL(server.url() + "/i");
+        final HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getURL()).thenReturn(url);
+        transport.release(conn, null, false);
+        Thread.sleep(5);
+        transport.open(url);
+        assertEquals(1, metrics.get(HttpURLConnectionTransport.METRIC_CONNECTIONS_OPENED));
+        assertEquals(0, metrics.get(HttpURLConnectionTransport.METRIC_CONNECTIONS_REUSED));
+    }
+
+    public void testSend_disconnectsAtDeadline() throws Exception {
+        // a server that trickles its response: no single read times out, but it never ends
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        final HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getResponseCode()).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(final InvocationOnMock invocation) throws Throwable {
+                if (!disconnected.await(10, TimeUnit.SECONDS)) {
+                    return 200;
+                }
+                throw new IOException("Socket closed");
+            }
+        });
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                disconnected.countDown();
+                return null;
+            }
+        }).when(conn).disconnect();
+        transport = new HttpURLConnectionTransport(new SdkScheduler(metrics)) {
+            @Override
+            HttpURLConnection open(final URL url) {
+                return conn;
+            }
+        };
+
+        final long start = System.nanoTime();
+        try {
+            transport.send(new Transport.Request("GET", server.url() + "/i").setTimeouts(50, 100));
+            fail("expected SocketTimeoutException");
+        } catch (SocketTimeoutException ignored) {
+            // success
+        }
+        final long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue(elapsedMillis >= 150);
+        assertTrue(elapsedMillis < 5000);
+        assertEquals(1, metrics.get(HttpURLConnectionTransport.METRIC_DEADLINES_EXCEEDED));
+    }
+
+    public void testSend_deadlineDoesNotFireAfterResponse() throws Exception {
+        transport.send(new Transport.Request("GET", server.url() + "/i").setTimeouts(50, 50));
+        Thread.sleep(200);
+        final Transport.Response response = transport.send(new Transport.Request("GET", server.url() + "/i"));
+        assertEquals(200, response.getCode());
+        assertEquals(0, metrics.get(HttpURLConnectionTransport.METRIC_DEADLINES_EXCEEDED));
+    }
+}
@@ -0,0 +1,196 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.util.Random;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class IdempotencyKeysTests extends AndroidTestCase {
+    private static final String EVENTS = "&events=%5B%7B%22key%22%3A%22a%22%2C%22count%22%3A2%7D%5D";
+
+    MemoryConnectionStore store;
+    IdempotencyKeys keys;
+    DeviceId deviceId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        store = new MemoryConnectionStore();
+        keys = new IdempotencyKeys(store);
+        deviceId = mock(DeviceId.class);
+        when(deviceId.getId()).thenReturn("123");
+    }
+
+    public void testConstructor_nullStore() {
+        try {
+            new IdempotencyKeys(null);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testSequence() {
+        assertEquals("app_key=abc&request_seq=0", keys.withSequence("app_key=abc"));
+        assertEquals("app_key=abc&request_seq=1", keys.withSequence("app_key=abc"));
+        // kept when queued again, e.g. from the dead-letter store
+        assertEquals("app_key=abc&request_seq=0", keys.withSequence("app_key=abc&request_seq=0"));
+
+        assertEquals(41, IdempotencyKeys.sequenceOf("app_key=abc&request_seq=41&device_id=1"));
+        assertEquals(-1, IdempotencyKeys.sequenceOf("app_key=abc"));
+        assertEquals(-1, IdempotencyKeys.sequenceOf("app_key=abc&request_seq="));
+        assertEquals("123:41", IdempotencyKeys.keyOf("app_key=abc&request_seq=41", "123"));
+        assertNull(IdempotencyKeys.keyOf("app_key=abc", "123"));
+    }
+
+    public void testSequenceContinuesAfterRestart() {
+        for (int i = 0; i < 150; i++) {
+            assertEquals(i, keys.next());
+        }
+        // only the end of the block is written
+        assertEquals(String.valueOf(2 * IdempotencyKeys.BLOCK_SIZE), store.getPreference(IdempotencyKeys.PREFERENCE));
+
+        final IdempotencyKeys restarted = new IdempotencyKeys(store);
+        assertEquals(2 * IdempotencyKeys.BLOCK_SIZE, restarted.next());
+
+        store.setPreference(IdempotencyKeys.PREFERENCE, "corrupt");
+        assertEquals(0, new IdempotencyKeys(store).next());
+    }
+
+    public void testPipelineQueuesWithSequence() {
+        final DispatchPipeline pipeline = new DispatchPipeline(
+                new EndpointSink("Upload", "http://server/i", Sink.Encoding.QUERY_STRING), new SdkScheduler(new Metrics()));
+        pipeline.setStore(store);
+        pipeline.offer("app_key=abc&session_duration=30", Sink.EventType.SESSION);
+        pipeline.beginCoalescing();
+        pipeline.offer("app_key=abc&session_duration=30", Sink.EventType.SESSION);
+        pipeline.offer("app_key=abc" + EVENTS, Sink.EventType.EVENTS);
+        assertEquals(1, pipeline.endCoalescing());
+        final String[] queued = store.connections();
+        assertEquals(2, queued.length);
+        assertEquals(0, IdempotencyKeys.sequenceOf(queued[0]));
+        // merged requests get one key
+        assertEquals(1, IdempotencyKeys.sequenceOf(queued[1]));
+    }
+
+    public void testKeyIsSentWithEachRequest() {
+        final LoopbackTransport transport = new LoopbackTransport();
+        try {
+            store.addConnection(keys.withSequence("app_key=abc&session_duration=30"));
+            store.addConnection("app_key=abc&session_duration=30");
+            new ConnectionProcessor("http://server", store, deviceId, null, transport).run();
+            assertTrue(transport.getRequests().get(0).getUrl().endsWith("&device_id=123&idempotency_key=123:0"));
+            assertTrue(transport.getRequests().get(1).getUrl().endsWith("&device_id=123"));
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    // exactly-once effects over a link that loses responses
+
+    private static final int REQUESTS = 40;
+
+    /**
+     * Queues requests with 2 events each, every other one with 30 session seconds.
+     */
+    private void queue(final boolean withKeys) {
+        for (int i = 0; i < REQUESTS; i++) {
+            final String data = "app_key=abc&timestamp=1" + (i % 2 == 0 ? "&session_duration=30" : "") + EVENTS + "&seq=" + i;
+            store.addConnection(withKeys ? keys.withSequence(data) : data);
+        }
+    }
+
+    /**
+     * Runs the processor until the queue is empty, as the timer would.
+     */
+    private static void drain(final ConnectionProcessor processor, final ConnectionStore store) {
+        for (int run = 0; run < 1000 && !store.isEmptyConnections(); run++) {
+            processor.run();
+        }
+        assertTrue(store.isEmptyConnections());
+    }
+
+    private void assertAppliedOnce(final DeduplicatingServer server) {
+        assertEquals(REQUESTS, server.getApplied());
+        assertEquals(2 * REQUESTS, server.getEventCount());
+        assertEquals(30 * REQUESTS / 2, server.getSessionSeconds());
+        // responses were lost, so some requests were sent again
+        assertTrue(server.getDuplicates() > 0);
+        assertEquals(server.getReceived(), server.getApplied() + server.getDuplicates());
+    }
+
+    public void testWithoutKeysRetriesCountTwice() {
+        final DeduplicatingServer server = new DeduplicatingServer(new Random(42)).setResponseLossRate(0.3);
+        final LoopbackTransport transport = new LoopbackTransport().setHandler(server);
+        try {
+            queue(false);
+            drain(new ConnectionProcessor("http://server", store, deviceId, null, transport), store);
+            assertTrue(server.getEventCount() > 2 * REQUESTS);
+            assertTrue(server.getSessionSeconds() > 30 * REQUESTS / 2);
+            assertEquals(0, server.getDuplicates());
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    public void testExactlyOnce_stopAndWait() {
+        final DeduplicatingServer server = new DeduplicatingServer(new Random(42)).setResponseLossRate(0.3);
+        final LoopbackTransport transport = new LoopbackTransport().setHandler(server);
+        try {
+            queue(true);
+            final ConnectionProcessor processor = new ConnectionProcessor("http://server", store, deviceId, null, transport);
+            final RequestCompressor compressor = new RequestCompressor();
+            processor.setRequestCompressor(compressor);
+            drain(processor, store);
+            assertAppliedOnce(server);
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    public void testExactlyOnce_pipelined() {
+        final DeduplicatingServer server = new DeduplicatingServer(new Random(7)).setResponseLossRate(0.3);
+        final LoopbackTransport transport = new LoopbackTransport().setHandler(server).setLatency(5);
+        try {
+            queue(true);
+            final ConnectionProcessor processor = new ConnectionProcessor("http://server", store, deviceId, null, transport);
+            processor.setMaxRequestsInFlight(4);
+            drain(processor, store);
+            assertAppliedOnce(server);
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    public void testExactlyOnce_bulk() {
+        final DeduplicatingServer server = new DeduplicatingServer(new Random(3)).setResponseLossRate(0.3);
+        final LoopbackTransport transport = new LoopbackTransport().setHandler(server);
+        try {
+            queue(true);
+            final Sink sink = new EndpointSink("Bulk", "http://server/bulk", Sink.Encoding.BULK);
+            final ConnectionProcessor processor = new SinkConnectionProcessor(sink, store, deviceId, null, transport);
+            processor.setBatchSizer(new BatchSizer(sink.getName(), new Metrics()));
+            drain(processor, store);
+            assertAppliedOnce(server);
+            // fewer requests than entries, so the keys were checked per bulk entry
+            assertTrue(transport.getRequests().size() < server.getReceived());
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    public void testExactlyOnce_jsonBody() {
+        final DeduplicatingServer server = new DeduplicatingServer(new Random(5)).setResponseLossRate(0.3);
+        final LoopbackTransport transport = new LoopbackTransport().setHandler(server);
+        try {
+            queue(true);
+            final Sink sink = new EndpointSink("Json", "http://server/json", Sink.Encoding.JSON_BODY);
+            drain(new SinkConnectionProcessor(sink, store, deviceId, null, transport), store);
+            assertAppliedOnce(server);
+        } finally {
+            transport.shutdown();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class LatencySketchTests extends AndroidTestCase {
+
+    public void testInvalidParameters() {
+        try {
+            new LatencySketch(1);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+        try {
+            new LatencySketch().quantile(1.5);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testEmpty() {
+        final LatencySketch sketch = new LatencySketch();
+        assertEquals(-1, sketch.quantile(0.99));
+        assertEquals(0, sketch.getCount());
+    }
+
+    public void testQuantilesWithinRelativeAccuracy() {
+        final LatencySketch sketch = new LatencySketch(10000);
+        final Random random = new Random(42);
+        final long[] samples = new long[5000];
+        for (int i = 0; i < samples.length; i++) {
+            // long-tailed, like mobile round trips
+            samples[i] = 20 + (long) Math.exp(random.nextGaussian() * 1.2 + 5);
+            sketch.add(samples[i]);
+        }
+        Arrays.sort(samples);
+        for (double q : new double[]{0.5, 0.9, 0.99}) {
+            final long exact = samples[(int) Math.floor(q * (samples.length - 1))];
+            assertEquals(exact, sketch.quantile(q), exact * LatencySketch.RELATIVE_ACCURACY + 1);
+        }
+    }
+
+    public void testExtremeValues() {
+        final LatencySketch sketch = new LatencySketch();
+        sketch.add(0);
+        assertEquals(1, sketch.quantile(0));
+        sketch.add(Long.MAX_VALUE);
+        assertEquals(LatencySketch.MAX_LATENCY_MILLIS, sketch.quantile(1), LatencySketch.MAX_LATENCY_MILLIS * LatencySketch.RELATIVE_ACCURACY);
+    }
+
+    public void testOldSamplesLoseWeight() {
+        final LatencySketch sketch = new LatencySketch(100);
+        for (int i = 0; i < 100; i++) {
+            sketch.add(50);
+        }
+        assertEquals(50, sketch.quantile(0.5), 1);
+        // the network got slower
+        for (int i = 0; i < 100; i++) {
+            sketch.add(2000);
+        }
+        assertTrue(sketch.getCount() <= 100);
+        assertEquals(2000, sketch.quantile(0.5), 2000 * LatencySketch.RELATIVE_ACCURACY);
+    }
+}
@@ -0,0 +1,300 @@
+package wigzo.android.sdk;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Minimal HTTP/1.1 server bound to localhost that stands in for a Wigzo server in tests.
+ * It supports persistent connections, records every request it receives and answers
+ * through a pluggable {@link Handler}, which by default reports {"result":"Success"}.
+ * Started with {@link #startTls} it serves HTTPS and records the TLS session of every
+ * connection.
+ */
+class LocalTestServer {
+
+    static class Request {
+        String method;
+        String path;
+        String query;
+        final Map<String, String> headers = new HashMap<>();
+        byte[] body = new byte[0];
+        int connection;
+
+        String header(final String name) {
+            return headers.get(name.toLowerCase());
+        }
+    }
+
+    static class Response {
+        final int code;
+        final Map<String, String> headers = new HashMap<>();
+        final byte[] body;
+
+        Response(final int code, final String body) {
+            this.code = code;
+            this.body = bytes(body);
+        }
+
+        Response header(final String name, final String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        static Response success() {
+            return new Response(200, "{\"result\":\"Success\"}");
+        }
+    }
+
+    interface Handler {
+        Response handle(Request request) throws Exception;
+    }
+
+    private final List<Request> requests_ = Collections.synchronizedList(new ArrayList<Request>());
+    private final AtomicInteger connections_ = new AtomicInteger();
+    private final List<String> sessionIds_ = Collections.synchronizedList(new ArrayList<String>());
+    private volatile Handler handler_;
+    private ServerSocket serverSocket_;
+
+    LocalTestServer() {
+        this(new Handler() {
+            @Override
+            public Response handle(final Request request) {
+                return Response.success();
+            }
+        });
+    }
+
+    LocalTestServer(final Handler handler) {
+        handler_ = handler;
+    }
+
+    void setHandler(final Handler handler) {
+        handler_ = handler;
+    }
+
+    LocalTestServer start() throws IOException {
+        return start(new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")));
+    }
+
+    /**
+     * Starts serving HTTPS with the key of the specified context.
+     * @param protocols TLS versions to accept, all the context supports if none are specified
+     */
+    LocalTestServer startTls(final SSLContext sslContext, final String... protocols) throws IOException {
+        final SSLServerSocket serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        if (protocols.length > 0) {
+            serverSocket.setEnabledProtocols(protocols);
+        }
+        return start(serverSocket);
+    }
+
+    private LocalTestServer start(final ServerSocket serverSocket) {
+        serverSocket_ = serverSocket;
+        final Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket_.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket_.accept();
+                        final int connection = connections_.incrementAndGet();
+                        final Thread worker = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket, connection);
+                            }
+                        }, "LocalTestServer-" + connection);
+                        worker.setDaemon(true);
+                        worker.start();
+                    } catch (IOException ignored) {
+                        // server socket closed
+                    }
+                }
+            }
+        }, "LocalTestServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return this;
+    }
+
+    void stop() {
+        try {
+            serverSocket_.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    String url() {
+        return (serverSocket_ instanceof SSLServerSocket ? "https" : "http") + "://127.0.0.1:" + serverSocket_.getLocalPort();
+    }
+
+    int port() {
+        return serverSocket_.getLocalPort();
+    }
+
+    /**
+     * Returns a copy of all requests received so far, in arrival order.
+     */
+    List<Request> requests() {
+        synchronized (requests_) {
+            return new ArrayList<>(requests_);
+        }
+    }
+
+    /**
+     * Returns the number of TCP connections accepted so far.
+     */
+    int connectionCount() {
+        return connections_.get();
+    }
+
+    /**
+     * Returns the IDs of the TLS sessions of the connections so far, in the order their
+     * handshakes completed. A connection that resumed a session has the ID of an earlier one.
+     */
+    List<String> sessionIds() {
+        synchronized (sessionIds_) {
+            return new ArrayList<>(sessionIds_);
+        }
+    }
+
+    private void serve(final Socket socket, final int connection) {
+        try {
+            if (socket instanceof SSLSocket) {
+                final SSLSocket sslSocket = (SSLSocket) socket;
+                sslSocket.startHandshake();
+                final StringBuilder id = new StringBuilder();
+                for (byte b : sslSocket.getSession().getId()) {
+                    id.append(String.format("%02x", b));
+                }
+                sessionIds_.add(id.toString());
+            }
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            while (true) {
+                final Request request = readRequest(in);
+                if (request == null) {
+                    break;
+                }
+                request.connection = connection;
+                requests_.add(request);
+
+                Response response;
+                try {
+                    response = handler_.handle(request);
+                } catch (Exception e) {
+                    response = new Response(500, "{\"result\":\"" + e + "\"}");
+                }
+                if (response == null) {
+                    // simulate a dropped connection
+                    break;
+                }
+                writeResponse(out, response, "HEAD".equals(request.method));
+                if ("close".equalsIgnoreCase(request.header("Connection")) || "close".equalsIgnoreCase(response.headers.get("Connection"))) {
+                    break;
+                }
+            }
+        } catch (IOException ignored) {
+            // client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static Request readRequest(final InputStream in) throws IOException {
+        final String requestLine = readLine(in);
+        if (requestLine == null || requestLine.length() == 0) {
+            return null;
+        }
+        final String[] parts = requestLine.split(" ");
+        final Request request = new Request();
+        request.method = parts[0];
+        final String target = parts[1];
+        final int q = target.indexOf('?');
+        request.path = q < 0 ? target : target.substring(0, q);
+        request.query = q < 0 ? null : target.substring(q + 1);
+
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                request.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+
+        final String contentLength = request.header("Content-Length");
+        if (contentLength != null) {
+            final byte[] body = new byte[Integer.parseInt(contentLength)];
+            int read = 0;
+            while (read < body.length) {
+                final int n = in.read(body, read, body.length - read);
+                if (n < 0) {
+                    throw new IOException("unexpected end of body");
+                }
+                read += n;
+            }
+            request.body = body;
+        }
+        return request;
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        if (c == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("UTF-8");
+    }
+
+    static byte[] bytes(final String str) {
+        try {
+            return str.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeResponse(final OutputStream out, final Response response, final boolean headOnly) throws IOException {
+        final StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.code).append(' ').append(response.code < 400 ? "OK" : "Error").append("\r\n");
+        head.append("Content-Type: application/json\r\n");
+        head.append("Content-Length: ").append(response.body.length).append("\r\n");
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(bytes(head.toString()));
+        if (!headOnly) {
+            out.write(response.body);
+        }
+        out.flush();
+    }
+}
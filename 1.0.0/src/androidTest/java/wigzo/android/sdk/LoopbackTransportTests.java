@@ -0,0 +1,154 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LoopbackTransportTests extends AndroidTestCase {
+    LoopbackTransport transport;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        transport = new LoopbackTransport(new Random(42));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        transport.shutdown();
+        super.tearDown();
+    }
+
+    public void testSend_defaultHandlerReportsSuccess() throws Exception {
+        final Transport.Response response = transport.send(new Transport.Request("GET", "http://server/i?a=1"));
+        assertEquals(200, response.getCode());
+        assertEquals("{\"result\":\"Success\"}", new String(response.getBody(), "UTF-8"));
+        assertEquals(1, transport.getRequests().size());
+    }
+
+    public void testSend_customHandler() throws Exception {
+        transport.setHandler(new LoopbackTransport.Handler() {
+            @Override
+            public Transport.Response handle(final Transport.Request request) {
+                return new Transport.Response(503, null);
+            }
+        });
+        assertEquals(503, transport.send(new Transport.Request("GET", "http://server/i?a=1")).getCode());
+    }
+
+    public void testSend_latency() throws Exception {
+        transport.setLatency(50);
+        final long start = System.nanoTime();
+        transport.send(new Transport.Request("GET", "http://server/i?a=1"));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    public void testSend_bandwidth() throws Exception {
+        // 1000 bytes at 10000 bytes per second take at least 100ms
+        transport.setBandwidth(10000);
+        final long start = System.nanoTime();
+        transport.send(new Transport.Request("POST", "http://server/i").setBody(new byte[1000]));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    public void testSend_failureRate() throws Exception {
+        transport.setFailureRate(1);
+        try {
+            transport.send(new Transport.Request("GET", "http://server/i?a=1"));
+            fail("expected IOException");
+        } catch (IOException ignored) {
+            // success
+        }
+    }
+
+    public void testSetFailureRate_outOfRange() {
+        try {
+            transport.setFailureRate(1.5);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testSendAsync_requestsOverlap() throws Exception {
+        transport.setLatency(100);
+        final CountDownLatch done = new CountDownLatch(10);
+        final AtomicInteger successes = new AtomicInteger();
+        final List<Future<Transport.Response>> futures = new ArrayList<>();
+        final long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            futures.add(transport.sendAsync(new Transport.Request("GET", "http://server/i?a=" + i), new Transport.Callback() {
+                @Override
+                public void onResponse(final Transport.Request request, final Transport.Response response) {
+                    successes.incrementAndGet();
+                    done.countDown();
+                }
+
+                @Override
+                public void onFailure(final Transport.Request request, final IOException e) {
+                    done.countDown();
+                }
+            }));
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals(10, successes.get());
+        assertEquals(10, transport.getMaxInFlight());
+        // ten overlapping round trips take about one latency, not ten
+        assertTrue("took " + elapsedMillis + "ms", elapsedMillis < 500);
+        assertEquals(200, futures.get(9).get().getCode());
+    }
+
+    public void testConnectionProcessorDrainsStoreOverTransport() {
+        transport.setLatency(5);
+        final String[] stored = {"a=1", "a=2", "a=3"};
+        final ConnectionStore store = new MemoryConnectionStore(stored);
+        final DeviceId deviceId = mock(DeviceId.class);
+        when(deviceId.getId()).thenReturn("123");
+
+        new ConnectionProcessor("http://server", store, deviceId, null, transport).run();
+
+        assertTrue(store.isEmptyConnections());
+        assertEquals(3, transport.getRequests().size());
+        assertEquals("http://server/i?a=1&device_id=123", transport.getRequests().get(0).getUrl());
+        assertEquals(1, transport.getMaxInFlight());
+    }
+
+    private long drainMillis(final int maxRequestsInFlight, final int requests) {
+        final String[] stored = new String[requests];
+        for (int i = 0; i < requests; i++) {
+            stored[i] = "a=" + i;
+        }
+        final ConnectionStore store = new MemoryConnectionStore(stored);
+        final DeviceId deviceId = mock(DeviceId.class);
+        when(deviceId.getId()).thenReturn("123");
+        final ConnectionProcessor processor = new ConnectionProcessor("http://server", store, deviceId, null, transport);
+        processor.setMaxRequestsInFlight(maxRequestsInFlight);
+
+        final long start = System.nanoTime();
+        processor.run();
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(store.isEmptyConnections());
+        return elapsed;
+    }
+
+    public void testDrainThroughputScalesWithWindow() {
+        // 40 requests over a 25ms link: about 1000ms stop-and-wait, about 250ms with 4 in flight
+        transport.setLatency(25);
+        final long stopAndWait = drainMillis(1, 40);
+        final long pipelined = drainMillis(4, 40);
+        assertTrue("window 1 took " + stopAndWait + "ms, window 4 took " + pipelined + "ms",
+                pipelined * 3 <= stopAndWait);
+        assertEquals(4, transport.getMaxInFlight());
+    }
+}
@@ -0,0 +1,67 @@
+package wigzo.android.sdk;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory ConnectionStore for tests that drain a queue end-to-end
+ * without SharedPreferences.
+ */
+class MemoryConnectionStore implements ConnectionStore {
+    private final List<String> connections_ = new ArrayList<>();
+    private final Map<String, String> preferences_ = new HashMap<>();
+
+    MemoryConnectionStore(final String... connections) {
+        for (String connection : connections) {
+            addConnection(connection);
+        }
+    }
+
+    @Override
+    public synchronized String[] connections() {
+        return connections_.toArray(new String[connections_.size()]);
+    }
+
+    @Override
+    public synchronized boolean isEmptyConnections() {
+        return connections_.isEmpty();
+    }
+
+    @Override
+    public synchronized void addConnection(final String str) {
+        if (str != null && str.length() > 0) {
+            connections_.add(str);
+        }
+    }
+
+    @Override
+    public synchronized void removeConnection(final String str) {
+        if (str != null && str.length() > 0) {
+            connections_.remove(str);
+        }
+    }
+
+    @Override
+    public synchronized void removeConnections(final Collection<String> strs) {
+        for (String str : strs) {
+            connections_.remove(str);
+        }
+    }
+
+    @Override
+    public synchronized String getPreference(final String key) {
+        return preferences_.get(key);
+    }
+
+    @Override
+    public synchronized void setPreference(final String key, final String value) {
+        if (value == null) {
+            preferences_.remove(key);
+        } else {
+            preferences_.put(key, value);
+        }
+    }
+}
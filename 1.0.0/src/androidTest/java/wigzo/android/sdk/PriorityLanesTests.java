@@ -0,0 +1,182 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PriorityLanesTests extends AndroidTestCase {
+    private static final String CRASH = "app_key=abc&timestamp=1&crash=%7B%7D";
+    private static final String TOKEN = "app_key=abc&timestamp=1&token_session=1&android_token=x";
+    private static final String BEGIN = "app_key=abc&timestamp=1&sdk_version=1&begin_session=1";
+    private static final String PING = "app_key=abc&timestamp=1&session_duration=60";
+    private static final String END = "app_key=abc&timestamp=1&end_session=1&session_duration=10";
+    private static final String USER = "app_key=abc&timestamp=1&user_details=%7B%7D";
+    private static final String OTHER = "app_key=abc&timestamp=1&campaign_id=c";
+
+    Metrics metrics;
+    PriorityLanes lanes;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        metrics = new Metrics();
+        lanes = new PriorityLanes(metrics);
+    }
+
+    private static String events(final int i) {
+        return "app_key=abc&timestamp=1&events=%5B%7B%22key%22%3A%22e" + i + "%22%7D%5D";
+    }
+
+    public void testLaneOf() {
+        assertEquals(PriorityLanes.Lane.CRITICAL, PriorityLanes.laneOf(CRASH));
+        assertEquals(PriorityLanes.Lane.CRITICAL, PriorityLanes.laneOf(TOKEN));
+        assertEquals(PriorityLanes.Lane.NORMAL, PriorityLanes.laneOf(BEGIN));
+        assertEquals(PriorityLanes.Lane.NORMAL, PriorityLanes.laneOf(PING));
+        assertEquals(PriorityLanes.Lane.NORMAL, PriorityLanes.laneOf(END));
+        assertEquals(PriorityLanes.Lane.NORMAL, PriorityLanes.laneOf("app_key=abc&timestamp=1&campaign_id=c"));
+        assertEquals(PriorityLanes.Lane.BULK, PriorityLanes.laneOf(events(1)));
+        assertEquals(PriorityLanes.Lane.BULK, PriorityLanes.laneOf(USER));
+    }
+
+    public void testCriticalAndNormalRequestsGoAheadOfBulk() {
+        final String[] queue = {events(1), events(2), events(3), OTHER, events(4), TOKEN, CRASH};
+        assertEquals(Arrays.asList(CRASH, OTHER, events(1), TOKEN, events(2), events(3), events(4)), lanes.inSendingOrder(queue));
+    }
+
+    public void testLanesAreServedByWeight() {
+        final String[] queue = new String[70];
+        for (int i = 0; i < 30; i++) {
+            queue[i] = events(i);
+        }
+        for (int i = 30; i < 50; i++) {
+            queue[i] = OTHER;
+        }
+        for (int i = 50; i < 70; i++) {
+            queue[i] = TOKEN;
+        }
+        final List<String> ordered = lanes.inSendingOrder(queue);
+        assertEquals(queue.length, ordered.size());
+        // 4:2:1 while every lane has requests waiting
+        final int[] counts = new int[3];
+        for (String storedEvent : ordered.subList(0, 28)) {
+            counts[PriorityLanes.laneOf(storedEvent).ordinal()]++;
+        }
+        assertEquals(16, counts[PriorityLanes.Lane.CRITICAL.ordinal()]);
+        assertEquals(8, counts[PriorityLanes.Lane.NORMAL.ordinal()]);
+        assertEquals(4, counts[PriorityLanes.Lane.BULK.ordinal()]);
+        // each lane keeps queue order
+        int event = 0;
+        for (String storedEvent : ordered) {
+            if (storedEvent.contains("&events=")) {
+                assertEquals(events(event++), storedEvent);
+            }
+        }
+    }
+
+    public void testSessionRequestsAreBarriers() {
+        final String later = events(100);
+        final String[] queue = {events(1), OTHER, events(2), END, TOKEN, BEGIN, later, PING, events(3), CRASH};
+        // only the crash report crosses a barrier
+        assertEquals(Arrays.asList(CRASH, OTHER, events(1), events(2), END, TOKEN, BEGIN, later, PING, events(3)),
+                lanes.inSendingOrder(queue));
+    }
+
+    public void testEventsAreSentBeforeTheEndOfTheirSession() {
+        final LoopbackTransport transport = new LoopbackTransport();
+        try {
+            final MemoryConnectionStore store = new MemoryConnectionStore();
+            store.addConnection(BEGIN);
+            for (int i = 0; i < 20; i++) {
+                store.addConnection(events(i));
+            }
+            store.addConnection(END);
+            store.addConnection(BEGIN);
+            store.addConnection(events(20));
+            final DeviceId deviceId = mock(DeviceId.class);
+            when(deviceId.getId()).thenReturn("123");
+            final ConnectionProcessor processor = new ConnectionProcessor("http://server", store, deviceId, null, transport);
+            processor.setPriorityLanes(lanes);
+            processor.setMaxRequestsInFlight(4);
+            processor.run();
+            assertTrue(store.isEmptyConnections());
+            final List<Transport.Request> requests = transport.getRequests();
+            assertEquals(24, requests.size());
+            assertTrue(requests.get(0).getUrl().contains("&begin_session=1"));
+            for (int i = 1; i <= 20; i++) {
+                assertTrue(requests.get(i).getUrl().contains("e" + (i - 1)));
+            }
+            assertTrue(requests.get(21).getUrl().contains("&end_session=1"));
+            assertTrue(requests.get(22).getUrl().contains("&begin_session=1"));
+            assertTrue(requests.get(23).getUrl().contains("e20"));
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    public void testShareIsRememberedAcrossRuns() {
+        final String[] queue = new String[40];
+        for (int i = 0; i < 20; i++) {
+            queue[i] = events(i);
+            queue[20 + i] = OTHER;
+        }
+        // sending the head of the order each time, as the stop-and-wait loop does
+        int bulk = 0;
+        for (int i = 0; i < 9; i++) {
+            final String next = lanes.inSendingOrder(queue).get(0);
+            lanes.onSent(next);
+            if (PriorityLanes.laneOf(next) == PriorityLanes.Lane.BULK) {
+                bulk++;
+            }
+        }
+        assertEquals(3, bulk);
+        assertEquals(3, metrics.get(PriorityLanes.METRIC_SENT + "bulk"));
+        assertEquals(6, metrics.get(PriorityLanes.METRIC_SENT + "normal"));
+    }
+
+    public void testIdleLaneDoesNotSaveUpItsShare() {
+        for (int i = 0; i < 50; i++) {
+            lanes.onSent(events(i));
+        }
+        // the normal lane was idle, it gets its share from now on rather than 50 in a row
+        final String[] queue = new String[20];
+        for (int i = 0; i < 10; i++) {
+            queue[i] = events(i);
+            queue[10 + i] = OTHER;
+        }
+        final List<String> ordered = lanes.inSendingOrder(queue);
+        assertEquals(3, ordered.indexOf(events(0)));
+        assertEquals(6, ordered.indexOf(events(1)));
+        assertEquals(9, ordered.indexOf(events(2)));
+    }
+
+    public void testCrashReportIsSentAheadOfEventBacklog() {
+        final LoopbackTransport transport = new LoopbackTransport();
+        try {
+            final MemoryConnectionStore store = new MemoryConnectionStore();
+            for (int i = 0; i < 50; i++) {
+                store.addConnection(events(i));
+            }
+            store.addConnection(PING);
+            store.addConnection(CRASH);
+            final DeviceId deviceId = mock(DeviceId.class);
+            when(deviceId.getId()).thenReturn("123");
+            final ConnectionProcessor processor = new ConnectionProcessor("http://server", store, deviceId, null, transport);
+            processor.setPriorityLanes(lanes);
+            processor.run();
+            assertTrue(store.isEmptyConnections());
+            final List<Transport.Request> requests = transport.getRequests();
+            assertEquals(52, requests.size());
+            // in queue order the crash report would have been the 52nd
+            assertTrue(requests.get(0).getUrl().endsWith("/i?"));
+            assertTrue(requests.get(1).getUrl().contains("e0"));
+            // the ping waits for the events queued before it
+            assertTrue(requests.get(51).getUrl().contains("&session_duration=60"));
+        } finally {
+            transport.shutdown();
+        }
+    }
+}
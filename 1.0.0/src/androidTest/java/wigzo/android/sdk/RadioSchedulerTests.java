@@ -0,0 +1,129 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.util.List;
+
+public class RadioSchedulerTests extends AndroidTestCase {
+    private static final long MAX_DEFERRAL = 120000;
+    private static final long TAIL = 10000;
+    private static final long POLL = 5000;
+
+    FakeTrafficCounter counter;
+    RadioScheduler scheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        counter = new FakeTrafficCounter();
+        scheduler = new RadioScheduler(counter, MAX_DEFERRAL, TAIL, POLL);
+    }
+
+    public void testConstructor_invalid() {
+        try {
+            new RadioScheduler(null);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+        try {
+            new RadioScheduler(counter, -1, TAIL, POLL);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testIsUrgent() {
+        assertTrue(RadioScheduler.isUrgent("app_key=1&crash=x"));
+        assertTrue(RadioScheduler.isUrgent("app_key=1&begin_session=1"));
+        assertTrue(RadioScheduler.isUrgent("app_key=1&end_session=1"));
+        assertFalse(RadioScheduler.isUrgent("app_key=1&session_duration=60"));
+        assertFalse(RadioScheduler.isUrgent("app_key=1&events=%5B%5D"));
+    }
+
+    public void testIdleRadioDefersUntilDeadline() {
+        assertFalse(scheduler.shouldSendNow(1000, false));
+        assertEquals(1000, scheduler.getDeferredSince());
+        assertFalse(scheduler.shouldSendNow(1000 + MAX_DEFERRAL - 1, false));
+        assertTrue(scheduler.shouldSendNow(1000 + MAX_DEFERRAL, false));
+    }
+
+    public void testUrgentDataIsSentRightAway() {
+        assertTrue(scheduler.shouldSendNow(1000, true));
+    }
+
+    public void testHostTrafficActivatesRadio() {
+        assertFalse(scheduler.shouldSendNow(1000, false));
+        counter.add(500);
+        assertTrue(scheduler.shouldSendNow(6000, false));
+        assertTrue(scheduler.isRadioActive(6000 + TAIL));
+        assertFalse(scheduler.isRadioActive(6000 + TAIL + 1));
+    }
+
+    public void testOwnUploadsDoNotCountAsHostTraffic() {
+        counter.add(500);
+        assertFalse(scheduler.shouldSendNow(0, false));
+        scheduler.shouldSendNow(MAX_DEFERRAL, false);
+        counter.add(RadioSimulator.UPLOAD_BYTES);
+        scheduler.onUploadsFinished(MAX_DEFERRAL);
+        assertEquals(-1, scheduler.getDeferredSince());
+
+        // within the tail of the upload the radio is still active
+        assertTrue(scheduler.shouldSendNow(MAX_DEFERRAL + TAIL, false));
+        scheduler.onUploadsFinished(MAX_DEFERRAL + TAIL);
+        // after it, the bytes of the uploads do not make the radio look active
+        assertFalse(scheduler.shouldSendNow(MAX_DEFERRAL * 2, false));
+    }
+
+    public void testUnsupportedCounterSendsRightAway() {
+        counter.setTotalBytes(TrafficCounter.UNSUPPORTED);
+        assertTrue(scheduler.shouldSendNow(1000, false));
+    }
+
+    /**
+     * Half an hour of a session that uploads an event batch every minute, while the app
+     * itself refreshes its content every few minutes.
+     */
+    private static String recordedTrace() {
+        final StringBuilder trace = new StringBuilder("# session with a feed refreshed by the app\n");
+        trace.append("0 urgent\n");
+        for (long t = 1000; t < 30 * 60000; t += 1000) {
+            if (t % 60000 == 0) {
+                trace.append(t).append(" sdk\n");
+            }
+            if (t % 170000 == 3000) {
+                trace.append(t).append(" host 40000\n");
+            }
+        }
+        trace.append(30 * 60000).append(" urgent\n");
+        return trace.toString();
+    }
+
+    public void testSimulatedTraceWakesTheRadioLessOften() {
+        final List<RadioSimulator.Entry> trace = RadioSimulator.parse(recordedTrace());
+        final RadioSimulator simulator = new RadioSimulator(TAIL, POLL);
+
+        final RadioSimulator.Result immediate = simulator.run(trace, null, new FakeTrafficCounter());
+        final FakeTrafficCounter trafficCounter = new FakeTrafficCounter();
+        final RadioSimulator.Result piggybacked = simulator.run(trace, new RadioScheduler(trafficCounter, MAX_DEFERRAL, TAIL, POLL), trafficCounter);
+
+        assertEquals(31, immediate.uploads);
+        assertEquals(29, immediate.sdkWakeups);
+        assertEquals(0, immediate.maxDelayMillis);
+        // every upload rides on a refresh, or waits at most the maximum deferral
+        assertTrue("" + piggybacked.sdkWakeups, piggybacked.sdkWakeups * 3 < immediate.sdkWakeups);
+        assertTrue(piggybacked.uploads < immediate.uploads);
+        assertTrue(piggybacked.wakeups < immediate.wakeups);
+        assertTrue(piggybacked.maxDelayMillis <= MAX_DEFERRAL);
+    }
+
+    public void testSimulatedUrgentDataIsNotDelayed() {
+        final List<RadioSimulator.Entry> trace = RadioSimulator.parse("0 urgent\n60000 urgent\n");
+        final FakeTrafficCounter trafficCounter = new FakeTrafficCounter();
+        final RadioSimulator.Result result = new RadioSimulator(TAIL, POLL).run(trace,
+                new RadioScheduler(trafficCounter, MAX_DEFERRAL, TAIL, POLL), trafficCounter);
+        assertEquals(2, result.uploads);
+        assertEquals(0, result.maxDelayMillis);
+    }
+}
@@ -0,0 +1,113 @@
+package wigzo.android.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays a recorded trace of the host app's traffic and of SDK uploads against a simple
+ * cellular radio model, in virtual time, and counts how often the radio is woken up.
+ *
+ * The radio is idle until something is transmitted, which wakes it up; it then stays active
+ * for the tail time after the last transmission. Without a RadioScheduler every SDK upload is
+ * sent when it is queued. With one, the queue is ticked when data is queued and then every
+ * poll interval while data is held back, the way ConnectionQueue does it.
+ *
+ * A trace has one entry per line, "&lt;millis&gt; host &lt;bytes&gt;" for the app's own traffic,
+ * "&lt;millis&gt; sdk" for a queued upload and "&lt;millis&gt; urgent" for a queued crash report
+ * or session begin/end. Entries must be in time order; blank lines and lines starting with
+ * '#' are ignored.
+ */
+class RadioSimulator {
+    static final long UPLOAD_BYTES = 2000;
+
+    static class Entry {
+        final long at;
+        final String kind;
+        final long bytes;
+
+        Entry(final long at, final String kind, final long bytes) {
+            this.at = at;
+            this.kind = kind;
+            this.bytes = bytes;
+        }
+    }
+
+    static class Result {
+        int wakeups;
+        int sdkWakeups;
+        int uploads;
+        long maxDelayMillis;
+    }
+
+    private final long radioTailMillis_;
+    private final long pollIntervalMillis_;
+
+    RadioSimulator(final long radioTailMillis, final long pollIntervalMillis) {
+        radioTailMillis_ = radioTailMillis;
+        pollIntervalMillis_ = pollIntervalMillis;
+    }
+
+    static List<Entry> parse(final String trace) {
+        final List<Entry> entries = new ArrayList<>();
+        for (String line : trace.split("\n")) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            final String[] parts = line.split("\\s+");
+            entries.add(new Entry(Long.parseLong(parts[0]), parts[1], parts.length > 2 ? Long.parseLong(parts[2]) : 0));
+        }
+        return entries;
+    }
+
+    /**
+     * Replays the trace, holding uploads back with a scheduler over the counter if one is
+     * given, or sending them right away if scheduler is null.
+     */
+    Result run(final List<Entry> trace, final RadioScheduler scheduler, final FakeTrafficCounter counter) {
+        final Result result = new Result();
+        long activeUntil = Long.MIN_VALUE;
+        long oldestPending = -1;
+        boolean urgentPending = false;
+        long nextPoll = Long.MAX_VALUE;
+        int i = 0;
+        while (i < trace.size() || oldestPending >= 0) {
+            final long nextEntry = i < trace.size() ? trace.get(i).at : Long.MAX_VALUE;
+            final long now = Math.min(nextEntry, nextPoll);
+            if (now == nextEntry) {
+                final Entry entry = trace.get(i++);
+                if ("host".equals(entry.kind)) {
+                    if (now > activeUntil) {
+                        result.wakeups++;
+                    }
+                    activeUntil = now + radioTailMillis_;
+                    counter.add(entry.bytes);
+                    continue;
+                }
+                if (oldestPending < 0) {
+                    oldestPending = now;
+                }
+                urgentPending |= "urgent".equals(entry.kind);
+            }
+            if (scheduler == null || scheduler.shouldSendNow(now, urgentPending)) {
+                if (now > activeUntil) {
+                    result.wakeups++;
+                    result.sdkWakeups++;
+                }
+                activeUntil = now + radioTailMillis_;
+                counter.add(UPLOAD_BYTES);
+                result.uploads++;
+                result.maxDelayMillis = Math.max(result.maxDelayMillis, now - oldestPending);
+                if (scheduler != null) {
+                    scheduler.onUploadsFinished(now);
+                }
+                oldestPending = -1;
+                urgentPending = false;
+                nextPoll = Long.MAX_VALUE;
+            } else if (nextPoll == Long.MAX_VALUE || now == nextPoll) {
+                nextPoll = now + pollIntervalMillis_;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,304 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RemoteConfigTests extends AndroidTestCase {
+    private static final long NOW = 1500000000000L;
+
+    /**
+     * Stand-in for the configuration endpoint of the Wigzo server, answering conditional
+     * requests with 304 while the ETag matches.
+     */
+    private static class ConfigServer implements LocalTestServer.Handler {
+        volatile String config;
+        volatile String etag;
+
+        ConfigServer(final String config, final String etag) {
+            this.config = config;
+            this.etag = etag;
+        }
+
+        @Override
+        public LocalTestServer.Response handle(final LocalTestServer.Request request) {
+            if (!RemoteConfigClient.PATH.equals(request.path)) {
+                return LocalTestServer.Response.success();
+            }
+            if (etag != null && etag.equals(request.header("If-None-Match"))) {
+                return new LocalTestServer.Response(304, "");
+            }
+            final LocalTestServer.Response response = new LocalTestServer.Response(200, config);
+            return etag == null ? response : response.header("ETag", etag);
+        }
+    }
+
+    ConfigServer handler;
+    LocalTestServer server;
+    MemoryConnectionStore store;
+    Metrics metrics;
+    RemoteConfigClient client;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        handler = new ConfigServer("{\"flush_threshold\":20}", "\"v1\"");
+        server = new LocalTestServer(handler).start();
+        store = new MemoryConnectionStore();
+        metrics = new Metrics();
+        client = new RemoteConfigClient(metrics);
+        client.setStore(store);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+        super.tearDown();
+    }
+
+    public void testDefaults() {
+        final RemoteConfig config = RemoteConfig.DEFAULTS;
+        assertTrue(config.isUploadsEnabled());
+        assertTrue(config.getDisabledTypes().isEmpty());
+        assertEquals(1.0, config.getSampleRate(Sink.EventType.EVENTS));
+        assertEquals(RemoteConfig.DEFAULT_FLUSH_THRESHOLD, config.getFlushThreshold());
+        assertEquals(0, config.getMinUploadIntervalMillis());
+        assertEquals(RemoteConfig.DEFAULT_REFRESH_INTERVAL_MILLIS, config.getRefreshIntervalMillis());
+        assertEquals(-1, config.getTimeToLiveMillis(Sink.EventType.SESSION));
+        assertSame(RemoteConfig.DEFAULTS, client.getConfig());
+    }
+
+    public void testParse() throws Exception {
+        final RemoteConfig config = RemoteConfig.parse("{\"uploads_enabled\":false,\"disabled_types\":[\"crash\",\"Picture\"],"
+                + "\"sampling\":{\"events\":0.25},\"flush_threshold\":50,\"min_upload_interval_s\":300,\"refresh_interval_s\":600,"
+                + "\"ttl_s\":{\"session\":3600,\"crash\":0,\"events\":-1,\"teleport\":5}}");
+        assertFalse(config.isUploadsEnabled());
+        assertEquals(EnumSet.of(Sink.EventType.CRASH, Sink.EventType.PICTURE), config.getDisabledTypes());
+        assertEquals(0.25, config.getSampleRate(Sink.EventType.EVENTS));
+        assertEquals(1.0, config.getSampleRate(Sink.EventType.SESSION));
+        assertEquals(50, config.getFlushThreshold());
+        assertEquals(300000, config.getMinUploadIntervalMillis());
+        assertEquals(600000, config.getRefreshIntervalMillis());
+        assertEquals(3600000, config.getTimeToLiveMillis(Sink.EventType.SESSION));
+        assertEquals(0, config.getTimeToLiveMillis(Sink.EventType.CRASH));
+        assertEquals(-1, config.getTimeToLiveMillis(Sink.EventType.EVENTS));
+
+        assertFalse(config.records(Sink.EventType.CRASH, 0));
+        assertTrue(config.records(Sink.EventType.EVENTS, 0.2));
+        assertFalse(config.records(Sink.EventType.EVENTS, 0.3));
+        assertTrue(config.records(Sink.EventType.SESSION, 0.99));
+    }
+
+    public void testParseIgnoresInvalidValues() throws Exception {
+        final RemoteConfig config = RemoteConfig.parse("{\"uploads_enabled\":\"maybe\",\"disabled_types\":[\"teleport\"],"
+                + "\"sampling\":{\"events\":1.5,\"session\":\"half\",\"teleport\":0},\"flush_threshold\":0,"
+                + "\"min_upload_interval_s\":-5,\"refresh_interval_s\":1}");
+        assertTrue(config.isUploadsEnabled());
+        assertTrue(config.getDisabledTypes().isEmpty());
+        assertEquals(1.0, config.getSampleRate(Sink.EventType.EVENTS));
+        assertEquals(1.0, config.getSampleRate(Sink.EventType.SESSION));
+        assertEquals(RemoteConfig.DEFAULT_FLUSH_THRESHOLD, config.getFlushThreshold());
+        assertEquals(0, config.getMinUploadIntervalMillis());
+        assertEquals(RemoteConfig.MIN_REFRESH_INTERVAL_MILLIS, config.getRefreshIntervalMillis());
+    }
+
+    public void testParseRejectsNonJson() {
+        try {
+            RemoteConfig.parse("<html>Gateway Timeout</html>");
+            fail("expected JSONException");
+        } catch (JSONException ignored) {
+            // success
+        }
+    }
+
+    public void testSamplingUnitIsStablePerDevice() {
+        int sampled = 0;
+        final int devices = 20000;
+        for (int i = 0; i < devices; i++) {
+            final double unit = RemoteConfig.samplingUnit("device-" + i, Sink.EventType.EVENTS);
+            assertTrue(unit >= 0 && unit < 1);
+            assertEquals(unit, RemoteConfig.samplingUnit("device-" + i, Sink.EventType.EVENTS));
+            if (unit < 0.25) {
+                sampled++;
+            }
+        }
+        assertEquals(0.25, sampled / (double) devices, 0.02);
+    }
+
+    public void testFetchSendsETag() throws Exception {
+        final String url = RemoteConfigClient.url(server.url(), "app key");
+        assertTrue(client.fetch(new HttpURLConnectionTransport(new SdkScheduler(metrics)), url, NOW));
+        assertEquals(20, client.getConfig().getFlushThreshold());
+        assertEquals("\"v1\"", client.getETag());
+        assertEquals("app_key=app+key", server.requests().get(0).query);
+        assertNull(server.requests().get(0).header("If-None-Match"));
+
+        assertFalse(client.fetch(new HttpURLConnectionTransport(new SdkScheduler(metrics)), url, NOW + 1));
+        assertEquals("\"v1\"", server.requests().get(1).header("If-None-Match"));
+        assertEquals(20, client.getConfig().getFlushThreshold());
+        assertEquals(2, metrics.get(RemoteConfigClient.METRIC_FETCHES));
+        assertEquals(1, metrics.get(RemoteConfigClient.METRIC_NOT_MODIFIED));
+        assertEquals(1, metrics.get(RemoteConfigClient.METRIC_UPDATES));
+
+        handler.config = "{\"flush_threshold\":30}";
+        handler.etag = "\"v2\"";
+        assertTrue(client.fetch(new HttpURLConnectionTransport(new SdkScheduler(metrics)), url, NOW + 2));
+        assertEquals(30, client.getConfig().getFlushThreshold());
+        assertEquals("\"v2\"", client.getETag());
+    }
+
+    public void testInvalidConfigKeepsTheCurrentOne() throws Exception {
+        final String url = RemoteConfigClient.url(server.url(), "1");
+        assertTrue(client.fetch(new HttpURLConnectionTransport(new SdkScheduler(metrics)), url, NOW));
+        handler.config = "not json";
+        handler.etag = "\"v2\"";
+        assertFalse(client.fetch(new HttpURLConnectionTransport(new SdkScheduler(metrics)), url, NOW + 1));
+        assertEquals(20, client.getConfig().getFlushThreshold());
+        assertEquals("\"v1\"", client.getETag());
+    }
+
+    public void testConfigIsPersisted() throws Exception {
+        client.fetch(new HttpURLConnectionTransport(new SdkScheduler(metrics)), RemoteConfigClient.url(server.url(), "1"), NOW);
+
+        final RemoteConfigClient restarted = new RemoteConfigClient(new Metrics());
+        restarted.setStore(store);
+        assertEquals(20, restarted.getConfig().getFlushThreshold());
+        assertEquals("\"v1\"", restarted.getETag());
+        assertFalse(restarted.isDue(NOW + 1));
+
+        store.setPreference(RemoteConfigClient.PREFERENCE, "garbage");
+        restarted.setStore(store);
+        assertSame(RemoteConfig.DEFAULTS, restarted.getConfig());
+        assertTrue(restarted.isDue(NOW));
+    }
+
+    public void testRefreshIsDueAfterInterval() throws Exception {
+        assertTrue(client.isDue(NOW));
+        client.apply("{\"refresh_interval_s\":600}", null, NOW);
+        assertFalse(client.isDue(NOW + 599999));
+        assertTrue(client.isDue(NOW + 600000));
+        // the clock was set back
+        assertTrue(client.isDue(NOW - 1));
+    }
+
+    public void testFailedFetchWaitsForInterval() throws Exception {
+        final String url = RemoteConfigClient.url(server.url(), "1");
+        server.stop();
+        try {
+            client.fetch(new HttpURLConnectionTransport(new SdkScheduler(metrics)), url, NOW);
+            fail("expected IOException");
+        } catch (IOException ignored) {
+            // success
+        }
+        assertFalse(client.isDue(NOW + 1));
+        assertTrue(client.isDue(NOW + RemoteConfig.DEFAULT_REFRESH_INTERVAL_MILLIS));
+        server = new LocalTestServer(handler).start();
+    }
+
+    // the dispatcher honoring the configuration
+
+    private ConnectionQueue newConnectionQueue() {
+        final DeviceId deviceId = mock(DeviceId.class);
+        when(deviceId.getId()).thenReturn("123");
+        final ConnectionQueue connQ = new ConnectionQueue();
+        connQ.setServerURL(server.url());
+        connQ.setAppKey("1");
+        connQ.setMobileEndpoint(server.url() + "/mobile");
+        connQ.setDeviceId(deviceId);
+        connQ.getPipeline().setStore(new MemoryConnectionStore());
+        connQ.getAppPipeline().setStore(new MemoryConnectionStore());
+        connQ.getRemoteConfigClient().setStore(store);
+        return connQ;
+    }
+
+    private static void awaitConfig(final ConnectionQueue connQ) throws Exception {
+        final Future<?> fetch = connQ.refreshRemoteConfig();
+        assertNotNull(fetch);
+        fetch.get(5, TimeUnit.SECONDS);
+    }
+
+    private static void awaitIdle(final DispatchPipeline pipeline) throws Exception {
+        final Future<?> future = pipeline.getFuture();
+        if (future != null) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private int uploads() {
+        int uploads = 0;
+        for (LocalTestServer.Request request : server.requests()) {
+            if (!RemoteConfigClient.PATH.equals(request.path)) {
+                uploads++;
+            }
+        }
+        return uploads;
+    }
+
+    public void testKillSwitchParksUploads() throws Exception {
+        handler.config = "{\"uploads_enabled\":false}";
+        final ConnectionQueue connQ = newConnectionQueue();
+        awaitConfig(connQ);
+        assertFalse(connQ.getRemoteConfig().isUploadsEnabled());
+
+        connQ.enqueue("app_key=1&events=%5B%5D");
+        connQ.tick();
+        assertTrue(connQ.getPipeline().isIdle());
+        assertTrue(connQ.getPipeline().hasBacklog());
+        for (Future<?> future : connQ.flush()) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        assertTrue(connQ.getPipeline().hasBacklog());
+        assertEquals(0, uploads());
+
+        // switched on again, the parked data goes out
+        connQ.getRemoteConfigClient().apply("{}", null, System.currentTimeMillis());
+        connQ.tick();
+        awaitIdle(connQ.getPipeline());
+        awaitIdle(connQ.getAppPipeline());
+        assertFalse(connQ.getPipeline().hasBacklog());
+        assertEquals(2, uploads());
+    }
+
+    public void testSamplingDropsData() throws Exception {
+        handler.config = "{\"sampling\":{\"events\":0},\"disabled_types\":[\"crash\"]}";
+        final ConnectionQueue connQ = newConnectionQueue();
+        final MemoryConnectionStore sinkStore = new MemoryConnectionStore();
+        connQ.addSink(new EndpointSink("Other", server.url() + "/other", Sink.Encoding.QUERY_STRING), sinkStore);
+        awaitConfig(connQ);
+
+        connQ.enqueue("app_key=1&events=%5B%5D");
+        connQ.enqueue("app_key=1&crash=%7B%7D");
+        connQ.enqueue("app_key=1&begin_session=1");
+        assertEquals(1, connQ.getPipeline().getStore().connections().length);
+        assertEquals("app_key=1&begin_session=1&request_seq=0", connQ.getPipeline().getStore().connections()[0]);
+        assertEquals(2, connQ.getMetrics().get(RemoteConfigClient.METRIC_DROPPED));
+        // sinks added by the app are not the Wigzo server's to throttle
+        assertEquals(3, sinkStore.connections().length);
+    }
+
+    public void testMinUploadInterval() throws Exception {
+        handler.config = "{\"min_upload_interval_s\":3600}";
+        final ConnectionQueue connQ = newConnectionQueue();
+        awaitConfig(connQ);
+
+        connQ.enqueue("app_key=1&begin_session=1");
+        connQ.tick();
+        awaitIdle(connQ.getPipeline());
+        awaitIdle(connQ.getAppPipeline());
+        assertEquals(2, uploads());
+
+        connQ.enqueue("app_key=1&end_session=1");
+        connQ.tick();
+        assertTrue(connQ.getPipeline().isIdle());
+        assertTrue(connQ.getPipeline().hasBacklog());
+        assertEquals(2, uploads());
+    }
+}
@@ -0,0 +1,243 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONArray;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RequestCoalescerTests extends AndroidTestCase {
+    private static final String HEADER = "app_key=abc&orgId=org&timestamp=1500000000&hour=10&dow=3";
+    private static final String PING = HEADER + "&session_duration=60&location=";
+    private static final String USER = HEADER + "&user_details=%7B%22name%22%3A%22x%22%7D";
+    private static final String BEGIN = HEADER + "&sdk_version=1&begin_session=1";
+    private static final String END = HEADER + "&end_session=1&session_duration=10";
+    private static final String CRASH = HEADER + "&sdk_version=1&crash=%7B%7D";
+
+    Metrics metrics;
+    RequestCoalescer coalescer;
+    MemoryConnectionStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        metrics = new Metrics();
+        coalescer = new RequestCoalescer(metrics);
+        store = new MemoryConnectionStore();
+    }
+
+    private static String events(final String... keys) throws Exception {
+        final JSONArray events = new JSONArray();
+        for (String key : keys) {
+            events.put(new org.json.JSONObject().put("key", key).put("count", 1));
+        }
+        return HEADER + "&events=" + URLEncoder.encode(events.toString(), "UTF-8");
+    }
+
+    private static JSONArray eventsOf(final String data) throws Exception {
+        final int start = data.indexOf("&events=") + "&events=".length();
+        final int end = data.indexOf('&', start);
+        return new JSONArray(URLDecoder.decode(data.substring(start, end < 0 ? data.length() : end), "UTF-8"));
+    }
+
+    private void offer(final String data) {
+        if (!coalescer.offer(data)) {
+            store.addConnection(data);
+        }
+    }
+
+    private int end() {
+        final List<String> pending = coalescer.end();
+        for (String data : pending) {
+            store.addConnection(data);
+        }
+        return pending.size();
+    }
+
+    public void testIsCoalescable() throws Exception {
+        assertTrue(RequestCoalescer.isCoalescable(PING));
+        assertTrue(RequestCoalescer.isCoalescable(USER));
+        assertTrue(RequestCoalescer.isCoalescable(events("a")));
+        assertFalse(RequestCoalescer.isCoalescable(BEGIN));
+        assertFalse(RequestCoalescer.isCoalescable(END));
+        assertFalse(RequestCoalescer.isCoalescable(CRASH));
+        assertFalse(RequestCoalescer.isCoalescable(HEADER + "&user_details&picturePath=%2Fa.png"));
+        assertFalse(RequestCoalescer.isCoalescable(HEADER + "&token_session=1&android_token=t"));
+    }
+
+    public void testMerge() throws Exception {
+        final String merged = RequestCoalescer.merge(RequestCoalescer.merge(PING, events("a", "b")), USER);
+        assertEquals(PING + "&events=" + URLEncoder.encode(eventsOf(events("a", "b")).toString(), "UTF-8")
+                + "&user_details=%7B%22name%22%3A%22x%22%7D", merged);
+        // expired and prioritized like the session update it carries
+        assertEquals(Sink.EventType.SESSION, Sink.EventType.of(merged));
+        assertEquals(PriorityLanes.Lane.NORMAL, PriorityLanes.laneOf(merged));
+        assertTrue(ConnectionProcessor.isOrdered(merged));
+        // and events with user details like the events
+        assertEquals(Sink.EventType.EVENTS, Sink.EventType.of(RequestCoalescer.merge(events("a"), USER)));
+    }
+
+    public void testMergeJoinsEvents() throws Exception {
+        final String merged = RequestCoalescer.merge(events("a"), events("b", "c"));
+        final JSONArray events = eventsOf(merged);
+        assertEquals(3, events.length());
+        assertEquals("a", events.getJSONObject(0).getString("key"));
+        assertEquals("c", events.getJSONObject(2).getString("key"));
+    }
+
+    public void testIncompatibleRequestsAreNotMerged() throws Exception {
+        assertNull(RequestCoalescer.merge(PING, BEGIN));
+        assertNull(RequestCoalescer.merge(END, events("a")));
+        assertNull(RequestCoalescer.merge(events("a"), CRASH));
+        // the server would not add two session updates up
+        assertNull(RequestCoalescer.merge(PING, PING));
+        assertNull(RequestCoalescer.merge(PING, PING.replace("app_key=abc", "app_key=other")));
+        assertNull(RequestCoalescer.merge(PING, PING.replace("orgId=org", "orgId=other")));
+        assertNull(RequestCoalescer.merge(HEADER + "&events=notjson", events("a")));
+        final StringBuilder large = new StringBuilder();
+        for (int i = 0; i < UploadPolicy.BULK_THRESHOLD_BYTES / 5; i++) {
+            large.append("event").append(i % 10000);
+        }
+        assertNull(RequestCoalescer.merge(PING, events(large.toString())));
+    }
+
+    public void testOutsideWindowRequestsAreQueuedAsTheyCome() throws Exception {
+        offer(PING);
+        offer(events("a"));
+        assertEquals(2, store.connections().length);
+        assertEquals(0, end());
+    }
+
+    public void testWindowKeepsQueueOrder() throws Exception {
+        coalescer.begin();
+        offer(events("a"));
+        offer(END);
+        offer(BEGIN);
+        offer(PING);
+        offer(events("b"));
+        assertTrue(store.isEmptyConnections());
+        assertEquals(4, end());
+        final String[] queued = store.connections();
+        assertEquals(events("a"), queued[0]);
+        assertEquals(END, queued[1]);
+        assertEquals(BEGIN, queued[2]);
+        assertEquals(RequestCoalescer.merge(PING, events("b")), queued[3]);
+        assertEquals(1, metrics.get(RequestCoalescer.METRIC_MERGED));
+
+        // the window is over
+        offer(PING);
+        assertEquals(5, store.connections().length);
+    }
+
+    /**
+     * Sends what one minute of an active session queues per timer tick, as Wigzo.onTimer
+     * queues it: a session update, the events of both event queues and, now and then, user
+     * details. Returns the number of requests it took.
+     */
+    private int requestsForMinutes(final int minutes, final boolean coalesce) throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport();
+        try {
+            final DeviceId deviceId = mock(DeviceId.class);
+            when(deviceId.getId()).thenReturn("123");
+            final ConnectionProcessor processor = new ConnectionProcessor("http://server", store, deviceId, null, transport);
+            for (int minute = 0; minute < minutes; minute++) {
+                if (coalesce) {
+                    coalescer.begin();
+                }
+                offer(PING);
+                offer(events("view" + minute, "click" + minute));
+                offer(events("push" + minute));
+                if (minute % 5 == 0) {
+                    offer(USER);
+                }
+                end();
+                processor.run();
+            }
+            assertTrue(store.isEmptyConnections());
+            return transport.getRequests().size();
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    public void testRequestsPerMinuteOfActiveSession() throws Exception {
+        // 3 requests a minute, and one more every 5 minutes
+        assertEquals(32, requestsForMinutes(10, false));
+        // 1 request a minute
+        assertEquals(10, requestsForMinutes(10, true));
+        assertEquals(22, metrics.get(RequestCoalescer.METRIC_MERGED));
+    }
+
+    public void testConnectionQueuePutsOffTicksUntilWindowEnds() throws Exception {
+        final WigzoStore mockStore = mock(WigzoStore.class);
+        final WigzoAppStore mockAppStore = mock(WigzoAppStore.class);
+        final ExecutorService mockExecutor = mock(ExecutorService.class);
+        final ConnectionQueue connQ = new ConnectionQueue();
+        connQ.setServerURL("http://server");
+        connQ.setWigzoStore(mockStore);
+        connQ.setWigzoAppStore(mockAppStore);
+        connQ.setExecutor(mockExecutor);
+        connQ.getAppPipeline().setExecutor(mock(ExecutorService.class));
+
+        connQ.beginCoalescing();
+        connQ.enqueue(PING);
+        connQ.tick();
+        connQ.enqueue(events("a"));
+        connQ.tick();
+        verify(mockStore, never()).addConnection(any(String.class));
+        verify(mockExecutor, never()).submit(any(Runnable.class));
+
+        connQ.endCoalescing();
+        final String merged = RequestCoalescer.merge(PING, events("a")) + "&" + IdempotencyKeys.SEQUENCE + "=0";
+        verify(mockStore, times(1)).addConnection(merged);
+        verify(mockAppStore, times(1)).addConnection(merged);
+        verify(mockExecutor, times(1)).submit(any(Runnable.class));
+    }
+
+    public void testBackgroundTickWaitsForTheWigzoLock() throws Exception {
+        final WigzoStore mockStore = mock(WigzoStore.class);
+        final ExecutorService mockExecutor = mock(ExecutorService.class);
+        final FakeConnectivityMonitor monitor = new FakeConnectivityMonitor(false);
+        final ConnectionQueue connQ = new ConnectionQueue();
+        connQ.setServerURL("http://server");
+        connQ.setWigzoStore(mockStore);
+        connQ.setWigzoAppStore(mock(WigzoAppStore.class));
+        connQ.setExecutor(mockExecutor);
+        connQ.getAppPipeline().setExecutor(mock(ExecutorService.class));
+        connQ.setConnectivityMonitor(monitor);
+
+        final Thread callback = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                monitor.setConnected(true);
+            }
+        });
+        synchronized (Wigzo.sharedInstance()) {
+            connQ.beginCoalescing();
+            connQ.enqueue(PING);
+            callback.start();
+            // the connectivity callback's tick waits until the window is over
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (callback.getState() != Thread.State.BLOCKED) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            connQ.enqueue(events("a"));
+            connQ.endCoalescing();
+        }
+        callback.join(5000);
+        assertFalse(callback.isAlive());
+        verify(mockStore, times(1)).addConnection(any(String.class));
+        verify(mockStore, times(1)).addConnection(RequestCoalescer.merge(PING, events("a")) + "&" + IdempotencyKeys.SEQUENCE + "=0");
+    }
+}
@@ -0,0 +1,163 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RequestExpiryTests extends AndroidTestCase {
+    private static final long NOW = 1500000000000L;
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    Metrics metrics;
+    RequestExpiry expiry;
+    MemoryConnectionStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        metrics = new Metrics();
+        expiry = new RequestExpiry(metrics);
+        store = new MemoryConnectionStore();
+    }
+
+    private static String request(final long ageMillis, final String data) {
+        return "app_key=abc&timestamp=" + (NOW - ageMillis) / 1000 + "&hour=10&dow=3" + data;
+    }
+
+    private static String events(final long ageMillis) throws Exception {
+        return request(ageMillis, "&events=" + URLEncoder.encode("[{\"key\":\"a\",\"count\":3},{\"key\":\"b\",\"count\":2}]", "UTF-8"));
+    }
+
+    public void testTimestamp() {
+        assertEquals(1500000000000L, RequestExpiry.timestampMillis("app_key=abc&timestamp=1500000000&hour=1"));
+        assertEquals(1500000000000L, RequestExpiry.timestampMillis("timestamp=1500000000"));
+        assertEquals(-1, RequestExpiry.timestampMillis("app_key=abc&hour=1"));
+        assertEquals(-1, RequestExpiry.timestampMillis("app_key=abc&timestamp=&hour=1"));
+        assertEquals(-1, RequestExpiry.timestampMillis("app_key=abc&old_timestamp=1"));
+    }
+
+    public void testInvalidTimeToLive() {
+        try {
+            expiry.setTimeToLive(Sink.EventType.EVENTS, -1);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+        try {
+            expiry.setTimeToLive(null, 1);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testExpiresPerType() throws Exception {
+        final String oldPing = request(8 * DAY, "&session_duration=30");
+        final String oldEvents = events(8 * DAY);
+        final String oldCrash = request(8 * DAY, "&crash=%7B%7D");
+        final String ping = request(DAY, "&session_duration=60");
+        final String freshEvents = events(60000);
+        store.addConnection(oldPing);
+        store.addConnection(oldEvents);
+        store.addConnection(oldCrash);
+        store.addConnection(ping);
+        store.addConnection(freshEvents);
+
+        assertEquals(2, expiry.expire(store, NOW));
+        assertTrue(Arrays.equals(new String[]{oldCrash, ping, freshEvents}, store.connections()));
+
+        final Map<String, Long> summary = RequestExpiry.getSummary(store);
+        assertEquals(Long.valueOf(1), summary.get("session"));
+        assertEquals(Long.valueOf(1), summary.get("events"));
+        assertEquals(Long.valueOf(5), summary.get(RequestExpiry.EVENT_COUNT));
+        assertEquals(Long.valueOf(30), summary.get(RequestExpiry.SESSION_SECONDS));
+        assertNull(summary.get("crash"));
+        assertEquals(1, metrics.get(RequestExpiry.METRIC_EXPIRED + "session"));
+        assertEquals(1, metrics.get(RequestExpiry.METRIC_EXPIRED + "events"));
+
+        // the summary adds up across runs
+        store.addConnection(ping);
+        assertEquals(2, expiry.expire(store, NOW + 2 * DAY));
+        assertEquals(Long.valueOf(3), RequestExpiry.getSummary(store).get("session"));
+        assertEquals(Long.valueOf(150), RequestExpiry.getSummary(store).get(RequestExpiry.SESSION_SECONDS));
+    }
+
+    public void testStopsAtFirstRequestYoungerThanShortestTimeToLive() {
+        final String fresh = request(60000, "&session_duration=30");
+        // replayed from the dead-letter store behind newer data
+        final String replayed = request(10 * DAY, "&session_duration=30");
+        store.addConnection(fresh);
+        store.addConnection(replayed);
+        assertEquals(0, expiry.expire(store, NOW));
+        assertEquals(2, store.connections().length);
+
+        // it expires once it reaches the head of the queue
+        store.removeConnection(fresh);
+        assertEquals(1, expiry.expire(store, NOW));
+        assertTrue(store.isEmptyConnections());
+    }
+
+    public void testRequestsWithoutTimestampNeverExpire() {
+        store.addConnection("app_key=abc&session_duration=30");
+        store.addConnection(request(10 * DAY, "&session_duration=30"));
+        assertEquals(1, expiry.expire(store, NOW));
+        assertEquals(1, store.connections().length);
+    }
+
+    public void testZeroKeepsRequests() throws Exception {
+        for (Sink.EventType type : Sink.EventType.values()) {
+            expiry.setTimeToLive(type, 0);
+        }
+        store.addConnection(events(100 * DAY));
+        assertEquals(0, expiry.expire(store, NOW));
+        assertEquals(1, store.connections().length);
+
+        expiry.setTimeToLive(Sink.EventType.EVENTS, DAY);
+        assertEquals(1, expiry.expire(store, NOW));
+    }
+
+    public void testServerConfigurationOverridesTimesToLive() throws Exception {
+        final RemoteConfigClient client = new RemoteConfigClient(metrics);
+        client.setStore(new MemoryConnectionStore());
+        final RequestExpiry wigzoExpiry = expiry.withRemoteConfig(client);
+        expiry.setTimeToLive(Sink.EventType.EVENTS, 3 * DAY);
+        assertEquals(3 * DAY, wigzoExpiry.getTimeToLive(Sink.EventType.EVENTS));
+
+        client.apply("{\"ttl_s\":{\"events\":3600,\"session\":0}}", null, NOW);
+        assertEquals(3600000, wigzoExpiry.getTimeToLive(Sink.EventType.EVENTS));
+        assertEquals(0, wigzoExpiry.getTimeToLive(Sink.EventType.SESSION));
+        assertEquals(RequestExpiry.DEFAULT_TTL_MILLIS.get(Sink.EventType.CRASH).longValue(), wigzoExpiry.getTimeToLive(Sink.EventType.CRASH));
+        // other destinations keep the app's
+        assertEquals(3 * DAY, expiry.getTimeToLive(Sink.EventType.EVENTS));
+        assertEquals(RequestExpiry.DEFAULT_TTL_MILLIS.get(Sink.EventType.SESSION).longValue(), expiry.getTimeToLive(Sink.EventType.SESSION));
+
+        store.addConnection(events(2 * 3600000));
+        store.addConnection(request(10 * DAY, "&session_duration=30"));
+        assertEquals(0, expiry.expire(store, NOW));
+        assertEquals(1, wigzoExpiry.expire(store, NOW));
+    }
+
+    public void testProcessorSendsOnlyCurrentData() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport();
+        try {
+            final DeviceId deviceId = mock(DeviceId.class);
+            when(deviceId.getId()).thenReturn("123");
+            final long now = System.currentTimeMillis();
+            store.addConnection("app_key=abc&timestamp=" + (now - 8 * DAY) / 1000 + "&session_duration=30");
+            store.addConnection("app_key=abc&timestamp=" + now / 1000 + "&session_duration=30");
+            final ConnectionProcessor processor = new ConnectionProcessor("http://server", store, deviceId, null, transport);
+            processor.setRequestExpiry(expiry);
+            processor.run();
+            assertTrue(store.isEmptyConnections());
+            assertEquals(1, transport.getRequests().size());
+            assertTrue(transport.getRequests().get(0).getUrl().contains("timestamp=" + now / 1000));
+        } finally {
+            transport.shutdown();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+public class ResponseParserTests extends AndroidTestCase {
+    private static final String SUCCESS = "{\"result\":\"Success\"}";
+
+    private static ResponseParser.Result check(final String body) throws Exception {
+        return ResponseParser.checkResult(body.getBytes("UTF-8"));
+    }
+
+    public void testCheckResultSuccess() throws Exception {
+        assertEquals(ResponseParser.Result.SUCCESS, check(SUCCESS));
+        assertEquals(ResponseParser.Result.SUCCESS, check(" { \"result\" : \"SUCCESS\" }\n"));
+        assertEquals(ResponseParser.Result.SUCCESS, check("{\"a\":[1,{\"result\":\"no\"}],\"b\":\"x\\\"y\",\"result\":\"success\",\"c\":true}"));
+    }
+
+    public void testCheckResultRejected() throws Exception {
+        assertEquals(ResponseParser.Result.REJECTED, check("{}"));
+        assertEquals(ResponseParser.Result.REJECTED, check("{\"result\":\"Failure\"}"));
+        assertEquals(ResponseParser.Result.REJECTED, check("{\"result\":\"Successful\"}"));
+        assertEquals(ResponseParser.Result.REJECTED, check("{\"Result\":\"Success\"}"));
+        assertEquals(ResponseParser.Result.REJECTED, check("{\"result\":1,\"x\":\"success\"}"));
+        assertEquals(ResponseParser.Result.REJECTED, check("{\"result\":{\"result\":\"success\"}}"));
+        assertEquals(ResponseParser.Result.REJECTED, check("{\"x\":\"result\",\"y\":\"success\"}"));
+        assertEquals(ResponseParser.Result.REJECTED, check("{\"x\":\"\\\"result\\\":\\\"success\\\"\"}"));
+    }
+
+    public void testCheckResultNotJson() throws Exception {
+        assertEquals(ResponseParser.Result.NOT_JSON, check(""));
+        assertEquals(ResponseParser.Result.NOT_JSON, check("<html>Success</html>"));
+        assertEquals(ResponseParser.Result.NOT_JSON, check("[\"result\",\"success\"]"));
+        assertEquals(ResponseParser.Result.NOT_JSON, check("{\"result\":\"success\""));
+        assertEquals(ResponseParser.Result.NOT_JSON, check("{\"result\":\"success}"));
+        assertEquals(ResponseParser.Result.NOT_JSON, check("{\"result\":\"success\"} trailing"));
+    }
+
+    public void testReadSmallResponse() throws Exception {
+        final byte[] body = SUCCESS.getBytes("UTF-8");
+        final byte[] read = ResponseParser.read(new ByteArrayInputStream(body), ResponseParser.MAX_RESPONSE_BYTES);
+        assertTrue(Arrays.equals(body, read));
+    }
+
+    public void testReadResponseLongerThanBuffer() throws Exception {
+        final byte[] body = new byte[3 * ResponseParser.BUFFER_SIZE + 17];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        final byte[] read = ResponseParser.read(new ByteArrayInputStream(body), ResponseParser.MAX_RESPONSE_BYTES);
+        assertTrue(Arrays.equals(body, read));
+        assertEquals(0, ResponseParser.read(new ByteArrayInputStream(new byte[0]), 10).length);
+    }
+
+    public void testReadAtLimit() throws Exception {
+        assertEquals(100, ResponseParser.read(new ByteArrayInputStream(new byte[100]), 100).length);
+    }
+
+    public void testReadStopsAtLimit() throws Exception {
+        final CountingStream in = new CountingStream(10 * ResponseParser.MAX_RESPONSE_BYTES);
+        try {
+            ResponseParser.read(in, ResponseParser.MAX_RESPONSE_BYTES);
+            fail("expected ResponseTooLargeException");
+        } catch (ResponseParser.ResponseTooLargeException ignored) {
+            // success
+        }
+        assertTrue(in.read <= ResponseParser.MAX_RESPONSE_BYTES + ResponseParser.BUFFER_SIZE);
+    }
+
+    /**
+     * An endless stream of spaces that counts what it hands out.
+     */
+    static class CountingStream extends InputStream {
+        final int length;
+        int read;
+
+        CountingStream(final int length) {
+            this.length = length;
+        }
+
+        @Override
+        public int read() {
+            if (read == length) {
+                return -1;
+            }
+            read++;
+            return ' ';
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (read == length) {
+                return -1;
+            }
+            final int n = Math.min(len, length - read);
+            Arrays.fill(b, off, off + n, (byte) ' ');
+            read += n;
+            return n;
+        }
+    }
+
+    /**
+     * What responses were processed with before: read byte by byte, decoded to a String and
+     * parsed to a JSONObject.
+     */
+    private static boolean previousProcessing(final InputStream in) throws IOException {
+        final ByteArrayOutputStream responseData = new ByteArrayOutputStream(256);
+        int c;
+        while ((c = in.read()) != -1) {
+            responseData.write(c);
+        }
+        final String response = new String(responseData.toByteArray(), "UTF-8");
+        try {
+            return new JSONObject(response).optString("result").equalsIgnoreCase("success");
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
+    private static boolean currentProcessing(final InputStream in) throws IOException {
+        return ResponseParser.checkResult(ResponseParser.read(in, ResponseParser.MAX_RESPONSE_BYTES)) == ResponseParser.Result.SUCCESS;
+    }
+
+    /**
+     * Compares the cost of processing a success response before and after. A
+     * ByteArrayInputStream stands in for the connection's stream, so the byte-by-byte reads
+     * are cheaper here than on a socket stream, where each one takes a lock.
+     */
+    public void testBenchmarkResponseProcessing() throws Exception {
+        final byte[] body = SUCCESS.getBytes("UTF-8");
+        final int responses = 20000;
+        long beforeNanos = 0;
+        long afterNanos = 0;
+        // alternate so both see the same JIT and GC conditions
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < responses; i++) {
+                assertTrue(previousProcessing(new ByteArrayInputStream(body)));
+            }
+            beforeNanos = (System.nanoTime() - start) / responses;
+            start = System.nanoTime();
+            for (int i = 0; i < responses; i++) {
+                assertTrue(currentProcessing(new ByteArrayInputStream(body)));
+            }
+            afterNanos = (System.nanoTime() - start) / responses;
+        }
+        assertTrue("before " + beforeNanos + " ns, after " + afterNanos + " ns per response", afterNanos * 2 < beforeNanos);
+    }
+}
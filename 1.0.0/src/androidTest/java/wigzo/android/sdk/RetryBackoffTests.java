@@ -0,0 +1,183 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RetryBackoffTests extends AndroidTestCase {
+    MemoryConnectionStore store;
+    Random random;
+    RetryBackoff backoff;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        store = new MemoryConnectionStore();
+        random = mock(Random.class);
+        when(random.nextDouble()).thenReturn(0.5);
+        backoff = new RetryBackoff(store, random, 1000, 8000, 5, 60000);
+    }
+
+    public void testConstructor_nullStore() {
+        try {
+            new RetryBackoff(null);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testInitialState() {
+        assertTrue(backoff.canAttempt(0));
+        assertEquals(0, backoff.getFailures());
+        assertFalse(backoff.isCircuitOpen());
+    }
+
+    public void testFailuresBackOffExponentiallyWithFullJitter() {
+        // bound doubles from 1000 up to 8000, the delay is half of it with nextDouble() == 0.5
+        assertEquals(10500, backoff.onFailure(10000, 0, false));
+        assertEquals(11000, backoff.onFailure(10000, 0, false));
+        assertEquals(12000, backoff.onFailure(10000, 0, false));
+        assertEquals(14000, backoff.onFailure(10000, 0, false));
+        assertFalse(backoff.canAttempt(13999));
+        assertTrue(backoff.canAttempt(14000));
+    }
+
+    public void testJitterCanRetryImmediately() {
+        when(random.nextDouble()).thenReturn(0.0);
+        assertEquals(10000, backoff.onFailure(10000, 0, false));
+    }
+
+    public void testThrottledDelayIsAtLeastHalfTheBound() {
+        when(random.nextDouble()).thenReturn(0.0);
+        backoff.onFailure(10000, 0, false);
+        // second failure: bound 2000
+        assertEquals(11000, backoff.onFailure(10000, 0, true));
+    }
+
+    public void testRetryAfterIsALowerBound() {
+        assertEquals(40000, backoff.onFailure(10000, 30000, false));
+    }
+
+    public void testCircuitOpensAfterThreshold() {
+        for (int i = 0; i < 4; i++) {
+            backoff.onFailure(0, 0, false);
+        }
+        assertFalse(backoff.isCircuitOpen());
+        assertEquals(60000, backoff.onFailure(0, 0, false));
+        assertTrue(backoff.isCircuitOpen());
+        // a failed probe opens it again for another cooling period
+        assertEquals(160000, backoff.onFailure(100000, 0, false));
+    }
+
+    public void testSuccessClosesCircuit() {
+        for (int i = 0; i < 5; i++) {
+            backoff.onFailure(0, 0, false);
+        }
+        backoff.onSuccess();
+        assertFalse(backoff.isCircuitOpen());
+        assertEquals(0, backoff.getFailures());
+        assertTrue(backoff.canAttempt(0));
+        assertNull(store.getPreference(RetryBackoff.PREFERENCE));
+    }
+
+    public void testStateSurvivesRestart() {
+        backoff.onFailure(10000, 0, false);
+        backoff.onFailure(10000, 0, false);
+
+        final RetryBackoff restored = new RetryBackoff(store);
+        assertEquals(2, restored.getFailures());
+        assertEquals(11000, restored.getNextAttemptAt());
+        assertFalse(restored.canAttempt(10999));
+    }
+
+    public void testCorruptStateIsIgnored() {
+        store.setPreference(RetryBackoff.PREFERENCE, "x:y");
+        assertEquals(0, new RetryBackoff(store).getFailures());
+    }
+
+    public void testRetryAfterMillis_seconds() {
+        final Transport.Response response = new Transport.Response(503, null).setHeader("Retry-After", "120");
+        assertEquals(120000, RetryBackoff.retryAfterMillis(response, 0));
+    }
+
+    public void testRetryAfterMillis_httpDate() {
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        final long now = 1500000000000L;
+        final Transport.Response response = new Transport.Response(429, null).setHeader("retry-after", format.format(new Date(now + 60000)));
+        assertEquals(60000, RetryBackoff.retryAfterMillis(response, now));
+    }
+
+    public void testRetryAfterMillis_missingOrInvalid() {
+        assertEquals(0, RetryBackoff.retryAfterMillis(new Transport.Response(503, null), 0));
+        assertEquals(0, RetryBackoff.retryAfterMillis(new Transport.Response(503, null).setHeader("Retry-After", "soon"), 0));
+    }
+
+    public void testProcessorBacksOffAfterFailedRun() {
+        final LoopbackTransport transport = new LoopbackTransport().setFailureRate(1);
+        final MemoryConnectionStore queue = new MemoryConnectionStore("a=1", "a=2", "a=3", "a=4", "a=5");
+        final DeviceId deviceId = mock(DeviceId.class);
+        when(deviceId.getId()).thenReturn("123");
+        final RetryBackoff queueBackoff = new RetryBackoff(queue);
+        final ConnectionProcessor processor = new ConnectionProcessor("http://server", queue, deviceId, null, transport);
+        processor.setMaxRequestsInFlight(4);
+        processor.setRetryBackoff(queueBackoff);
+
+        processor.run();
+        // four requests failed together, but they count as one failed attempt
+        assertEquals(4, transport.getRequests().size());
+        assertEquals(1, queueBackoff.getFailures());
+
+        // the next tick inside the backoff delay does not touch the network
+        queueBackoff.onFailure(System.currentTimeMillis(), 60000, false);
+        processor.run();
+        assertEquals(4, transport.getRequests().size());
+        transport.shutdown();
+    }
+
+    public void testProcessorHonorsRetryAfter() {
+        final LoopbackTransport transport = new LoopbackTransport().setHandler(new LoopbackTransport.Handler() {
+            @Override
+            public Transport.Response handle(final Transport.Request request) throws IOException {
+                return new Transport.Response(503, null).setHeader("Retry-After", "300");
+            }
+        });
+        final MemoryConnectionStore queue = new MemoryConnectionStore("a=1");
+        final DeviceId deviceId = mock(DeviceId.class);
+        when(deviceId.getId()).thenReturn("123");
+        final RetryBackoff queueBackoff = new RetryBackoff(queue);
+        final ConnectionProcessor processor = new ConnectionProcessor("http://server", queue, deviceId, null, transport);
+        processor.setRetryBackoff(queueBackoff);
+
+        final long before = System.currentTimeMillis();
+        processor.run();
+        assertTrue(queueBackoff.getNextAttemptAt() >= before + 300000);
+        assertFalse(queue.isEmptyConnections());
+        transport.shutdown();
+    }
+
+    public void testProcessorSuccessResetsBackoff() {
+        final LoopbackTransport transport = new LoopbackTransport();
+        final MemoryConnectionStore queue = new MemoryConnectionStore("a=1");
+        final DeviceId deviceId = mock(DeviceId.class);
+        when(deviceId.getId()).thenReturn("123");
+        final RetryBackoff queueBackoff = new RetryBackoff(queue);
+        queueBackoff.onFailure(0, 0, false);
+        final ConnectionProcessor processor = new ConnectionProcessor("http://server", queue, deviceId, null, transport);
+        processor.setRetryBackoff(queueBackoff);
+
+        processor.run();
+        assertTrue(queue.isEmptyConnections());
+        assertEquals(0, queueBackoff.getFailures());
+        transport.shutdown();
+    }
+}
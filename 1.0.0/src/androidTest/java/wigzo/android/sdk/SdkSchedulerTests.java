@@ -0,0 +1,303 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SdkSchedulerTests extends AndroidTestCase {
+    Metrics metrics;
+    SdkScheduler scheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        metrics = new Metrics();
+        scheduler = new SdkScheduler(metrics);
+    }
+
+    public void testConstructor_nullMetrics() {
+        try {
+            new SdkScheduler(null);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testSerialExecutorRunsOneTaskAtATimeInOrder() throws Exception {
+        final ExecutorService lane = scheduler.newSerialExecutor("Test");
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        Future<?> last = null;
+        for (int i = 0; i < 20; i++) {
+            final int n = i;
+            last = lane.submit(new Runnable() {
+                @Override
+                public void run() {
+                    maxRunning.set(Math.max(maxRunning.get(), running.incrementAndGet()));
+                    order.add(n);
+                    running.decrementAndGet();
+                }
+            });
+        }
+        last.get(5, TimeUnit.SECONDS);
+        assertEquals(1, maxRunning.get());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+        assertEquals(20, metrics.get(SdkScheduler.METRIC_TASKS));
+
+        lane.shutdown();
+        assertTrue(lane.awaitTermination(5, TimeUnit.SECONDS));
+        try {
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            fail("expected RejectedExecutionException");
+        } catch (RejectedExecutionException ignored) {
+            // success
+        }
+    }
+
+    public void testSerialExecutorQueueIsBounded() throws Exception {
+        final ExecutorService lane = scheduler.newSerialExecutor("Test");
+        final CountDownLatch release = new CountDownLatch(1);
+        final Runnable blocked = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                    // done
+                }
+            }
+        };
+        lane.execute(blocked);
+        for (int i = 0; i < SdkScheduler.MAX_QUEUED_TASKS; i++) {
+            lane.execute(blocked);
+        }
+        try {
+            lane.execute(blocked);
+            fail("expected RejectedExecutionException");
+        } catch (RejectedExecutionException ignored) {
+            // success
+        }
+        assertEquals(1, metrics.get(SdkScheduler.METRIC_REJECTED));
+        release.countDown();
+        lane.shutdown();
+        assertTrue(lane.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    public void testSerialExecutorRecoversWhenWorkersAreSaturated() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Runnable blocked = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                    // done
+                }
+            }
+        };
+        // both workers busy and their queue full
+        for (int i = 0; i < SdkScheduler.MIN_WORKER_THREADS + SdkScheduler.MAX_QUEUED_TASKS; i++) {
+            scheduler.execute(blocked);
+        }
+        final ExecutorService lane = scheduler.newSerialExecutor("Test");
+        final Future<?> future = lane.submit(new Runnable() {
+            @Override
+            public void run() {
+                // nothing to do
+            }
+        });
+        assertEquals(1, metrics.get(SdkScheduler.METRIC_REJECTED));
+        assertFalse(future.isDone());
+
+        // nothing else is submitted, the lane gets going once the workers are free
+        release.countDown();
+        future.get(5, TimeUnit.SECONDS);
+        lane.shutdown();
+        assertTrue(lane.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    public void testEveryLaneGetsAWorker() throws Exception {
+        assertEquals(SdkScheduler.MIN_WORKER_THREADS, scheduler.getWorkerThreads());
+        final CountDownLatch started = new CountDownLatch(3);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<ExecutorService> lanes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final ExecutorService lane = scheduler.newSerialExecutor("Test" + i);
+            lanes.add(lane);
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignored) {
+                        // done
+                    }
+                }
+            });
+        }
+        assertEquals(4, scheduler.getWorkerThreads());
+        // a third lane does not wait behind the two others, and other work still runs
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        final CountDownLatch executed = new CountDownLatch(1);
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                executed.countDown();
+            }
+        });
+        assertTrue(executed.await(5, TimeUnit.SECONDS));
+
+        release.countDown();
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+            lane.shutdown();
+            assertTrue(lane.awaitTermination(5, TimeUnit.SECONDS));
+        }
+        assertEquals(SdkScheduler.MIN_WORKER_THREADS, scheduler.getWorkerThreads());
+    }
+
+    public void testWorkersAreCapped() {
+        for (int i = 0; i < SdkScheduler.MAX_WORKER_THREADS * 2; i++) {
+            scheduler.newSerialExecutor("Test" + i);
+        }
+        assertEquals(SdkScheduler.MAX_WORKER_THREADS, scheduler.getWorkerThreads());
+    }
+
+    public void testThreadsAreNamedBackgroundPriorityAndCounted() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread[] thread = new Thread[1];
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                thread[0] = Thread.currentThread();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                    // done
+                }
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(thread[0].getName().startsWith("Wigzo-Worker-"));
+        assertEquals(SdkScheduler.THREAD_PRIORITY, thread[0].getPriority());
+        assertTrue(thread[0].isDaemon());
+        assertEquals(1, scheduler.getThreadCount());
+        assertEquals(1.0, metrics.getGauge(SdkScheduler.METRIC_THREADS));
+        release.countDown();
+    }
+
+    public void testHostExecutor() throws Exception {
+        final ExecutorService host = Executors.newSingleThreadExecutor();
+        final Thread hostThread = host.submit(new Callable<Thread>() {
+            @Override
+            public Thread call() {
+                return Thread.currentThread();
+            }
+        }).get();
+        scheduler.setExecutor(host);
+        final ExecutorService lane = scheduler.newSerialExecutor("Test");
+        final Thread[] ran = new Thread[1];
+        lane.submit(new Runnable() {
+            @Override
+            public void run() {
+                ran[0] = Thread.currentThread();
+            }
+        }).get(5, TimeUnit.SECONDS);
+        assertSame(hostThread, ran[0]);
+        assertEquals(0, scheduler.getThreadCount());
+
+        scheduler.setExecutor(null);
+        assertNotSame(host, scheduler.getExecutor());
+        host.shutdown();
+    }
+
+    public void testHostExecutorRunningTasksInline() throws Exception {
+        scheduler.setExecutor(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                command.run();
+            }
+        });
+        final List<Integer> order = new ArrayList<>();
+        final ExecutorService lane = scheduler.newSerialExecutor("Test");
+        for (int i = 0; i < 3; i++) {
+            final int n = i;
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(n);
+                }
+            });
+        }
+        assertEquals(3, order.size());
+        assertEquals(2, (int) order.get(2));
+    }
+
+    public void testScheduleRecordsLatency() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                assertTrue(Thread.currentThread().getName().startsWith("Wigzo-Timer-"));
+                ran.countDown();
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals(1, metrics.get(SdkScheduler.METRIC_TASKS));
+        assertTrue(metrics.snapshot().containsKey(SdkScheduler.METRIC_LATENCY));
+        assertTrue(metrics.snapshot().containsKey(SdkScheduler.METRIC_MAX_LATENCY));
+    }
+
+    public void testStopCancelsDelayedAndPeriodicTasks() {
+        final ScheduledFuture<?> delayed = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 1, TimeUnit.HOURS);
+        final ScheduledFuture<?> periodic = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 1, 1, TimeUnit.HOURS);
+        scheduler.stop();
+        assertTrue(delayed.isCancelled());
+        assertTrue(periodic.isCancelled());
+    }
+
+    public void testConnectionQueueUsesSchedulerLane() throws Exception {
+        final ConnectionQueue connQ = new ConnectionQueue();
+        connQ.ensureExecutor();
+        final Thread[] ran = new Thread[1];
+        connQ.getExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                ran[0] = Thread.currentThread();
+            }
+        }).get(5, TimeUnit.SECONDS);
+        assertTrue(ran[0].getName().startsWith("Wigzo-Worker-"));
+        assertEquals(1, connQ.getMetrics().get(SdkScheduler.METRIC_TASKS));
+    }
+}
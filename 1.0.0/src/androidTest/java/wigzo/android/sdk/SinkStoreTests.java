@@ -0,0 +1,116 @@
+package wigzo.android.sdk;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+
+public class SinkStoreTests extends AndroidTestCase {
+    SinkStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        store = new SinkStore(getContext());
+        store.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.clear();
+        getContext().getSharedPreferences(SinkStore.LEGACY_PREFERENCES_PREFIX + "a", Context.MODE_PRIVATE).edit().clear().commit();
+        super.tearDown();
+    }
+
+    public void testConstructor_nullContext() {
+        try {
+            new SinkStore(null);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testForSink_invalidName() {
+        try {
+            store.forSink("a b");
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testOfferIsStoredOnceForAllSinks() {
+        final SinkStore.Queue a = store.forSink("a");
+        final SinkStore.Queue b = store.forSink("b");
+        final IdempotencyKeys keys = a.getIdempotencyKeys();
+        assertSame(keys, b.getIdempotencyKeys());
+
+        final String first = keys.withSequence("app_key=1&events=x");
+        a.addConnection(first);
+        b.addConnection(keys.withSequence("app_key=1&events=x"));
+        // the same data offered again is another request
+        a.addConnection(keys.withSequence("app_key=1&events=x"));
+        assertEquals(Arrays.asList(first, a.connections()[1]), Arrays.asList(a.connections()));
+        assertEquals(Arrays.asList(first), Arrays.asList(b.connections()));
+        assertFalse(first.equals(a.connections()[1]));
+        final String stored = getContext().getSharedPreferences(SinkStore.PREFERENCES, Context.MODE_PRIVATE).getString("CONNECTIONS", "");
+        assertEquals(1, stored.split(first, -1).length - 1);
+    }
+
+    public void testRequestIsDroppedOnceEverySinkSentIt() {
+        final SinkStore.Queue a = store.forSink("a");
+        final SinkStore.Queue b = store.forSink("b");
+        a.addConnection("e=1&request_seq=1");
+        b.addConnection("e=1&request_seq=2");
+        a.addConnection("e=2&request_seq=3");
+
+        a.removeConnection("e=1&request_seq=1");
+        assertEquals(Arrays.asList("e=2&request_seq=3"), Arrays.asList(a.connections()));
+        assertEquals(Arrays.asList("e=1&request_seq=1"), Arrays.asList(b.connections()));
+        b.removeConnections(Arrays.asList("e=1&request_seq=1", "e=9"));
+        assertTrue(b.isEmptyConnections());
+        assertFalse(a.isEmptyConnections());
+        a.removeConnection("e=2&request_seq=3");
+        assertEquals("", getContext().getSharedPreferences(SinkStore.PREFERENCES, Context.MODE_PRIVATE).getString("CONNECTIONS", ""));
+    }
+
+    public void testQueueIsBounded() {
+        final SinkStore.Queue a = store.forSink("a");
+        for (int i = 0; i <= SinkStore.MAX_QUEUED_REQUESTS; i++) {
+            a.addConnection("e=" + i);
+        }
+        final String[] connections = a.connections();
+        assertEquals(SinkStore.MAX_QUEUED_REQUESTS, connections.length);
+        assertEquals("e=1", connections[0]);
+    }
+
+    public void testPreferencesArePerSink() {
+        final SinkStore.Queue a = store.forSink("a");
+        final SinkStore.Queue b = store.forSink("b");
+        a.setPreference("KEY", "1");
+        assertEquals("1", a.getPreference("KEY"));
+        assertNull(b.getPreference("KEY"));
+        a.setPreference("KEY", null);
+        assertNull(a.getPreference("KEY"));
+    }
+
+    public void testClearDiscardsRemovedSinks() {
+        store.forSink("a").addConnection("e=1");
+        store.forSink("b").setPreference("KEY", "1");
+        store.clear();
+        assertTrue(store.forSink("a").isEmptyConnections());
+        assertNull(store.forSink("b").getPreference("KEY"));
+    }
+
+    public void testMigratesStoreOfItsOwn() {
+        final SharedPreferences legacy = getContext().getSharedPreferences(SinkStore.LEGACY_PREFERENCES_PREFIX + "a", Context.MODE_PRIVATE);
+        legacy.edit().putString("CONNECTIONS", "e=1:::e=2").putString(RetryBackoff.PREFERENCE, "3").commit();
+
+        final SinkStore.Queue a = store.forSink("a");
+        assertEquals(Arrays.asList("e=1", "e=2"), Arrays.asList(a.connections()));
+        assertEquals("3", a.getPreference(RetryBackoff.PREFERENCE));
+        assertTrue(legacy.getAll().isEmpty());
+    }
+}
@@ -0,0 +1,200 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SinkTests extends AndroidTestCase {
+    DeviceId deviceId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deviceId = mock(DeviceId.class);
+        when(deviceId.getId()).thenReturn("123");
+    }
+
+    public void testEventTypeOf() {
+        assertEquals(Sink.EventType.CRASH, Sink.EventType.of("app_key=1&crash=x"));
+        assertEquals(Sink.EventType.PICTURE, Sink.EventType.of("app_key=1&user_details&" + UserData.PICTURE_PATH_KEY + "=a.png"));
+        assertEquals(Sink.EventType.USER_DETAILS, Sink.EventType.of("app_key=1&user_details=%7B%7D"));
+        assertEquals(Sink.EventType.EVENTS, Sink.EventType.of("app_key=1&events=%5B%5D"));
+        assertEquals(Sink.EventType.PUSH_TOKEN, Sink.EventType.of("app_key=1&token_session=1&android_token=x"));
+        assertEquals(Sink.EventType.SESSION, Sink.EventType.of("app_key=1&begin_session=1"));
+        assertEquals(Sink.EventType.SESSION, Sink.EventType.of("app_key=1&session_duration=60"));
+        assertEquals(Sink.EventType.SESSION, Sink.EventType.of("app_key=1&end_session=1"));
+        assertEquals(Sink.EventType.REFERRER, Sink.EventType.of("app_key=1&campaign_id=x"));
+        assertEquals(Sink.EventType.OTHER, Sink.EventType.of("app_key=1"));
+    }
+
+    public void testEndpointSink_invalid() {
+        final String[][] invalid = {{null, "http://collector/i"}, {"has space", "http://collector/i"}, {"collector", "not a url"}};
+        for (String[] args : invalid) {
+            try {
+                new EndpointSink(args[0], args[1], Sink.Encoding.QUERY_STRING);
+                fail("expected IllegalArgumentException");
+            } catch (IllegalArgumentException ignored) {
+                // success
+            }
+        }
+        try {
+            new EndpointSink("collector", "http://collector/i", null);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testEndpointSink_acceptsAllByDefault() {
+        final EndpointSink sink = new EndpointSink("collector", "http://collector/i", Sink.Encoding.QUERY_STRING);
+        for (Sink.EventType type : Sink.EventType.values()) {
+            assertTrue(sink.accepts(type));
+        }
+        final EndpointSink events = new EndpointSink("collector", "http://collector/i", Sink.Encoding.QUERY_STRING, Sink.EventType.EVENTS);
+        assertTrue(events.accepts(Sink.EventType.EVENTS));
+        assertFalse(events.accepts(Sink.EventType.CRASH));
+    }
+
+    public void testMobileSinkRejectsCrashesAndPictures() {
+        assertFalse(ConnectionProcessorWigzoApp.SINK.accepts(Sink.EventType.CRASH));
+        assertFalse(ConnectionProcessorWigzoApp.SINK.accepts(Sink.EventType.PICTURE));
+        assertTrue(ConnectionProcessorWigzoApp.SINK.accepts(Sink.EventType.EVENTS));
+        assertTrue(ConnectionProcessorWigzoApp.MOBILE_EVENTS_URL.startsWith(ConnectionProcessorWigzoApp.SINK.getEndpoint()));
+    }
+
+    private Transport.Request requestFor(final Sink.Encoding encoding, final String eventData) throws Exception {
+        final Sink sink = new EndpointSink("collector", "http://collector/i", encoding);
+        final SinkConnectionProcessor processor = new SinkConnectionProcessor(sink, new MemoryConnectionStore(), deviceId, null, new LoopbackTransport());
+        return processor.requestForEventData(eventData);
+    }
+
+    public void testQueryStringEncoding() throws Exception {
+        final Transport.Request request = requestFor(Sink.Encoding.QUERY_STRING, "app_key=1&begin_session=1");
+        assertEquals("GET", request.getMethod());
+        assertEquals("http://collector/i?app_key=1&begin_session=1", request.getUrl());
+        assertNull(request.getBody());
+    }
+
+    public void testJSONBodyEncoding() throws Exception {
+        final Transport.Request request = requestFor(Sink.Encoding.JSON_BODY, "app_key=1&events=%5B%7B%22key%22%3A%22x%22%7D%5D&device_id=a%20b");
+        assertEquals("POST", request.getMethod());
+        assertEquals("http://collector/i", request.getUrl());
+        assertEquals("application/json", request.getHeader("Content-Type"));
+        final JSONObject body = new JSONObject(new String(request.getBody(), "UTF-8"));
+        assertEquals("1", body.getString("app_key"));
+        assertEquals("a b", body.getString("device_id"));
+        assertEquals("x", body.getJSONArray("events").getJSONObject(0).getString("key"));
+    }
+
+    public void testBulkEncoding() throws Exception {
+        final Transport.Request request = requestFor(Sink.Encoding.BULK, "app_key=1&end_session=1");
+        assertEquals("POST", request.getMethod());
+        final String body = new String(request.getBody(), "UTF-8");
+        assertTrue(body.startsWith("requests="));
+        final JSONArray requests = new JSONArray(URLDecoder.decode(body.substring("requests=".length()), "UTF-8"));
+        assertEquals(1, requests.length());
+        assertTrue(requests.getString(0).startsWith("app_key=1&end_session=1"));
+    }
+
+    public void testOnlyBulkSinksHaveABatchEncoder() throws Exception {
+        final MemoryConnectionStore store = new MemoryConnectionStore();
+        assertNull(new ConnectionProcessor("http://server", store, deviceId, null, new LoopbackTransport()).batchEncoder());
+        for (Sink.Encoding encoding : new Sink.Encoding[]{Sink.Encoding.QUERY_STRING, Sink.Encoding.JSON_BODY}) {
+            final Sink sink = new EndpointSink("collector", "http://collector/i", encoding);
+            assertNull(new SinkConnectionProcessor(sink, store, deviceId, null, new LoopbackTransport()).batchEncoder());
+        }
+
+        final Sink sink = new EndpointSink("collector", "http://collector/i", Sink.Encoding.BULK, Sink.EventType.EVENTS, Sink.EventType.PICTURE);
+        final ConnectionProcessor.BatchEncoder encoder = new SinkConnectionProcessor(sink, store, deviceId, null, new LoopbackTransport()).batchEncoder();
+        assertTrue(encoder.isBatchable("app_key=1&events=%5B%5D"));
+        assertFalse(encoder.isBatchable("app_key=1&crash=x"));
+        assertFalse(encoder.isBatchable("app_key=1&user_details&" + UserData.PICTURE_PATH_KEY + "=%2Fa.png"));
+        final String body = new String(encoder.requestFor(Arrays.asList("a=1", "a=2")).getBody(), "UTF-8");
+        assertEquals(2, new JSONArray(URLDecoder.decode(body.substring("requests=".length()), "UTF-8")).length());
+    }
+
+    public void testRequestOfRejectedTypeIsDropped() throws Exception {
+        final Sink sink = new EndpointSink("collector", "http://collector/i", Sink.Encoding.QUERY_STRING, Sink.EventType.EVENTS);
+        final SinkConnectionProcessor processor = new SinkConnectionProcessor(sink, new MemoryConnectionStore(), deviceId, null, new LoopbackTransport());
+        assertNull(processor.requestForEventData("app_key=1&crash=x"));
+    }
+
+    private ConnectionQueue newConnectionQueue(final LoopbackTransport transport) {
+        final ConnectionQueue connQ = new ConnectionQueue();
+        connQ.setServerURL("http://server");
+        connQ.setDeviceId(deviceId);
+        connQ.setTransport(transport);
+        connQ.getPipeline().setStore(new MemoryConnectionStore());
+        connQ.getAppPipeline().setStore(new MemoryConnectionStore());
+        return connQ;
+    }
+
+    public void testAddSink() {
+        final ConnectionQueue connQ = newConnectionQueue(new LoopbackTransport());
+        final MemoryConnectionStore store = new MemoryConnectionStore();
+        connQ.addSink(new EndpointSink("collector", "http://collector/i", Sink.Encoding.QUERY_STRING), store);
+        assertEquals(3, connQ.getPipelines().size());
+        assertSame(store, connQ.getSinkPipeline("collector").getStore());
+        try {
+            connQ.addSink(new EndpointSink("collector", "http://other/i", Sink.Encoding.QUERY_STRING), new MemoryConnectionStore());
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+        try {
+            connQ.addSink(null, store);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testRemoveSink() {
+        final ConnectionQueue connQ = newConnectionQueue(new LoopbackTransport());
+        connQ.addSink(new EndpointSink("collector", "http://collector/i", Sink.Encoding.QUERY_STRING), new MemoryConnectionStore());
+        assertNotNull(connQ.removeSink("collector"));
+        assertNull(connQ.removeSink("collector"));
+        assertEquals(2, connQ.getPipelines().size());
+        try {
+            connQ.removeSink(ConnectionProcessorWigzoApp.SINK.getName());
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+        try {
+            connQ.removeSink(ConnectionQueue.SINK_NAME);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testThirdSinkIsDrainedByConfigurationOnly() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport();
+        final ConnectionQueue connQ = newConnectionQueue(transport);
+        final MemoryConnectionStore store = new MemoryConnectionStore();
+        connQ.addSink(new EndpointSink("collector", "http://collector/i", Sink.Encoding.JSON_BODY, Sink.EventType.EVENTS), store);
+
+        connQ.getSinkPipeline("collector").offer("app_key=1&events=%5B%5D", Sink.EventType.EVENTS);
+        final List<Future<?>> futures = connQ.flush();
+        assertEquals(3, futures.size());
+        for (Future<?> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        assertTrue(store.isEmptyConnections());
+        assertEquals(1, transport.getRequests().size());
+        assertEquals("http://collector/i", transport.getRequests().get(0).getUrl());
+        assertFalse(connQ.hasBacklog());
+        transport.shutdown();
+    }
+}
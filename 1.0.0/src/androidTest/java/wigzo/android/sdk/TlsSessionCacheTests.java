@@ -0,0 +1,150 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+import android.util.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.List;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+public class TlsSessionCacheTests extends AndroidTestCase {
+    // PKCS12 key store holding a self-signed RSA key for 127.0.0.1, valid until 2126, password "secret"
+    private static final String SERVER_KEYSTORE =
+            "MIIKCgIBAzCCCbQGCSqGSIb3DQEHAaCCCaUEggmhMIIJnTCCBaQGCSqGSIb3DQEHAaCCBZUEggWRMIIFjTCCBYkGCyqGSIb3"
+            + "DQEMCgECoIIFMDCCBSwwZgYJKoZIhvcNAQUNMFkwOAYJKoZIhvcNAQUMMCsEFCNgnBERR/IwdVblrwZLugnVERLPAgInEAIB"
+            + "IDAMBggqhkiG9w0CCQUAMB0GCWCGSAFlAwQBKgQQimnpjRoSmo/LebrGdFX0ZASCBMAQIih6eIHOf+RKHIKkZ8b/lNwU1XZN"
+            + "KQs/17oEp1TS55MhkjCzGcH/gGslCtimL69By/hsDG2iyipWOz/edmDgTnR+ajkpAF6QUgeVFmbuHH4ST+f51YoBT3bZCDcP"
+            + "84r7PwIwmGT0zh42N8Y75oeVUODh66YJ9O+og4PfVbergB6djlF3xzm4eVfsFLql1efeFm583JBBUg5eEw+0i8uE4X02dZbz"
+            + "A72wfXJvH7lkPeqlPeZ71/eVsbfrRloy+fEMz9lNDdnJMuV77jM5iox9C+p4YfG2zxCD2t9kamA12lYAkNSDIwVptb8IGKia"
+            + "lj5po5IuOHXOoRULz9l9eUw2tWCzh+IRGI9r8E0tKr88LynDZUyF1sDa2U6N4qLMPskefWQM7857Q7tqcgpl2r7kJlVXDfX0"
+            + "SITR7MvtLAvcHAhOUNOEkpnKRqTZ3oQ7H5+QqtX4q4kNyECiG3OfvHVMdggbbpUtGmI/s68vswwdN0hJxrUOnblcNJfZYuaP"
+            + "pXrEhnl90zN1LXBJhQx+VZpxhJI5UVmvu+4hJgNOmhXpZtazjEoHRMIdOIuHJl0JUHaxS/KPOebIkobXpSd5E6TD1lSQyMFm"
+            + "qzsBluYVTKW2/9agaQDIEfOBcgr1RbPF6L6lp2SBwbIxUtcmG0mhU57X9jDvbsuhAIqy4nu6Z6veqapZA1CvY70EAK3w12hG"
+            + "1yVffh+tzRjkeuM/CYEnnclw/GD2+h6OrmPsickgYwJHSmZKM1w0RFWp0I98iOPsySKO1DWaYi5qyw3lnyJlKvBFH2ani32o"
+            + "dhRzbQEJFViOPFc+cN5BThipTB5poB6Mw4SQlUYgnLZOkWzUOOjL7tDuA2QFgyyJM3PvvdYJes01hN2eZqEk89TXaPM86pTX"
+            + "Zbw8xg+WIqj4ZjtjOhflZZVK/BHt/jJoiwcM5tGQf4vlHbFi9lbfoAfTJCG/Suij6AFUcwl4QnheiVk21GHboafXykdOmo8Q"
+            + "xspwvXK1Ia06T6wFFfmluymL6Fn1N9lYhS43o9CGpR/4WxZbxPtrdC+AfdT8n8n/0cd9a6T+7WqdU4UQMk94DyOEFL8nRN6i"
+            + "3pQYDP+kA2Rt9r9YwPRq13Dzmbv9jx1IKj15aMfnyvlyBtIbKROUXfpylMQ5nLdbgjd4p5aJ4BHp1gkun5b1Eoy4efUpHUU6"
+            + "eA9FwBeROr/YeOY1p25/htmcmnkmqVxvI4UdltmkIg37tW9cHVc+PSlmoqAQcYbC+yEASWoF8DR3NkSh6kFDkF3vsp4iZ1ny"
+            + "jArvL31Z1jJsABseA2e4K73MTHiYE/J4eff6hL8vROrHEj+Gq0L4MpIejon1K/s/ahWXgd5BOYhXI6jIT43ldraO9HqBPfL2"
+            + "nI2T5cN3Uz9kKMS1HfOrvkOwLNd2bwl8IYtg8lF0g5c6SqbKYTu8HxfS5lZSbRkpTRLf0ZSgc4CiVGHFQm95qkK64N1UDLkE"
+            + "cKsvYAO5KmTHwssqKjxsNU6kZN43ZzVSbHiD7BK6mdrqXqaNksZeINMGzhtdxzFdHrR+0G6mQR1yYVyfumfdGnMbczFdWC9q"
+            + "79k06Qmu1Q3XhTntYwLviOl+Xj097pS7Q56YuwlNFDMhWYYP6NReYpe6MUYwIQYJKoZIhvcNAQkUMRQeEgBsAG8AYwBhAGwA"
+            + "aABvAHMAdDAhBgkqhkiG9w0BCRUxFAQSVGltZSAxNzkyNDI1NDA3NDExMIID8QYJKoZIhvcNAQcGoIID4jCCA94CAQAwggPX"
+            + "BgkqhkiG9w0BBwEwZgYJKoZIhvcNAQUNMFkwOAYJKoZIhvcNAQUMMCsEFIs3DOQJb6jLhMjvOh8GaRPMGBLsAgInEAIBIDAM"
+            + "BggqhkiG9w0CCQUAMB0GCWCGSAFlAwQBKgQQzw3JxbNcBPpUpyhlL29ysoCCA2D8wg4qG0T/iC1o1Z22Atj1XMEYTgjFPBeA"
+            + "UMJ9RO+fN3VIBkOeRkdPorJA0emA2vdv3WyLPTrDQx2d3ZbFA1vqifAwaPaTMOSY3SdPaX3dGKVfCRexw+PN3xPVruDNqV1N"
+            + "L2ERP/Gs1k1Gp80P26o/u87bhXPO7ecjIoXqCc7RpOEYdLonfYGQVvyn45ove19OJXEEY9dZTQLAJfF44d/hgd+hpfBTxI/X"
+            + "eMVve8KSgZPxmAkr1sbkpb1pzY8Tqbmgh1JvR9R+rORGMr25ABxlZVoSfXVHUq6o0Sv1lV8e8HAS98Rbyi05E1iwSaAmBHu3"
+            + "JcgbgO3SxvqCP3EFABybIEujds/SA60SS8JwE6W9eKS7dCVQPDVfupaU8C515ZqnHKX09MS8HsYkoixng1A1mRgAE7vdbZMn"
+            + "6JTbrOEzLH08ADtgBy3V5WwXqJnB5g91UdfmsXUthfA36yE8r/jd1ZKhI2OXbEaa72Lpyk92OtwMPRsMpFk+KNGK+p2IafVn"
+            + "iiiYdh29LyhY2onPAD5qMtYZoR/y0/jIVPwgljeYPFgTabdLen+TjapnP1N5vvWMk3Tl92UEp1kekR9CFD5hQ1miVD+jlGv4"
+            + "NjWoleB1a3OICEOwQhO5yubuU69aso62Qkh2fI/aOQvsW9pmMocl6pNarPARTJGOvvglrjr8d2ov1rDGAfCsYrgaLKadk8y6"
+            + "rSkprRyRcZc1SdEYZC/1WVTpxUaxtdSyCprlzC5ks7moarIXVfXZMDOO4NZwWXi6rszl1VvhkiBNsc8i+FzULiK52ou8pWX3"
+            + "1f7NeS6oHauPb4YS8CEJgLwDoeFgTt0S9tvX6Cc7FGFWiUkXrq7dwHz8oTa18qiOWNYzJcJtAuQb8ZhGGWTqluJ47vZ/Xxi4"
+            + "hnFzbbVU/IISLLNfgi7AvYW4K06Ct1q25tlUTLPjF/TjfxxF/07XRmkEfTipGxz1V61NP/SlNdIQ5KTbnFmy/4RfRmm1Larv"
+            + "dD6F23ExKcwMXJoOZevvz6MbY2MCQSTTHSdGCsu+YGWdTwqUrQ+U3ljVmOCGT4JHsiVjhNp4nZeM4qSUuOqd1E/tP0zCJxCO"
+            + "HHI/uS3n5tjY4w4Kfn0IwNU5C+db8aV7CCko9KzuwkqHfg10VQyLkjFu14B+VY8wTTAxMA0GCWCGSAFlAwQCAQUABCAcNQDV"
+            + "1UWD7JDwZWdtmlepJI8kTDLU856PzEYHqztrXgQUSyY3o8CaQ9kGQt9QDAJvO6mt0X0CAicQ";
+    private static final char[] PASSWORD = "secret".toCharArray();
+
+    LocalTestServer server;
+    TrustManager[] trustManagers;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(new ByteArrayInputStream(Base64.decode(SERVER_KEYSTORE, Base64.DEFAULT)), PASSWORD);
+        final KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, PASSWORD);
+        final SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(kmf.getKeyManagers(), null, null);
+
+        // the client trusts the server's self-signed certificate
+        final Certificate certificate = keyStore.getCertificate("localhost");
+        final KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("localhost", certificate);
+        final TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trustStore);
+        trustManagers = tmf.getTrustManagers();
+
+        // TLS 1.2 keeps the session ID on resumption; each response closes the connection,
+        // so every upload needs a handshake
+        server = new LocalTestServer(new LocalTestServer.Handler() {
+            @Override
+            public LocalTestServer.Response handle(final LocalTestServer.Request request) {
+                return LocalTestServer.Response.success().header("Connection", "close");
+            }
+        }).startTls(serverContext, "TLSv1.2");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+        TlsSessionCache.setSessionCacheSize(TlsSessionCache.DEFAULT_SESSION_CACHE_SIZE);
+        super.tearDown();
+    }
+
+    private static void upload(final TlsSessionCache tlsSessions, final String url) throws Exception {
+        final HttpURLConnectionTransport transport = new HttpURLConnectionTransport(new SdkScheduler(new Metrics()));
+        transport.setSSLSocketFactory(tlsSessions.getSocketFactory());
+        assertTrue(transport.send(new Transport.Request("GET", url + "/i?app_key=1")).isSuccessful());
+    }
+
+    public void testSubsequentUploadsResumeTheSession() throws Exception {
+        final TlsSessionCache tlsSessions = new TlsSessionCache(trustManagers, TlsSessionCache.DEFAULT_SESSION_CACHE_SIZE);
+        for (int i = 0; i < 3; i++) {
+            // a transport of its own each time, like background flush jobs use
+            upload(tlsSessions, server.url());
+        }
+        assertEquals(3, server.connectionCount());
+        final List<String> sessionIds = server.sessionIds();
+        assertEquals(3, sessionIds.size());
+        // the first handshake is a full one, the others are abbreviated
+        assertEquals(sessionIds.get(0), sessionIds.get(1));
+        assertEquals(sessionIds.get(0), sessionIds.get(2));
+        assertEquals(TlsSessionCache.SESSION_TIMEOUT_SECONDS, tlsSessions.getSessionContext().getSessionTimeout());
+    }
+
+    public void testSeparateContextsDoNotResume() throws Exception {
+        upload(new TlsSessionCache(trustManagers, TlsSessionCache.DEFAULT_SESSION_CACHE_SIZE), server.url());
+        upload(new TlsSessionCache(trustManagers, TlsSessionCache.DEFAULT_SESSION_CACHE_SIZE), server.url());
+        final List<String> sessionIds = server.sessionIds();
+        assertEquals(2, sessionIds.size());
+        assertFalse(sessionIds.get(0).equals(sessionIds.get(1)));
+    }
+
+    public void testSharedInstance() {
+        final TlsSessionCache shared = TlsSessionCache.shared(null);
+        assertSame(shared, TlsSessionCache.shared(null));
+        assertSame(shared.getSocketFactory(), ConnectionProcessor.sharedTransport(null).getSSLSocketFactory());
+        // one transport, and its threads and metrics, for the whole SDK
+        assertSame(Wigzo.sharedInstance().getConnectionQueue().getHttpTransport(), ConnectionProcessor.sharedTransport(null));
+
+        final ConnectionQueue connQ = new ConnectionQueue();
+        connQ.setServerURL("https://secureserver");
+        assertSame(shared.getSSLContext(), connQ.getSSLContext());
+    }
+
+    public void testSessionCacheSize() {
+        final TlsSessionCache shared = TlsSessionCache.shared(null);
+        assertEquals(TlsSessionCache.DEFAULT_SESSION_CACHE_SIZE, shared.getSessionContext().getSessionCacheSize());
+        TlsSessionCache.setSessionCacheSize(4);
+        assertEquals(4, TlsSessionCache.getSessionCacheSize());
+        assertEquals(4, shared.getSessionContext().getSessionCacheSize());
+        try {
+            TlsSessionCache.setSessionCacheSize(-1);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package wigzo.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class UploadPolicyTests extends AndroidTestCase {
+    private static final long DAY = 24 * 60 * 60 * 1000;
+
+    Metrics metrics;
+    MemoryConnectionStore store;
+    FakeConnectivityMonitor monitor;
+    UploadPolicy policy;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        metrics = new Metrics();
+        store = new MemoryConnectionStore();
+        monitor = new FakeConnectivityMonitor(true);
+        policy = new UploadPolicy(metrics);
+        policy.setStore(store);
+        policy.setConnectivityMonitor(monitor);
+        policy.setDailyMeteredBudget(1000);
+    }
+
+    private static String bulkEvents() {
+        final StringBuilder events = new StringBuilder("app_key=1&events=");
+        while (events.length() <= UploadPolicy.BULK_THRESHOLD_BYTES) {
+            events.append("%7B%22key%22%3A%22x%22%7D");
+        }
+        return events.toString();
+    }
+
+    public void testPriorityOf() {
+        assertEquals(UploadPolicy.Priority.HIGH, UploadPolicy.priorityOf("app_key=1&crash=x"));
+        assertEquals(UploadPolicy.Priority.HIGH, UploadPolicy.priorityOf("app_key=1&begin_session=1"));
+        assertEquals(UploadPolicy.Priority.HIGH, UploadPolicy.priorityOf("app_key=1&end_session=1"));
+        assertEquals(UploadPolicy.Priority.NORMAL, UploadPolicy.priorityOf("app_key=1&events=%5B%5D"));
+        assertEquals(UploadPolicy.Priority.BULK, UploadPolicy.priorityOf("app_key=1&" + UserData.PICTURE_PATH_KEY + "=a.png"));
+        assertEquals(UploadPolicy.Priority.BULK, UploadPolicy.priorityOf(bulkEvents()));
+    }
+
+    public void testUnmeteredAllowsEverything() {
+        assertTrue(policy.allows(UploadPolicy.Priority.BULK, 1000000, 0));
+    }
+
+    public void testMeteredDefersBulkBeyondBudget() {
+        monitor.setMetered(true);
+        assertTrue(policy.allows(UploadPolicy.Priority.BULK, 600, 0));
+        policy.onSent(600, 0);
+        assertFalse(policy.allows(UploadPolicy.Priority.BULK, 600, 0));
+        assertTrue(policy.allows(UploadPolicy.Priority.NORMAL, 600, 0));
+        assertTrue(policy.allows(UploadPolicy.Priority.HIGH, 600, 0));
+        assertEquals(1, metrics.get(UploadPolicy.METRIC_DEFERRED));
+    }
+
+    public void testBudgetResetsDaily() {
+        monitor.setMetered(true);
+        policy.onSent(1000, 0);
+        assertFalse(policy.allows(UploadPolicy.Priority.BULK, 1, DAY - 1));
+        assertTrue(policy.allows(UploadPolicy.Priority.BULK, 1, DAY));
+    }
+
+    public void testBudgetUsageSurvivesRestart() {
+        monitor.setMetered(true);
+        policy.onSent(900, 10);
+
+        final UploadPolicy restored = new UploadPolicy(new Metrics());
+        restored.setStore(store);
+        restored.setConnectivityMonitor(monitor);
+        restored.setDailyMeteredBudget(1000);
+        assertEquals(900, restored.meteredBytesToday(20));
+        assertFalse(restored.allows(UploadPolicy.Priority.BULK, 200, 20));
+    }
+
+    public void testBytesSentPerNetworkType() {
+        policy.onSent(100, 0);
+        monitor.setMetered(true);
+        policy.onSent(30, 0);
+        assertEquals(100, metrics.get(UploadPolicy.METRIC_BYTES_UNMETERED));
+        assertEquals(30, metrics.get(UploadPolicy.METRIC_BYTES_METERED));
+    }
+
+    public void testSetDailyMeteredBudget_negative() {
+        try {
+            policy.setDailyMeteredBudget(-1);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testProcessorDefersBulkOnMeteredNetworkAndSendsTheRest() {
+        monitor.setMetered(true);
+        policy.setDailyMeteredBudget(0);
+        final String bulk = bulkEvents();
+        final MemoryConnectionStore queue = new MemoryConnectionStore("e=1", bulk, "a=1&crash=x", "e=2");
+        final LoopbackTransport transport = new LoopbackTransport();
+        final DeviceId deviceId = mock(DeviceId.class);
+        when(deviceId.getId()).thenReturn("123");
+
+        for (int maxRequestsInFlight : new int[]{1, 4}) {
+            final ConnectionProcessor processor = new ConnectionProcessor("http://server", queue, deviceId, null, transport);
+            processor.setUploadPolicy(policy);
+            processor.setMaxRequestsInFlight(maxRequestsInFlight);
+            processor.run();
+            assertEquals(Arrays.asList(bulk), Arrays.asList(queue.connections()));
+            queue.addConnection("e=3");
+        }
+        // the crash report jumps ahead of the older entries
+        assertEquals("POST", transport.getRequests().get(0).getMethod());
+        assertTrue(new String(transport.getRequests().get(0).getBody()).contains("crash=x"));
+
+        // on an unmetered network the bulk request goes out
+        monitor.setMetered(false);
+        final ConnectionProcessor processor = new ConnectionProcessor("http://server", queue, deviceId, null, transport);
+        processor.setUploadPolicy(policy);
+        processor.run();
+        assertTrue(queue.isEmptyConnections());
+        assertTrue(metrics.get(UploadPolicy.METRIC_BYTES_UNMETERED) > UploadPolicy.BULK_THRESHOLD_BYTES);
+        transport.shutdown();
+    }
+}
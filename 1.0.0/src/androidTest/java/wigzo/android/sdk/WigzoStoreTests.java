@@ -359,6 +359,19 @@ public class WigzoStoreTests extends AndroidTestCase {
         assertTrue(Arrays.equals(new String[]{"blah2", "blah1"}, mStore.connections()));
     }
 
+    public void testRemoveConnections() {
+        store.addConnection("blah1");
+        store.addConnection("blah2");
+        store.addConnection("blah1");
+        store.addConnection("blah3");
+        store.removeConnections(Arrays.asList("blah1", "blah3", "unknown"));
+        assertTrue(Arrays.equals(new String[]{"blah2", "blah1"}, store.connections()));
+        mStore.addConnection("blah1");
+        mStore.addConnection("blah2");
+        mStore.removeConnections(Arrays.asList("blah1", "blah2"));
+        assertTrue(mStore.isEmptyConnections());
+    }
+
     public void testAddEvent() {
         final Event event1 = new Event();
         event1.key = "eventKey1";
@@ -4,11 +4,14 @@ package wigzo.android.sdk;
 import android.content.Context;
 import android.test.AndroidTestCase;
 
+import org.mockito.InOrder;
+
 import java.util.HashMap;
 
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
@@ -103,6 +106,24 @@ public class WigzoTests extends AndroidTestCase {
         }
     }
 
+    public void testInitWithServers_nullServerURLs() {
+        try {
+            mUninitedWigzo.initWithServers(getContext(), null, "appkey", null, null, "1234", null);
+            fail("expected null server URLs to throw IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success!
+        }
+    }
+
+    public void testInitWithServers_duplicateServerURLs() {
+        try {
+            mUninitedWigzo.initWithServers(getContext(), new String[]{"http://test.wigzo.com", "http://test.wigzo.com"}, "appkey", null, null, "1234", null);
+            fail("expected duplicate server URLs to throw IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success!
+        }
+    }
+
     public void testInit_nullAppKey() {
         try {
             mUninitedWigzo.init(getContext(), "http://test.wigzo.com", null, "1234");
@@ -619,6 +640,24 @@ public class WigzoTests extends AndroidTestCase {
         verify(mockConnectionQueue, times(1)).recordEvents(eventData);
     }
 
+    public void testSendEventsIfNeeded_batchSizeBelowThreshold() {
+        // a timed out events request halves the batch size of the Wigzo server's pipeline
+        mWigzo.getConnectionQueue().getPipeline().getBatchSizer().onTimeout();
+        final ConnectionQueue mockConnectionQueue = mock(ConnectionQueue.class);
+        mWigzo.setConnectionQueue(mockConnectionQueue);
+
+        final EventQueue mockEventQueue = mock(EventQueue.class);
+        when(mockEventQueue.size()).thenReturn(5);
+        final String eventData = "blahblahblah";
+        when(mockEventQueue.events()).thenReturn(eventData);
+        mWigzo.setEventQueue(mockEventQueue);
+
+        mWigzo.sendEventsIfNeeded();
+
+        verify(mockEventQueue, times(1)).events();
+        verify(mockConnectionQueue, times(1)).recordEvents(eventData);
+    }
+
     public void testOnTimer_noActiveSession() {
         final ConnectionQueue mockConnectionQueue = mock(ConnectionQueue.class);
         mWigzo.setConnectionQueue(mockConnectionQueue);
@@ -697,6 +736,26 @@ public class WigzoTests extends AndroidTestCase {
         verify(mockConnectionQueue).recordEvents(eventData);
     }
 
+    public void testOnTimer_activeSession_coalescesRequests() {
+        final ConnectionQueue mockConnectionQueue = mock(ConnectionQueue.class);
+        mWigzo.setConnectionQueue(mockConnectionQueue);
+
+        final EventQueue mockEventQueue = mock(EventQueue.class);
+        when(mockEventQueue.size()).thenReturn(1);
+        final String eventData = "blahblahblah";
+        when(mockEventQueue.events()).thenReturn(eventData);
+        mWigzo.setEventQueue(mockEventQueue);
+
+        mWigzo.onStart(null);
+        mWigzo.onTimer();
+
+        final InOrder inOrder = inOrder(mockConnectionQueue);
+        inOrder.verify(mockConnectionQueue).beginCoalescing();
+        inOrder.verify(mockConnectionQueue).updateSession(0);
+        inOrder.verify(mockConnectionQueue).recordEvents(eventData);
+        inOrder.verify(mockConnectionQueue).endCoalescing();
+    }
+
     public void testRoundedSecondsSinceLastSessionDurationUpdate() {
         long prevSessionDurationStartTime = System.nanoTime() - 1000000000;
         mWigzo.setPrevSessionDurationStartTime(prevSessionDurationStartTime);
@@ -0,0 +1,112 @@
+package wigzo.android.sdk;
+
+/**
+ * Derives the connect and read timeouts of one destination from its observed latency,
+ * so a request that will never be answered holds up the uploads queued behind it for a
+ * few round trips instead of the fixed 30 seconds.
+ *
+ * The time from sending each request to its response is added to a {@link LatencySketch};
+ * the timeout is {@link #DEFAULT_MULTIPLIER} times its 99th percentile, bounded by
+ * minTimeoutMillis and maxTimeoutMillis, and never above the timeouts the request was
+ * built with. Until {@link #MIN_SAMPLES} responses have been seen the request's own
+ * timeouts apply. Each timeout in a row doubles the next one, up to the bounds, so a
+ * network that became slower, or a request that is larger than most, still gets through.
+ *
+ * The state is kept in memory only and reported as gauges named after the destination.
+ */
+class AdaptiveTimeouts {
+    static final long DEFAULT_MIN_TIMEOUT_MILLIS = 2000;
+    static final long DEFAULT_MAX_TIMEOUT_MILLIS = 30000;
+    static final double DEFAULT_MULTIPLIER = 3;
+    static final double QUANTILE = 0.99;
+    static final int MIN_SAMPLES = 20;
+
+    static final String METRIC_P99 = "timeout.p99_ms.";
+    static final String METRIC_TIMEOUT = "timeout.current_ms.";
+    static final String METRIC_EXPIRED = "timeout.expired.";
+
+    private final String name_;
+    private final Metrics metrics_;
+    private final long minTimeoutMillis_;
+    private final long maxTimeoutMillis_;
+    private final double multiplier_;
+    private final LatencySketch sketch_ = new LatencySketch();
+    private int consecutiveTimeouts_;
+
+    AdaptiveTimeouts(final String name, final Metrics metrics) {
+        this(name, metrics, DEFAULT_MIN_TIMEOUT_MILLIS, DEFAULT_MAX_TIMEOUT_MILLIS, DEFAULT_MULTIPLIER);
+    }
+
+    AdaptiveTimeouts(final String name, final Metrics metrics, final long minTimeoutMillis, final long maxTimeoutMillis, final double multiplier) {
+        if (name == null || metrics == null) {
+            throw new IllegalArgumentException("name and metrics must not be null");
+        }
+        if (minTimeoutMillis <= 0 || maxTimeoutMillis < minTimeoutMillis || multiplier < 1) {
+            throw new IllegalArgumentException("invalid timeout parameters");
+        }
+        name_ = name;
+        metrics_ = metrics;
+        minTimeoutMillis_ = minTimeoutMillis;
+        maxTimeoutMillis_ = maxTimeoutMillis;
+        multiplier_ = multiplier;
+    }
+
+    /**
+     * Returns the timeout for the next request in milliseconds, or -1 while there are too few
+     * samples to derive one.
+     */
+    synchronized long getTimeoutMillis() {
+        if (sketch_.getCount() < MIN_SAMPLES) {
+            return -1;
+        }
+        final double timeout = sketch_.quantile(QUANTILE) * multiplier_ * (1L << Math.min(consecutiveTimeouts_, 16));
+        return (long) Math.max(minTimeoutMillis_, Math.min(maxTimeoutMillis_, timeout));
+    }
+
+    /**
+     * Lowers the timeouts of the request to the derived timeout, if there is one.
+     * @return the request
+     */
+    Transport.Request apply(final Transport.Request request) {
+        final long timeout = getTimeoutMillis();
+        if (timeout > 0) {
+            request.setTimeouts((int) Math.min(request.getConnectTimeout(), timeout), (int) Math.min(request.getReadTimeout(), timeout));
+        }
+        return request;
+    }
+
+    /**
+     * Records the time a response took, whatever its status code.
+     */
+    synchronized void onResponse(final long elapsedMillis) {
+        sketch_.add(elapsedMillis);
+        consecutiveTimeouts_ = 0;
+        publish();
+    }
+
+    /**
+     * Records a request that got no response within its timeout. The timeout is added as a
+     * sample too, since the response would have taken at least that long.
+     */
+    synchronized void onTimeout(final long timeoutMillis) {
+        sketch_.add(timeoutMillis);
+        consecutiveTimeouts_++;
+        metrics_.increment(METRIC_EXPIRED + name_);
+        publish();
+    }
+
+    /**
+     * Returns the observed 99th percentile latency, or -1 if unknown.
+     */
+    long getP99Millis() {
+        return sketch_.quantile(QUANTILE);
+    }
+
+    private void publish() {
+        metrics_.setGauge(METRIC_P99 + name_, sketch_.quantile(QUANTILE));
+        final long timeout = getTimeoutMillis();
+        if (timeout > 0) {
+            metrics_.setGauge(METRIC_TIMEOUT + name_, timeout);
+        }
+    }
+}
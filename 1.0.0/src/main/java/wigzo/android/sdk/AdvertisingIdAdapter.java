@@ -20,7 +20,7 @@ public class AdvertisingIdAdapter {
     }
 
     public static void setAdvertisingId(final Context context, final WigzoStore store, final DeviceId deviceId) {
-        new Thread(new Runnable() {
+        Wigzo.sharedInstance().getScheduler().execute(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -44,11 +44,11 @@ public class AdvertisingIdAdapter {
                     }
                 }
             }
-        }).start();
+        });
     }
 
     public static void setAdvertisingId(final Context context, final WigzoAppStore store, final DeviceId deviceId) {
-        new Thread(new Runnable() {
+        Wigzo.sharedInstance().getScheduler().execute(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -72,7 +72,7 @@ public class AdvertisingIdAdapter {
                     }
                 }
             }
-        }).start();
+        });
     }
 
     private static String getAdvertisingId(Context context) throws Throwable{
@@ -0,0 +1,126 @@
+package wigzo.android.sdk;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * ConnectivityMonitor backed by the platform's ConnectivityManager. Changes are observed
+ * through the CONNECTIVITY_ACTION broadcast, which is available on every supported API level,
+ * and only while a listener is set.
+ *
+ * Requires the ACCESS_NETWORK_STATE permission; without it the device is assumed to be
+ * online, which is how the SDK behaved before it checked connectivity.
+ *
+ * NOTE: This class is only public to facilitate unit testing, because
+ *       of this bug in dexmaker: https://code.google.com/p/dexmaker/issues/detail?id=34
+ */
+public class AndroidConnectivityMonitor implements ConnectivityMonitor {
+    private final Context context_;
+    private final ConnectivityManager connectivityManager_;
+    private Listener listener_;
+    private BroadcastReceiver receiver_;
+    private boolean connected_;
+
+    AndroidConnectivityMonitor(final Context context) {
+        if (context == null) {
+            throw new IllegalArgumentException("context must not be null");
+        }
+        final Context applicationContext = context.getApplicationContext();
+        context_ = applicationContext == null ? context : applicationContext;
+        connectivityManager_ = (ConnectivityManager) context_.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return isConnected(activeNetworkInfo());
+    }
+
+    @Override
+    public boolean isMetered() {
+        if (connectivityManager_ == null) {
+            return false;
+        }
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                return connectivityManager_.isActiveNetworkMetered();
+            }
+        } catch (SecurityException e) {
+            return false;
+        }
+        final NetworkInfo info = activeNetworkInfo();
+        // before Jelly Bean only mobile networks are known to be metered
+        return info != null && info.getType() != ConnectivityManager.TYPE_WIFI
+                && info.getType() != ConnectivityManager.TYPE_ETHERNET;
+    }
+
+    @Override
+    public synchronized void setListener(final Listener listener) {
+        listener_ = listener;
+        if (listener != null && receiver_ == null) {
+            connected_ = isConnected();
+            receiver_ = new BroadcastReceiver() {
+                @Override
+                public void onReceive(final Context context, final Intent intent) {
+                    onConnectivityAction();
+                }
+            };
+            context_.registerReceiver(receiver_, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        } else if (listener == null && receiver_ != null) {
+            context_.unregisterReceiver(receiver_);
+            receiver_ = null;
+        }
+    }
+
+    /**
+     * Returns the active network, or null if there is none or it cannot be determined.
+     */
+    NetworkInfo activeNetworkInfo() {
+        if (connectivityManager_ == null) {
+            return null;
+        }
+        try {
+            return connectivityManager_.getActiveNetworkInfo();
+        } catch (SecurityException e) {
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.w(Wigzo.TAG, "ACCESS_NETWORK_STATE permission missing, assuming the network is available");
+            }
+            return null;
+        }
+    }
+
+    private boolean isConnected(final NetworkInfo info) {
+        if (info == null) {
+            // no active network, unless we are not allowed to know
+            return connectivityManager_ == null || !hasNetworkStatePermission();
+        }
+        return info.isConnected();
+    }
+
+    private boolean hasNetworkStatePermission() {
+        return context_.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE)
+                == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private void onConnectivityAction() {
+        final Listener listener;
+        final boolean connected = isConnected();
+        synchronized (this) {
+            // the sticky broadcast delivered on registration repeats the current state
+            if (connected == connected_ || listener_ == null) {
+                connected_ = connected;
+                return;
+            }
+            connected_ = connected;
+            listener = listener_;
+        }
+        listener.onConnectivityChanged(connected);
+    }
+}
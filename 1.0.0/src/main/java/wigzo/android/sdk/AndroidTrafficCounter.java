@@ -0,0 +1,25 @@
+package wigzo.android.sdk;
+
+import android.net.TrafficStats;
+import android.os.Process;
+
+/**
+ * TrafficCounter backed by the platform's per-UID TrafficStats counters. They include the
+ * SDK's own uploads, since the SDK runs in the host app's process.
+ *
+ * NOTE: This class is only public to facilitate unit testing, because
+ *       of this bug in dexmaker: https://code.google.com/p/dexmaker/issues/detail?id=34
+ */
+public class AndroidTrafficCounter implements TrafficCounter {
+    private final int uid_ = Process.myUid();
+
+    @Override
+    public long getTotalBytes() {
+        final long received = TrafficStats.getUidRxBytes(uid_);
+        final long sent = TrafficStats.getUidTxBytes(uid_);
+        if (received == TrafficStats.UNSUPPORTED || sent == TrafficStats.UNSUPPORTED) {
+            return UNSUPPORTED;
+        }
+        return received + sent;
+    }
+}
@@ -0,0 +1,106 @@
+package wigzo.android.sdk;
+
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Drains the connection stores from a background flush job that was started in a fresh
+ * process, where Wigzo has not been initialized and there is no ConnectionQueue.
+ *
+ * The processors are run one after the other on the calling thread, with the same policies
+ * as the ConnectionQueue's, restored from the state persisted in the stores: the retry and
+ * dead-letter state, so a destination that is backing off is not hammered by jobs either;
+ * the metered byte budget; the health of the server URLs, so a server that is cooling down
+ * is skipped; and the server's configuration, so uploads the server has switched off or
+ * throttled are not sent by jobs either. Requests that have expired, with the server's
+ * times to live, are dropped before anything is sent, and the rest are sent in the order
+ * of the priority lanes.
+ */
+class BackgroundFlush {
+    static final String EXTRA_SERVER_URL = "wigzo.serverURL";
+    static final String EXTRA_SERVER_URLS = "wigzo.serverURLs";
+    static final String EXTRA_DEVICE_ID = "wigzo.deviceId";
+    static final String EXTRA_MOBILE_ENDPOINT = "wigzo.mobileEndpoint";
+    static final String EXTRA_UPLOADS_STARTED_AT = "wigzo.uploadsStartedAt";
+
+    private BackgroundFlush() {
+    }
+
+    /**
+     * Sends what is queued in both stores to a single server URL.
+     * @param mobileEndpoint URL of the mobile events endpoint, or null for the default
+     * @return true if both stores are empty afterwards
+     */
+    static boolean drain(final String serverURL, final String mobileEndpoint, final DeviceId deviceId, final Transport transport,
+                         final ConnectionStore store, final ConnectionStore appStore) {
+        return drain(Collections.singletonList(serverURL), mobileEndpoint, deviceId, transport, null, 0, store, appStore);
+    }
+
+    /**
+     * Sends what is queued in both stores.
+     * @param serverURLs URLs of the Wigzo servers, in order of preference
+     * @param mobileEndpoint URL of the mobile events endpoint, or null for the default
+     * @param connectivityMonitor tells whether the network is metered; null if unknown
+     * @param uploadsStartedAt when the app last started uploads, for the server's minimum
+     *                         upload interval, 0 if unknown
+     * @return true if both stores are empty afterwards, or if the server has switched
+     *         uploads off, which only the app can learn to have changed
+     */
+    static boolean drain(final List<String> serverURLs, final String mobileEndpoint, final DeviceId deviceId, final Transport transport,
+                         final ConnectivityMonitor connectivityMonitor, final long uploadsStartedAt,
+                         final ConnectionStore store, final ConnectionStore appStore) {
+        final Metrics metrics = new Metrics();
+        final RemoteConfigClient remoteConfig = new RemoteConfigClient(metrics);
+        remoteConfig.setStore(store);
+        final RemoteConfig config = remoteConfig.getConfig();
+        final long now = System.currentTimeMillis();
+        if (!config.isUploadsEnabled()) {
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.d(Wigzo.TAG, "Uploads switched off by the server, background flush skipped");
+            }
+            return true;
+        }
+        if (now - uploadsStartedAt < config.getMinUploadIntervalMillis()) {
+            // the job is retried with the system's backoff
+            return false;
+        }
+
+        final UploadPolicy uploadPolicy = new UploadPolicy(metrics);
+        uploadPolicy.setStore(store);
+        uploadPolicy.setConnectivityMonitor(connectivityMonitor);
+        final EndpointSelector endpointSelector = new EndpointSelector(metrics);
+        endpointSelector.setEndpoints(serverURLs);
+        endpointSelector.setStore(store);
+        final String serverURL = endpointSelector.select(now);
+        final RequestExpiry requestExpiry = new RequestExpiry(metrics).withRemoteConfig(remoteConfig);
+
+        final ConnectionProcessorWigzoApp mobileProcessor = new ConnectionProcessorWigzoApp(serverURLs.get(0), appStore, deviceId, null, transport);
+        if (mobileEndpoint != null) {
+            mobileProcessor.setEndpoint(mobileEndpoint);
+        }
+        prepare(mobileProcessor, appStore, metrics, connectivityMonitor, uploadPolicy, requestExpiry);
+        mobileProcessor.run();
+        final ConnectionProcessor connectionProcessor = new ConnectionProcessor(serverURL, store, deviceId, null, transport);
+        prepare(connectionProcessor, store, metrics, connectivityMonitor, uploadPolicy, requestExpiry);
+        connectionProcessor.setRequestListener(endpointSelector.newRunListener(serverURL));
+        connectionProcessor.run();
+        endpointSelector.save();
+        return store.isEmptyConnections() && appStore.isEmptyConnections();
+    }
+
+    /**
+     * Gives a processor the policies the ConnectionQueue gives the processors of its pipelines.
+     */
+    private static void prepare(final ConnectionProcessor processor, final ConnectionStore store, final Metrics metrics,
+                                final ConnectivityMonitor connectivityMonitor, final UploadPolicy uploadPolicy,
+                                final RequestExpiry requestExpiry) {
+        processor.setRetryBackoff(new RetryBackoff(store));
+        processor.setDeadLetterStore(new DeadLetterStore(store));
+        processor.setConnectivityMonitor(connectivityMonitor);
+        processor.setUploadPolicy(uploadPolicy);
+        processor.setRequestExpiry(requestExpiry);
+        processor.setPriorityLanes(new PriorityLanes(metrics));
+    }
+}
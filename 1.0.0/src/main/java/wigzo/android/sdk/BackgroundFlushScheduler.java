@@ -0,0 +1,23 @@
+package wigzo.android.sdk;
+
+/**
+ * Schedules a system job that drains the connection queue after the app has left the
+ * foreground, when the process may be frozen or killed before the ConnectionQueue's own
+ * executor gets to run.
+ *
+ * Implementations must be thread-safe.
+ */
+public interface BackgroundFlushScheduler {
+
+    /**
+     * Schedules a flush, replacing a flush of the same kind that has not run yet.
+     * @param expedited true to run as soon as the network is available, e.g. for crash reports;
+     *                  false to let the system batch the job with other work
+     */
+    void scheduleFlush(boolean expedited);
+
+    /**
+     * Cancels all flushes that have not run yet.
+     */
+    void cancel();
+}
@@ -0,0 +1,150 @@
+package wigzo.android.sdk;
+
+/**
+ * Sizes the batches of one destination whose sink takes several queued requests in one
+ * upload, such as a sink with {@link Sink.Encoding#BULK} encoding. For a destination that
+ * takes one request at a time, such as the Wigzo server, the batch is the events request:
+ * its size is the number of events in it, and {@link Wigzo#sendEventsIfNeeded()} queues
+ * no more events than that before sending them.
+ *
+ * The number of requests per batch follows AIMD, like a TCP congestion window: it grows by
+ * one after each full batch acknowledged within the target latency, and halves after a
+ * batch that took longer or timed out. A batch rejected as a whole drops it to one, to
+ * isolate the request the destination does not take. The bytes per batch are
+ * bounded by what the measured throughput of the destination moves within the target
+ * latency, between {@link #MIN_BATCH_BYTES} and maxBatchBytes, so a batch that suits Wi-Fi is
+ * not sent as one piece over 2G, where it would run into the read timeout and be sent again
+ * in full. A batch holds at least one request, whatever its size.
+ *
+ * The state is kept in memory only; a new process starts from the initial size, by default
+ * {@link #INITIAL_BATCH_SIZE}.
+ * It is reported as gauges named after the destination.
+ */
+class BatchSizer {
+    static final int INITIAL_BATCH_SIZE = 4;
+    static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    static final int MIN_BATCH_BYTES = 4 * 1024;
+    static final int DEFAULT_MAX_BATCH_BYTES = 256 * 1024;
+    static final long DEFAULT_TARGET_LATENCY_MILLIS = 2000;
+    static final double SMOOTHING = 0.3;
+
+    static final String METRIC_SIZE = "batch.size.";
+    static final String METRIC_MAX_BYTES = "batch.max_bytes.";
+    static final String METRIC_THROUGHPUT = "batch.throughput_bps.";
+    static final String METRIC_DECREASES = "batch.decreases.";
+
+    private final String name_;
+    private final Metrics metrics_;
+    private final int maxBatchSize_;
+    private final int maxBatchBytes_;
+    private final long targetLatencyMillis_;
+    private int batchSize_;
+    // moving average in bytes per second, negative until the first measurement
+    private double throughput_ = -1;
+
+    BatchSizer(final String name, final Metrics metrics) {
+        this(name, metrics, INITIAL_BATCH_SIZE);
+    }
+
+    BatchSizer(final String name, final Metrics metrics, final int initialBatchSize) {
+        this(name, metrics, initialBatchSize, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_BATCH_BYTES, DEFAULT_TARGET_LATENCY_MILLIS);
+    }
+
+    BatchSizer(final String name, final Metrics metrics, final int maxBatchSize, final int maxBatchBytes, final long targetLatencyMillis) {
+        this(name, metrics, INITIAL_BATCH_SIZE, maxBatchSize, maxBatchBytes, targetLatencyMillis);
+    }
+
+    BatchSizer(final String name, final Metrics metrics, final int initialBatchSize, final int maxBatchSize, final int maxBatchBytes,
+               final long targetLatencyMillis) {
+        if (name == null || metrics == null) {
+            throw new IllegalArgumentException("name and metrics must not be null");
+        }
+        if (initialBatchSize < 1 || maxBatchSize < 1 || maxBatchBytes < MIN_BATCH_BYTES || targetLatencyMillis <= 0) {
+            throw new IllegalArgumentException("invalid batch parameters");
+        }
+        name_ = name;
+        metrics_ = metrics;
+        maxBatchSize_ = maxBatchSize;
+        maxBatchBytes_ = maxBatchBytes;
+        targetLatencyMillis_ = targetLatencyMillis;
+        batchSize_ = Math.min(initialBatchSize, maxBatchSize);
+        publish();
+    }
+
+    /**
+     * Returns the maximum number of requests in the next batch.
+     */
+    synchronized int getBatchSize() { return batchSize_; }
+
+    /**
+     * Returns the maximum number of bytes of the next batch, unless it holds a single request.
+     */
+    synchronized int getMaxBatchBytes() {
+        if (throughput_ < 0) {
+            return maxBatchBytes_;
+        }
+        final double bytes = throughput_ * targetLatencyMillis_ / 1000;
+        return (int) Math.max(MIN_BATCH_BYTES, Math.min(maxBatchBytes_, bytes));
+    }
+
+    /**
+     * Returns the measured throughput in bytes per second, or a negative value if unknown.
+     */
+    synchronized double getThroughput() { return throughput_; }
+
+    /**
+     * Records an acknowledged batch.
+     * @param requests number of requests in the batch
+     * @param bytes size of the batch on the wire
+     * @param elapsedMillis time from sending the batch to its acknowledgement
+     */
+    synchronized void onAcknowledged(final int requests, final int bytes, final long elapsedMillis) {
+        final double sample = bytes * 1000.0 / Math.max(1, elapsedMillis);
+        throughput_ = throughput_ < 0 ? sample : SMOOTHING * sample + (1 - SMOOTHING) * throughput_;
+        if (elapsedMillis > targetLatencyMillis_) {
+            decrease();
+        } else if (requests >= batchSize_ && batchSize_ < maxBatchSize_) {
+            // only a full batch shows that a bigger one would have been fine
+            batchSize_++;
+        }
+        publish();
+    }
+
+    /**
+     * Records a batch that timed out. The throughput measured so far was not achieved either.
+     */
+    synchronized void onTimeout() {
+        if (throughput_ > 0) {
+            throughput_ /= 2;
+        }
+        decrease();
+        publish();
+    }
+
+    /**
+     * Records a batch the destination rejected as a whole. Single requests are sent until the
+     * size has grown again, so the one that cannot be delivered is isolated.
+     */
+    synchronized void onRejected() {
+        if (batchSize_ > 1) {
+            batchSize_ = 1;
+            metrics_.increment(METRIC_DECREASES + name_);
+        }
+        publish();
+    }
+
+    private void decrease() {
+        if (batchSize_ > 1) {
+            batchSize_ = Math.max(1, batchSize_ / 2);
+            metrics_.increment(METRIC_DECREASES + name_);
+        }
+    }
+
+    private void publish() {
+        metrics_.setGauge(METRIC_SIZE + name_, batchSize_);
+        metrics_.setGauge(METRIC_MAX_BYTES + name_, getMaxBatchBytes());
+        if (throughput_ >= 0) {
+            metrics_.setGauge(METRIC_THROUGHPUT + name_, throughput_);
+        }
+    }
+}
@@ -3,14 +3,20 @@ package wigzo.android.sdk;
 import android.util.Base64;
 
 import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
 import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
@@ -21,25 +27,75 @@ import javax.net.ssl.X509TrustManager;
 // Many thanks to Nikolay Elenkov for feedback.
 // Shamelessly based upon Moxie's example code (AOSP/Google did not offer code)
 // http://www.thoughtcrime.org/blog/authenticity-is-broken-in-ssl-but-your-app-ha/
+//
+// The platform trust managers are built once per process, since building them loads the
+// whole system CA store. The pinned keys are kept as SHA-256 hashes of their
+// SubjectPublicKeyInfo, so a handshake costs one hash and a set lookup. Chains that passed
+// both checks are remembered by the SHA-256 fingerprint of their leaf certificate for
+// CACHE_TTL_MILLIS, so a handshake with a server that was verified moments ago, which is
+// what each new connection to the same server is, skips the validation.
 public final class CertificateTrustManager implements X509TrustManager {
-
-    // DER encoded public key
-    private final List<byte[]> keys;
+    static final long CACHE_TTL_MILLIS = 10 * 60 * 1000;
+    static final int MAX_CACHED_CHAINS = 16;
+
+    private static volatile X509TrustManager[] systemTrustManagers;
+    // looking the algorithm up costs more than hashing a certificate
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // every Java and Android platform is required to support SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    // SHA-256 of the DER encoded public keys
+    private final Set<ByteBuffer> pins;
+    private final X509TrustManager[] platformTrustManagers;
+    private final long cacheTtlMillis;
+    // leaf certificate fingerprint -> time until which the chain is trusted, least recently used first
+    private final Map<ByteBuffer, Long> verifiedChains = new LinkedHashMap<ByteBuffer, Long>(MAX_CACHED_CHAINS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<ByteBuffer, Long> eldest) {
+            return size() > MAX_CACHED_CHAINS;
+        }
+    };
+    private int cacheHits;
 
     public CertificateTrustManager(List<String> certificates) throws CertificateException {
+        this(certificates, null, CACHE_TTL_MILLIS);
+    }
+
+    /**
+     * @param platformTrustManagers trust managers doing the customary checks, the system's if null
+     * @param cacheTtlMillis how long a verified chain is trusted without checking it again, 0 to always check
+     */
+    CertificateTrustManager(List<String> certificates, X509TrustManager[] platformTrustManagers, long cacheTtlMillis) throws CertificateException {
         if (certificates == null || certificates.size() == 0) {
             throw new IllegalArgumentException("You must specify non-empty keys list");
         }
+        if (cacheTtlMillis < 0) {
+            throw new IllegalArgumentException("cacheTtlMillis must not be negative");
+        }
 
-        this.keys = new ArrayList<>();
+        this.pins = new HashSet<>();
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
         for (String key : certificates) {
-            CertificateFactory cf = CertificateFactory.getInstance("X.509");
             Certificate cert = cf.generateCertificate(new ByteArrayInputStream(Base64.decode(key, Base64.DEFAULT)));
-            this.keys.add(cert.getPublicKey().getEncoded());
+            this.pins.add(sha256(cert.getPublicKey().getEncoded()));
         }
+        this.platformTrustManagers = platformTrustManagers;
+        this.cacheTtlMillis = cacheTtlMillis;
     }
 
     public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        checkServerTrusted(chain, authType, System.currentTimeMillis());
+    }
+
+    void checkServerTrusted(X509Certificate[] chain, String authType, long now) throws CertificateException {
         if (chain == null) {
             throw new IllegalArgumentException("PublicKeyManager: X509Certificate array is null");
         }
@@ -52,29 +108,35 @@ public final class CertificateTrustManager implements X509TrustManager {
             throw new CertificateException("PublicKeyManager: AuthType is not RSA");
         }
 
+        final ByteBuffer fingerprint = sha256(chain[0].getEncoded());
+        synchronized (verifiedChains) {
+            final Long trustedUntil = verifiedChains.get(fingerprint);
+            if (trustedUntil != null && now < trustedUntil) {
+                cacheHits++;
+                return;
+            }
+        }
+
         // Perform customary SSL/TLS checks
-        TrustManagerFactory tmf;
         try {
-            tmf = TrustManagerFactory.getInstance("X509");
-            tmf.init((KeyStore) null);
-
-            for (TrustManager trustManager : tmf.getTrustManagers()) {
-                ((X509TrustManager) trustManager).checkServerTrusted(chain, authType);
+            for (X509TrustManager trustManager : platformTrustManagers()) {
+                trustManager.checkServerTrusted(chain, authType);
             }
-
         } catch (Exception e) {
             throw new CertificateException(e);
         }
 
-        byte server[] = chain[0].getPublicKey().getEncoded();
+        if (!pins.contains(sha256(chain[0].getPublicKey().getEncoded()))) {
+            throw new CertificateException("Public keys didn't pass checks");
+        }
 
-        for (byte[] key : keys) {
-            if (Arrays.equals(key, server)) {
-                return;
+        if (cacheTtlMillis > 0) {
+            // never trusted beyond the leaf's expiry
+            final long trustedUntil = Math.min(now + cacheTtlMillis, chain[0].getNotAfter().getTime());
+            synchronized (verifiedChains) {
+                verifiedChains.put(fingerprint, trustedUntil);
             }
         }
-
-        throw new CertificateException("Public keys didn't pass checks");
     }
 
     public void checkClientTrusted(X509Certificate[] xcs, String string) {
@@ -87,4 +149,48 @@ public final class CertificateTrustManager implements X509TrustManager {
         // UnsupportedOperationException("getAcceptedIssuers: Not supported yet.");
         return null;
     }
+
+    private X509TrustManager[] platformTrustManagers() throws Exception {
+        return platformTrustManagers != null ? platformTrustManagers : systemTrustManagers();
+    }
+
+    /**
+     * Returns the trust managers of the system CA store, built on first use.
+     */
+    static X509TrustManager[] systemTrustManagers() throws Exception {
+        X509TrustManager[] trustManagers = systemTrustManagers;
+        if (trustManagers == null) {
+            synchronized (CertificateTrustManager.class) {
+                trustManagers = systemTrustManagers;
+                if (trustManagers == null) {
+                    final TrustManagerFactory tmf = TrustManagerFactory.getInstance("X509");
+                    tmf.init((KeyStore) null);
+                    final List<X509TrustManager> x509TrustManagers = new ArrayList<>();
+                    for (TrustManager trustManager : tmf.getTrustManagers()) {
+                        x509TrustManagers.add((X509TrustManager) trustManager);
+                    }
+                    trustManagers = x509TrustManagers.toArray(new X509TrustManager[x509TrustManagers.size()]);
+                    systemTrustManagers = trustManagers;
+                }
+            }
+        }
+        return trustManagers;
+    }
+
+    static ByteBuffer sha256(byte[] data) {
+        return ByteBuffer.wrap(SHA256.get().digest(data));
+    }
+
+    // for unit testing
+    int getCacheHits() {
+        synchronized (verifiedChains) {
+            return cacheHits;
+        }
+    }
+
+    int getCachedChains() {
+        synchronized (verifiedChains) {
+            return verifiedChains.size();
+        }
+    }
 }
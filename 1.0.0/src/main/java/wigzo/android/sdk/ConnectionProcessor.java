@@ -4,22 +4,27 @@ package wigzo.android.sdk;
 import android.os.Build;
 import android.util.Log;
 
-import org.json.JSONObject;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.HttpURLConnection;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 
 /**
@@ -32,18 +37,48 @@ import javax.net.ssl.SSLContext;
 public class ConnectionProcessor implements Runnable {
     private static final int CONNECT_TIMEOUT_IN_MILLISECONDS = 30000;
     private static final int READ_TIMEOUT_IN_MILLISECONDS = 30000;
+    private static final String[] ORDERED_KEYS = {"&begin_session=", "&session_duration=", "&end_session=", "&token_session="};
 
-    private  WigzoStore store_= null;
+    private final ConnectionStore store_;
 
     private final DeviceId deviceId_;
     private final String serverURL_;
     private final SSLContext sslContext_;
+    private final Transport transport_;
+    private RequestCompressor requestCompressor_;
+    private int maxRequestsInFlight_ = 1;
+    private RetryBackoff retryBackoff_;
+    private DeadLetterStore deadLetters_;
+    private ConnectivityMonitor connectivityMonitor_;
+    private UploadPolicy uploadPolicy_;
+    private RequestListener requestListener_;
+    private BatchSizer batchSizer_;
+    private AdaptiveTimeouts timeouts_;
+    private RequestExpiry requestExpiry_;
+    private PriorityLanes lanes_ = new PriorityLanes(new Metrics());
+    // batchSizer_ while the destination takes one entry per request, sized by events instead
+    private BatchSizer eventBatchSizer_;
 
-    ConnectionProcessor(final String serverURL, final WigzoStore store, final DeviceId deviceId, final SSLContext sslContext) {
+    // outcome of the current run, reported to retryBackoff_ when it ends
+    private final Set<String> deferred_ = new HashSet<>();
+    private boolean delivered_;
+    private boolean failed_;
+    private boolean throttled_;
+    private long retryAfterMillis_;
+
+    ConnectionProcessor(final String serverURL, final ConnectionStore store, final DeviceId deviceId, final SSLContext sslContext) {
+        this(serverURL, store, deviceId, sslContext, sharedTransport(sslContext));
+    }
+
+    ConnectionProcessor(final String serverURL, final ConnectionStore store, final DeviceId deviceId, final SSLContext sslContext, final Transport transport) {
+        if (transport == null) {
+            throw new IllegalArgumentException("transport must not be null");
+        }
         serverURL_ = serverURL;
         store_ = store;
         deviceId_ = deviceId;
         sslContext_ = sslContext;
+        transport_ = transport;
 
         // HTTP connection reuse which was buggy pre-froyo
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
@@ -51,178 +86,909 @@ public class ConnectionProcessor implements Runnable {
         }
     }
 
-    URLConnection urlConnectionForEventData(final String eventData) throws IOException {
+    /**
+     * Returns the transport of the SDK's ConnectionQueue, which uses the shared TLS session
+     * cache; or, for a different SSL context, a transport that shares the queue's threads and
+     * metrics but has its own socket factory.
+     */
+    static HttpURLConnectionTransport sharedTransport(final SSLContext sslContext) {
+        final ConnectionQueue connectionQueue = Wigzo.sharedInstance().getConnectionQueue();
+        final HttpURLConnectionTransport shared = connectionQueue.getHttpTransport();
+        if (sslContext == null) {
+            if (shared.getSSLSocketFactory() == null) {
+                // the queue has no server yet, e.g. in a background flush job
+                shared.setSSLSocketFactory(TlsSessionCache.shared(Wigzo.publicKeyPinCertificates).getSocketFactory());
+            }
+            return shared;
+        }
+        final HttpURLConnectionTransport transport = new HttpURLConnectionTransport(connectionQueue.getScheduler());
+        transport.setSSLSocketFactory(TlsSessionCache.withSessionTickets(sslContext.getSocketFactory()));
+        return transport;
+    }
+
+    /**
+     * Sets the compressor shared by the ConnectionQueue; requests are sent uncompressed if null.
+     */
+    void setRequestCompressor(final RequestCompressor requestCompressor) {
+        requestCompressor_ = requestCompressor;
+    }
+
+    /**
+     * Sets how many requests may wait for their responses at the same time. With 1, each
+     * request is sent only after the previous one has been acknowledged.
+     */
+    void setMaxRequestsInFlight(final int maxRequestsInFlight) {
+        if (maxRequestsInFlight < 1) {
+            throw new IllegalArgumentException("maxRequestsInFlight must be at least 1");
+        }
+        maxRequestsInFlight_ = maxRequestsInFlight;
+    }
+
+    int getMaxRequestsInFlight() { return maxRequestsInFlight_; }
+
+    /**
+     * Sets the retry state of this processor's destination; failures are retried on every tick if null.
+     */
+    void setRetryBackoff(final RetryBackoff retryBackoff) {
+        retryBackoff_ = retryBackoff;
+    }
+
+    /**
+     * Sets where permanently rejected requests are moved to; if null they stay at the head
+     * of the queue and are retried like transient failures.
+     */
+    void setDeadLetterStore(final DeadLetterStore deadLetters) {
+        deadLetters_ = deadLetters;
+    }
+
+    /**
+     * Sets the monitor used to tell a lost network from a failing server; may be null.
+     */
+    void setConnectivityMonitor(final ConnectivityMonitor connectivityMonitor) {
+        connectivityMonitor_ = connectivityMonitor;
+    }
+
+    /**
+     * Sets the policy that defers bulk requests on metered networks; everything is sent if null.
+     */
+    void setUploadPolicy(final UploadPolicy uploadPolicy) {
+        uploadPolicy_ = uploadPolicy;
+    }
+
+    /**
+     * Sets the batch size state of the destination; requests are sent one by one if null,
+     * or if the destination does not take batches, in which case the number of events per
+     * events request is fed into it.
+     */
+    void setBatchSizer(final BatchSizer batchSizer) {
+        batchSizer_ = batchSizer;
+    }
+
+    /**
+     * Sets the latency state of the destination that requests take their timeouts from; the
+     * timeouts the requests are built with apply if null.
+     */
+    void setAdaptiveTimeouts(final AdaptiveTimeouts timeouts) {
+        timeouts_ = timeouts;
+    }
+
+    /**
+     * Sets the expiry that drops stale entries from the store before each run; entries are
+     * kept until they are sent if null.
+     */
+    void setRequestExpiry(final RequestExpiry requestExpiry) {
+        requestExpiry_ = requestExpiry;
+    }
+
+    /**
+     * Sets the lanes that decide which stored entry is sent next, shared with the other
+     * processors of the destination; by default the processor has lanes of its own.
+     */
+    void setPriorityLanes(final PriorityLanes lanes) {
+        if (lanes == null) {
+            throw new IllegalArgumentException("lanes must not be null");
+        }
+        lanes_ = lanes;
+    }
+
+    /**
+     * Returns the encoder of batches for this destination, or null if it takes one stored
+     * entry per request.
+     */
+    BatchEncoder batchEncoder() {
+        return null;
+    }
+
+    /**
+     * Builds the requests of a destination that takes several stored entries in one request.
+     */
+    interface BatchEncoder {
+        /**
+         * Returns true if the specified event data may be sent in a batch with others.
+         */
+        boolean isBatchable(String eventData);
+
+        /**
+         * Builds the request that submits the specified event data, all of which
+         * {@link #isBatchable} accepts, in one batch.
+         */
+        Transport.Request requestFor(List<String> eventData) throws IOException;
+    }
+
+    /**
+     * Notified of the outcome of each request that was sent. Called on the processor's thread.
+     */
+    interface RequestListener {
+        /**
+         * @param request the acknowledged request
+         * @param elapsedMillis time from sending the request to receiving its response
+         */
+        void onAcknowledged(Transport.Request request, long elapsedMillis);
+
+        /**
+         * @param request the request that was not delivered
+         * @param reason why, as returned by {@link #failureReason}, or {@link #REASON_IO}
+         *               if no response was received
+         */
+        void onFailed(Transport.Request request, String reason);
+    }
+
+    /**
+     * Sets the listener notified of delivered and failed requests; may be null.
+     */
+    void setRequestListener(final RequestListener requestListener) {
+        requestListener_ = requestListener;
+    }
+
+    /**
+     * Returns true if the specified request will be sent as a compressed body.
+     * Picture uploads are already multipart bodies and are never compressed.
+     */
+    boolean isCompressed(final String eventData) {
+        return requestCompressor_ != null && requestCompressor_.isActive() && !eventData.contains("&" + UserData.PICTURE_PATH_KEY + "=");
+    }
+
+    /**
+     * Builds the request that submits the specified event data.
+     * @return the request, or null if this destination does not accept the event data,
+     *         in which case it is removed from the store without being sent
+     */
+    Transport.Request requestForEventData(final String eventData) throws IOException {
         String urlStr = serverURL_ + "/i?";
         Log.d("server url: ", urlStr);
-        if(!eventData.contains("&crash="))
+        final boolean compress = isCompressed(eventData);
+        if (compress) {
+            urlStr = serverURL_ + "/i";
+        } else if(!eventData.contains("&crash="))
             urlStr += eventData;
-        final URL url = new URL(urlStr);
-        final HttpURLConnection conn;
-        if (Wigzo.publicKeyPinCertificates == null) {
-            conn = (HttpURLConnection)url.openConnection();
-        } else {
-            HttpsURLConnection c = (HttpsURLConnection)url.openConnection();
-            c.setSSLSocketFactory(sslContext_.getSocketFactory());
-            conn = c;
-        }
-        conn.setConnectTimeout(CONNECT_TIMEOUT_IN_MILLISECONDS);
-        conn.setReadTimeout(READ_TIMEOUT_IN_MILLISECONDS);
-        conn.setUseCaches(false);
-        conn.setDoInput(true);
-        String picturePath = UserData.getPicturePathFromQuery(url);
+        String picturePath = compress ? "" : UserData.getPicturePathFromQuery(new URL(urlStr));
         if (Wigzo.sharedInstance().isLoggingEnabled()) {
             Log.d(Wigzo.TAG, "Got picturePath: " + picturePath);
         }
+        final boolean hasBody = compress || !picturePath.equals("") || eventData.contains("&crash=");
+        final Transport.Request request = new Transport.Request(hasBody ? "POST" : "GET", urlStr)
+                .setTimeouts(CONNECT_TIMEOUT_IN_MILLISECONDS, READ_TIMEOUT_IN_MILLISECONDS);
         if(!picturePath.equals("")){
         	//Uploading files:
         	//http://stackoverflow.com/questions/2793150/how-to-use-java-net-urlconnection-to-fire-and-handle-http-requests
         	
-        	File binaryFile = new File(picturePath);
-        	conn.setDoOutput(true);
         	// Just generate some unique random value.
         	String boundary = Long.toHexString(System.currentTimeMillis());
-        	// Line separator required by multipart/form-data.
-        	String CRLF = "\r\n";
-        	String charset = "UTF-8";
-        	conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
-        	OutputStream output = conn.getOutputStream();
-        	PrintWriter writer = new PrintWriter(new OutputStreamWriter(output, charset), true);
-        	// Send binary file.
-            writer.append("--" + boundary).append(CRLF);
-            writer.append("Content-Disposition: form-data; name=\"binaryFile\"; filename=\"" + binaryFile.getName() + "\"").append(CRLF);
-            writer.append("Content-Type: " + URLConnection.guessContentTypeFromName(binaryFile.getName())).append(CRLF);
-            writer.append("Content-Transfer-Encoding: binary").append(CRLF);
-            writer.append(CRLF).flush();
-            FileInputStream fileInputStream = new FileInputStream(binaryFile);
+        	request.setHeader("Content-Type", "multipart/form-data; boundary=" + boundary);
+        	request.setBody(multipartBody(new File(picturePath), boundary));
+        }
+        else if(compress){
+            final byte[] body = requestCompressor_.compress(eventData);
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.d(Wigzo.TAG, "Compressed request from " + eventData.length() + " to " + body.length + " bytes");
+            }
+            request.setHeader("Content-Type", "application/x-www-form-urlencoded");
+            request.setHeader("Content-Encoding", DeflateDictionary.CONTENT_ENCODING);
+            request.setHeader(DeflateDictionary.HEADER, String.valueOf(DeflateDictionary.VERSION));
+            request.setBody(body);
+        }
+        else if(eventData.contains("&crash=")){
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.d(Wigzo.TAG, "Using post because of crash");
+            }
+            request.setBody(eventData.getBytes("UTF-8"));
+        }
+        return request;
+    }
+
+    /**
+     * Builds a multipart/form-data body holding the specified file.
+     */
+    static byte[] multipartBody(final File binaryFile, final String boundary) throws IOException {
+        // Line separator required by multipart/form-data.
+        final String CRLF = "\r\n";
+        final String charset = "UTF-8";
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        // Send binary file.
+        output.write(("--" + boundary + CRLF
+                + "Content-Disposition: form-data; name=\"binaryFile\"; filename=\"" + binaryFile.getName() + "\"" + CRLF
+                + "Content-Type: " + URLConnection.guessContentTypeFromName(binaryFile.getName()) + CRLF
+                + "Content-Transfer-Encoding: binary" + CRLF
+                + CRLF).getBytes(charset));
+        final InputStream fileInputStream = new FileInputStream(binaryFile);
+        try {
             byte[] buffer = new byte[1024];
             int len;
-            try {
-                while ((len = fileInputStream.read(buffer)) != -1) {
-                    output.write(buffer, 0, len);
-                }
-            }catch(IOException ex){
-                ex.printStackTrace();
+            while ((len = fileInputStream.read(buffer)) != -1) {
+                output.write(buffer, 0, len);
             }
-            output.flush(); // Important before continuing with writer!
-            writer.append(CRLF).flush(); // CRLF is important! It indicates end of boundary.
+        } finally {
             fileInputStream.close();
+        }
+        // CRLF is important! It indicates end of boundary.
+        output.write(CRLF.getBytes(charset));
+        // End of multipart/form-data.
+        output.write(("--" + boundary + "--" + CRLF).getBytes(charset));
+        return output.toByteArray();
+    }
+
+    static final String REASON_REJECTED = "rejected";
+    static final String REASON_NOT_JSON = "not_json";
+    static final String REASON_MALFORMED = "malformed";
+    static final String REASON_IO = "io";
+
+    /**
+     * Checks that the response has a 2xx status code and that its JSON body
+     * contains {"result":"Success"}.
+     * @return null on success, otherwise why the request failed: "http_" followed by the
+     *         status code, {@link #REASON_NOT_JSON} or {@link #REASON_REJECTED}
+     */
+    String failureReason(final Transport.Response response, final String eventData) throws UnsupportedEncodingException {
+        // response code has to be 2xx to be considered a success
+        if (!response.isSuccessful()) {
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.w(Wigzo.TAG, "HTTP error response code was " + response.getCode() + " from submitting event data: " + eventData);
+            }
+            return "http_" + response.getCode();
+        }
 
-            // End of multipart/form-data.
-            writer.append("--" + boundary + "--").append(CRLF).flush();
+        // HTTP response code was good, check response JSON contains {"result":"Success"}
+        final byte[] body = response.getBody();
+        final ResponseParser.Result result = body == null ? ResponseParser.Result.NOT_JSON : ResponseParser.checkResult(body);
+        if (result == ResponseParser.Result.NOT_JSON) {
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.w(Wigzo.TAG, "Response from Wigzo server was not JSON: " + (body == null ? "" : new String(body, "UTF-8")));
+            }
+            return REASON_NOT_JSON;
         }
-        else if(eventData.contains("&crash=")){
+        if (result == ResponseParser.Result.REJECTED) {
             if (Wigzo.sharedInstance().isLoggingEnabled()) {
-                Log.d(Wigzo.TAG, "Using post because of crash");
+                Log.w(Wigzo.TAG, "Response from Wigzo server did not report success, it was: " + new String(body, "UTF-8"));
+            }
+            return REASON_REJECTED;
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if sending the same request again cannot succeed: the server answered
+     * with a 4xx status other than 408 (Request Timeout) or 429 (Too Many Requests), reported
+     * a result other than success, or the request could not be built. Network errors, 5xx
+     * statuses and responses that are not JSON (such as captive portal pages) are transient.
+     */
+    static boolean isPermanentFailure(final String reason) {
+        if (REASON_REJECTED.equals(reason) || REASON_MALFORMED.equals(reason)) {
+            return true;
+        }
+        if (reason != null && reason.startsWith("http_")) {
+            try {
+                final int code = Integer.parseInt(reason.substring("http_".length()));
+                return code >= 400 && code < 500 && code != 408 && code != 429;
+            } catch (NumberFormatException ignored) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * What became of a stored entry once the server's response to it arrived.
+     */
+    private enum Ack {
+        /** delivered and removed from the store */
+        REMOVED,
+        /** to be sent again, uncompressed */
+        RESEND,
+        /** rejected permanently and moved to the dead-letter store */
+        DEAD_LETTERED,
+        /** not delivered, the entry stays in the store for the next tick */
+        FAILED
+    }
+
+    /**
+     * A request that was sent by the pipelined loop and is waiting for its response.
+     */
+    private static class InFlight {
+        final String storedEvent;
+        final String eventData;
+        final boolean compressed;
+        final boolean ordered;
+        final Transport.Request request;
+        final long sentAtNanos;
+        final Future<Transport.Response> response;
+
+        InFlight(final String storedEvent, final String eventData, final boolean compressed, final boolean ordered,
+                 final Transport.Request request, final long sentAtNanos, final Future<Transport.Response> response) {
+            this.storedEvent = storedEvent;
+            this.eventData = eventData;
+            this.compressed = compressed;
+            this.ordered = ordered;
+            this.request = request;
+            this.sentAtNanos = sentAtNanos;
+            this.response = response;
+        }
+    }
+
+    /**
+     * Returns true if the stored entry changes the session state on the server. Such entries
+     * are never sent while another request is in flight, and nothing else is sent until they
+     * have been acknowledged, so begin_session, events and end_session stay in order.
+     */
+    static boolean isOrdered(final String storedEvent) {
+        for (String key : ORDERED_KEYS) {
+            if (storedEvent.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the event data sent for a stored entry, with the device ID and, if the entry
+     * has a sequence number, its idempotency key; or null if there is no device ID yet.
+     */
+    private String eventDataFor(final String storedEvent) {
+        if (deviceId_.getId() == null) {
+            // When device ID is supplied by OpenUDID or by Google Advertising ID.
+            // In some cases it might take time for them to initialize. So, just wait for it.
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.i(Wigzo.TAG, "No Device ID available yet, skipping request " + storedEvent);
+            }
+            return null;
+        }
+        final String deviceId = deviceId_.getId();
+        final String key = IdempotencyKeys.keyOf(storedEvent, deviceId);
+        return storedEvent + "&device_id=" + deviceId + (key == null ? "" : "&" + IdempotencyKeys.PARAMETER + "=" + key);
+    }
+
+    /**
+     * Builds the request for a stored entry, removing the entry from the store if this
+     * destination does not accept it or if it cannot be built.
+     * @return the request, or null if the entry was dropped or dead-lettered
+     */
+    private Transport.Request requestOrDrop(final String storedEvent, final String eventData) throws IOException {
+        final Transport.Request request;
+        try {
+            request = requestForEventData(eventData);
+        } catch (IOException e) {
+            // for example a picture that no longer exists
+            if (deadLetter(storedEvent, REASON_MALFORMED)) {
+                return null;
             }
-            conn.setDoOutput(true);
-            conn.setRequestMethod("POST");
-            OutputStream os = conn.getOutputStream();
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
-            writer.write(eventData);
-            writer.flush();
-            writer.close();
-            os.close();
+            throw e;
+        }
+        if (request == null) {
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.d(Wigzo.TAG, "Event data not accepted by " + getClass().getSimpleName() + ", dropping: " + eventData);
+            }
+            store_.removeConnection(storedEvent);
+            return null;
+        }
+        return withTimeouts(request);
+    }
+
+    private Transport.Request withTimeouts(final Transport.Request request) {
+        return timeouts_ == null ? request : timeouts_.apply(request);
+    }
+
+    /**
+     * Records how long the response to a request took.
+     */
+    private void onResponse(final long sentAtNanos) {
+        if (timeouts_ != null) {
+            timeouts_.onResponse(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAtNanos));
+        }
+    }
+
+    /**
+     * Records a request that failed; if it timed out, the next ones get more time.
+     */
+    private void onException(final Transport.Request request, final Exception e) {
+        if (e instanceof SocketTimeoutException && request != null && timeouts_ != null) {
+            timeouts_.onTimeout(request.getReadTimeout());
+        }
+        if (e instanceof SocketTimeoutException && eventBatchSizer_ != null) {
+            eventBatchSizer_.onTimeout();
+        }
+    }
+
+    /**
+     * Returns how long a request may take in total before it is cancelled: its connect
+     * timeout plus its read timeout.
+     */
+    static long deadlineMillis(final Transport.Request request) {
+        return (long) request.getConnectTimeout() + request.getReadTimeout();
+    }
+
+    /**
+     * Waits for the response of a request in flight until its deadline, and cancels the
+     * request once the deadline has passed.
+     */
+    private Transport.Response await(final InFlight inFlight) throws Exception {
+        final long deadlineNanos = inFlight.sentAtNanos + TimeUnit.MILLISECONDS.toNanos(deadlineMillis(inFlight.request));
+        final Transport.Response response;
+        try {
+            response = inFlight.response.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            inFlight.response.cancel(true);
+            throw new SocketTimeoutException("Deadline exceeded");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+        onResponse(inFlight.sentAtNanos);
+        return response;
+    }
+
+    /**
+     * Applies the server's response to a stored entry.
+     */
+    private Ack acknowledge(final String storedEvent, final String eventData, final boolean compressed,
+                            final Transport.Request request, final long sentAtNanos, final Transport.Response response) throws Exception {
+        if (compressed && requestCompressor_.onResponse(response.getCode())) {
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.w(Wigzo.TAG, "Server does not accept compressed requests, sending uncompressed from now on");
+            }
+            return Ack.RESEND;
+        }
+
+        final String reason = failureReason(response, eventData);
+        if (reason == null) {
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.d(Wigzo.TAG, "ok ->" + eventData);
+            }
+
+            // successfully submitted event data to Count.wigzo.ly server, so remove
+            // this one from the stored events collection
+            store_.removeConnection(storedEvent);
+            delivered_ = true;
+            final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAtNanos);
+            final long events = eventBatchSizer_ == null ? 0 : RequestExpiry.eventCount(eventData);
+            if (events > 0) {
+                eventBatchSizer_.onAcknowledged((int) Math.min(events, Integer.MAX_VALUE), sizeOf(request), elapsedMillis);
+            }
+            if (requestListener_ != null) {
+                requestListener_.onAcknowledged(request, elapsedMillis);
+            }
+            return Ack.REMOVED;
+        }
+        // warning was logged by failureReason
+        if (requestListener_ != null) {
+            requestListener_.onFailed(request, reason);
+        }
+        if (isPermanentFailure(reason) && deadLetter(storedEvent, reason)) {
+            return Ack.DEAD_LETTERED;
         }
-        else{
-        	conn.setDoOutput(false);
+        onFailed(response);
+        return Ack.FAILED;
+    }
+
+    /**
+     * Moves a stored entry that can never be delivered to the dead-letter store.
+     * @return false if there is no dead-letter store and the entry was left in the queue
+     */
+    private boolean deadLetter(final String storedEvent, final String reason) {
+        if (deadLetters_ == null) {
+            return false;
+        }
+        if (Wigzo.sharedInstance().isLoggingEnabled()) {
+            Log.w(Wigzo.TAG, "Moving request to dead-letter store (" + reason + "): " + storedEvent);
+        }
+        deadLetters_.add(storedEvent, reason);
+        store_.removeConnection(storedEvent);
+        return true;
+    }
+
+    /**
+     * Records a request of the current run that received no response.
+     */
+    private void onNoResponse(final Transport.Request request) {
+        if (request != null && requestListener_ != null) {
+            requestListener_.onFailed(request, REASON_IO);
+        }
+        onFailed(null);
+    }
+
+    /**
+     * Records a failed request of the current run.
+     * @param response the server's response, or null if none was received
+     */
+    private void onFailed(final Transport.Response response) {
+        failed_ = true;
+        if (response != null) {
+            throttled_ |= RetryBackoff.isThrottled(response.getCode());
+            retryAfterMillis_ = Math.max(retryAfterMillis_, RetryBackoff.retryAfterMillis(response, System.currentTimeMillis()));
         }
-        return conn;
     }
 
+    /**
+     * Returns true if the upload policy holds the request back until a better network is
+     * available; the entry is then skipped for the rest of the run.
+     */
+    private boolean isDeferred(final String storedEvent, final Transport.Request request) {
+        if (uploadPolicy_ == null
+                || uploadPolicy_.allows(UploadPolicy.priorityOf(storedEvent), sizeOf(request), System.currentTimeMillis())) {
+            return false;
+        }
+        if (Wigzo.sharedInstance().isLoggingEnabled()) {
+            Log.d(Wigzo.TAG, "Deferring bulk request until an unmetered network is available: " + request);
+        }
+        deferred_.add(storedEvent);
+        return true;
+    }
+
+    /**
+     * Returns true if the upload policy holds a batch back; its entries are then skipped for
+     * the rest of the run.
+     */
+    private boolean isDeferred(final List<String> batch, final Transport.Request request) {
+        final int bytes = sizeOf(request);
+        if (uploadPolicy_ == null || uploadPolicy_.allows(UploadPolicy.priorityOf(batch, bytes), bytes, System.currentTimeMillis())) {
+            return false;
+        }
+        if (Wigzo.sharedInstance().isLoggingEnabled()) {
+            Log.d(Wigzo.TAG, "Deferring batch until an unmetered network is available: " + request);
+        }
+        deferred_.addAll(batch);
+        return true;
+    }
+
+    private void onSending(final Transport.Request request, final List<String> storedEvents) {
+        if (uploadPolicy_ != null) {
+            uploadPolicy_.onSent(sizeOf(request), System.currentTimeMillis());
+        }
+        for (String storedEvent : storedEvents) {
+            lanes_.onSent(storedEvent);
+        }
+    }
+
+    private List<String> inSendingOrder(final String[] storedEvents) {
+        return lanes_.inSendingOrder(storedEvents);
+    }
+
+    /**
+     * Returns the approximate number of bytes a request puts on the wire.
+     */
+    static int sizeOf(final Transport.Request request) {
+        return request.getUrl().length() + request.getBodyLength();
+    }
 
     @Override
     public void run() {
+        if (requestExpiry_ != null) {
+            // stale data is not worth a request, nor the wait behind it
+            requestExpiry_.expire(store_, System.currentTimeMillis());
+        }
+        if (retryBackoff_ != null && !retryBackoff_.canAttempt(System.currentTimeMillis())) {
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.i(Wigzo.TAG, "Backing off after " + retryBackoff_.getFailures() + " failures, next attempt at " + retryBackoff_.getNextAttemptAt());
+            }
+            return;
+        }
+        deferred_.clear();
+        delivered_ = false;
+        failed_ = false;
+        throttled_ = false;
+        retryAfterMillis_ = 0;
+
+        // after the circuit breaker's cooling period a single request probes the server
+        final BatchEncoder batchEncoder = batchSizer_ == null ? null : batchEncoder();
+        eventBatchSizer_ = batchEncoder == null ? batchSizer_ : null;
+        if (batchEncoder != null) {
+            runBatched(batchEncoder);
+        } else if (maxRequestsInFlight_ > 1 && (retryBackoff_ == null || !retryBackoff_.isCircuitOpen())) {
+            runPipelined();
+        } else {
+            runStopAndWait();
+        }
+
+        if (failed_ && connectivityMonitor_ != null && !connectivityMonitor_.isConnected()) {
+            // the network went away during the run, the server is not to blame; the queue
+            // stays parked until connectivity returns
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.i(Wigzo.TAG, "Network lost while sending, uploads parked");
+            }
+        } else if (retryBackoff_ != null) {
+            if (failed_) {
+                final long nextAttemptAt = retryBackoff_.onFailure(System.currentTimeMillis(), retryAfterMillis_, throttled_);
+                if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Wigzo.TAG, "Upload failed " + retryBackoff_.getFailures() + " times in a row, next attempt at " + nextAttemptAt
+                            + (retryBackoff_.isCircuitOpen() ? ", circuit open" : ""));
+                }
+            } else if (delivered_) {
+                retryBackoff_.onSuccess();
+            }
+        }
+    }
+
+    /**
+     * Sends one request at a time, each after the previous one has been acknowledged.
+     */
+    private void runStopAndWait() {
         while (true) {
             final String[] storedEvents = store_.connections();
-            Log.d("wigzo event size ", ""+storedEvents.length);
             if (storedEvents == null || storedEvents.length == 0) {
                 // currently no data to send, we are done for now
                 break;
             }
-            // get first event from collection
-            if (deviceId_.getId() == null) {
-                // When device ID is supplied by OpenUDID or by Google Advertising ID.
-                // In some cases it might take time for them to initialize. So, just wait for it.
-                if (Wigzo.sharedInstance().isLoggingEnabled()) {
-                    Log.i(Wigzo.TAG, "No Device ID available yet, skipping request " + storedEvents[0]);
+            // get first event that may be sent from collection
+            String storedEvent = null;
+            for (String candidate : inSendingOrder(storedEvents)) {
+                if (!deferred_.contains(candidate)) {
+                    storedEvent = candidate;
+                    break;
                 }
+            }
+            if (storedEvent == null) {
+                // everything left waits for a better network
                 break;
             }
-            final String eventData = storedEvents[0] + "&device_id=" + deviceId_.getId();
-
-            URLConnection conn = null;
-            URLConnection mobileconn = null;
-            BufferedInputStream responseStream = null;
-            BufferedInputStream responseMobile = null;
-            try {
-                // initialize and open connection
-                conn = urlConnectionForEventData(eventData);
-                conn.connect();
-                responseStream = new BufferedInputStream(conn.getInputStream());
+            final String eventData = eventDataFor(storedEvent);
+            if (eventData == null || !send(storedEvent, eventData)) {
+                break;
+            }
+        }
+    }
 
+    /**
+     * Sends a stored entry on its own and applies the response.
+     * @return false if the run should stop, leaving the rest for the next tick
+     */
+    private boolean send(final String storedEvent, final String eventData) {
+        Transport.Request request = null;
+        try {
+            final boolean compressed = isCompressed(eventData);
+            request = requestOrDrop(storedEvent, eventData);
+            if (request == null || isDeferred(storedEvent, request)) {
+                return true;
+            }
+            onSending(request, Collections.singletonList(storedEvent));
+            final long sentAtNanos = System.nanoTime();
+            final Transport.Response response = transport_.send(request);
+            onResponse(sentAtNanos);
+            // on failure stop processing, let next tick take care of retrying
+            return acknowledge(storedEvent, eventData, compressed, request, sentAtNanos, response) != Ack.FAILED;
+        }
+        catch (Exception e) {
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.w(Wigzo.TAG, "Got exception while trying to submit event data: " + eventData, e);
+            }
+            onException(request, e);
+            onNoResponse(request);
+            // if exception occurred, stop processing, let next tick take care of retrying
+            return false;
+        }
+    }
 
-                final ByteArrayOutputStream responseData = new ByteArrayOutputStream(256); // big enough to handle success response without reallocating
-                int c;
-                while ((c = responseStream.read()) != -1) {
-                    responseData.write(c);
+    /**
+     * Sends the stored entries in batches as large as the batch sizer allows, one batch at a
+     * time, in the order of the priority lanes. Entries that cannot be batched, such
+     * as pictures, are sent on their own. While the circuit is open batches hold one entry.
+     */
+    private void runBatched(final BatchEncoder batchEncoder) {
+        while (true) {
+            final String[] storedEvents = store_.connections();
+            if (storedEvents == null || storedEvents.length == 0) {
+                // currently no data to send, we are done for now
+                break;
+            }
+            final int maxEntries = retryBackoff_ != null && retryBackoff_.isCircuitOpen() ? 1 : batchSizer_.getBatchSize();
+            final int maxBytes = batchSizer_.getMaxBatchBytes();
+            final List<String> batch = new ArrayList<>();
+            final List<String> batchData = new ArrayList<>();
+            boolean batchable = true;
+            int bytes = 0;
+            for (String candidate : inSendingOrder(storedEvents)) {
+                if (deferred_.contains(candidate)) {
+                    continue;
                 }
-
-                // response code has to be 2xx to be considered a success
-                boolean success = true;
-                if (conn instanceof HttpURLConnection) {
-                    final HttpURLConnection httpConn = (HttpURLConnection) conn;
-
-                    final int responseCode = httpConn.getResponseCode();
-                    success = responseCode >= 200 && responseCode < 300;
-                    if (!success && Wigzo.sharedInstance().isLoggingEnabled()) {
-                        Log.w(Wigzo.TAG, "HTTP error response code was " + responseCode + " from submitting event data: " + eventData);
-                    }
+                final String eventData = eventDataFor(candidate);
+                if (eventData == null) {
+                    break;
                 }
-
-                // HTTP response code was good, check response JSON contains {"result":"Success"}
-                if (success) {
-                    final JSONObject responseDict = new JSONObject(responseData.toString("UTF-8"));
-                    success = responseDict.optString("result").equalsIgnoreCase("success");
-                    if (!success && Wigzo.sharedInstance().isLoggingEnabled()) {
-                        Log.w(Wigzo.TAG, "Response from Wigzo server did not report success, it was: " + responseData.toString("UTF-8"));
+                if (!batchEncoder.isBatchable(eventData)) {
+                    if (batch.isEmpty()) {
+                        batch.add(candidate);
+                        batchData.add(eventData);
+                        batchable = false;
                     }
+                    break;
                 }
+                if (!batch.isEmpty() && bytes + eventData.length() > maxBytes) {
+                    break;
+                }
+                batch.add(candidate);
+                batchData.add(eventData);
+                bytes += eventData.length();
+                if (batch.size() >= maxEntries) {
+                    break;
+                }
+            }
+            if (batch.isEmpty()) {
+                // everything left waits for a better network or a device ID
+                break;
+            }
+            if (!(batchable ? sendBatch(batchEncoder, batch, batchData) : send(batch.get(0), batchData.get(0)))) {
+                break;
+            }
+        }
+    }
 
-                if (success) {
-                    if (Wigzo.sharedInstance().isLoggingEnabled()) {
-                        Log.d(Wigzo.TAG, "ok ->" + eventData);
-                    }
+    /**
+     * Sends stored entries in one request and applies the response to all of them.
+     * @return false if the run should stop, leaving the rest for the next tick
+     */
+    private boolean sendBatch(final BatchEncoder batchEncoder, final List<String> batch, final List<String> batchData) {
+        Transport.Request request = null;
+        try {
+            request = withTimeouts(batchEncoder.requestFor(batchData));
+            if (isDeferred(batch, request)) {
+                return true;
+            }
+            onSending(request, batch);
+            final long sentAtNanos = System.nanoTime();
+            final Transport.Response response = transport_.send(request);
+            onResponse(sentAtNanos);
+            final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAtNanos);
+            final String reason = failureReason(response, batch.size() == 1 ? batchData.get(0) : batch.size() + " batched requests");
+            if (reason == null) {
+                if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                    Log.d(Wigzo.TAG, "ok -> batch of " + batch.size());
+                }
+                for (String storedEvent : batch) {
+                    store_.removeConnection(storedEvent);
+                }
+                delivered_ = true;
+                batchSizer_.onAcknowledged(batch.size(), sizeOf(request), elapsedMillis);
+                if (requestListener_ != null) {
+                    requestListener_.onAcknowledged(request, elapsedMillis);
+                }
+                return true;
+            }
+            if (requestListener_ != null) {
+                requestListener_.onFailed(request, reason);
+            }
+            if (isPermanentFailure(reason)) {
+                if (batch.size() > 1) {
+                    // send them one at a time to find the one that is not accepted
+                    batchSizer_.onRejected();
+                    return true;
+                }
+                if (deadLetter(batch.get(0), reason)) {
+                    return true;
+                }
+            }
+            onFailed(response);
+            return false;
+        }
+        catch (Exception e) {
+            if (e instanceof SocketTimeoutException) {
+                batchSizer_.onTimeout();
+            }
+            onException(request, e);
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.w(Wigzo.TAG, "Got exception while trying to submit a batch of " + batch.size(), e);
+            }
+            onNoResponse(request);
+            return false;
+        }
+    }
 
-                    // successfully submitted event data to Count.wigzo.ly server, so remove
-                    // this one from the stored events collection
-                    store_.removeConnection(storedEvents[0]);
+    /**
+     * Keeps up to maxRequestsInFlight requests outstanding and applies their responses in
+     * the order the requests were sent. Once a request fails no new ones are sent, but the
+     * responses of those already in flight are still applied, so entries the server has
+     * accepted are not sent twice.
+     */
+    private void runPipelined() {
+        final LinkedList<InFlight> window = new LinkedList<>();
+        final Set<String> inFlight = new HashSet<>();
+        boolean sending = true;
+        while (true) {
+            if (sending) {
+                sending = fillWindow(window, inFlight);
+            }
+            final InFlight head = window.poll();
+            if (head == null) {
+                // nothing left to send or to wait for, we are done for now
+                break;
+            }
+            try {
+                final Ack ack = acknowledge(head.storedEvent, head.eventData, head.compressed, head.request, head.sentAtNanos, await(head));
+                inFlight.remove(head.storedEvent);
+                if (ack == Ack.FAILED) {
+                    // let next tick take care of retrying
+                    sending = false;
                 }
-                else {
-                    // warning was logged above, stop processing, let next tick take care of retrying
-                    break;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (InFlight pending : window) {
+                    pending.response.cancel(true);
                 }
+                break;
             }
             catch (Exception e) {
                 if (Wigzo.sharedInstance().isLoggingEnabled()) {
-                    Log.w(Wigzo.TAG, "Got exception while trying to submit event data: " + eventData, e);
+                    Log.w(Wigzo.TAG, "Got exception while trying to submit event data: " + head.eventData, e);
                 }
-                // if exception occurred, stop processing, let next tick take care of retrying
+                onException(head.request, e);
+                onNoResponse(head.request);
+                // let next tick take care of retrying
+                sending = false;
+            }
+        }
+    }
+
+    /**
+     * Sends stored entries that are not in flight yet, in the order of the priority lanes,
+     * until the window is full or an ordered entry has to wait for the requests before it.
+     * @return false if no more requests should be sent until the next tick
+     */
+    private boolean fillWindow(final LinkedList<InFlight> window, final Set<String> inFlight) {
+        if (window.size() >= maxRequestsInFlight_ || (!window.isEmpty() && window.getLast().ordered)) {
+            return true;
+        }
+        final String[] storedEvents = store_.connections();
+        if (storedEvents == null) {
+            return true;
+        }
+        for (String storedEvent : inSendingOrder(storedEvents)) {
+            if (window.size() >= maxRequestsInFlight_) {
                 break;
             }
-            finally {
-                // free connection resources
-                if (responseStream != null) {
-                    try { responseStream.close(); } catch (IOException ignored) {}
+            if (inFlight.contains(storedEvent) || deferred_.contains(storedEvent)) {
+                continue;
+            }
+            final boolean ordered = isOrdered(storedEvent);
+            if (ordered && !window.isEmpty()) {
+                break;
+            }
+            final String eventData = eventDataFor(storedEvent);
+            if (eventData == null) {
+                return false;
+            }
+            try {
+                final boolean compressed = isCompressed(eventData);
+                final Transport.Request request = requestOrDrop(storedEvent, eventData);
+                if (request == null || isDeferred(storedEvent, request)) {
+                    continue;
                 }
-                if (conn != null && conn instanceof HttpURLConnection) {
-                    ((HttpURLConnection)conn).disconnect();
+                onSending(request, Collections.singletonList(storedEvent));
+                window.add(new InFlight(storedEvent, eventData, compressed, ordered, request, System.nanoTime(), transport_.sendAsync(request, null)));
+                inFlight.add(storedEvent);
+            }
+            catch (Exception e) {
+                if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Wigzo.TAG, "Got exception while trying to submit event data: " + eventData, e);
                 }
+                onFailed(null);
+                return false;
+            }
+            if (ordered) {
+                break;
             }
         }
+        return true;
     }
 
     // for unit testing
     String getServerURL() { return serverURL_; }
-    WigzoStore getWigzoStore() { return store_; }
+    ConnectionStore getWigzoStore() { return store_; }
+    Transport getTransport() { return transport_; }
     DeviceId getDeviceId() { return deviceId_; }
 }
@@ -2,22 +2,30 @@
 package wigzo.android.sdk;
 
 import android.content.Context;
+import android.util.Log;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
 
 /**
  * ConnectionQueue queues session and event data and periodically sends that data to
  * a wigzo server on a background thread.
  *
  * None of the methods in this class are synchronized because access to this class is
- * controlled by the Wigzo singleton, which is synchronized.
+ * controlled by the Wigzo singleton, which is synchronized. The work this class runs on
+ * background threads itself, such as timer tasks, connectivity callbacks and the ends of
+ * upload runs, takes the same lock before it queues data or ticks, see {@link #locked}.
  *
  * NOTE: This class is only public to facilitate unit testing, because
  *       of this bug in dexmaker: https://code.google.com/p/dexmaker/issues/detail?id=34
@@ -25,14 +33,54 @@ import javax.net.ssl.TrustManager;
 public class ConnectionQueue {
     private WigzoStore store_;
     private WigzoAppStore wigzoAppStore;
-    private ExecutorService executor_;
     private String appKey_;
     private String orgId;
     private Context context_;
     private String serverURL_;
-    private Future<?> connectionProcessorFuture_;
     private DeviceId deviceId_;
     private SSLContext sslContext_;
+    static final int DEFAULT_MAX_REQUESTS_IN_FLIGHT = 4;
+    static final String SINK_NAME = "Wigzo";
+    static final String METRIC_FIRST_ACK = "upload.first_ack_ms.";
+    static final String METRIC_WARM_UP = "upload.warm_up_ms.";
+
+    private final RequestCompressor requestCompressor_ = new RequestCompressor();
+    private volatile int maxRequestsInFlight_ = DEFAULT_MAX_REQUESTS_IN_FLIGHT;
+    private ConnectivityMonitor connectivityMonitor_;
+    private RadioScheduler radioScheduler_;
+    private BackgroundFlushScheduler backgroundFlushScheduler_;
+    private volatile ScheduledFuture<?> radioCheck_;
+    private volatile ScheduledFuture<?> uploadIntervalCheck_;
+    private volatile Future<?> configFetch_;
+    private volatile long uploadsStartedAt_;
+    private boolean coalescing_;
+    private boolean tickDeferred_;
+    private final Metrics metrics_ = new Metrics();
+    private final EndpointSelector endpointSelector_ = new EndpointSelector(metrics_);
+    private final SdkScheduler scheduler_ = new SdkScheduler(metrics_);
+    private final DispatchPipeline pipeline_ = new DispatchPipeline(new Sink() {
+        @Override
+        public String getName() { return SINK_NAME; }
+
+        @Override
+        public String getEndpoint() { return getActiveServerURL() + "/i"; }
+
+        @Override
+        public Encoding getEncoding() { return Encoding.QUERY_STRING; }
+
+        @Override
+        public boolean accepts(final EventType type) { return true; }
+    }, scheduler_);
+    private final DispatchPipeline appPipeline_ = new DispatchPipeline(ConnectionProcessorWigzoApp.SINK, scheduler_);
+    // the built-in pipelines first, then those of sinks added with addSink
+    private final List<DispatchPipeline> pipelines_ = new CopyOnWriteArrayList<>(new DispatchPipeline[]{pipeline_, appPipeline_});
+    private final HttpURLConnectionTransport httpTransport_ = new HttpURLConnectionTransport(scheduler_);
+    private final UploadPolicy uploadPolicy_ = new UploadPolicy(metrics_);
+    private final RemoteConfigClient remoteConfig_ = new RemoteConfigClient(metrics_);
+    // sinks added with addSink keep the app's times to live, the server only sets its own
+    private final RequestExpiry sinkExpiry_ = new RequestExpiry(metrics_);
+    private final RequestExpiry requestExpiry_ = sinkExpiry_.withRemoteConfig(remoteConfig_);
+    private volatile Transport transport_ = httpTransport_;
 
     // Getters are for unit testing
     String getAppKey() {
@@ -62,19 +110,22 @@ public class ConnectionQueue {
     }
 
     void setServerURL(final String serverURL) {
-        serverURL_ = serverURL;
+        setServerURLs(serverURL == null ? null : Collections.singletonList(serverURL));
+    }
 
-        if (Wigzo.publicKeyPinCertificates == null) {
-            sslContext_ = null;
-        } else {
-            try {
-                TrustManager tm[] = { new CertificateTrustManager(Wigzo.publicKeyPinCertificates) };
-                sslContext_ = SSLContext.getInstance("TLS");
-                sslContext_.init(null, tm, null);
-            } catch (Throwable e) {
-                throw new IllegalStateException(e);
-            }
-        }
+    /**
+     * Sets the equivalent server URLs uploads may go to, in order of preference. The first
+     * one is the primary, returned by {@link #getServerURL()}; uploads go to the one the
+     * EndpointSelector picks.
+     */
+    void setServerURLs(final List<String> serverURLs) {
+        serverURL_ = serverURLs == null || serverURLs.isEmpty() ? null : serverURLs.get(0);
+        endpointSelector_.setEndpoints(serverURLs);
+
+        // one SSL context for all connections, so they resume each other's TLS sessions
+        final TlsSessionCache tlsSessions = TlsSessionCache.shared(Wigzo.publicKeyPinCertificates);
+        sslContext_ = tlsSessions.getSSLContext();
+        httpTransport_.setSSLSocketFactory(tlsSessions.getSocketFactory());
     }
 
         WigzoStore getWigzoStore() {
@@ -85,15 +136,340 @@ public class ConnectionQueue {
         return wigzoAppStore;
     }
 
+    List<String> getServerURLs() {
+        return endpointSelector_.getEndpoints();
+    }
+
+    /**
+     * Returns the server URL uploads currently go to.
+     */
+    String getActiveServerURL() {
+        final String selected = endpointSelector_.select(System.currentTimeMillis());
+        return selected == null ? serverURL_ : selected;
+    }
+
+    EndpointSelector getEndpointSelector() { return endpointSelector_; }
+
+    /**
+     * Returns when uploads to the Wigzo servers last started, for the server's minimum
+     * upload interval, or 0 if they have not in this process.
+     */
+    long getUploadsStartedAt() { return uploadsStartedAt_; }
+
+    SSLContext getSSLContext() { return sslContext_; }
+
     void setWigzoStore(final WigzoStore wigzoStore) {
         store_ = wigzoStore;
+        pipeline_.setStore(wigzoStore);
+        endpointSelector_.setStore(wigzoStore);
+        uploadPolicy_.setStore(wigzoStore);
+        remoteConfig_.setStore(wigzoStore);
     }
     void setWigzoAppStore(final WigzoAppStore wigzoStore) {
         wigzoAppStore = wigzoStore;
+        appPipeline_.setStore(wigzoStore);
+    }
+
+    /**
+     * Sets the URL of the mobile events endpoint, without query string, or null for the default.
+     * @throws IllegalArgumentException if endpoint is not a valid URL
+     */
+    void setMobileEndpoint(final String endpoint) {
+        appPipeline_.setSink(ConnectionProcessorWigzoApp.newSink(endpoint == null ? ConnectionProcessorWigzoApp.DEFAULT_ENDPOINT : endpoint));
+    }
+
+    String getMobileEndpoint() {
+        return appPipeline_.getSink().getEndpoint();
+    }
+
+    /**
+     * Returns the upload pipeline of the Wigzo server.
+     */
+    DispatchPipeline getPipeline() { return pipeline_; }
+
+    /**
+     * Returns the upload pipeline of the mobile events endpoint.
+     */
+    DispatchPipeline getAppPipeline() { return appPipeline_; }
+
+    /**
+     * Adds a sink, which from now on gets the requests it accepts queued in the specified
+     * store and drains them through a pipeline of its own.
+     * @throws IllegalArgumentException if sink or store is null, or a sink of the same name exists
+     */
+    void addSink(final Sink sink, final ConnectionStore store) {
+        if (sink == null || store == null) {
+            throw new IllegalArgumentException("sink and store must not be null");
+        }
+        if (getSinkPipeline(sink.getName()) != null) {
+            throw new IllegalArgumentException("a sink named " + sink.getName() + " already exists");
+        }
+        final DispatchPipeline pipeline = new DispatchPipeline(sink, scheduler_);
+        pipeline.setStore(store);
+        pipelines_.add(pipeline);
+    }
+
+    /**
+     * Removes a sink added with {@link #addSink}. Requests already queued for it stay in its
+     * store, and are sent if the sink is added again.
+     * @return the removed sink's pipeline, or null if there is no such sink
+     * @throws IllegalArgumentException if name is that of a built-in sink
+     */
+    DispatchPipeline removeSink(final String name) {
+        final DispatchPipeline pipeline = getSinkPipeline(name);
+        if (pipeline == pipeline_ || pipeline == appPipeline_) {
+            throw new IllegalArgumentException("built-in sinks cannot be removed");
+        }
+        if (pipeline != null) {
+            pipelines_.remove(pipeline);
+            pipeline.shutdown();
+        }
+        return pipeline;
+    }
+
+    /**
+     * Removes all sinks added with {@link #addSink}.
+     * @return the pipelines of the removed sinks
+     */
+    List<DispatchPipeline> removeSinks() {
+        final List<DispatchPipeline> removed = new ArrayList<>(pipelines_.subList(2, pipelines_.size()));
+        pipelines_.removeAll(removed);
+        for (DispatchPipeline pipeline : removed) {
+            pipeline.shutdown();
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the pipeline of the named sink, or null.
+     */
+    DispatchPipeline getSinkPipeline(final String name) {
+        for (DispatchPipeline pipeline : pipelines_) {
+            if (pipeline.getName().equals(name)) {
+                return pipeline;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the pipelines of all sinks, the built-in ones first.
+     */
+    List<DispatchPipeline> getPipelines() { return pipelines_; }
+
+    /**
+     * Returns true if any sink has data waiting to be sent.
+     */
+    boolean hasBacklog() {
+        for (DispatchPipeline pipeline : pipelines_) {
+            if (pipeline.hasBacklog()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the retry state of the Wigzo server, persisted in its store.
+     */
+    RetryBackoff getRetryBackoff() { return pipeline_.getRetryBackoff(); }
+
+    /**
+     * Returns the retry state of the mobile events endpoint, persisted in its store.
+     */
+    RetryBackoff getAppRetryBackoff() { return appPipeline_.getRetryBackoff(); }
+
+    /**
+     * Returns the requests the Wigzo server rejected permanently.
+     */
+    DeadLetterStore getDeadLetterStore() { return pipeline_.getDeadLetterStore(); }
+
+    /**
+     * Returns the requests the mobile events endpoint rejected permanently.
+     */
+    DeadLetterStore getAppDeadLetterStore() { return appPipeline_.getDeadLetterStore(); }
+
+    ConnectivityMonitor getConnectivityMonitor() { return connectivityMonitor_; }
+
+    UploadPolicy getUploadPolicy() { return uploadPolicy_; }
+
+    /**
+     * Returns the client of the SDK configuration sent by the Wigzo server.
+     */
+    RemoteConfigClient getRemoteConfigClient() { return remoteConfig_; }
+
+    /**
+     * Returns the expiry of the requests queued for the Wigzo servers. Times to live set on
+     * it apply to the sinks added with addSink too.
+     */
+    RequestExpiry getRequestExpiry() { return requestExpiry_; }
+
+    /**
+     * Returns the SDK configuration in use.
+     */
+    RemoteConfig getRemoteConfig() { return remoteConfig_.getConfig(); }
+
+    /**
+     * Sets the monitor that keeps uploads parked while the device is offline, or null to
+     * always attempt them. When the network comes back, the queued data is sent in one drain.
+     */
+    void setConnectivityMonitor(final ConnectivityMonitor connectivityMonitor) {
+        if (connectivityMonitor_ != null) {
+            connectivityMonitor_.setListener(null);
+        }
+        connectivityMonitor_ = connectivityMonitor;
+        uploadPolicy_.setConnectivityMonitor(connectivityMonitor);
+        if (connectivityMonitor != null) {
+            connectivityMonitor.setListener(new ConnectivityMonitor.Listener() {
+                @Override
+                public void onConnectivityChanged(final boolean connected) {
+                    if (connected && store_ != null) {
+                        // whatever was queued while offline goes out in a single drain
+                        locked(new Runnable() {
+                            @Override
+                            public void run() {
+                                tick();
+                            }
+                        }).run();
+                    }
+                }
+            });
+        }
+    }
+
+    RadioScheduler getRadioScheduler() { return radioScheduler_; }
+
+    /**
+     * Sets the scheduler that holds non-urgent uploads on metered networks back until the
+     * radio is active anyway, or null to send them right away.
+     */
+    void setRadioScheduler(final RadioScheduler radioScheduler) {
+        radioScheduler_ = radioScheduler;
+        if (radioScheduler == null && radioCheck_ != null) {
+            radioCheck_.cancel(false);
+            radioCheck_ = null;
+        }
+    }
+
+    BackgroundFlushScheduler getBackgroundFlushScheduler() { return backgroundFlushScheduler_; }
+
+    /**
+     * Sets the scheduler of background flush jobs, or null to rely on the executor only.
+     * A job already scheduled by the previous scheduler is cancelled.
+     */
+    void setBackgroundFlushScheduler(final BackgroundFlushScheduler backgroundFlushScheduler) {
+        if (backgroundFlushScheduler_ != null && backgroundFlushScheduler_ != backgroundFlushScheduler) {
+            backgroundFlushScheduler_.cancel();
+        }
+        backgroundFlushScheduler_ = backgroundFlushScheduler;
+    }
+
+    /**
+     * Asks the system to drain the queue in a job, which survives the app being frozen or
+     * killed in the background. Does nothing if there is no background flush scheduler.
+     * @param expedited true to run the job as soon as possible, e.g. for crash reports
+     */
+    void scheduleBackgroundFlush(final boolean expedited) {
+        if (backgroundFlushScheduler_ != null) {
+            backgroundFlushScheduler_.scheduleFlush(expedited);
+        }
+    }
+
+    /**
+     * Returns the number of permanently rejected requests of all sinks.
+     */
+    int getDeadLetterCount() {
+        int count = 0;
+        for (DispatchPipeline pipeline : pipelines_) {
+            final DeadLetterStore deadLetters = pipeline.getDeadLetterStore();
+            count += deadLetters == null ? 0 : deadLetters.size();
+        }
+        return count;
+    }
+
+    /**
+     * Discards the permanently rejected requests of all sinks.
+     * @return the number of requests discarded
+     */
+    int purgeDeadLetters() {
+        int count = 0;
+        for (DispatchPipeline pipeline : pipelines_) {
+            final DeadLetterStore deadLetters = pipeline.getDeadLetterStore();
+            count += deadLetters == null ? 0 : deadLetters.purge();
+        }
+        return count;
+    }
+
+    /**
+     * Queues the permanently rejected requests of all sinks again and starts sending them.
+     * @return the number of requests queued
+     */
+    int replayDeadLetters() {
+        int count = 0;
+        for (DispatchPipeline pipeline : pipelines_) {
+            final DeadLetterStore deadLetters = pipeline.getDeadLetterStore();
+            count += deadLetters == null ? 0 : deadLetters.replay();
+        }
+        if (count > 0) {
+            tick();
+        }
+        return count;
     }
 
     DeviceId getDeviceId() { return deviceId_; }
 
+    /**
+     * Returns the metrics of the data sent by this queue.
+     */
+    Metrics getMetrics() { return metrics_; }
+
+    /**
+     * Returns the scheduler that runs this queue's uploads and the rest of the SDK's background work.
+     */
+    SdkScheduler getScheduler() { return scheduler_; }
+
+    /**
+     * Returns the long-lived transport shared by all processors started by this queue.
+     */
+    Transport getTransport() { return transport_; }
+
+    /**
+     * Sets the transport used by processors started from now on, or null to restore
+     * the default HttpURLConnection based one.
+     */
+    void setTransport(final Transport transport) {
+        transport_ = transport == null ? httpTransport_ : transport;
+    }
+
+    /**
+     * Returns the default HttpURLConnection based transport.
+     */
+    HttpURLConnectionTransport getHttpTransport() { return httpTransport_; }
+
+    /**
+     * Sets how many requests each processor keeps in flight at the same time.
+     */
+    void setMaxRequestsInFlight(final int maxRequestsInFlight) {
+        if (maxRequestsInFlight < 1) {
+            throw new IllegalArgumentException("maxRequestsInFlight must be at least 1");
+        }
+        maxRequestsInFlight_ = maxRequestsInFlight;
+    }
+
+    int getMaxRequestsInFlight() { return maxRequestsInFlight_; }
+
+    /**
+     * Enables or disables compression of requests sent to the Wigzo server with the
+     * preset {@link DeflateDictionary}. Compression turns itself off if the server rejects it.
+     */
+    void setRequestCompressionEnabled(final boolean enabled) {
+        requestCompressor_.setEnabled(enabled);
+    }
+
+    boolean isRequestCompressionEnabled() {
+        return requestCompressor_.isEnabled();
+    }
+
     public void setDeviceId(DeviceId deviceId) {
         this.deviceId_ = deviceId;
     }
@@ -118,10 +494,18 @@ public class ConnectionQueue {
         if (wigzoAppStore == null) {
             throw new IllegalStateException("Mobile store has not been set");
         }
-        if (serverURL_ == null || !Wigzo.isValidURL(serverURL_)) {
+        if (serverURL_ == null) {
             throw new IllegalStateException("server URL is not valid");
         }
-        if (Wigzo.publicKeyPinCertificates != null && !serverURL_.startsWith("https")) {
+        for (String serverURL : getServerURLs()) {
+            if (!Wigzo.isValidURL(serverURL)) {
+                throw new IllegalStateException("server URL is not valid");
+            }
+            if (Wigzo.publicKeyPinCertificates != null && !serverURL.startsWith("https")) {
+                throw new IllegalStateException("server must start with https once you specified public keys");
+            }
+        }
+        if (Wigzo.publicKeyPinCertificates != null && !getMobileEndpoint().startsWith("https")) {
             throw new IllegalStateException("server must start with https once you specified public keys");
         }
     }
@@ -141,8 +525,7 @@ public class ConnectionQueue {
                           + "&begin_session=1"
                           + "&metrics=" + DeviceInfo.getMetrics(context_);
 
-        store_.addConnection(data);
-        wigzoAppStore.addConnection(data);
+        enqueue(data);
 
         tick();
     }
@@ -172,8 +555,7 @@ public class ConnectionQueue {
                     + "&session_duration=" + duration
                     + "&location=" + getWigzoAppStore().getAndRemoveLocation();
 
-            store_.addConnection(data);
-            wigzoAppStore.addConnection(mobileData);
+            enqueue(data, mobileData);
 
             tick();
         }
@@ -193,15 +575,13 @@ public class ConnectionQueue {
                 + "&" + "locale=" + DeviceInfo.getLocale();
 
         // To ensure begin_session will be fully processed by the server before token_session
-        final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor();
-        worker.schedule(new Runnable() {
+        scheduler_.schedule(locked(new Runnable() {
             @Override
             public void run() {
-                store_.addConnection(data);
-                wigzoAppStore.addConnection(data);
+                enqueue(data);
                 tick();
             }
-        }, 10, TimeUnit.SECONDS);
+        }), 10, TimeUnit.SECONDS);
     }
 
     /**
@@ -222,8 +602,7 @@ public class ConnectionQueue {
             data += "&session_duration=" + duration;
         }
 
-        store_.addConnection(data);
-        wigzoAppStore.addConnection(data);
+        enqueue(data);
 
         tick();
     }
@@ -243,8 +622,7 @@ public class ConnectionQueue {
                     + "&hour=" + Wigzo.currentHour()
                     + "&dow=" + Wigzo.currentDayOfWeek()
                     + userdata;
-            store_.addConnection(data);
-            wigzoAppStore.addConnection(data);
+            enqueue(data);
 
             tick();
         }
@@ -265,8 +643,7 @@ public class ConnectionQueue {
                     + "&hour=" + Wigzo.currentHour()
                     + "&dow=" + Wigzo.currentDayOfWeek()
                     + referrer;
-            store_.addConnection(data);
-            wigzoAppStore.addConnection(data);
+            enqueue(data);
 
             tick();
         }
@@ -286,10 +663,11 @@ public class ConnectionQueue {
                 + "&sdk_version=" + Wigzo.WIGZO_SDK_VERSION_STRING
                 + "&crash=" + CrashDetails.getCrashData(context_, error, nonfatal);
 
-        store_.addConnection(data);
-        wigzoAppStore.addConnection(data);
+        enqueue(data);
 
         tick();
+        // a fatal crash kills the process before the executor gets to run
+        scheduleBackgroundFlush(true);
     }
 
     /**
@@ -306,8 +684,7 @@ public class ConnectionQueue {
                           + "&dow=" + Wigzo.currentDayOfWeek()
                           + "&events=" + events;
 
-        store_.addConnection(data);
-        wigzoAppStore.addConnection(data);
+        enqueue(data);
 
         tick();
     }
@@ -326,41 +703,466 @@ public class ConnectionQueue {
                           + "&dow=" + Wigzo.currentDayOfWeek()
                           + "&events=" + events;
 
-        store_.addConnection(data);
-        wigzoAppStore.addConnection(data);
+        enqueue(data);
 
         tick();
     }
 
     /**
-     * Ensures that an executor has been created for ConnectionProcessor instances to be submitted to.
+     * Queues request data for every sink that accepts it.
+     */
+    void enqueue(final String data) {
+        enqueue(data, data);
+    }
+
+    /**
+     * Queues request data for every sink that accepts it, with a variant for the mobile
+     * events endpoint, which keeps a location of its own. The built-in sinks only get the
+     * data the server's configuration has this device record.
+     */
+    private void enqueue(final String data, final String mobileData) {
+        final Sink.EventType type = Sink.EventType.of(data);
+        final String deviceId = deviceId_ == null ? null : deviceId_.getId();
+        final boolean recorded = remoteConfig_.getConfig().records(type,
+                deviceId == null ? Math.random() : RemoteConfig.samplingUnit(deviceId, type));
+        if (!recorded) {
+            remoteConfig_.onDropped();
+        }
+        for (DispatchPipeline pipeline : pipelines_) {
+            if (recorded || !isWigzoPipeline(pipeline)) {
+                pipeline.offer(pipeline == appPipeline_ ? mobileData : data, type);
+            }
+        }
+    }
+
+    /**
+     * Starts merging the requests queued from now on into as few requests as possible, until
+     * {@link #endCoalescing()}. Ticks are put off until then.
+     */
+    void beginCoalescing() {
+        coalescing_ = true;
+        for (DispatchPipeline pipeline : pipelines_) {
+            pipeline.beginCoalescing();
+        }
+    }
+
+    /**
+     * Queues the requests merged since {@link #beginCoalescing()} and ticks.
+     */
+    void endCoalescing() {
+        coalescing_ = false;
+        int queued = 0;
+        for (DispatchPipeline pipeline : pipelines_) {
+            queued += pipeline.endCoalescing();
+        }
+        if (queued > 0 || tickDeferred_) {
+            tickDeferred_ = false;
+            tick();
+        }
+    }
+
+    /**
+     * Returns true for the pipelines of the Wigzo server and the mobile events endpoint,
+     * which the server's configuration applies to.
+     */
+    private boolean isWigzoPipeline(final DispatchPipeline pipeline) {
+        return pipeline == pipeline_ || pipeline == appPipeline_;
+    }
+
+    /**
+     * Ensures that the executors of all pipelines have been created for ConnectionProcessor
+     * instances to be submitted to. Each is a serial lane of the SDK scheduler, so processors
+     * of one sink never run concurrently, while the sinks drain in parallel.
      */
     void ensureExecutor() {
-        if (executor_ == null) {
-            executor_ = Executors.newSingleThreadExecutor();
+        for (DispatchPipeline pipeline : pipelines_) {
+            pipeline.ensureExecutor();
         }
     }
 
     /**
      * Starts ConnectionProcessor instances running in the background to
      * process the local connection queue data.
-     * Does nothing if there is connection queue data or if a ConnectionProcessor
-     * is already running.
+     * Does nothing for a sink that has no queued data or whose
+     * ConnectionProcessor is already running. The built-in sinks also wait while the
+     * server's configuration has uploads switched off, or until its minimum upload
+     * interval has passed since they were last started.
      */
     void tick() {
-        if (!store_.isEmptyConnections() && (connectionProcessorFuture_ == null || connectionProcessorFuture_.isDone())) {
-            ensureExecutor();
-            connectionProcessorFuture_ = executor_.submit(new ConnectionProcessorWigzoApp(serverURL_, wigzoAppStore, deviceId_, sslContext_));
-            connectionProcessorFuture_ = executor_.submit(new ConnectionProcessor(serverURL_, store_, deviceId_, sslContext_));
+        if (coalescing_) {
+            // the requests of the window go out together once it ends
+            tickDeferred_ = true;
+            return;
+        }
+        if (connectivityMonitor_ != null && !connectivityMonitor_.isConnected()) {
+            // parked until the network comes back, no point in waiting for connect timeouts
+            if (hasBacklog() && Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.d(Wigzo.TAG, "No network connection, uploads parked");
+            }
+            return;
+        }
+        refreshRemoteConfig();
+        final List<DispatchPipeline> ready = new ArrayList<>();
+        for (DispatchPipeline pipeline : pipelines_) {
+            if (pipeline.hasBacklog() && pipeline.isIdle()) {
+                ready.add(pipeline);
+            }
+        }
+        if (ready.isEmpty()) {
+            return;
+        }
+        probeServers();
+        if (!isRadioReady()) {
+            scheduleRadioCheck();
+            return;
+        }
+        final RemoteConfig config = remoteConfig_.getConfig();
+        final long now = System.currentTimeMillis();
+        final long waitMillis = uploadsStartedAt_ + config.getMinUploadIntervalMillis() - now;
+        boolean started = false;
+        for (DispatchPipeline pipeline : ready) {
+            if (isWigzoPipeline(pipeline)) {
+                if (!config.isUploadsEnabled()) {
+                    // parked until the server switches uploads on again
+                    if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                        Log.d(Wigzo.TAG, "Uploads to " + pipeline.getName() + " switched off by the server");
+                    }
+                    continue;
+                }
+                if (waitMillis > 0) {
+                    scheduleUploadIntervalCheck(waitMillis);
+                    continue;
+                }
+                started = true;
+            }
+            submit(pipeline, newProcessor(pipeline));
+        }
+        if (started) {
+            uploadsStartedAt_ = now;
+        }
+    }
+
+    /**
+     * Fetches the SDK configuration from the Wigzo server in the background if it is due,
+     * and ticks again if a new one was applied, since it may let more data go out.
+     * @return future that is done when the fetch has finished, or null if none was started
+     */
+    Future<?> refreshRemoteConfig() {
+        final Future<?> pending = configFetch_;
+        if (appKey_ == null || serverURL_ == null || (pending != null && !pending.isDone())
+                || !remoteConfig_.isDue(System.currentTimeMillis())) {
+            return null;
+        }
+        final Transport transport = transport_;
+        final String url = RemoteConfigClient.url(getActiveServerURL(), appKey_);
+        final FutureTask<Void> fetch = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (remoteConfig_.fetch(transport, url, System.currentTimeMillis()) && store_ != null) {
+                        locked(new Runnable() {
+                            @Override
+                            public void run() {
+                                tick();
+                            }
+                        }).run();
+                    }
+                } catch (IOException e) {
+                    if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                        Log.w(Wigzo.TAG, "Unable to fetch the SDK configuration", e);
+                    }
+                }
+            }
+        }, null);
+        try {
+            scheduler_.execute(fetch);
+        } catch (RejectedExecutionException e) {
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.w(Wigzo.TAG, "Scheduler saturated, skipping SDK configuration fetch", e);
+            }
+            return null;
+        }
+        configFetch_ = fetch;
+        return fetch;
+    }
+
+    /**
+     * Measures the round-trip time to server URLs that have not been measured for a while,
+     * in the background, so uploads can move to a faster one. Does nothing with a single
+     * server URL or if the transport cannot preconnect.
+     * @return futures that are done when the probes have finished
+     */
+    List<Future<?>> probeServers() {
+        final List<Future<?>> futures = new ArrayList<>();
+        final Transport transport = transport_;
+        if (!(transport instanceof Transport.Preconnect)) {
+            return futures;
+        }
+        for (final String serverURL : endpointSelector_.takeProbes(System.currentTimeMillis())) {
+            final FutureTask<Void> probe = new FutureTask<>(new Runnable() {
+                @Override
+                public void run() {
+                    final long started = System.nanoTime();
+                    try {
+                        ((Transport.Preconnect) transport).preconnect(serverURL + "/i");
+                        endpointSelector_.onSuccess(serverURL, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), System.currentTimeMillis());
+                    } catch (IOException e) {
+                        if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                            Log.w(Wigzo.TAG, "Unable to reach " + serverURL, e);
+                        }
+                        endpointSelector_.onFailure(serverURL, System.currentTimeMillis());
+                    }
+                    endpointSelector_.save();
+                }
+            }, null);
+            try {
+                scheduler_.execute(probe);
+                futures.add(probe);
+            } catch (RejectedExecutionException e) {
+                if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Wigzo.TAG, "Scheduler saturated, skipping probe of " + serverURL, e);
+                }
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Sets up a connection to the endpoint of every sink in the background, so the first
+     * upload to it does not pay for the DNS lookup and the TCP and TLS handshakes. Each runs
+     * on the sink's lane, so a drain submitted meanwhile waits for the warm connection instead
+     * of opening a second one. Does nothing if the transport cannot preconnect or the device
+     * is offline.
+     * @return futures that are done when the connections have been set up
+     */
+    List<Future<?>> warmUp() {
+        final List<Future<?>> futures = new ArrayList<>();
+        final Transport transport = transport_;
+        if (!(transport instanceof Transport.Preconnect) || (connectivityMonitor_ != null && !connectivityMonitor_.isConnected())) {
+            return futures;
+        }
+        for (final DispatchPipeline pipeline : pipelines_) {
+            if (pipeline.getStore() == null) {
+                continue;
+            }
+            final String endpoint = pipeline.getSink().getEndpoint();
+            try {
+                futures.add(pipeline.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        final long started = System.nanoTime();
+                        try {
+                            ((Transport.Preconnect) transport).preconnect(endpoint);
+                            metrics_.setGauge(METRIC_WARM_UP + pipeline.getName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                        } catch (IOException e) {
+                            // the first upload sets the connection up instead
+                            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                                Log.w(Wigzo.TAG, "Unable to warm up the connection to " + endpoint, e);
+                            }
+                        }
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Wigzo.TAG, pipeline.getName() + " executor saturated, skipping warm-up", e);
+                }
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Sends the queued data of all sinks now, without waiting for the radio, and
+     * returns the futures that are done when their processors have finished. Used by
+     * background flush jobs, which the system only runs once the network is available.
+     * The data of the built-in sinks stays queued while the server has uploads switched off.
+     */
+    List<Future<?>> flush() {
+        // if processors are already running, each lane runs these after them
+        final List<Future<?>> futures = new ArrayList<>();
+        final boolean uploadsEnabled = remoteConfig_.getConfig().isUploadsEnabled();
+        for (DispatchPipeline pipeline : pipelines_) {
+            if (pipeline.getStore() != null && (uploadsEnabled || !isWigzoPipeline(pipeline))) {
+                futures.add(submit(pipeline, newProcessor(pipeline)));
+            }
+        }
+        return futures;
+    }
+
+    private Future<?> submit(final DispatchPipeline pipeline, final ConnectionProcessor processor) {
+        final RadioScheduler radioScheduler = radioScheduler_;
+        final boolean failover = pipeline == pipeline_ && endpointSelector_.getEndpoints().size() > 1;
+        try {
+            return pipeline.submit(processor, radioScheduler == null && !failover ? null : locked(new Runnable() {
+                @Override
+                public void run() {
+                    if (radioScheduler != null) {
+                        radioScheduler.onUploadsFinished(System.currentTimeMillis());
+                    }
+                    if (failover) {
+                        onServerRunFinished(processor.getServerURL());
+                    }
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            // the data stays in the store and is sent on the next tick
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.w(Wigzo.TAG, pipeline.getName() + " executor saturated, will retry on the next tick", e);
+            }
+            return pipeline.getFuture();
+        }
+    }
+
+    /**
+     * Called on the Wigzo server's lane after a processor sent to serverURL. If it failed
+     * over to another server URL meanwhile, the data left is sent there right away rather
+     * than after the backoff, which applied to the server that failed.
+     */
+    private void onServerRunFinished(final String serverURL) {
+        endpointSelector_.save();
+        final String active = getActiveServerURL();
+        if (!active.equals(serverURL) && pipeline_.hasBacklog()
+                && (connectivityMonitor_ == null || connectivityMonitor_.isConnected())) {
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.i(Wigzo.TAG, "Failing over from " + serverURL + " to " + active);
+            }
+            pipeline_.getRetryBackoff().onSuccess();
+            submit(pipeline_, newProcessor(pipeline_));
+        }
+    }
+
+    private ConnectionProcessor newProcessor(final DispatchPipeline pipeline) {
+        final ConnectionProcessor connectionProcessor;
+        if (pipeline == pipeline_) {
+            connectionProcessor = new ConnectionProcessor(getActiveServerURL(), pipeline.getStore(), deviceId_, sslContext_, transport_);
+            connectionProcessor.setRequestCompressor(requestCompressor_);
+        } else if (pipeline == appPipeline_) {
+            final ConnectionProcessorWigzoApp mobileProcessor = new ConnectionProcessorWigzoApp(serverURL_, pipeline.getStore(), deviceId_, sslContext_, transport_);
+            mobileProcessor.setEndpoint(pipeline.getSink().getEndpoint());
+            connectionProcessor = mobileProcessor;
+        } else {
+            connectionProcessor = new SinkConnectionProcessor(pipeline.getSink(), pipeline.getStore(), deviceId_, sslContext_, transport_);
+        }
+        connectionProcessor.setMaxRequestsInFlight(maxRequestsInFlight_);
+        connectionProcessor.setConnectivityMonitor(connectivityMonitor_);
+        connectionProcessor.setUploadPolicy(uploadPolicy_);
+        connectionProcessor.setRequestExpiry(isWigzoPipeline(pipeline) ? requestExpiry_ : sinkExpiry_);
+        final ConnectionProcessor.RequestListener endpointListener = pipeline == pipeline_
+                ? endpointSelector_.newRunListener(connectionProcessor.getServerURL()) : null;
+        connectionProcessor.setRequestListener(new ConnectionProcessor.RequestListener() {
+            @Override
+            public void onAcknowledged(final Transport.Request request, final long elapsedMillis) {
+                if (pipeline.onAcknowledged(elapsedMillis)) {
+                    metrics_.setGauge(METRIC_FIRST_ACK + pipeline.getName(), elapsedMillis);
+                }
+                if (endpointListener != null) {
+                    endpointListener.onAcknowledged(request, elapsedMillis);
+                }
+            }
+
+            @Override
+            public void onFailed(final Transport.Request request, final String reason) {
+                if (endpointListener != null) {
+                    endpointListener.onFailed(request, reason);
+                }
+            }
+        });
+        return connectionProcessor;
+    }
+
+    /**
+     * Returns true if queued data may be uploaded now as far as the radio is concerned:
+     * radio-aware scheduling is off, the network is not metered, the data is urgent,
+     * the radio is already active, or the data has waited for the maximum deferral.
+     */
+    boolean isRadioReady() {
+        final RadioScheduler radioScheduler = radioScheduler_;
+        if (radioScheduler == null || (connectivityMonitor_ != null && !connectivityMonitor_.isMetered())) {
+            return true;
+        }
+        final boolean ready = radioScheduler.shouldSendNow(System.currentTimeMillis(), hasUrgentData());
+        if (!ready && Wigzo.sharedInstance().isLoggingEnabled()) {
+            Log.d(Wigzo.TAG, "Radio idle, holding uploads back until it is active");
+        }
+        return ready;
+    }
 
+    private boolean hasUrgentData() {
+        for (DispatchPipeline pipeline : pipelines_) {
+            final ConnectionStore store = pipeline.getStore();
+            if (store == null) {
+                continue;
+            }
+            for (String storedEvent : store.connections()) {
+                if (RadioScheduler.isUrgent(storedEvent)) {
+                    return true;
+                }
+            }
         }
+        return false;
+    }
 
+    /**
+     * Ticks again after the radio scheduler's poll interval, unless a check is already pending.
+     */
+    private void scheduleRadioCheck() {
+        if (radioCheck_ != null && !radioCheck_.isDone()) {
+            return;
+        }
+        radioCheck_ = scheduler_.schedule(locked(new Runnable() {
+            @Override
+            public void run() {
+                // cleared first, so the tick below can schedule the next check
+                radioCheck_ = null;
+                if (store_ != null) {
+                    tick();
+                }
+            }
+        }), radioScheduler_.getPollIntervalMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ticks again once the minimum upload interval set by the server is over, unless a
+     * check is already pending.
+     */
+    private void scheduleUploadIntervalCheck(final long delayMillis) {
+        if (uploadIntervalCheck_ != null && !uploadIntervalCheck_.isDone()) {
+            return;
+        }
+        uploadIntervalCheck_ = scheduler_.schedule(locked(new Runnable() {
+            @Override
+            public void run() {
+                uploadIntervalCheck_ = null;
+                if (store_ != null) {
+                    tick();
+                }
+            }
+        }), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a task that runs the specified one with the lock of the Wigzo singleton held,
+     * for work this class starts on a background thread. The SDK's public methods hold the
+     * same lock when they call this class, so the two never queue data or tick at the same
+     * time. The lock is taken once at the outermost call: methods of this class log through
+     * Wigzo, whose methods take it too, so no second lock could be taken in a safe order.
+     */
+    private static Runnable locked(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Wigzo.sharedInstance()) {
+                    task.run();
+                }
+            }
+        };
     }
 
     // for unit testing
-    ExecutorService getExecutor() { return executor_; }
-    void setExecutor(final ExecutorService executor) { executor_ = executor; }
-    Future<?> getConnectionProcessorFuture() { return connectionProcessorFuture_; }
-    void setConnectionProcessorFuture(final Future<?> connectionProcessorFuture) { connectionProcessorFuture_ = connectionProcessorFuture; }
+    ExecutorService getExecutor() { return pipeline_.getExecutor(); }
+    void setExecutor(final ExecutorService executor) { pipeline_.setExecutor(executor); }
+    Future<?> getConnectionProcessorFuture() { return pipeline_.getFuture(); }
+    void setConnectionProcessorFuture(final Future<?> connectionProcessorFuture) { pipeline_.setFuture(connectionProcessorFuture); }
+    RequestCompressor getRequestCompressor() { return requestCompressor_; }
 
 }
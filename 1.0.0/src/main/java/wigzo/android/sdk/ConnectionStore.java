@@ -0,0 +1,48 @@
+package wigzo.android.sdk;
+
+import java.util.Collection;
+
+/**
+ * Persistent queue of the requests waiting to be sent to one server, oldest first,
+ * together with the preferences kept alongside it.
+ *
+ * Implemented by WigzoStore and WigzoAppStore so that a single ConnectionProcessor
+ * implementation can drain either of them.
+ */
+public interface ConnectionStore {
+    /**
+     * Returns the stored requests, oldest first.
+     */
+    String[] connections();
+
+    /**
+     * Returns true if no requests are stored.
+     */
+    boolean isEmptyConnections();
+
+    /**
+     * Adds a request to the end of the queue, ignored if null or empty.
+     */
+    void addConnection(String str);
+
+    /**
+     * Removes a request from the queue, ignored if null, empty or not found.
+     */
+    void removeConnection(String str);
+
+    /**
+     * Removes several requests from the queue in one write, one occurrence of each;
+     * requests that are not found are ignored.
+     */
+    void removeConnections(Collection<String> strs);
+
+    /**
+     * Retrieves a preference from the store, or null.
+     */
+    String getPreference(String key);
+
+    /**
+     * Stores a preference, or removes it if value is null.
+     */
+    void setPreference(String key, String value);
+}
@@ -0,0 +1,35 @@
+package wigzo.android.sdk;
+
+/**
+ * Tells the ConnectionQueue whether the device can currently reach the network, so
+ * uploads are not attempted while offline, and whether that network is metered, so
+ * bulk uploads can wait for an unmetered one.
+ *
+ * Implementations must be thread-safe.
+ */
+public interface ConnectivityMonitor {
+
+    /**
+     * Receives connectivity changes. Called on the thread the implementation observes
+     * changes on, for AndroidConnectivityMonitor the main thread.
+     */
+    interface Listener {
+        void onConnectivityChanged(boolean connected);
+    }
+
+    /**
+     * Returns true if a network connection is available.
+     */
+    boolean isConnected();
+
+    /**
+     * Returns true if the current network may cost the user money, such as a cellular
+     * connection or a tethered hotspot.
+     */
+    boolean isMetered();
+
+    /**
+     * Sets the listener notified when connectivity changes, or null to stop monitoring.
+     */
+    void setListener(Listener listener);
+}
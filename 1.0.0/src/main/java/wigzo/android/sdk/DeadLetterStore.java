@@ -0,0 +1,151 @@
+package wigzo.android.sdk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Bounded store of requests the server rejected permanently, kept next to the queue they
+ * were taken from so the rest of the backlog can keep draining.
+ *
+ * Entries are kept with the reason they were rejected, in the preferences of the
+ * destination's ConnectionStore. When the store is full the oldest entry is discarded.
+ * Entries can be purged, or replayed by moving them back to the end of the queue, for
+ * example after a server-side fix.
+ */
+class DeadLetterStore {
+    static final int DEFAULT_MAX_SIZE = 100;
+    static final String PREFERENCE = "DEAD_LETTERS";
+    private static final String DELIMITER = ":::";
+
+    /**
+     * A rejected request and why it was rejected.
+     */
+    static class Entry {
+        final String reason;
+        final String data;
+
+        Entry(final String reason, final String data) {
+            this.reason = reason;
+            this.data = data;
+        }
+
+        @Override
+        public String toString() {
+            return reason + " " + data;
+        }
+    }
+
+    private final ConnectionStore store_;
+    private final int maxSize_;
+    private List<Entry> entries_;
+
+    DeadLetterStore(final ConnectionStore store) {
+        this(store, DEFAULT_MAX_SIZE);
+    }
+
+    DeadLetterStore(final ConnectionStore store, final int maxSize) {
+        if (store == null) {
+            throw new IllegalArgumentException("store must not be null");
+        }
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        }
+        store_ = store;
+        maxSize_ = maxSize;
+    }
+
+    /**
+     * Adds a rejected request, discarding the oldest entry if the store is full.
+     * @param data the request as it was stored in the queue
+     * @param reason short description of the rejection, such as "http_400"
+     */
+    synchronized void add(final String data, final String reason) {
+        if (data == null || data.length() == 0) {
+            return;
+        }
+        load();
+        entries_.add(new Entry(sanitize(reason), data));
+        while (entries_.size() > maxSize_) {
+            entries_.remove(0);
+        }
+        save();
+    }
+
+    synchronized List<Entry> entries() {
+        load();
+        return Collections.unmodifiableList(new ArrayList<>(entries_));
+    }
+
+    synchronized int size() {
+        load();
+        return entries_.size();
+    }
+
+    /**
+     * Discards all entries.
+     * @return the number of entries discarded
+     */
+    synchronized int purge() {
+        load();
+        final int count = entries_.size();
+        entries_.clear();
+        save();
+        return count;
+    }
+
+    /**
+     * Moves all entries back to the end of the queue so they are sent again.
+     * @return the number of entries replayed
+     */
+    synchronized int replay() {
+        load();
+        final int count = entries_.size();
+        for (Entry entry : entries_) {
+            store_.addConnection(entry.data);
+        }
+        entries_.clear();
+        save();
+        return count;
+    }
+
+    private static String sanitize(final String reason) {
+        if (reason == null || reason.length() == 0) {
+            return "unknown";
+        }
+        // the reason is the first word of a stored entry and must not contain the delimiter
+        return reason.replace(DELIMITER, "_").replaceAll("\\s+", "_");
+    }
+
+    private void load() {
+        if (entries_ != null) {
+            return;
+        }
+        entries_ = new ArrayList<>();
+        final String joined = store_.getPreference(PREFERENCE);
+        if (joined == null || joined.length() == 0) {
+            return;
+        }
+        for (String stored : joined.split(DELIMITER)) {
+            final int space = stored.indexOf(' ');
+            if (space > 0) {
+                entries_.add(new Entry(stored.substring(0, space), stored.substring(space + 1)));
+            }
+        }
+    }
+
+    private void save() {
+        if (entries_.isEmpty()) {
+            store_.setPreference(PREFERENCE, null);
+            return;
+        }
+        final StringBuilder joined = new StringBuilder();
+        for (Entry entry : entries_) {
+            if (joined.length() > 0) {
+                joined.append(DELIMITER);
+            }
+            joined.append(entry);
+        }
+        store_.setPreference(PREFERENCE, joined.toString());
+    }
+}
@@ -0,0 +1,138 @@
+package wigzo.android.sdk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Preset Deflate dictionary for request bodies sent to a Wigzo server.
+ *
+ * A typical request is only a few hundred bytes, so plain Deflate finds almost nothing to
+ * back-reference inside a single message. Priming the compressor with the field names and
+ * URL-encoded JSON fragments that every Wigzo request shares lets their first occurrence be
+ * encoded as a match into the dictionary instead of as literals.
+ *
+ * Bodies are sent as zlib streams (HTTP "deflate" content coding), whose header carries the
+ * Adler-32 of the dictionary, and the dictionary {@link #VERSION} is sent in the
+ * {@link #HEADER} request header. A server that does not know the version answers 415.
+ *
+ * {@link #CONTENT} is generated by DeflateDictionaryBuilder, a tool in the test sources; bump
+ * {@link #VERSION} whenever it changes.
+ */
+final class DeflateDictionary {
+    /**
+     * Version of {@link #CONTENT}, sent in the {@link #HEADER} request header.
+     */
+    static final int VERSION = 1;
+    /**
+     * Request header announcing the dictionary version used for the body.
+     */
+    static final String HEADER = "X-Wigzo-Dictionary";
+    /**
+     * HTTP content coding of compressed bodies.
+     */
+    static final String CONTENT_ENCODING = "deflate";
+
+    // Deflate finds matches at short distances more cheaply, so the most common
+    // fragments are placed at the end of the dictionary.
+    static final String CONTENT =
+            "&crash=%7B%22_error%22%3A%22%2C%22_nonfatal%22%3A%22%2C%22_logs%22%3A%22%2C%22_manufacture%22%3A%22"
+            + "%2C%22_cpu%22%3A%22%2C%22_opengl%22%3A%22%2C%22_ram_current%22%3A%22%2C%22_ram_total%22%3A%22"
+            + "%2C%22_disk_current%22%3A%22%2C%22_disk_total%22%3A%22%2C%22_bat%22%3A%22%2C%22_run%22%3A%22"
+            + "%2C%22_orientation%22%3A%22portrait%22%2C%22_root%22%3A%22false%22%2C%22_online%22%3A%22true%22"
+            + "%2C%22_muted%22%3A%22false%22%2C%22_background%22%3A%22false%22%2C%22_custom%22%3A%7B%22"
+            + "&user_details=%7B%22name%22%3A%22%2C%22username%22%3A%22%2C%22email%22%3A%22%2C%22organization%22%3A%22"
+            + "%2C%22phone%22%3A%22%2C%22picture%22%3A%22%2C%22gender%22%3A%22%2C%22byear%22%3A%2C%22custom%22%3A%7B%22"
+            + "&token_session=1&android_token=&test_mode=0&locale=en_US"
+            + "&begin_session=1&metrics=%7B%22_device%22%3A%22%2C%22_os%22%3A%22Android%22%2C%22_os_version%22%3A%22"
+            + "%2C%22_carrier%22%3A%22%2C%22_resolution%22%3A%22%2C%22_density%22%3A%22XHDPI%22%2C%22_locale%22%3A%22"
+            + "%2C%22_app_version%22%3A%22%2C%22_store%22%3A%22com.android.vending%22%7D"
+            + "&end_session=1&session_duration=&location="
+            + "&events=%5B%7B%22key%22%3A%22%5BCLY%5D_view%22%2C%22count%22%3A1%2C%22timestamp%22%3A%2C%22hour%22%3A"
+            + "%2C%22dow%22%3A%2C%22segmentation%22%3A%7B%22name%22%3A%22%2C%22visit%22%3A%221%22%2C%22segment%22%3A"
+            + "%22Android%22%7D%2C%22sum%22%3A0%7D%2C%7B%22key%22%3A%22"
+            + "app_key=&orgId=&timestamp=&hour=&dow=&sdk_version=" + Wigzo.WIGZO_SDK_VERSION_STRING + "&device_id=";
+
+    private static final byte[] BYTES = toBytes(CONTENT);
+    private static final long ID = adler32(BYTES);
+
+    private DeflateDictionary() {
+    }
+
+    /**
+     * Returns the Adler-32 checksum of the dictionary, as carried in the zlib header
+     * of every compressed body.
+     */
+    static long id() {
+        return ID;
+    }
+
+    /**
+     * Compresses the specified bytes into a zlib stream primed with this dictionary.
+     */
+    static byte[] compress(final byte[] input) {
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setDictionary(BYTES);
+            deflater.setInput(input);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 32);
+            final byte[] buffer = new byte[512];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Inflates a zlib stream produced by {@link #compress(byte[])}. Used by stand-in
+     * servers and by DeflateDictionaryBuilder to verify a generated dictionary.
+     * @throws DataFormatException if the stream is corrupt or was primed with another dictionary
+     */
+    static byte[] decompress(final byte[] input) throws DataFormatException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 4);
+            final byte[] buffer = new byte[512];
+            while (!inflater.finished()) {
+                final int n = inflater.inflate(buffer);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (inflater.getAdler() != ID) {
+                            throw new DataFormatException("unknown preset dictionary " + inflater.getAdler());
+                        }
+                        inflater.setDictionary(BYTES);
+                    } else if (inflater.needsInput()) {
+                        throw new DataFormatException("truncated deflate stream");
+                    }
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    static byte[] toBytes(final String str) {
+        try {
+            return str.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // should never happen because Android guarantees UTF-8 support
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static long adler32(final byte[] bytes) {
+        final Adler32 adler = new Adler32();
+        adler.update(bytes, 0, bytes.length);
+        return adler.getValue();
+    }
+}
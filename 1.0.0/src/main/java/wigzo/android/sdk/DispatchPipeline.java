@@ -0,0 +1,232 @@
+package wigzo.android.sdk;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Upload pipeline of one {@link Sink}: its backlog, which is the destination's ConnectionStore,
+ * its retry and dead-letter state, the size of its batches, the latency its timeouts are
+ * derived from, the priority lanes its requests are sent in, and the serial lane its processors run on together with the future of the
+ * latest drain.
+ *
+ * Each sink has a pipeline of its own, so the destinations drain in parallel and a
+ * slow or failing endpoint never delays the other one.
+ *
+ * Like ConnectionQueue, this class is not synchronized; access is controlled by the Wigzo
+ * singleton.
+ */
+class DispatchPipeline {
+    private volatile Sink sink_;
+    private final SdkScheduler scheduler_;
+    private final BatchSizer batchSizer_;
+    private final AdaptiveTimeouts timeouts_;
+    private final PriorityLanes lanes_;
+    private final RequestCoalescer coalescer_;
+    private ConnectionStore store_;
+    private RetryBackoff retryBackoff_;
+    private DeadLetterStore deadLetters_;
+    private IdempotencyKeys keys_;
+    private ExecutorService executor_;
+    // volatile since a lane may resubmit itself after failing over
+    private volatile Future<?> future_;
+    private long firstAckMillis_ = -1;
+
+    DispatchPipeline(final Sink sink, final SdkScheduler scheduler) {
+        if (sink == null) {
+            throw new IllegalArgumentException("sink must not be null");
+        }
+        if (scheduler == null) {
+            throw new IllegalArgumentException("scheduler must not be null");
+        }
+        sink_ = sink;
+        scheduler_ = scheduler;
+        // a destination taking one request at a time batches events, as many as Wigzo flushes
+        batchSizer_ = new BatchSizer(sink.getName(), scheduler.getMetrics(),
+                sink.getEncoding() == Sink.Encoding.BULK ? BatchSizer.INITIAL_BATCH_SIZE : RemoteConfig.DEFAULT_FLUSH_THRESHOLD);
+        timeouts_ = new AdaptiveTimeouts(sink.getName(), scheduler.getMetrics());
+        lanes_ = new PriorityLanes(scheduler.getMetrics());
+        coalescer_ = new RequestCoalescer(scheduler.getMetrics());
+    }
+
+    Sink getSink() { return sink_; }
+
+    /**
+     * Replaces the sink, e.g. when its endpoint changes. The backlog is kept.
+     */
+    void setSink(final Sink sink) {
+        if (sink == null) {
+            throw new IllegalArgumentException("sink must not be null");
+        }
+        sink_ = sink;
+    }
+
+    String getName() { return sink_.getName(); }
+
+    /**
+     * Sets the store holding this destination's backlog, and loads the retry, dead-letter and
+     * request sequence state persisted in it. The queue of a sink takes its sequence numbers
+     * from the store it shares with the other sinks.
+     */
+    void setStore(final ConnectionStore store) {
+        store_ = store;
+        retryBackoff_ = store == null ? null : new RetryBackoff(store);
+        deadLetters_ = store == null ? null : new DeadLetterStore(store);
+        if (store instanceof SinkStore.Queue) {
+            keys_ = ((SinkStore.Queue) store).getIdempotencyKeys();
+        } else {
+            keys_ = store == null ? null : new IdempotencyKeys(store);
+        }
+    }
+
+    ConnectionStore getStore() { return store_; }
+
+    /**
+     * Queues the specified request data if the sink accepts its type. Between
+     * {@link #beginCoalescing()} and {@link #endCoalescing()} it is merged with the other data
+     * queued meanwhile where possible.
+     * @return true if the data was queued
+     */
+    boolean offer(final String eventData, final Sink.EventType type) {
+        if (store_ == null || !sink_.accepts(type)) {
+            return false;
+        }
+        if (!coalescer_.offer(eventData)) {
+            queue(eventData);
+        }
+        return true;
+    }
+
+    /**
+     * Persists request data with a sequence number for its idempotency key.
+     */
+    private void queue(final String eventData) {
+        store_.addConnection(keys_.withSequence(eventData));
+    }
+
+    /**
+     * Starts holding back the data offered, to be merged into as few requests as possible.
+     */
+    void beginCoalescing() {
+        coalescer_.begin();
+    }
+
+    /**
+     * Queues the data held back since {@link #beginCoalescing()}.
+     * @return the number of requests queued
+     */
+    int endCoalescing() {
+        final List<String> pending = coalescer_.end();
+        if (store_ == null) {
+            return 0;
+        }
+        for (String eventData : pending) {
+            queue(eventData);
+        }
+        return pending.size();
+    }
+
+    RetryBackoff getRetryBackoff() { return retryBackoff_; }
+
+    DeadLetterStore getDeadLetterStore() { return deadLetters_; }
+
+    /**
+     * Returns the batch size state of the destination, used if its sink takes batches.
+     */
+    BatchSizer getBatchSizer() { return batchSizer_; }
+
+    /**
+     * Returns the latency state of the destination, which sets the timeouts of its requests.
+     */
+    AdaptiveTimeouts getAdaptiveTimeouts() { return timeouts_; }
+
+    /**
+     * Returns the lanes deciding which of the destination's queued requests go first.
+     */
+    PriorityLanes getPriorityLanes() { return lanes_; }
+
+    /**
+     * Returns true if there is data waiting to be sent.
+     */
+    boolean hasBacklog() {
+        return store_ != null && !store_.isEmptyConnections();
+    }
+
+    /**
+     * Returns true if no drain is running or waiting to run.
+     */
+    boolean isIdle() {
+        return future_ == null || future_.isDone();
+    }
+
+    /**
+     * Ensures that the serial lane the processors run on has been created.
+     */
+    void ensureExecutor() {
+        if (executor_ == null) {
+            executor_ = scheduler_.newSerialExecutor(getName());
+        }
+    }
+
+    /**
+     * Releases the pipeline's lane once the drains already submitted have finished; nothing
+     * can be submitted afterwards.
+     */
+    void shutdown() {
+        if (executor_ != null) {
+            executor_.shutdown();
+        }
+    }
+
+    /**
+     * Submits a drain to the pipeline's lane, behind any drain already submitted.
+     * @param processor processor draining the store
+     * @param afterwards task run on the same lane once the processor has finished, or null
+     * @return future that is done when the drain, including afterwards, has finished
+     */
+    Future<?> submit(final ConnectionProcessor processor, final Runnable afterwards) {
+        ensureExecutor();
+        processor.setRetryBackoff(retryBackoff_);
+        processor.setDeadLetterStore(deadLetters_);
+        processor.setBatchSizer(batchSizer_);
+        processor.setAdaptiveTimeouts(timeouts_);
+        processor.setPriorityLanes(lanes_);
+        future_ = executor_.submit(processor);
+        if (afterwards != null) {
+            future_ = executor_.submit(afterwards);
+        }
+        return future_;
+    }
+
+    /**
+     * Runs a task on the pipeline's lane, e.g. to set up a connection before the first drain.
+     */
+    Future<?> submit(final Runnable task) {
+        ensureExecutor();
+        return executor_.submit(task);
+    }
+
+    /**
+     * Records how long an acknowledged request took.
+     * @return true if it was the first request the sink acknowledged
+     */
+    synchronized boolean onAcknowledged(final long elapsedMillis) {
+        if (firstAckMillis_ >= 0) {
+            return false;
+        }
+        firstAckMillis_ = elapsedMillis;
+        return true;
+    }
+
+    /**
+     * Returns how long the first request the sink acknowledged took, including setting up
+     * the connection, or -1 if none was acknowledged yet.
+     */
+    synchronized long getFirstAckMillis() { return firstAckMillis_; }
+
+    // for unit testing
+    ExecutorService getExecutor() { return executor_; }
+    void setExecutor(final ExecutorService executor) { executor_ = executor; }
+    Future<?> getFuture() { return future_; }
+    void setFuture(final Future<?> future) { future_ = future; }
+}
@@ -0,0 +1,327 @@
+package wigzo.android.sdk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Picks which of several equivalent server URLs, such as regional ingest hosts, uploads go to.
+ *
+ * For every URL it keeps a moving average of the round-trip time of acknowledged requests
+ * and probes, and of the rate of transient failures. Uploads go to the healthy URL with the
+ * lowest round-trip time, weighted up by its error rate. To keep from flapping between URLs
+ * of similar speed, the current one is only given up for one that is at least
+ * {@link #SWITCH_MARGIN} faster. A transient failure marks a URL unhealthy for a cooling
+ * period that doubles with every consecutive failure, up to maxCoolingMillis; uploads then
+ * fail over to the next best URL. Once the cooling period is over the URL is eligible again.
+ * If every URL is unhealthy, the one whose cooling period ends first is used.
+ *
+ * URLs that were never measured rank behind the measured ones and among themselves in the
+ * configured order, so with no measurements the first URL is used.
+ *
+ * The state is kept in the ConnectionStore preferences of the Wigzo server's queue, so
+ * it survives process restarts. Times are wall-clock milliseconds for the same reason.
+ */
+class EndpointSelector {
+    static final long DEFAULT_COOLING_MILLIS = 30 * 1000;
+    static final long DEFAULT_MAX_COOLING_MILLIS = 10 * 60 * 1000;
+    static final long PROBE_INTERVAL_MILLIS = 10 * 60 * 1000;
+    static final double SMOOTHING = 0.3;
+    static final double ERROR_PENALTY = 4;
+    static final double SWITCH_MARGIN = 0.2;
+
+    static final String PREFERENCE = "ENDPOINT_STATE";
+    static final String METRIC_ACTIVE = "endpoint.active";
+    static final String METRIC_FAILOVERS = "endpoint.failovers";
+    static final String METRIC_PREFIX = "endpoint.";
+
+    /**
+     * What is known about one URL.
+     */
+    static class Endpoint {
+        final String url;
+        // moving averages, rttMillis is negative until the first measurement
+        double rttMillis = -1;
+        double errorRate;
+        int consecutiveFailures;
+        long unhealthyUntil;
+        long measuredAt;
+
+        Endpoint(final String url) {
+            this.url = url;
+        }
+
+        boolean isHealthy(final long now) {
+            return now >= unhealthyUntil;
+        }
+
+        double score() {
+            return rttMillis < 0 ? Double.MAX_VALUE : rttMillis * (1 + ERROR_PENALTY * errorRate);
+        }
+    }
+
+    private final Metrics metrics_;
+    private final long coolingMillis_;
+    private final long maxCoolingMillis_;
+    private List<Endpoint> endpoints_ = Collections.emptyList();
+    private Endpoint active_;
+    private ConnectionStore store_;
+    private boolean loaded_;
+    private boolean dirty_;
+
+    EndpointSelector(final Metrics metrics) {
+        this(metrics, DEFAULT_COOLING_MILLIS, DEFAULT_MAX_COOLING_MILLIS);
+    }
+
+    EndpointSelector(final Metrics metrics, final long coolingMillis, final long maxCoolingMillis) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics must not be null");
+        }
+        if (coolingMillis <= 0 || maxCoolingMillis < coolingMillis) {
+            throw new IllegalArgumentException("invalid cooling periods");
+        }
+        metrics_ = metrics;
+        coolingMillis_ = coolingMillis;
+        maxCoolingMillis_ = maxCoolingMillis;
+    }
+
+    /**
+     * Sets the URLs to choose from, in order of preference. What is known about URLs that
+     * were already set is kept.
+     */
+    synchronized void setEndpoints(final List<String> urls) {
+        final List<Endpoint> endpoints = new ArrayList<>();
+        if (urls != null) {
+            for (String url : urls) {
+                Endpoint endpoint = find(url);
+                if (endpoint == null) {
+                    endpoint = new Endpoint(url);
+                }
+                endpoints.add(endpoint);
+            }
+        }
+        endpoints_ = endpoints;
+        active_ = null;
+        loaded_ = false;
+    }
+
+    synchronized List<String> getEndpoints() {
+        final List<String> urls = new ArrayList<>();
+        for (Endpoint endpoint : endpoints_) {
+            urls.add(endpoint.url);
+        }
+        return urls;
+    }
+
+    /**
+     * Sets the store the state is persisted in; it is only kept in memory if null.
+     */
+    synchronized void setStore(final ConnectionStore store) {
+        store_ = store;
+        loaded_ = false;
+    }
+
+    /**
+     * Returns the URL uploads should go to at the specified time, or null if none are set.
+     */
+    synchronized String select(final long now) {
+        load();
+        if (endpoints_.isEmpty()) {
+            return null;
+        }
+        Endpoint best = null;
+        for (Endpoint endpoint : endpoints_) {
+            // strictly lower, so ties go to the URL configured first
+            if (endpoint.isHealthy(now) && (best == null || endpoint.score() < best.score())) {
+                best = endpoint;
+            }
+        }
+        if (best == null) {
+            for (Endpoint endpoint : endpoints_) {
+                if (best == null || endpoint.unhealthyUntil < best.unhealthyUntil) {
+                    best = endpoint;
+                }
+            }
+        } else if (active_ != null && active_ != best && active_.isHealthy(now)
+                && active_.score() != Double.MAX_VALUE && best.score() > active_.score() * (1 - SWITCH_MARGIN)) {
+            best = active_;
+        }
+        if (best != active_) {
+            if (active_ != null) {
+                metrics_.increment(METRIC_FAILOVERS);
+            }
+            active_ = best;
+            metrics_.setGauge(METRIC_ACTIVE, endpoints_.indexOf(best));
+        }
+        return best.url;
+    }
+
+    /**
+     * Records a request to the URL that was acknowledged, or a probe that was answered.
+     */
+    synchronized void onSuccess(final String url, final long rttMillis, final long now) {
+        load();
+        final Endpoint endpoint = find(url);
+        if (endpoint == null) {
+            return;
+        }
+        endpoint.rttMillis = endpoint.rttMillis < 0 ? rttMillis : endpoint.rttMillis + SMOOTHING * (rttMillis - endpoint.rttMillis);
+        endpoint.errorRate = endpoint.errorRate * (1 - SMOOTHING);
+        endpoint.consecutiveFailures = 0;
+        endpoint.unhealthyUntil = 0;
+        endpoint.measuredAt = now;
+        updated(endpoint);
+    }
+
+    /**
+     * Records a transient failure of a request to the URL, marking it unhealthy.
+     * @return the time until which the URL is not used if another one is healthy
+     */
+    synchronized long onFailure(final String url, final long now) {
+        load();
+        final Endpoint endpoint = find(url);
+        if (endpoint == null) {
+            return 0;
+        }
+        endpoint.errorRate = endpoint.errorRate * (1 - SMOOTHING) + SMOOTHING;
+        endpoint.consecutiveFailures++;
+        endpoint.unhealthyUntil = now + Math.min(maxCoolingMillis_, coolingMillis_ << Math.min(endpoint.consecutiveFailures - 1, 30));
+        endpoint.measuredAt = now;
+        updated(endpoint);
+        return endpoint.unhealthyUntil;
+    }
+
+    /**
+     * Returns a listener that records the outcome of the requests of one upload run to the URL.
+     * Once a request of the run failed, the acknowledgements of requests that were still in
+     * flight no longer count, so they do not make the URL healthy again.
+     */
+    ConnectionProcessor.RequestListener newRunListener(final String url) {
+        return new ConnectionProcessor.RequestListener() {
+            // set by the first transient failure of the run, called back on the I/O threads
+            private volatile boolean failed_;
+
+            @Override
+            public void onAcknowledged(final Transport.Request request, final long elapsedMillis) {
+                if (!failed_) {
+                    onSuccess(url, elapsedMillis, System.currentTimeMillis());
+                }
+            }
+
+            @Override
+            public void onFailed(final Transport.Request request, final String reason) {
+                // a server rejecting a request is not a server that is down
+                if (!ConnectionProcessor.isPermanentFailure(reason)) {
+                    failed_ = true;
+                    onFailure(url, System.currentTimeMillis());
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the URLs that should be probed because nothing was measured for them within
+     * {@link #PROBE_INTERVAL_MILLIS}, and marks them as measured so they are not probed twice.
+     * URLs that are cooling down are left alone. With a single URL there is nothing to choose
+     * and nothing is probed.
+     */
+    synchronized List<String> takeProbes(final long now) {
+        load();
+        final List<String> probes = new ArrayList<>();
+        if (endpoints_.size() < 2) {
+            return probes;
+        }
+        for (Endpoint endpoint : endpoints_) {
+            if (endpoint.isHealthy(now) && (endpoint.measuredAt == 0 || now - endpoint.measuredAt >= PROBE_INTERVAL_MILLIS)) {
+                endpoint.measuredAt = now;
+                probes.add(endpoint.url);
+            }
+        }
+        return probes;
+    }
+
+    /**
+     * Returns true if the URL can be used at the specified time.
+     */
+    synchronized boolean isHealthy(final String url, final long now) {
+        load();
+        final Endpoint endpoint = find(url);
+        return endpoint != null && endpoint.isHealthy(now);
+    }
+
+    synchronized Endpoint getEndpoint(final String url) {
+        load();
+        return find(url);
+    }
+
+    /**
+     * Writes the state to the store if it changed since it was last saved.
+     */
+    synchronized void save() {
+        if (!dirty_ || store_ == null) {
+            return;
+        }
+        dirty_ = false;
+        final StringBuilder state = new StringBuilder();
+        for (Endpoint endpoint : endpoints_) {
+            if (state.length() > 0) {
+                state.append('\n');
+            }
+            state.append(endpoint.url).append(' ')
+                    .append(endpoint.rttMillis).append(' ')
+                    .append(endpoint.errorRate).append(' ')
+                    .append(endpoint.consecutiveFailures).append(' ')
+                    .append(endpoint.unhealthyUntil).append(' ')
+                    .append(endpoint.measuredAt);
+        }
+        store_.setPreference(PREFERENCE, state.toString());
+    }
+
+    private Endpoint find(final String url) {
+        for (Endpoint endpoint : endpoints_) {
+            if (endpoint.url.equals(url)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    private void updated(final Endpoint endpoint) {
+        dirty_ = true;
+        final int index = endpoints_.indexOf(endpoint);
+        metrics_.setGauge(METRIC_PREFIX + index + ".rtt_ms", Math.max(0, endpoint.rttMillis));
+        metrics_.setGauge(METRIC_PREFIX + index + ".error_rate", endpoint.errorRate);
+    }
+
+    private void load() {
+        if (loaded_) {
+            return;
+        }
+        loaded_ = true;
+        final String state = store_ == null ? null : store_.getPreference(PREFERENCE);
+        if (state == null) {
+            return;
+        }
+        for (String line : state.split("\n")) {
+            final String[] parts = line.split(" ");
+            // URLs that are no longer configured are dropped
+            final Endpoint endpoint = parts.length == 6 ? find(parts[0]) : null;
+            if (endpoint == null) {
+                continue;
+            }
+            try {
+                endpoint.rttMillis = Double.parseDouble(parts[1]);
+                endpoint.errorRate = Double.parseDouble(parts[2]);
+                endpoint.consecutiveFailures = Integer.parseInt(parts[3]);
+                endpoint.unhealthyUntil = Long.parseLong(parts[4]);
+                endpoint.measuredAt = Long.parseLong(parts[5]);
+            } catch (NumberFormatException ignored) {
+                endpoint.rttMillis = -1;
+                endpoint.errorRate = 0;
+                endpoint.consecutiveFailures = 0;
+                endpoint.unhealthyUntil = 0;
+                endpoint.measuredAt = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package wigzo.android.sdk;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Sink described by configuration only: a name, an endpoint, an encoding and the event
+ * types it accepts. For example, to also send events and sessions to a collector running
+ * on the local network:
+ *
+ * <pre>
+ * Wigzo.sharedInstance().addSink(new EndpointSink("collector", "http://10.0.0.2:8080/i",
+ *         Sink.Encoding.JSON_BODY, Sink.EventType.EVENTS, Sink.EventType.SESSION));
+ * </pre>
+ */
+public class EndpointSink implements Sink {
+    private final String name_;
+    private final String endpoint_;
+    private final Encoding encoding_;
+    private final Set<EventType> accepted_;
+
+    /**
+     * @param name unique name of the sink, letters, digits, '_', '-' and '.' only
+     * @param endpoint URL requests are sent to
+     * @param encoding how requests are sent
+     * @param accepted event types sent to this sink, all of them if none are specified
+     * @throws IllegalArgumentException if any of the arguments is invalid
+     */
+    public EndpointSink(final String name, final String endpoint, final Encoding encoding, final EventType... accepted) {
+        if (!isValidName(name)) {
+            throw new IllegalArgumentException("valid sink name is required");
+        }
+        if (!Wigzo.isValidURL(endpoint)) {
+            throw new IllegalArgumentException("valid endpoint is required");
+        }
+        if (encoding == null) {
+            throw new IllegalArgumentException("encoding must not be null");
+        }
+        name_ = name;
+        endpoint_ = endpoint;
+        encoding_ = encoding;
+        accepted_ = Collections.unmodifiableSet(accepted == null || accepted.length == 0
+                ? EnumSet.allOf(EventType.class)
+                : EnumSet.copyOf(Arrays.asList(accepted)));
+    }
+
+    static boolean isValidName(final String name) {
+        return name != null && name.matches("[A-Za-z0-9_.-]+");
+    }
+
+    @Override
+    public String getName() { return name_; }
+
+    @Override
+    public String getEndpoint() { return endpoint_; }
+
+    @Override
+    public Encoding getEncoding() { return encoding_; }
+
+    @Override
+    public boolean accepts(final EventType type) {
+        return accepted_.contains(type);
+    }
+
+    Set<EventType> getAccepted() { return accepted_; }
+
+    @Override
+    public String toString() {
+        return name_ + " (" + endpoint_ + ", " + encoding_ + ")";
+    }
+}
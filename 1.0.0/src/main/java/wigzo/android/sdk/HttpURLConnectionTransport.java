@@ -0,0 +1,317 @@
+package wigzo.android.sdk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Transport implementation based on the platform's HttpURLConnection.
+ *
+ * One instance is owned by ConnectionQueue and shared by every ConnectionProcessor it starts,
+ * so it outlives the processors, which are re-created on each tick. It has no threads of its
+ * own: asynchronous requests run on the I/O threads of the SdkScheduler it is given, and
+ * request deadlines on its timer, and it reports to the scheduler's metrics. Connections are never
+ * disconnected after a successful request: the response is read to the end and the stream
+ * closed, which hands the socket back to the platform's keep-alive pool so the next request
+ * to the same host skips the TCP and TLS handshakes. Only connections that failed or that
+ * the server asked to close are disconnected.
+ *
+ * HttpURLConnection does not say whether it reused a pooled socket, so reuse is estimated
+ * from bookkeeping: each connection released in a reusable state counts as one idle socket for
+ * its host (up to maxIdleConnectionsPerHost, and only until keepAliveMillis has passed), and
+ * opening a connection while an idle socket is available counts as a reuse.
+ *
+ * The read timeout of HttpURLConnection only bounds the wait for each read, so a server
+ * that trickles its response can hold a request for much longer. Each request therefore
+ * also has a deadline, its connect timeout plus its read timeout, at which a watchdog
+ * disconnects it; the request then fails with a SocketTimeoutException.
+ *
+ * NOTE: This class is only public to facilitate unit testing, because
+ *       of this bug in dexmaker: https://code.google.com/p/dexmaker/issues/detail?id=34
+ */
+public class HttpURLConnectionTransport implements Transport, Transport.Preconnect {
+    static final int DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST = 5;
+    static final long DEFAULT_KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+
+    static final String METRIC_CONNECTIONS_OPENED = "http.connections.opened";
+    static final String METRIC_CONNECTIONS_REUSED = "http.connections.reused";
+    static final String METRIC_REUSE_RATIO = "http.connections.reuse_ratio";
+    static final String METRIC_PRECONNECTS = "http.preconnects";
+    static final String METRIC_DEADLINES_EXCEEDED = "http.deadlines_exceeded";
+
+    private static final int PRECONNECT_TIMEOUT_IN_MILLISECONDS = 10000;
+
+    private static class HostState {
+        int idle;
+        long lastReleased;
+    }
+
+    private final SdkScheduler scheduler_;
+    private final Metrics metrics_;
+    private final int maxIdleConnectionsPerHost_;
+    private final long keepAliveMillis_;
+    private final Map<String, HostState> hosts_ = new HashMap<>();
+    private volatile SSLSocketFactory sslSocketFactory_;
+
+    HttpURLConnectionTransport(final SdkScheduler scheduler) {
+        this(scheduler, DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST, DEFAULT_KEEP_ALIVE_MILLIS);
+    }
+
+    HttpURLConnectionTransport(final SdkScheduler scheduler, final int maxIdleConnectionsPerHost, final long keepAliveMillis) {
+        if (scheduler == null) {
+            throw new IllegalArgumentException("scheduler must not be null");
+        }
+        scheduler_ = scheduler;
+        metrics_ = scheduler.getMetrics();
+        maxIdleConnectionsPerHost_ = maxIdleConnectionsPerHost;
+        keepAliveMillis_ = keepAliveMillis;
+    }
+
+    /**
+     * Sets the socket factory used for HTTPS connections, or null to use the platform default.
+     * Connections only resume each other's TLS sessions if they share the factory's SSL context,
+     * see {@link TlsSessionCache}.
+     */
+    void setSSLSocketFactory(final SSLSocketFactory sslSocketFactory) {
+        sslSocketFactory_ = sslSocketFactory;
+    }
+
+    SSLSocketFactory getSSLSocketFactory() {
+        return sslSocketFactory_;
+    }
+
+    /**
+     * Disconnects a connection whose request is past its deadline.
+     */
+    private static class Deadline implements Runnable {
+        private final HttpURLConnection conn_;
+        volatile boolean expired;
+
+        Deadline(final HttpURLConnection conn) {
+            conn_ = conn;
+        }
+
+        @Override
+        public void run() {
+            expired = true;
+            conn_.disconnect();
+        }
+    }
+
+    @Override
+    public Response send(final Request request) throws IOException {
+        final HttpURLConnection conn = open(new URL(request.getUrl()));
+        final Deadline deadline = new Deadline(conn);
+        final Future<?> watch = request.getConnectTimeout() > 0 && request.getReadTimeout() > 0
+                ? scheduler_.getTimer().schedule(deadline, ConnectionProcessor.deadlineMillis(request), TimeUnit.MILLISECONDS)
+                : null;
+        InputStream responseStream = null;
+        boolean failed = true;
+        try {
+            conn.setConnectTimeout(request.getConnectTimeout());
+            conn.setReadTimeout(request.getReadTimeout());
+            conn.setUseCaches(false);
+            conn.setDoInput(true);
+            conn.setRequestMethod(request.getMethod());
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                conn.setRequestProperty(header.getKey(), header.getValue());
+            }
+            final byte[] body = request.getBody();
+            if (body != null) {
+                conn.setDoOutput(true);
+                conn.setFixedLengthStreamingMode(body.length);
+                final OutputStream os = conn.getOutputStream();
+                os.write(body);
+                os.close();
+            }
+            conn.connect();
+
+            final int responseCode = conn.getResponseCode();
+            responseStream = responseCode >= 400 ? conn.getErrorStream() : conn.getInputStream();
+            final Response response = new Response(responseCode, responseStream == null ? null : readFully(responseStream));
+            for (Map.Entry<String, List<String>> header : conn.getHeaderFields().entrySet()) {
+                if (header.getKey() != null && header.getValue() != null && !header.getValue().isEmpty()) {
+                    response.setHeader(header.getKey(), header.getValue().get(0));
+                }
+            }
+            failed = false;
+            return response;
+        } catch (IOException e) {
+            if (deadline.expired) {
+                metrics_.increment(METRIC_DEADLINES_EXCEEDED);
+                throw new SocketTimeoutException("Deadline exceeded");
+            }
+            throw e;
+        } finally {
+            if (watch != null) {
+                watch.cancel(false);
+            }
+            // free connection resources, keeping the socket alive for the next request if possible
+            release(conn, responseStream, failed);
+        }
+    }
+
+    @Override
+    public Future<Response> sendAsync(final Request request, final Callback callback) {
+        return scheduler_.submitIo(new Callable<Response>() {
+            @Override
+            public Response call() throws IOException {
+                final Response response;
+                try {
+                    response = send(request);
+                } catch (IOException e) {
+                    if (callback != null) {
+                        callback.onFailure(request, e);
+                    }
+                    throw e;
+                }
+                if (callback != null) {
+                    callback.onResponse(request, response);
+                }
+                return response;
+            }
+        });
+    }
+
+    /**
+     * Resolves the host and sends it a HEAD request. Whatever the status code, the drained
+     * response hands the connected socket, TLS session included, to the keep-alive pool,
+     * where the next request to the host picks it up.
+     */
+    @Override
+    public void preconnect(final String url) throws IOException {
+        InetAddress.getAllByName(new URL(url).getHost());
+        send(new Request("HEAD", url).setTimeouts(PRECONNECT_TIMEOUT_IN_MILLISECONDS, PRECONNECT_TIMEOUT_IN_MILLISECONDS));
+        metrics_.increment(METRIC_PRECONNECTS);
+    }
+
+    /**
+     * Opens a connection to the specified URL, applying the configured socket factory.
+     */
+    HttpURLConnection open(final URL url) throws IOException {
+        final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        final SSLSocketFactory sslSocketFactory = sslSocketFactory_;
+        if (sslSocketFactory != null && conn instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) conn).setSSLSocketFactory(sslSocketFactory);
+        }
+        onOpened(hostKey(url));
+        return conn;
+    }
+
+    /**
+     * Reads the specified response stream to the end.
+     * @throws ResponseParser.ResponseTooLargeException if the response is longer than
+     *         {@link ResponseParser#MAX_RESPONSE_BYTES}, as a misbehaving proxy's might be
+     */
+    byte[] readFully(final InputStream responseStream) throws IOException {
+        return ResponseParser.read(responseStream, ResponseParser.MAX_RESPONSE_BYTES);
+    }
+
+    /**
+     * Frees the resources of a finished request. The response is drained and closed so the
+     * socket can return to the keep-alive pool; the connection is only disconnected if the
+     * request failed or the server asked to close it. The response of a failed request is
+     * closed without draining it, since what is left of it may be of any length.
+     * @param conn connection to release, ignored if null
+     * @param responseStream response stream opened for the connection, may be null
+     * @param failed true if the request failed and the socket state is unknown
+     */
+    void release(final URLConnection conn, final InputStream responseStream, boolean failed) {
+        if (responseStream != null) {
+            failed |= failed ? !close(responseStream) : !drainAndClose(responseStream);
+        }
+        if (conn instanceof HttpURLConnection) {
+            final HttpURLConnection httpConn = (HttpURLConnection) conn;
+            if (failed || "close".equalsIgnoreCase(httpConn.getHeaderField("Connection"))) {
+                httpConn.disconnect();
+            } else {
+                onReleased(hostKey(httpConn.getURL()));
+            }
+        }
+    }
+
+    /**
+     * Returns the estimated share of connections that reused a pooled socket.
+     */
+    double getReuseRatio() {
+        final long opened = metrics_.get(METRIC_CONNECTIONS_OPENED);
+        return opened == 0 ? 0 : (double) metrics_.get(METRIC_CONNECTIONS_REUSED) / opened;
+    }
+
+    Metrics getMetrics() {
+        return metrics_;
+    }
+
+    private static boolean drainAndClose(final InputStream stream) {
+        boolean drained = true;
+        try {
+            final byte[] buffer = new byte[256];
+            //noinspection StatementWithEmptyBody
+            while (stream.read(buffer) != -1) {
+            }
+        } catch (IOException e) {
+            drained = false;
+        }
+        return close(stream) && drained;
+    }
+
+    private static boolean close(final InputStream stream) {
+        try {
+            stream.close();
+            return true;
+        } catch (IOException ignored) {
+            return false;
+        }
+    }
+
+    private static String hostKey(final URL url) {
+        if (url == null) {
+            return "";
+        }
+        final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    private synchronized void onOpened(final String host) {
+        final HostState state = hosts_.get(host);
+        boolean reused = false;
+        if (state != null) {
+            if (System.currentTimeMillis() - state.lastReleased > keepAliveMillis_) {
+                state.idle = 0;
+            }
+            if (state.idle > 0) {
+                state.idle--;
+                reused = true;
+            }
+        }
+        metrics_.increment(METRIC_CONNECTIONS_OPENED);
+        if (reused) {
+            metrics_.increment(METRIC_CONNECTIONS_REUSED);
+        }
+        metrics_.setGauge(METRIC_REUSE_RATIO, getReuseRatio());
+    }
+
+    private synchronized void onReleased(final String host) {
+        HostState state = hosts_.get(host);
+        if (state == null) {
+            state = new HostState();
+            hosts_.put(host, state);
+        }
+        state.idle = Math.min(state.idle + 1, maxIdleConnectionsPerHost_);
+        state.lastReleased = System.currentTimeMillis();
+    }
+}
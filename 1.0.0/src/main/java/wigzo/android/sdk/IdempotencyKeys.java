@@ -0,0 +1,120 @@
+package wigzo.android.sdk;
+
+/**
+ * Gives every request queued for a destination a sequence number, so that the server can
+ * recognize a request it has already processed when it is sent again, for instance because
+ * the response was lost after the server had counted the events.
+ *
+ * The sequence number is stored with the entry as the {@link #SEQUENCE} parameter, so a
+ * retry after a restart or after being replayed from the dead-letter store sends the same
+ * one. When a request is sent, the device ID and the sequence number are joined into the
+ * {@link #PARAMETER} parameter, e.g. "idempotency_key=3f2a9c:1041"; in a bulk request every
+ * entry carries its own. Entries queued before sequence numbers were introduced are sent
+ * without a key.
+ *
+ * Sequence numbers increase across app launches. They are handed out from blocks of
+ * {@link #BLOCK_SIZE}, and only the end of the current block is written to the store's
+ * preferences, so queuing a request costs no extra write. After a restart numbering
+ * continues at the next block, and the rest of the last block is never used.
+ */
+class IdempotencyKeys {
+    static final String PREFERENCE = "REQUEST_SEQUENCE";
+    static final String SEQUENCE = "request_seq";
+    static final String PARAMETER = "idempotency_key";
+    static final int BLOCK_SIZE = 100;
+
+    private final ConnectionStore store_;
+    private long next_ = -1;
+    private long blockEnd_;
+
+    IdempotencyKeys(final ConnectionStore store) {
+        if (store == null) {
+            throw new IllegalArgumentException("store must not be null");
+        }
+        store_ = store;
+    }
+
+    /**
+     * Returns the next sequence number.
+     */
+    synchronized long next() {
+        if (next_ < 0) {
+            next_ = load();
+            blockEnd_ = next_;
+        }
+        if (next_ >= blockEnd_) {
+            blockEnd_ = next_ + BLOCK_SIZE;
+            store_.setPreference(PREFERENCE, String.valueOf(blockEnd_));
+        }
+        return next_++;
+    }
+
+    private long load() {
+        final String stored = store_.getPreference(PREFERENCE);
+        if (stored != null) {
+            try {
+                return Math.max(0, Long.parseLong(stored));
+            } catch (NumberFormatException ignored) {
+                // corrupt, start over
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the request data with a sequence number, unless it already has one.
+     */
+    String withSequence(final String data) {
+        if (sequenceOf(data) >= 0) {
+            return data;
+        }
+        return data + "&" + SEQUENCE + "=" + next();
+    }
+
+    /**
+     * Returns the sequence number of queued request data, or -1 if it has none.
+     */
+    static long sequenceOf(final String data) {
+        final String prefix = "&" + SEQUENCE + "=";
+        final int start = data.indexOf(prefix);
+        if (start < 0) {
+            return -1;
+        }
+        long value = 0;
+        int i = start + prefix.length();
+        final int first = i;
+        for (; i < data.length() && i - first < 18; i++) {
+            final char c = data.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return i == first ? -1 : value;
+    }
+
+    /**
+     * Returns queued request data without its sequence number.
+     */
+    static String withoutSequence(final String data) {
+        final String prefix = "&" + SEQUENCE + "=";
+        final int start = data.indexOf(prefix);
+        if (start < 0) {
+            return data;
+        }
+        int end = start + prefix.length();
+        while (end < data.length() && data.charAt(end) >= '0' && data.charAt(end) <= '9') {
+            end++;
+        }
+        return data.substring(0, start) + data.substring(end);
+    }
+
+    /**
+     * Returns the idempotency key of queued request data sent for the specified device, or
+     * null if the data has no sequence number.
+     */
+    static String keyOf(final String data, final String deviceId) {
+        final long sequence = sequenceOf(data);
+        return sequence < 0 ? null : deviceId + ":" + sequence;
+    }
+}
@@ -0,0 +1,103 @@
+package wigzo.android.sdk;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.os.PersistableBundle;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * BackgroundFlushScheduler backed by the platform's JobScheduler, available from Lollipop on.
+ * Jobs are run by {@link WigzoFlushJobService} once any network is available; an expedited
+ * job also has a short deadline so it is not batched with other work, and a regular one
+ * waits a little so the ConnectionQueue's executor gets the first chance to send the data.
+ * A job that could not drain the queue is retried with the system's exponential backoff.
+ *
+ * The server URLs, the device ID and the time uploads last started are passed to the job,
+ * so it can drain the stores in a fresh process. When public key pinning is enabled the pins cannot be restored there,
+ * so such jobs only flush while Wigzo is initialized in the process.
+ *
+ * NOTE: This class is only public to facilitate unit testing, because
+ *       of this bug in dexmaker: https://code.google.com/p/dexmaker/issues/detail?id=34
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class JobSchedulerFlushScheduler implements BackgroundFlushScheduler {
+    static final int JOB_ID = 0x57494730;
+    static final int EXPEDITED_JOB_ID = JOB_ID + 1;
+    static final long FLUSH_DELAY_MILLIS = 30 * 1000;
+    static final long EXPEDITED_DEADLINE_MILLIS = 60 * 1000;
+    static final long INITIAL_BACKOFF_MILLIS = 30 * 1000;
+
+    private final Context context_;
+    private final ConnectionQueue connectionQueue_;
+
+    JobSchedulerFlushScheduler(final Context context, final ConnectionQueue connectionQueue) {
+        if (context == null || connectionQueue == null) {
+            throw new IllegalArgumentException("context and connection queue must not be null");
+        }
+        final Context applicationContext = context.getApplicationContext();
+        context_ = applicationContext == null ? context : applicationContext;
+        connectionQueue_ = connectionQueue;
+    }
+
+    /**
+     * Returns true if the platform supports job scheduling.
+     */
+    static boolean isAvailable() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    @Override
+    public void scheduleFlush(final boolean expedited) {
+        final JobScheduler jobScheduler = (JobScheduler) context_.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null) {
+            return;
+        }
+        final JobInfo.Builder builder = new JobInfo.Builder(expedited ? EXPEDITED_JOB_ID : JOB_ID,
+                new ComponentName(context_, WigzoFlushJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setBackoffCriteria(INITIAL_BACKOFF_MILLIS, JobInfo.BACKOFF_POLICY_EXPONENTIAL)
+                .setExtras(extras());
+        if (expedited) {
+            builder.setOverrideDeadline(EXPEDITED_DEADLINE_MILLIS);
+        } else {
+            builder.setMinimumLatency(FLUSH_DELAY_MILLIS);
+        }
+        try {
+            jobScheduler.schedule(builder.build());
+        } catch (RuntimeException e) {
+            // e.g. the service is missing from a manifest that was merged without it
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.w(Wigzo.TAG, "Unable to schedule background flush", e);
+            }
+        }
+    }
+
+    @Override
+    public void cancel() {
+        final JobScheduler jobScheduler = (JobScheduler) context_.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler != null) {
+            jobScheduler.cancel(JOB_ID);
+            jobScheduler.cancel(EXPEDITED_JOB_ID);
+        }
+    }
+
+    private PersistableBundle extras() {
+        final PersistableBundle extras = new PersistableBundle();
+        final DeviceId deviceId = connectionQueue_.getDeviceId();
+        if (Wigzo.publicKeyPinCertificates == null && deviceId != null && deviceId.getId() != null) {
+            extras.putString(BackgroundFlush.EXTRA_SERVER_URL, connectionQueue_.getActiveServerURL());
+            final List<String> serverURLs = connectionQueue_.getServerURLs();
+            extras.putStringArray(BackgroundFlush.EXTRA_SERVER_URLS, serverURLs.toArray(new String[serverURLs.size()]));
+            extras.putLong(BackgroundFlush.EXTRA_UPLOADS_STARTED_AT, connectionQueue_.getUploadsStartedAt());
+            extras.putString(BackgroundFlush.EXTRA_DEVICE_ID, deviceId.getId());
+            extras.putString(BackgroundFlush.EXTRA_MOBILE_ENDPOINT, connectionQueue_.getMobileEndpoint());
+        }
+        return extras;
+    }
+}
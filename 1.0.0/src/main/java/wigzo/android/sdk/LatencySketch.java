@@ -0,0 +1,104 @@
+package wigzo.android.sdk;
+
+/**
+ * Streaming quantile sketch of latencies in milliseconds, in constant memory.
+ *
+ * Samples are counted in buckets whose bounds grow geometrically, so any quantile is
+ * reported within {@link #RELATIVE_ACCURACY} of the true sample value, from 1 ms up to
+ * {@link #MAX_LATENCY_MILLIS}; longer samples count as the maximum. Once
+ * {@link #DEFAULT_WINDOW} samples have been added all counts are halved, so older samples
+ * lose weight and the quantiles follow a network that changes, e.g. from Wi-Fi to 2G.
+ *
+ * This class is thread-safe.
+ */
+class LatencySketch {
+    static final double RELATIVE_ACCURACY = 0.02;
+    static final long MAX_LATENCY_MILLIS = 10 * 60 * 1000;
+    static final int DEFAULT_WINDOW = 500;
+
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+
+    private final int[] counts_ = new int[indexOf(MAX_LATENCY_MILLIS) + 1];
+    private final int window_;
+    private int count_;
+
+    LatencySketch() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window number of samples after which older samples count half
+     */
+    LatencySketch(final int window) {
+        if (window < 2) {
+            throw new IllegalArgumentException("window must be at least 2");
+        }
+        window_ = window;
+    }
+
+    /**
+     * Returns the bucket of a latency; bucket i holds values in (GAMMA^(i-1), GAMMA^i].
+     */
+    private static int indexOf(final long millis) {
+        if (millis <= 1) {
+            return 0;
+        }
+        return (int) Math.ceil(Math.log(Math.min(millis, MAX_LATENCY_MILLIS)) / LOG_GAMMA);
+    }
+
+    /**
+     * Returns the value reported for a bucket, which is within the relative accuracy of
+     * every value in it.
+     */
+    private static double valueOf(final int index) {
+        return index == 0 ? 1 : 2 * Math.pow(GAMMA, index) / (GAMMA + 1);
+    }
+
+    synchronized void add(final long millis) {
+        if (count_ >= window_) {
+            decay();
+        }
+        counts_[indexOf(millis)]++;
+        count_++;
+    }
+
+    /**
+     * Halves all counts. A bucket holding a single sample is emptied, so a slow sample that
+     * was not repeated is forgotten once about half a window of newer samples has been added.
+     */
+    private void decay() {
+        count_ = 0;
+        for (int i = 0; i < counts_.length; i++) {
+            counts_[i] /= 2;
+            count_ += counts_[i];
+        }
+    }
+
+    /**
+     * Returns the specified quantile in milliseconds, or -1 if no sample was added.
+     * @param q quantile between 0 and 1, e.g. 0.99 for the 99th percentile
+     */
+    synchronized long quantile(final double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("quantile must be between 0 and 1");
+        }
+        if (count_ == 0) {
+            return -1;
+        }
+        final long rank = (long) Math.floor(q * (count_ - 1));
+        long seen = 0;
+        for (int i = 0; i < counts_.length; i++) {
+            seen += counts_[i];
+            if (seen > rank) {
+                return Math.round(valueOf(i));
+            }
+        }
+        return MAX_LATENCY_MILLIS;
+    }
+
+    /**
+     * Returns the weight of the samples added, at most the window.
+     */
+    synchronized int getCount() { return count_; }
+}
@@ -0,0 +1,320 @@
+package wigzo.android.sdk;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory Transport that simulates a network link without opening sockets, so the upload
+ * pipeline can be tested and benchmarked end-to-end on a plain JVM.
+ *
+ * The link has a round-trip latency, an upstream bandwidth shared by all requests (the URL and
+ * body of each request are serialized on it one after another, so overlapping requests compete
+ * for it while their latencies overlap) and a failure rate, the probability that a request fails
+ * with an IOException as if the connection had dropped. Requests that get through are answered by a
+ * {@link Handler}, which by default reports {"result":"Success"}.
+ *
+ * A request whose response would take longer than its read timeout fails with a
+ * SocketTimeoutException once the timeout has passed, and gives the link up at that point.
+ * The stall rate is the probability that a request is never answered, as if the server or a
+ * middlebox had swallowed it; it then times out the same way, unless it has no read timeout.
+ *
+ * A connection setup cost can be added, which the first request to each host pays on top of
+ * the latency, as if it had to resolve the host and do the TCP and TLS handshakes; later
+ * requests to the host reuse the connection. {@link #preconnect(String)} pays it in advance.
+ *
+ * {@link #sendAsync(Request, Callback)} does not hold a thread while a request is in flight,
+ * so any number of requests can overlap.
+ */
+public class LoopbackTransport implements Transport, Transport.Preconnect {
+
+    /**
+     * Produces the response of the simulated server.
+     */
+    public interface Handler {
+        Response handle(Request request) throws IOException;
+    }
+
+    static final Handler SUCCESS_HANDLER = new Handler() {
+        @Override
+        public Response handle(final Request request) {
+            return new Response(200, DeflateDictionary.toBytes("{\"result\":\"Success\"}"));
+        }
+    };
+
+    private final List<Request> requests_ = Collections.synchronizedList(new ArrayList<Request>());
+    private final ScheduledExecutorService timer_;
+    private final Random random_;
+    private volatile Handler handler_ = SUCCESS_HANDLER;
+    private volatile long latencyMillis_;
+    private volatile long bandwidthBytesPerSecond_;
+    private volatile double failureRate_;
+    private volatile double stallRate_;
+    private volatile long connectLatencyMillis_;
+    private final Set<String> connectedHosts_ = new HashSet<>();
+    private int connections_;
+    private long linkFreeAtNanos_;
+    private int inFlight_;
+    private int maxInFlight_;
+    private long bytesTransferred_;
+
+    public LoopbackTransport() {
+        this(new Random());
+    }
+
+    LoopbackTransport(final Random random) {
+        random_ = random;
+        timer_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "Wigzo-LoopbackTransport");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sets the round-trip latency added to every request.
+     */
+    public LoopbackTransport setLatency(final long latencyMillis) {
+        latencyMillis_ = latencyMillis;
+        return this;
+    }
+
+    /**
+     * Sets the link bandwidth in bytes per second, 0 for unlimited.
+     */
+    public LoopbackTransport setBandwidth(final long bytesPerSecond) {
+        bandwidthBytesPerSecond_ = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Sets the probability, between 0 and 1, that a request fails with an IOException.
+     */
+    public LoopbackTransport setFailureRate(final double failureRate) {
+        if (failureRate < 0 || failureRate > 1) {
+            throw new IllegalArgumentException("failure rate must be between 0 and 1");
+        }
+        failureRate_ = failureRate;
+        return this;
+    }
+
+    /**
+     * Sets the probability, between 0 and 1, that a request gets no response until it times out.
+     */
+    public LoopbackTransport setStallRate(final double stallRate) {
+        if (stallRate < 0 || stallRate > 1) {
+            throw new IllegalArgumentException("stall rate must be between 0 and 1");
+        }
+        stallRate_ = stallRate;
+        return this;
+    }
+
+    /**
+     * Sets the connection setup time paid by the first request to each host.
+     */
+    public LoopbackTransport setConnectLatency(final long connectLatencyMillis) {
+        connectLatencyMillis_ = connectLatencyMillis;
+        return this;
+    }
+
+    @Override
+    public void preconnect(final String url) throws IOException {
+        if (connect(url)) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(connectLatencyMillis_);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+        }
+    }
+
+    /**
+     * Marks the host of the URL as connected.
+     * @return true if it was not connected before, so the connection setup cost is due
+     */
+    private synchronized boolean connect(final String url) {
+        String host;
+        try {
+            final URL parsed = new URL(url);
+            host = parsed.getProtocol() + "://" + parsed.getAuthority();
+        } catch (MalformedURLException e) {
+            host = url;
+        }
+        if (connectedHosts_.add(host)) {
+            connections_++;
+            return true;
+        }
+        return false;
+    }
+
+    public LoopbackTransport setHandler(final Handler handler) {
+        handler_ = handler == null ? SUCCESS_HANDLER : handler;
+        return this;
+    }
+
+    @Override
+    public Response send(final Request request) throws IOException {
+        final long delayNanos = begin(request) + connectNanos(request);
+        final boolean timedOut = isTimedOut(request, delayNanos);
+        final long waitNanos = timedOut ? timeoutNanos(request) : delayNanos;
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                finish();
+                throw new IOException("interrupted");
+            }
+        }
+        return timedOut ? timeOut() : complete(request);
+    }
+
+    @Override
+    public Future<Response> sendAsync(final Request request, final Callback callback) {
+        final long delayNanos = begin(request) + connectNanos(request);
+        final boolean timedOut = isTimedOut(request, delayNanos);
+        return timer_.schedule(new Callable<Response>() {
+            @Override
+            public Response call() throws IOException {
+                final Response response;
+                try {
+                    response = timedOut ? timeOut() : complete(request);
+                } catch (IOException e) {
+                    if (callback != null) {
+                        callback.onFailure(request, e);
+                    }
+                    throw e;
+                }
+                if (callback != null) {
+                    callback.onResponse(request, response);
+                }
+                return response;
+            }
+        }, timedOut ? timeoutNanos(request) : delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static long timeoutNanos(final Request request) {
+        return TimeUnit.MILLISECONDS.toNanos(request.getReadTimeout());
+    }
+
+    /**
+     * Returns true if the response, due after delayNanos, would arrive after the request's
+     * read timeout, or if the request stalls. The link is then only held until the timeout,
+     * when the request gives up.
+     */
+    private synchronized boolean isTimedOut(final Request request, final long delayNanos) {
+        final long timeoutNanos = timeoutNanos(request);
+        if (request.getReadTimeout() <= 0) {
+            return false;
+        }
+        final boolean stalled = stallRate_ > 0 && random_.nextDouble() < stallRate_;
+        if (!stalled && delayNanos <= timeoutNanos) {
+            return false;
+        }
+        linkFreeAtNanos_ = Math.min(linkFreeAtNanos_, System.nanoTime() + timeoutNanos);
+        return true;
+    }
+
+    private Response timeOut() throws SocketTimeoutException {
+        finish();
+        throw new SocketTimeoutException("Read timed out");
+    }
+
+    private long connectNanos(final Request request) {
+        return connect(request.getUrl()) ? TimeUnit.MILLISECONDS.toNanos(connectLatencyMillis_) : 0;
+    }
+
+    /**
+     * Reserves the link for the request body and returns the time until its response arrives.
+     */
+    private synchronized long begin(final Request request) {
+        requests_.add(request);
+        inFlight_++;
+        maxInFlight_ = Math.max(maxInFlight_, inFlight_);
+
+        final long now = System.nanoTime();
+        long transferNanos = 0;
+        final int bytes = request.getUrl().length() + request.getBodyLength();
+        bytesTransferred_ += bytes;
+        if (bandwidthBytesPerSecond_ > 0) {
+            transferNanos = bytes * 1000000000L / bandwidthBytesPerSecond_;
+        }
+        final long start = Math.max(now, linkFreeAtNanos_);
+        linkFreeAtNanos_ = start + transferNanos;
+        return linkFreeAtNanos_ + TimeUnit.MILLISECONDS.toNanos(latencyMillis_) - now;
+    }
+
+    private Response complete(final Request request) throws IOException {
+        try {
+            final boolean drop;
+            synchronized (this) {
+                drop = failureRate_ > 0 && random_.nextDouble() < failureRate_;
+            }
+            if (drop) {
+                throw new IOException("simulated network failure");
+            }
+            final Response response = handler_.handle(request);
+            synchronized (this) {
+                bytesTransferred_ += response.getBody().length;
+            }
+            return response;
+        } finally {
+            finish();
+        }
+    }
+
+    private synchronized void finish() {
+        inFlight_--;
+    }
+
+    /**
+     * Returns a copy of all requests sent so far, in the order they were sent.
+     */
+    List<Request> getRequests() {
+        synchronized (requests_) {
+            return new ArrayList<>(requests_);
+        }
+    }
+
+    /**
+     * Returns the highest number of requests that were in flight at the same time.
+     */
+    synchronized int getMaxInFlight() {
+        return maxInFlight_;
+    }
+
+    /**
+     * Returns the number of connections set up, by requests or by preconnect.
+     */
+    synchronized int getConnections() {
+        return connections_;
+    }
+
+    synchronized long getBytesTransferred() {
+        return bytesTransferred_;
+    }
+
+    /**
+     * Stops the timer thread used by sendAsync.
+     */
+    public void shutdown() {
+        timer_.shutdownNow();
+    }
+}
@@ -0,0 +1,81 @@
+package wigzo.android.sdk;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters and gauges describing how the SDK moves data to the server,
+ * for example how often HTTP connections are reused.
+ *
+ * All methods are thread-safe, since values are updated from the background
+ * upload thread while the host app may read them at any time.
+ */
+public class Metrics {
+    private final ConcurrentHashMap<String, AtomicLong> counters_ = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Double> gauges_ = new ConcurrentHashMap<>();
+
+    /**
+     * Adds one to the named counter.
+     */
+    void increment(final String name) {
+        add(name, 1);
+    }
+
+    /**
+     * Adds delta to the named counter, creating it if needed.
+     */
+    void add(final String name, final long delta) {
+        AtomicLong counter = counters_.get(name);
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong();
+            counter = counters_.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.addAndGet(delta);
+    }
+
+    /**
+     * Returns the value of the named counter, or 0 if it was never incremented.
+     */
+    long get(final String name) {
+        final AtomicLong counter = counters_.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Sets the named gauge to the specified value.
+     */
+    void setGauge(final String name, final double value) {
+        gauges_.put(name, value);
+    }
+
+    /**
+     * Returns the value of the named gauge, or 0 if it was never set.
+     */
+    double getGauge(final String name) {
+        final Double value = gauges_.get(name);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * Returns a sorted copy of all counters and gauges.
+     */
+    public Map<String, Number> snapshot() {
+        final Map<String, Number> snapshot = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> counter : counters_.entrySet()) {
+            snapshot.put(counter.getKey(), counter.getValue().get());
+        }
+        snapshot.putAll(gauges_);
+        return snapshot;
+    }
+
+    // for unit testing
+    void clear() {
+        counters_.clear();
+        gauges_.clear();
+    }
+}
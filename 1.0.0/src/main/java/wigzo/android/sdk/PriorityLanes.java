@@ -0,0 +1,159 @@
+package wigzo.android.sdk;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Decides in which order the queued requests of one destination are sent, so crash reports
+ * and push tokens do not wait behind hundreds of event batches.
+ *
+ * Every queued request belongs to a lane: crash reports and push tokens are CRITICAL, session
+ * requests and everything not listed otherwise are NORMAL, events, user details and pictures
+ * are BULK. The lanes are views of the one queue, so within a lane requests keep their queue
+ * order. The lanes are served by stride scheduling with the weights 4, 2 and 1: while all of
+ * them have requests waiting, out of every 7 requests sent 4 are critical, 2 normal and 1 bulk,
+ * so bulk data keeps moving however much else is queued. A lane that was empty does not save
+ * up a share to use later. Which lane was served is remembered across runs through
+ * {@link #onSent(String)}.
+ *
+ * Session requests (begin_session, session_duration and end_session) are barriers: one is
+ * sent only after every request queued before it, and no request queued after it is sent
+ * before it, so the server sees the events of a session between its begin and its end.
+ * Only the requests between two barriers are reordered. Crash reports are the exception,
+ * they do not depend on the session state and go ahead of everything.
+ *
+ * One instance is shared by all processors of a destination.
+ */
+class PriorityLanes {
+    enum Lane {
+        CRITICAL(4), NORMAL(2), BULK(1);
+
+        final int weight;
+
+        Lane(final int weight) {
+            this.weight = weight;
+        }
+
+        /**
+         * Returns how far the lane's pass advances for each request sent from it.
+         */
+        long stride() {
+            return STRIDE / weight;
+        }
+    }
+
+    static final String METRIC_SENT = "lanes.sent.";
+
+    private static final long STRIDE = 4;
+    private static final Lane[] LANES = Lane.values();
+
+    private final Metrics metrics_;
+    private final long[] pass_ = new long[LANES.length];
+    private long virtualTime_;
+
+    PriorityLanes(final Metrics metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics must not be null");
+        }
+        metrics_ = metrics;
+    }
+
+    /**
+     * Returns the lane of a queued request.
+     */
+    static Lane laneOf(final String storedEvent) {
+        switch (Sink.EventType.of(storedEvent)) {
+            case CRASH:
+            case PUSH_TOKEN:
+                return Lane.CRITICAL;
+            case EVENTS:
+            case USER_DETAILS:
+            case PICTURE:
+                return Lane.BULK;
+            default:
+                return Lane.NORMAL;
+        }
+    }
+
+    private static boolean isBarrier(final String storedEvent) {
+        return storedEvent.contains("&begin_session=") || storedEvent.contains("&session_duration=")
+                || storedEvent.contains("&end_session=");
+    }
+
+    /**
+     * Returns the queued requests in the order they should be sent, if each of them is sent
+     * in turn.
+     */
+    synchronized List<String> inSendingOrder(final String[] storedEvents) {
+        final long[] pass = pass_.clone();
+        long virtualTime = virtualTime_;
+        final List<String> ordered = new ArrayList<>(storedEvents.length);
+        final List<LinkedList<String>> lanes = new ArrayList<>(LANES.length);
+        for (int i = 0; i < LANES.length; i++) {
+            lanes.add(new LinkedList<String>());
+        }
+        // crash reports are never held back by a barrier
+        for (String storedEvent : storedEvents) {
+            if (storedEvent.contains("&crash=")) {
+                lanes.get(Lane.CRITICAL.ordinal()).add(storedEvent);
+            }
+        }
+        for (String storedEvent : storedEvents) {
+            if (storedEvent.contains("&crash=")) {
+                continue;
+            }
+            final int lane = laneOf(storedEvent).ordinal();
+            if (isBarrier(storedEvent)) {
+                // everything queued before the barrier goes first
+                virtualTime = serve(lanes, pass, virtualTime, ordered);
+                ordered.add(storedEvent);
+                virtualTime = Math.max(virtualTime, pass[lane]);
+                pass[lane] = virtualTime + LANES[lane].stride();
+            } else {
+                lanes.get(lane).add(storedEvent);
+            }
+        }
+        serve(lanes, pass, virtualTime, ordered);
+        return ordered;
+    }
+
+    /**
+     * Moves all requests waiting in the lanes to the sending order, by stride.
+     * @return the virtual time after they have been served
+     */
+    private static long serve(final List<LinkedList<String>> lanes, final long[] pass, long virtualTime, final List<String> ordered) {
+        for (int lane = nextLane(lanes, pass, virtualTime); lane >= 0; lane = nextLane(lanes, pass, virtualTime)) {
+            ordered.add(lanes.get(lane).poll());
+            virtualTime = Math.max(virtualTime, pass[lane]);
+            pass[lane] = virtualTime + LANES[lane].stride();
+        }
+        return virtualTime;
+    }
+
+    /**
+     * Returns the lane with requests waiting that has the lowest pass, or -1 if all are empty.
+     * A lane that was empty has fallen behind, it starts again from the current virtual time.
+     */
+    private static int nextLane(final List<LinkedList<String>> lanes, final long[] pass, final long virtualTime) {
+        int lane = -1;
+        for (int i = 0; i < LANES.length; i++) {
+            if (!lanes.get(i).isEmpty() && (lane < 0 || Math.max(pass[i], virtualTime) < Math.max(pass[lane], virtualTime))) {
+                lane = i;
+            }
+        }
+        return lane;
+    }
+
+    /**
+     * Records that a queued request is being sent, which uses up a share of its lane.
+     */
+    synchronized void onSent(final String storedEvent) {
+        final Lane lane = laneOf(storedEvent);
+        final int i = lane.ordinal();
+        virtualTime_ = Math.max(virtualTime_, pass_[i]);
+        pass_[i] = virtualTime_ + lane.stride();
+        metrics_.increment(METRIC_SENT + lane.name().toLowerCase(Locale.US));
+    }
+}
@@ -0,0 +1,105 @@
+package wigzo.android.sdk;
+
+/**
+ * Defers non-urgent uploads until the cellular radio is already active, so they piggyback
+ * on traffic that has paid for the wakeup instead of waking the radio and keeping it in its
+ * high-power tail state for several seconds on their own.
+ *
+ * The radio is considered active for {@link #DEFAULT_RADIO_TAIL_MILLIS} after the host app's
+ * byte counter was seen to grow, or after the SDK's own last upload. Urgent data (crash
+ * reports and session begin/end) is never deferred, and nothing waits longer than the
+ * maximum deferral: the first upload that was held back is sent at that deadline anyway.
+ * If the platform does not count traffic, uploads are sent right away.
+ *
+ * The byte counter is sampled whenever the queue is ticked, so the ConnectionQueue polls
+ * every {@link #getPollIntervalMillis()} while data is being held back. Bytes moved by the
+ * SDK's own uploads are excluded by taking a new baseline when they have finished.
+ */
+class RadioScheduler {
+    static final long DEFAULT_MAX_DEFERRAL_MILLIS = 5 * 60 * 1000;
+    static final long DEFAULT_RADIO_TAIL_MILLIS = 10 * 1000;
+    static final long DEFAULT_POLL_INTERVAL_MILLIS = 5 * 1000;
+
+    private final TrafficCounter counter_;
+    private final long maxDeferralMillis_;
+    private final long radioTailMillis_;
+    private final long pollIntervalMillis_;
+
+    private long baseline_ = TrafficCounter.UNSUPPORTED;
+    private long lastActiveAt_ = Long.MIN_VALUE;
+    private long deferredSince_ = -1;
+
+    RadioScheduler(final TrafficCounter counter) {
+        this(counter, DEFAULT_MAX_DEFERRAL_MILLIS, DEFAULT_RADIO_TAIL_MILLIS, DEFAULT_POLL_INTERVAL_MILLIS);
+    }
+
+    RadioScheduler(final TrafficCounter counter, final long maxDeferralMillis, final long radioTailMillis, final long pollIntervalMillis) {
+        if (counter == null) {
+            throw new IllegalArgumentException("counter must not be null");
+        }
+        if (maxDeferralMillis < 0 || radioTailMillis < 0 || pollIntervalMillis <= 0) {
+            throw new IllegalArgumentException("invalid scheduling parameters");
+        }
+        counter_ = counter;
+        maxDeferralMillis_ = maxDeferralMillis;
+        radioTailMillis_ = radioTailMillis;
+        pollIntervalMillis_ = pollIntervalMillis;
+    }
+
+    long getMaxDeferralMillis() { return maxDeferralMillis_; }
+
+    long getPollIntervalMillis() { return pollIntervalMillis_; }
+
+    /**
+     * Returns true if the request is urgent enough to wake the radio for.
+     */
+    static boolean isUrgent(final String storedEvent) {
+        return storedEvent.contains("&crash=") || storedEvent.contains("&begin_session=") || storedEvent.contains("&end_session=");
+    }
+
+    /**
+     * Samples the traffic counter and decides whether queued data should be uploaded now.
+     * When it returns false the data is held back and the caller should ask again later.
+     * @param now current time in milliseconds
+     * @param urgent true if the queue contains urgent data
+     */
+    synchronized boolean shouldSendNow(final long now, final boolean urgent) {
+        final long bytes = counter_.getTotalBytes();
+        if (bytes == TrafficCounter.UNSUPPORTED) {
+            // the radio state cannot be observed, behave as if this mode was off
+            return true;
+        }
+        if (baseline_ != TrafficCounter.UNSUPPORTED && bytes != baseline_) {
+            lastActiveAt_ = now;
+        }
+        baseline_ = bytes;
+        if (urgent || isRadioActive(now)) {
+            return true;
+        }
+        if (deferredSince_ < 0) {
+            deferredSince_ = now;
+        }
+        return now - deferredSince_ >= maxDeferralMillis_;
+    }
+
+    /**
+     * Records that an upload run has finished. The radio stays active for its tail after it,
+     * and the bytes the run moved are taken out of the traffic counter's baseline.
+     */
+    synchronized void onUploadsFinished(final long now) {
+        lastActiveAt_ = now;
+        deferredSince_ = -1;
+        baseline_ = counter_.getTotalBytes();
+    }
+
+    synchronized boolean isRadioActive(final long now) {
+        return lastActiveAt_ != Long.MIN_VALUE && now - lastActiveAt_ <= radioTailMillis_;
+    }
+
+    /**
+     * Returns when the first held back upload was deferred, or -1 if nothing is held back.
+     */
+    synchronized long getDeferredSince() {
+        return deferredSince_;
+    }
+}
@@ -0,0 +1,187 @@
+package wigzo.android.sdk;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SDK settings sent by the Wigzo server, which lets it tune or shed the load devices put on
+ * it without an app release. An instance is immutable, so a new configuration is applied
+ * atomically by replacing the instance.
+ *
+ * The configuration is a JSON object; every member is optional and falls back to the
+ * built-in default when missing or invalid:
+ * <pre>
+ * {
+ *   "uploads_enabled": true,        // false parks all uploads, the data stays queued
+ *   "disabled_types": ["crash"],    // event types that are not recorded at all
+ *   "sampling": {"events": 0.25},   // share of devices that record an event type
+ *   "flush_threshold": 10,          // events queued before they are sent
+ *   "min_upload_interval_s": 0,     // minimum time between two upload runs
+ *   "refresh_interval_s": 3600,     // how often the configuration is fetched again
+ *   "ttl_s": {"session": 86400}     // time to live of queued requests per type, 0 for none
+ * }
+ * </pre>
+ * Event types are named like the constants of {@link Sink.EventType}, in any case.
+ */
+class RemoteConfig {
+    static final int DEFAULT_FLUSH_THRESHOLD = 10;
+    static final long DEFAULT_REFRESH_INTERVAL_MILLIS = 60 * 60 * 1000;
+    static final long MIN_REFRESH_INTERVAL_MILLIS = 60 * 1000;
+    static final long MAX_MIN_UPLOAD_INTERVAL_MILLIS = 24 * 60 * 60 * 1000;
+
+    static final RemoteConfig DEFAULTS = new RemoteConfig(true, EnumSet.noneOf(Sink.EventType.class),
+            new EnumMap<Sink.EventType, Double>(Sink.EventType.class), DEFAULT_FLUSH_THRESHOLD, 0, DEFAULT_REFRESH_INTERVAL_MILLIS,
+            new EnumMap<Sink.EventType, Long>(Sink.EventType.class));
+
+    private final boolean uploadsEnabled_;
+    private final Set<Sink.EventType> disabledTypes_;
+    private final Map<Sink.EventType, Double> sampleRates_;
+    private final int flushThreshold_;
+    private final long minUploadIntervalMillis_;
+    private final long refreshIntervalMillis_;
+    private final Map<Sink.EventType, Long> ttls_;
+
+    private RemoteConfig(final boolean uploadsEnabled, final Set<Sink.EventType> disabledTypes, final Map<Sink.EventType, Double> sampleRates,
+                         final int flushThreshold, final long minUploadIntervalMillis, final long refreshIntervalMillis,
+                         final Map<Sink.EventType, Long> ttls) {
+        uploadsEnabled_ = uploadsEnabled;
+        disabledTypes_ = Collections.unmodifiableSet(disabledTypes);
+        sampleRates_ = Collections.unmodifiableMap(sampleRates);
+        flushThreshold_ = flushThreshold;
+        minUploadIntervalMillis_ = minUploadIntervalMillis;
+        refreshIntervalMillis_ = refreshIntervalMillis;
+        ttls_ = Collections.unmodifiableMap(ttls);
+    }
+
+    /**
+     * Parses a configuration sent by the server.
+     * @throws JSONException if json is not a JSON object
+     */
+    static RemoteConfig parse(final String json) throws JSONException {
+        final JSONObject config = new JSONObject(json);
+
+        final Set<Sink.EventType> disabledTypes = EnumSet.noneOf(Sink.EventType.class);
+        final JSONArray types = config.optJSONArray("disabled_types");
+        if (types != null) {
+            for (int i = 0; i < types.length(); i++) {
+                final Sink.EventType type = eventType(types.optString(i));
+                if (type != null) {
+                    disabledTypes.add(type);
+                }
+            }
+        }
+
+        final Map<Sink.EventType, Double> sampleRates = new EnumMap<>(Sink.EventType.class);
+        final JSONObject sampling = config.optJSONObject("sampling");
+        if (sampling != null) {
+            final Iterator<String> names = sampling.keys();
+            while (names.hasNext()) {
+                final String name = names.next();
+                final Sink.EventType type = eventType(name);
+                final double rate = sampling.optDouble(name);
+                if (type != null && rate >= 0 && rate <= 1) {
+                    sampleRates.put(type, rate);
+                }
+            }
+        }
+
+        final Map<Sink.EventType, Long> ttls = new EnumMap<>(Sink.EventType.class);
+        final JSONObject ttl = config.optJSONObject("ttl_s");
+        if (ttl != null) {
+            final Iterator<String> names = ttl.keys();
+            while (names.hasNext()) {
+                final String name = names.next();
+                final Sink.EventType type = eventType(name);
+                final long seconds = ttl.optLong(name, -1);
+                if (type != null && seconds >= 0) {
+                    ttls.put(type, seconds * 1000);
+                }
+            }
+        }
+
+        final int flushThreshold = config.optInt("flush_threshold", DEFAULT_FLUSH_THRESHOLD);
+        final long minUploadIntervalMillis = config.optLong("min_upload_interval_s", 0) * 1000;
+        final long refreshIntervalMillis = config.optLong("refresh_interval_s", DEFAULT_REFRESH_INTERVAL_MILLIS / 1000) * 1000;
+        return new RemoteConfig(config.optBoolean("uploads_enabled", true), disabledTypes, sampleRates,
+                flushThreshold >= 1 ? flushThreshold : DEFAULT_FLUSH_THRESHOLD,
+                Math.min(Math.max(minUploadIntervalMillis, 0), MAX_MIN_UPLOAD_INTERVAL_MILLIS),
+                Math.max(refreshIntervalMillis, MIN_REFRESH_INTERVAL_MILLIS), ttls);
+    }
+
+    private static Sink.EventType eventType(final String name) {
+        try {
+            return Sink.EventType.valueOf(name.toUpperCase(Locale.US));
+        } catch (IllegalArgumentException e) {
+            // a type this version of the SDK does not know
+            return null;
+        }
+    }
+
+    /**
+     * Returns false if uploads are switched off, in which case queued data waits until
+     * they are switched on again.
+     */
+    boolean isUploadsEnabled() { return uploadsEnabled_; }
+
+    Set<Sink.EventType> getDisabledTypes() { return disabledTypes_; }
+
+    /**
+     * Returns the share of devices that record data of the specified type, between 0 and 1.
+     */
+    double getSampleRate(final Sink.EventType type) {
+        final Double rate = sampleRates_.get(type);
+        return rate == null ? 1 : rate;
+    }
+
+    /**
+     * Returns true if data of the specified type is to be recorded.
+     * @param samplingUnit a value between 0 inclusive and 1 exclusive that stays the same on
+     *                     a device, so a device records a type either always or never
+     */
+    boolean records(final Sink.EventType type, final double samplingUnit) {
+        return !disabledTypes_.contains(type) && samplingUnit < getSampleRate(type);
+    }
+
+    /**
+     * Returns a value between 0 inclusive and 1 exclusive derived from the device ID and
+     * the event type, so that sampling keeps or drops all data of a type on a device, and
+     * devices dropping one type are not the ones dropping another.
+     */
+    static double samplingUnit(final String deviceId, final Sink.EventType type) {
+        int h = (deviceId + ':' + type.name()).hashCode();
+        // spread the bits of the String hash, which differ little between similar IDs
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) / (double) (1L << 31);
+    }
+
+    /**
+     * Returns the number of queued custom events that triggers sending them.
+     */
+    int getFlushThreshold() { return flushThreshold_; }
+
+    long getMinUploadIntervalMillis() { return minUploadIntervalMillis_; }
+
+    long getRefreshIntervalMillis() { return refreshIntervalMillis_; }
+
+    /**
+     * Returns the time to live of queued requests of the specified type, 0 if they never
+     * expire, or -1 if the server does not set it.
+     */
+    long getTimeToLiveMillis(final Sink.EventType type) {
+        final Long ttl = ttls_.get(type);
+        return ttl == null ? -1 : ttl;
+    }
+}
@@ -0,0 +1,205 @@
+package wigzo.android.sdk;
+
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * Fetches the {@link RemoteConfig} from the Wigzo server and keeps the current one.
+ *
+ * The configuration is fetched from {@link #PATH} with a conditional GET: the ETag of the
+ * configuration in use is sent as If-None-Match, so while it has not changed the server
+ * answers 304 with an empty body. It is fetched again once its refresh interval is over,
+ * whether the last fetch succeeded or not, so a server in trouble gets at most one request
+ * per device and interval.
+ *
+ * The configuration is kept with its ETag and the time of the last fetch in the
+ * ConnectionStore preferences of the Wigzo server's queue, so it applies from the start
+ * of the next launch, before it is fetched again.
+ */
+class RemoteConfigClient {
+    static final String PATH = "/o/sdk/config";
+    static final String PREFERENCE = "REMOTE_CONFIG";
+    static final int TIMEOUT_IN_MILLISECONDS = 10000;
+    static final String METRIC_FETCHES = "config.fetches";
+    static final String METRIC_NOT_MODIFIED = "config.not_modified";
+    static final String METRIC_UPDATES = "config.updates";
+    static final String METRIC_DROPPED = "config.dropped";
+
+    private final Metrics metrics_;
+    private volatile RemoteConfig config_ = RemoteConfig.DEFAULTS;
+    private ConnectionStore store_;
+    private String etag_;
+    private String json_;
+    private long fetchedAt_;
+    private boolean fetching_;
+
+    RemoteConfigClient(final Metrics metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics must not be null");
+        }
+        metrics_ = metrics;
+    }
+
+    /**
+     * Sets the store the configuration is persisted in, and applies the configuration
+     * persisted in it, if any.
+     */
+    synchronized void setStore(final ConnectionStore store) {
+        store_ = store;
+        config_ = RemoteConfig.DEFAULTS;
+        etag_ = null;
+        json_ = null;
+        fetchedAt_ = 0;
+        final String stored = store == null ? null : store.getPreference(PREFERENCE);
+        if (stored == null) {
+            return;
+        }
+        // fetch time, ETag and configuration on a line each
+        final String[] parts = stored.split("\n", 3);
+        try {
+            if (parts.length == 3) {
+                config_ = RemoteConfig.parse(parts[2]);
+                fetchedAt_ = Long.parseLong(parts[0]);
+                etag_ = parts[1].length() == 0 ? null : parts[1];
+                json_ = parts[2];
+            }
+        } catch (JSONException | NumberFormatException e) {
+            config_ = RemoteConfig.DEFAULTS;
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.w(Wigzo.TAG, "Discarding invalid stored SDK configuration", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the configuration in use, the defaults until one has been received.
+     */
+    RemoteConfig getConfig() { return config_; }
+
+    synchronized String getETag() { return etag_; }
+
+    /**
+     * Returns true if the configuration should be fetched at the specified time, and no
+     * fetch is under way.
+     */
+    synchronized boolean isDue(final long now) {
+        return !fetching_ && (fetchedAt_ == 0 || now - fetchedAt_ >= config_.getRefreshIntervalMillis() || now < fetchedAt_);
+    }
+
+    /**
+     * Returns the URL the configuration of the specified app is fetched from.
+     */
+    static String url(final String serverURL, final String appKey) {
+        try {
+            return serverURL + PATH + "?app_key=" + URLEncoder.encode(appKey, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // every platform is required to support UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Fetches the configuration from the specified URL and applies it if it changed.
+     * Blocks until done; concurrent calls return false right away.
+     * @return true if a new configuration was applied
+     * @throws IOException if the server could not be reached
+     */
+    boolean fetch(final Transport transport, final String url, final long now) throws IOException {
+        final String etag;
+        synchronized (this) {
+            if (fetching_) {
+                return false;
+            }
+            fetching_ = true;
+            etag = etag_;
+        }
+        try {
+            final Transport.Request request = new Transport.Request("GET", url)
+                    .setTimeouts(TIMEOUT_IN_MILLISECONDS, TIMEOUT_IN_MILLISECONDS);
+            if (etag != null) {
+                request.setHeader("If-None-Match", etag);
+            }
+            metrics_.increment(METRIC_FETCHES);
+            final Transport.Response response;
+            try {
+                response = transport.send(request);
+            } catch (IOException e) {
+                onFetched(now);
+                throw e;
+            }
+            if (response.getCode() == 304) {
+                metrics_.increment(METRIC_NOT_MODIFIED);
+                onFetched(now);
+                return false;
+            }
+            if (!response.isSuccessful()) {
+                if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Wigzo.TAG, "HTTP error response code was " + response.getCode() + " from fetching the SDK configuration");
+                }
+                onFetched(now);
+                return false;
+            }
+            return apply(new String(response.getBody(), "UTF-8"), response.getHeader("ETag"), now);
+        } finally {
+            synchronized (this) {
+                fetching_ = false;
+            }
+        }
+    }
+
+    /**
+     * Applies and persists a configuration received from the server, unless it is invalid
+     * or the one in use.
+     * @return true if the configuration was applied
+     */
+    synchronized boolean apply(final String json, final String etag, final long now) {
+        fetchedAt_ = now;
+        if (json.equals(json_)) {
+            etag_ = etag;
+            save();
+            return false;
+        }
+        final RemoteConfig config;
+        try {
+            config = RemoteConfig.parse(json);
+        } catch (JSONException e) {
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.w(Wigzo.TAG, "SDK configuration from Wigzo server was not JSON: " + json);
+            }
+            save();
+            return false;
+        }
+        config_ = config;
+        etag_ = etag;
+        json_ = json;
+        metrics_.increment(METRIC_UPDATES);
+        save();
+        if (Wigzo.sharedInstance().isLoggingEnabled()) {
+            Log.i(Wigzo.TAG, "Applied SDK configuration " + json);
+        }
+        return true;
+    }
+
+    private synchronized void onFetched(final long now) {
+        fetchedAt_ = now;
+        save();
+    }
+
+    private void save() {
+        if (store_ != null) {
+            store_.setPreference(PREFERENCE, fetchedAt_ + "\n" + (etag_ == null ? "" : etag_) + "\n" + (json_ == null ? "{}" : json_));
+        }
+    }
+
+    /**
+     * Counts a request that was not recorded because of the configuration.
+     */
+    void onDropped() {
+        metrics_.increment(METRIC_DROPPED);
+    }
+}
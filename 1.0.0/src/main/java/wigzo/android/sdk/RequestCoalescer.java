@@ -0,0 +1,187 @@
+package wigzo.android.sdk;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the requests a destination is given within one window, typically one timer tick,
+ * into as few requests as the server accepts, before they are persisted.
+ *
+ * Session duration updates, events and user details can share one request, since the server
+ * takes each of them from the parameters of any request. Requests are merged if they are
+ * for the same app key and organization; the merged request keeps the timestamp of the first.
+ * The event arrays of two events requests are joined into one. A merged request is expired
+ * and prioritized as its most restrictive part, see {@link Sink.EventType#of}: a session
+ * update carrying events is still a session request. Other requests, such as
+ * begin_session, end_session, crash reports or pictures, are never merged, and no request is
+ * merged across them, so the queue order stays as it was. A merged request is not allowed
+ * to grow beyond {@link UploadPolicy#BULK_THRESHOLD_BYTES}, so a session update never turns
+ * into a request that is held back on metered networks.
+ *
+ * Outside of a window requests are queued as they come.
+ */
+class RequestCoalescer {
+    static final String METRIC_MERGED = "coalescing.merged";
+
+    private static final List<String> HEADER_KEYS = Arrays.asList("app_key", "orgId", "timestamp", "hour", "dow");
+    private static final List<String> MATCHED_KEYS = Arrays.asList("app_key", "orgId");
+
+    private final Metrics metrics_;
+    private List<String> pending_;
+
+    RequestCoalescer(final Metrics metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics must not be null");
+        }
+        metrics_ = metrics;
+    }
+
+    /**
+     * Starts holding back the requests offered, until {@link #end()}.
+     */
+    synchronized void begin() {
+        if (pending_ == null) {
+            pending_ = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Holds request data back in the current window, merged into the data held back before
+     * if possible.
+     * @return false if there is no window, and the data is to be queued right away
+     */
+    synchronized boolean offer(final String data) {
+        if (pending_ == null) {
+            return false;
+        }
+        final int last = pending_.size() - 1;
+        final String merged = last < 0 ? null : merge(pending_.get(last), data);
+        if (merged == null) {
+            pending_.add(data);
+        } else {
+            pending_.set(last, merged);
+            metrics_.increment(METRIC_MERGED);
+        }
+        return true;
+    }
+
+    /**
+     * Ends the window.
+     * @return the data held back, in queue order, to be queued now
+     */
+    synchronized List<String> end() {
+        final List<String> pending = pending_ == null ? new ArrayList<String>() : pending_;
+        pending_ = null;
+        return pending;
+    }
+
+    /**
+     * Returns true if the request data may be merged with others.
+     */
+    static boolean isCoalescable(final String data) {
+        if (data.contains("&begin_session=") || data.contains("&end_session=")) {
+            return false;
+        }
+        switch (Sink.EventType.of(data)) {
+            case SESSION:
+            case EVENTS:
+            case USER_DETAILS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns request data that carries both of the specified ones, or null if they cannot be
+     * merged.
+     */
+    static String merge(final String first, final String second) {
+        if (!isCoalescable(first) || !isCoalescable(second)
+                || first.length() + second.length() > UploadPolicy.BULK_THRESHOLD_BYTES) {
+            return null;
+        }
+        final Map<String, String> merged = parameters(first);
+        final Map<String, String> added = parameters(second);
+        for (String key : MATCHED_KEYS) {
+            final String value = merged.get(key);
+            if (value == null ? added.get(key) != null : !value.equals(added.get(key))) {
+                return null;
+            }
+        }
+        for (Map.Entry<String, String> entry : added.entrySet()) {
+            final String key = entry.getKey();
+            if (HEADER_KEYS.contains(key)) {
+                continue;
+            }
+            if (!merged.containsKey(key)) {
+                merged.put(key, entry.getValue());
+            } else if (key.equals("events")) {
+                final String events = joinEvents(merged.get(key), entry.getValue());
+                if (events == null) {
+                    return null;
+                }
+                merged.put(key, events);
+            } else {
+                // e.g. two session updates, which the server would not add up
+                return null;
+            }
+        }
+        final StringBuilder data = new StringBuilder(first.length() + second.length());
+        for (Map.Entry<String, String> entry : merged.entrySet()) {
+            if (data.length() > 0) {
+                data.append('&');
+            }
+            data.append(entry.getKey());
+            if (entry.getValue() != null) {
+                data.append('=').append(entry.getValue());
+            }
+        }
+        return data.toString();
+    }
+
+    /**
+     * Returns the parameters of request data in their order, with their values still encoded;
+     * a parameter without a value maps to null.
+     */
+    private static Map<String, String> parameters(final String data) {
+        final Map<String, String> parameters = new LinkedHashMap<>();
+        for (String parameter : data.split("&")) {
+            if (parameter.isEmpty()) {
+                continue;
+            }
+            final int equals = parameter.indexOf('=');
+            if (equals < 0) {
+                parameters.put(parameter, null);
+            } else {
+                parameters.put(parameter.substring(0, equals), parameter.substring(equals + 1));
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Joins two URL-encoded JSON arrays of events into one, or returns null if either is not one.
+     */
+    private static String joinEvents(final String first, final String second) {
+        try {
+            final JSONArray events = new JSONArray(URLDecoder.decode(first, "UTF-8"));
+            final JSONArray more = new JSONArray(URLDecoder.decode(second, "UTF-8"));
+            for (int i = 0; i < more.length(); i++) {
+                events.put(more.get(i));
+            }
+            return URLEncoder.encode(events.toString(), "UTF-8");
+        } catch (JSONException | UnsupportedEncodingException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package wigzo.android.sdk;
+
+/**
+ * Holds the request compression setting shared by all ConnectionProcessor instances
+ * created by a ConnectionQueue, together with the outcome of negotiating it with the server.
+ *
+ * Compression is optional and off by default. Once the server answers a compressed request
+ * with 415 (Unsupported Media Type), compression stays off for the rest of the process and
+ * requests are sent as plain query strings again.
+ */
+class RequestCompressor {
+    private volatile boolean enabled_;
+    private volatile boolean rejected_;
+
+    boolean isEnabled() {
+        return enabled_;
+    }
+
+    void setEnabled(final boolean enabled) {
+        enabled_ = enabled;
+    }
+
+    /**
+     * Returns true if request bodies should currently be compressed.
+     */
+    boolean isActive() {
+        return enabled_ && !rejected_;
+    }
+
+    boolean isRejected() {
+        return rejected_;
+    }
+
+    /**
+     * Records the server's answer to a compressed request.
+     * @param responseCode HTTP response code of the compressed request
+     * @return true if the server rejected the encoding and the request should be resent uncompressed
+     */
+    boolean onResponse(final int responseCode) {
+        if (responseCode == 415) {
+            rejected_ = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the compressed form of a stored request.
+     */
+    byte[] compress(final String eventData) {
+        return DeflateDictionary.compress(DeflateDictionary.toBytes(eventData));
+    }
+
+    // for unit testing
+    void reset() {
+        rejected_ = false;
+    }
+}
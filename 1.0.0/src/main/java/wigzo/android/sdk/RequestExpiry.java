@@ -0,0 +1,260 @@
+package wigzo.android.sdk;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Drops queued requests that are too old to be worth sending, such as session pings from
+ * last week or events older than the server's ingestion window, so they do not hold up
+ * current data. Each event type has a time to live, counted from the timestamp of the
+ * request; 0 keeps requests of the type until they are sent.
+ *
+ * Requests are queued in the order they were recorded, so the expired ones are at the head
+ * of the queue. Expiry walks the queue from the head and stops at the first request younger
+ * than the shortest time to live, since nothing behind it can have expired, and removes the
+ * expired requests in one write. A request without a timestamp never expires.
+ *
+ * What was dropped is added up per store, as the number of requests per type together with
+ * the number of events and the session seconds they held, and persisted in the store under
+ * {@link #PREFERENCE}; it is also counted in the metrics.
+ *
+ * The times to live of the Wigzo servers can be overridden by the server's configuration.
+ */
+class RequestExpiry {
+    static final String PREFERENCE = "EXPIRED";
+    static final String EVENT_COUNT = "event_count";
+    static final String SESSION_SECONDS = "session_seconds";
+    static final String METRIC_EXPIRED = "expiry.dropped.";
+
+    static final Map<Sink.EventType, Long> DEFAULT_TTL_MILLIS;
+
+    static {
+        final long day = 24L * 60 * 60 * 1000;
+        final Map<Sink.EventType, Long> ttls = new EnumMap<>(Sink.EventType.class);
+        ttls.put(Sink.EventType.SESSION, 2 * day);
+        ttls.put(Sink.EventType.EVENTS, 7 * day);
+        ttls.put(Sink.EventType.USER_DETAILS, 30 * day);
+        ttls.put(Sink.EventType.PICTURE, 7 * day);
+        ttls.put(Sink.EventType.CRASH, 30 * day);
+        ttls.put(Sink.EventType.PUSH_TOKEN, 7 * day);
+        ttls.put(Sink.EventType.REFERRER, 30 * day);
+        ttls.put(Sink.EventType.OTHER, 7 * day);
+        DEFAULT_TTL_MILLIS = Collections.unmodifiableMap(ttls);
+    }
+
+    private final Map<Sink.EventType, Long> ttls_;
+    private final Metrics metrics_;
+    private final RemoteConfigClient remoteConfig_;
+
+    RequestExpiry(final Metrics metrics) {
+        this(new EnumMap<>(DEFAULT_TTL_MILLIS), metrics, null);
+    }
+
+    private RequestExpiry(final Map<Sink.EventType, Long> ttls, final Metrics metrics, final RemoteConfigClient remoteConfig) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics must not be null");
+        }
+        ttls_ = ttls;
+        metrics_ = metrics;
+        remoteConfig_ = remoteConfig;
+    }
+
+    /**
+     * Returns an expiry sharing the times to live of this one, which the server's
+     * configuration overrides where it sets them.
+     */
+    RequestExpiry withRemoteConfig(final RemoteConfigClient remoteConfig) {
+        return new RequestExpiry(ttls_, metrics_, remoteConfig);
+    }
+
+    /**
+     * Sets the time to live of requests of the specified type.
+     * @param ttlMillis time to live in milliseconds, 0 to keep requests until they are sent
+     * @throws IllegalArgumentException if type is null or ttlMillis is negative
+     */
+    void setTimeToLive(final Sink.EventType type, final long ttlMillis) {
+        if (type == null || ttlMillis < 0) {
+            throw new IllegalArgumentException("valid type and time to live are required");
+        }
+        synchronized (ttls_) {
+            ttls_.put(type, ttlMillis);
+        }
+    }
+
+    /**
+     * Returns the time to live of requests of the specified type, 0 if they do not expire.
+     */
+    long getTimeToLive(final Sink.EventType type) {
+        if (remoteConfig_ != null) {
+            final long remote = remoteConfig_.getConfig().getTimeToLiveMillis(type);
+            if (remote >= 0) {
+                return remote;
+            }
+        }
+        synchronized (ttls_) {
+            return ttls_.get(type);
+        }
+    }
+
+    /**
+     * Removes the expired requests from the store and adds them to its summary.
+     * @return the number of requests removed
+     */
+    int expire(final ConnectionStore store, final long nowMillis) {
+        final Map<Sink.EventType, Long> ttls = new EnumMap<>(Sink.EventType.class);
+        long minTtl = Long.MAX_VALUE;
+        for (Sink.EventType type : Sink.EventType.values()) {
+            final long ttl = getTimeToLive(type);
+            ttls.put(type, ttl);
+            if (ttl > 0) {
+                minTtl = Math.min(minTtl, ttl);
+            }
+        }
+        if (minTtl == Long.MAX_VALUE) {
+            // nothing expires
+            return 0;
+        }
+
+        final String[] connections = store.connections();
+        final List<String> expired = new ArrayList<>();
+        final Map<String, Long> dropped = new HashMap<>();
+        for (String connection : connections) {
+            final long timestamp = timestampMillis(connection);
+            if (timestamp < 0) {
+                continue;
+            }
+            final long age = nowMillis - timestamp;
+            if (age <= minTtl) {
+                // the requests behind this one were recorded later
+                break;
+            }
+            final Sink.EventType type = Sink.EventType.of(connection);
+            final long ttl = ttls.get(type);
+            if (ttl > 0 && age > ttl) {
+                expired.add(connection);
+                add(dropped, type.name().toLowerCase(Locale.US), 1);
+                add(dropped, EVENT_COUNT, eventCount(connection));
+                add(dropped, SESSION_SECONDS, parameter(connection, "session_duration"));
+                metrics_.increment(METRIC_EXPIRED + type.name().toLowerCase(Locale.US));
+            }
+        }
+        if (expired.isEmpty()) {
+            return 0;
+        }
+        store.removeConnections(expired);
+        addToSummary(store, dropped);
+        if (Wigzo.sharedInstance().isLoggingEnabled()) {
+            Log.i(Wigzo.TAG, "Dropped " + expired.size() + " expired requests: " + dropped);
+        }
+        return expired.size();
+    }
+
+    private static void add(final Map<String, Long> counts, final String key, final long value) {
+        if (value > 0) {
+            final Long count = counts.get(key);
+            counts.put(key, count == null ? value : count + value);
+        }
+    }
+
+    /**
+     * Returns the counts of what expired in the specified store, e.g. {"events": 3,
+     * "event_count": 57}, empty if nothing did.
+     */
+    static Map<String, Long> getSummary(final ConnectionStore store) {
+        final Map<String, Long> summary = new HashMap<>();
+        final String json = store.getPreference(PREFERENCE);
+        if (json != null) {
+            try {
+                final JSONObject counts = new JSONObject(json);
+                final Iterator<String> keys = counts.keys();
+                while (keys.hasNext()) {
+                    final String key = keys.next();
+                    summary.put(key, counts.optLong(key));
+                }
+            } catch (JSONException ignored) {
+                // corrupt, start over
+            }
+        }
+        return summary;
+    }
+
+    private static void addToSummary(final ConnectionStore store, final Map<String, Long> dropped) {
+        final Map<String, Long> summary = getSummary(store);
+        for (Map.Entry<String, Long> entry : dropped.entrySet()) {
+            add(summary, entry.getKey(), entry.getValue());
+        }
+        store.setPreference(PREFERENCE, new JSONObject(summary).toString());
+    }
+
+    /**
+     * Returns the timestamp of a queued request in milliseconds, or -1 if it has none.
+     */
+    static long timestampMillis(final String connection) {
+        final long seconds = parameter(connection, "timestamp");
+        return seconds < 0 ? -1 : seconds * 1000;
+    }
+
+    /**
+     * Returns the value of a numeric parameter of a queued request, or -1 if it is missing
+     * or not a number.
+     */
+    private static long parameter(final String connection, final String name) {
+        int start;
+        if (connection.startsWith(name + "=")) {
+            start = name.length() + 1;
+        } else {
+            start = connection.indexOf("&" + name + "=");
+            if (start < 0) {
+                return -1;
+            }
+            start += name.length() + 2;
+        }
+        long value = 0;
+        int i = start;
+        for (; i < connection.length() && i - start < 18; i++) {
+            final char c = connection.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return i == start ? -1 : value;
+    }
+
+    /**
+     * Returns how many events an events request holds, counting each event's count.
+     */
+    static long eventCount(final String connection) {
+        final int start = connection.indexOf("&events=");
+        if (start < 0) {
+            return 0;
+        }
+        final int end = connection.indexOf('&', start + 1);
+        try {
+            final JSONArray events = new JSONArray(URLDecoder.decode(
+                    connection.substring(start + "&events=".length(), end < 0 ? connection.length() : end), "UTF-8"));
+            long count = 0;
+            for (int i = 0; i < events.length(); i++) {
+                final JSONObject event = events.optJSONObject(i);
+                count += event == null ? 1 : event.optInt("count", 1);
+            }
+            return count;
+        } catch (JSONException | UnsupportedEncodingException | IllegalArgumentException e) {
+            return 1;
+        }
+    }
+}
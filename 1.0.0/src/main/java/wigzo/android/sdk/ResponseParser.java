@@ -0,0 +1,202 @@
+package wigzo.android.sdk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads response bodies and checks them for {"result":"Success"} without building a String
+ * or a JSONObject per response.
+ *
+ * Bodies are read in bulk into a buffer each thread reuses, and copied out once at their
+ * final size, so the short acknowledgements of the Wigzo server cost a single allocation.
+ * Bodies longer than the cap, such as the pages some proxies and captive portals answer
+ * with, are not read any further.
+ */
+class ResponseParser {
+    static final int MAX_RESPONSE_BYTES = 64 * 1024;
+    static final int BUFFER_SIZE = 4 * 1024;
+
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private static final byte[] RESULT = {'r', 'e', 's', 'u', 'l', 't'};
+    private static final byte[] SUCCESS = {'s', 'u', 'c', 'c', 'e', 's', 's'};
+
+    /**
+     * Outcome of checking a response body.
+     */
+    enum Result {
+        /** a JSON object whose "result" is "success", ignoring case */
+        SUCCESS,
+        /** a JSON object without such a result */
+        REJECTED,
+        /** not a JSON object */
+        NOT_JSON
+    }
+
+    /**
+     * Thrown when a response body exceeds the cap.
+     */
+    static class ResponseTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ResponseTooLargeException(final int maxBytes) {
+            super("response exceeds " + maxBytes + " bytes");
+        }
+    }
+
+    private ResponseParser() {
+    }
+
+    /**
+     * Reads the stream to the end.
+     * @throws ResponseTooLargeException if it holds more than maxBytes bytes, which are not read
+     */
+    static byte[] read(final InputStream in, final int maxBytes) throws IOException {
+        final byte[] buffer = BUFFER.get();
+        ByteArrayOutputStream overflow = null;
+        int length = 0;
+        int total = 0;
+        int n;
+        while ((n = in.read(buffer, length, buffer.length - length)) != -1) {
+            length += n;
+            total += n;
+            if (total > maxBytes) {
+                throw new ResponseTooLargeException(maxBytes);
+            }
+            if (length == buffer.length) {
+                if (overflow == null) {
+                    overflow = new ByteArrayOutputStream(2 * buffer.length);
+                }
+                overflow.write(buffer, 0, length);
+                length = 0;
+            }
+        }
+        if (overflow == null) {
+            return Arrays.copyOf(buffer, length);
+        }
+        overflow.write(buffer, 0, length);
+        return overflow.toByteArray();
+    }
+
+    /**
+     * Scans a JSON body for a top-level "result" member whose value is the string "success",
+     * ignoring case. Only the structure needed to find it is checked: the body must be a
+     * complete object, strings and nesting are tracked so that a "result" inside a nested
+     * value or a string does not count, but numbers and literals are not validated.
+     */
+    static Result checkResult(final byte[] body) {
+        final int length = body.length;
+        int i = skipWhitespace(body, 0);
+        if (i >= length || body[i] != '{') {
+            return Result.NOT_JSON;
+        }
+        int depth = 0;
+        // true where a member name is expected in the top-level object
+        boolean expectKey = false;
+        boolean resultKey = false;
+        boolean success = false;
+        while (i < length) {
+            final byte b = body[i];
+            if (b == '"') {
+                final int end = endOfString(body, i);
+                if (end < 0) {
+                    return Result.NOT_JSON;
+                }
+                if (depth == 1) {
+                    if (expectKey) {
+                        resultKey = equals(body, i + 1, end, RESULT, false);
+                        expectKey = false;
+                    } else if (resultKey) {
+                        success = equals(body, i + 1, end, SUCCESS, true);
+                        resultKey = false;
+                    }
+                }
+                i = end + 1;
+                continue;
+            }
+            switch (b) {
+                case '{':
+                case '[':
+                    depth++;
+                    if (depth == 1) {
+                        expectKey = true;
+                    } else if (depth == 2) {
+                        // the value of the member is not a string
+                        resultKey = false;
+                    }
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    if (depth == 0) {
+                        return skipWhitespace(body, i + 1) == length
+                                ? (success ? Result.SUCCESS : Result.REJECTED)
+                                : Result.NOT_JSON;
+                    }
+                    break;
+                case ',':
+                    if (depth == 1) {
+                        expectKey = true;
+                        resultKey = false;
+                    }
+                    break;
+                case ':':
+                    break;
+                default:
+                    if (depth == 1 && !isWhitespace(b)) {
+                        // a number or literal value
+                        resultKey = false;
+                    }
+                    break;
+            }
+            i++;
+        }
+        // unterminated
+        return Result.NOT_JSON;
+    }
+
+    /**
+     * Returns the index of the quote that closes the string opening at start, or -1.
+     */
+    private static int endOfString(final byte[] body, final int start) {
+        for (int i = start + 1; i < body.length; i++) {
+            if (body[i] == '\\') {
+                i++;
+            } else if (body[i] == '"') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean equals(final byte[] body, final int start, final int end, final byte[] expected, final boolean ignoreCase) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            final byte b = body[start + i];
+            if (b != expected[i] && !(ignoreCase && b >= 'A' && b <= 'Z' && b + ('a' - 'A') == expected[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipWhitespace(final byte[] body, int i) {
+        while (i < body.length && isWhitespace(body[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isWhitespace(final byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+}
@@ -0,0 +1,186 @@
+package wigzo.android.sdk;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Retry state of one destination: when the next upload attempt may be made after a failure,
+ * and whether the circuit breaker is open.
+ *
+ * Each failed run doubles the delay before the next attempt, from baseDelayMillis up to
+ * maxDelayMillis, and picks the actual delay uniformly between 0 and that bound ("full jitter"),
+ * so devices that failed together do not retry together. When the server throttles (429 or
+ * 503) the delay is at least half the bound, and a Retry-After header is honored as a lower
+ * bound. After circuitThreshold consecutive failures the circuit opens and no attempts are made
+ * for coolingPeriodMillis; the first attempt after that is a single probe, and one more failure
+ * opens the circuit again.
+ *
+ * The state is kept in the destination's ConnectionStore preferences, so it survives process
+ * restarts. Times are wall-clock milliseconds for the same reason.
+ */
+class RetryBackoff {
+    static final long DEFAULT_BASE_DELAY_MILLIS = 5 * 1000;
+    static final long DEFAULT_MAX_DELAY_MILLIS = 5 * 60 * 1000;
+    static final int DEFAULT_CIRCUIT_THRESHOLD = 5;
+    static final long DEFAULT_COOLING_PERIOD_MILLIS = 10 * 60 * 1000;
+    static final long MAX_RETRY_AFTER_MILLIS = 24 * 60 * 60 * 1000;
+
+    static final String PREFERENCE = "RETRY_STATE";
+
+    private final ConnectionStore store_;
+    private final Random random_;
+    private final long baseDelayMillis_;
+    private final long maxDelayMillis_;
+    private final int circuitThreshold_;
+    private final long coolingPeriodMillis_;
+
+    private int failures_;
+    private long nextAttemptAt_;
+    private boolean loaded_;
+
+    RetryBackoff(final ConnectionStore store) {
+        this(store, new Random(), DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_CIRCUIT_THRESHOLD, DEFAULT_COOLING_PERIOD_MILLIS);
+    }
+
+    RetryBackoff(final ConnectionStore store, final Random random, final long baseDelayMillis, final long maxDelayMillis,
+                 final int circuitThreshold, final long coolingPeriodMillis) {
+        if (store == null) {
+            throw new IllegalArgumentException("store must not be null");
+        }
+        if (baseDelayMillis <= 0 || maxDelayMillis < baseDelayMillis || circuitThreshold < 1 || coolingPeriodMillis < 0) {
+            throw new IllegalArgumentException("invalid backoff parameters");
+        }
+        store_ = store;
+        random_ = random;
+        baseDelayMillis_ = baseDelayMillis;
+        maxDelayMillis_ = maxDelayMillis;
+        circuitThreshold_ = circuitThreshold;
+        coolingPeriodMillis_ = coolingPeriodMillis;
+    }
+
+    /**
+     * Returns true if an upload may be attempted at the specified time.
+     */
+    synchronized boolean canAttempt(final long now) {
+        load();
+        return now >= nextAttemptAt_;
+    }
+
+    /**
+     * Returns true if the circuit is open, i.e. the threshold of consecutive failures was reached.
+     * Once the cooling period is over the next attempt is a probe.
+     */
+    synchronized boolean isCircuitOpen() {
+        load();
+        return failures_ >= circuitThreshold_;
+    }
+
+    synchronized int getFailures() {
+        load();
+        return failures_;
+    }
+
+    synchronized long getNextAttemptAt() {
+        load();
+        return nextAttemptAt_;
+    }
+
+    /**
+     * Records a successful upload, closing the circuit.
+     */
+    synchronized void onSuccess() {
+        load();
+        if (failures_ != 0 || nextAttemptAt_ != 0) {
+            failures_ = 0;
+            nextAttemptAt_ = 0;
+            save();
+        }
+    }
+
+    /**
+     * Records a failed upload run and schedules the next attempt.
+     * @param now time of the failure
+     * @param retryAfterMillis delay requested by the server, 0 if none
+     * @param throttled true if the server answered 429 or 503; the delay is then at least
+     *                  half the exponential bound instead of anywhere down to 0
+     * @return the time of the next attempt
+     */
+    synchronized long onFailure(final long now, final long retryAfterMillis, final boolean throttled) {
+        load();
+        failures_++;
+        long delay;
+        if (failures_ >= circuitThreshold_) {
+            delay = coolingPeriodMillis_;
+        } else {
+            // full jitter between 0 and the exponential bound, or its upper half when throttled
+            final long bound = Math.min(maxDelayMillis_, baseDelayMillis_ << Math.min(failures_ - 1, 30));
+            delay = throttled
+                    ? bound / 2 + (long) (random_.nextDouble() * (bound - bound / 2))
+                    : (long) (random_.nextDouble() * bound);
+        }
+        delay = Math.max(delay, Math.min(retryAfterMillis, MAX_RETRY_AFTER_MILLIS));
+        nextAttemptAt_ = now + delay;
+        save();
+        return nextAttemptAt_;
+    }
+
+    /**
+     * Returns the delay requested by the Retry-After header of the response, in milliseconds,
+     * or 0 if there is none. Both delta-seconds and HTTP-date values are understood.
+     */
+    static long retryAfterMillis(final Transport.Response response, final long now) {
+        final String value = response == null ? null : response.getHeader("Retry-After");
+        if (value == null || value.trim().length() == 0) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException ignored) {
+            // not delta-seconds, try HTTP-date
+        }
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            final Date date = format.parse(value.trim());
+            return Math.max(0, date.getTime() - now);
+        } catch (ParseException ignored) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns true if the response code asks clients to slow down.
+     */
+    static boolean isThrottled(final int responseCode) {
+        return responseCode == 429 || responseCode == 503;
+    }
+
+    private void load() {
+        if (loaded_) {
+            return;
+        }
+        loaded_ = true;
+        final String state = store_.getPreference(PREFERENCE);
+        if (state == null) {
+            return;
+        }
+        final String[] parts = state.split(":");
+        try {
+            if (parts.length == 2) {
+                failures_ = Integer.parseInt(parts[0]);
+                nextAttemptAt_ = Long.parseLong(parts[1]);
+            }
+        } catch (NumberFormatException ignored) {
+            failures_ = 0;
+            nextAttemptAt_ = 0;
+        }
+    }
+
+    private void save() {
+        store_.setPreference(PREFERENCE, failures_ == 0 && nextAttemptAt_ == 0 ? null : failures_ + ":" + nextAttemptAt_);
+    }
+}
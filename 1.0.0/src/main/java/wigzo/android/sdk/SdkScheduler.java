@@ -0,0 +1,404 @@
+package wigzo.android.sdk;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs all of the SDK's background work, so the SDK does not start threads of its own
+ * anywhere else.
+ *
+ * Delayed and periodic tasks, such as the session heartbeat, run on a single timer thread
+ * and must be short. Other work runs on a small pool of worker threads, or on an Executor
+ * supplied by the host app. Network calls that another task waits for, such as the requests
+ * a pipelined upload keeps in flight, run on up to {@link #MAX_IO_THREADS} I/O threads of
+ * their own, since the worker that waits for them could otherwise be the one they need.
+ * Work that must not overlap, such as the uploads of a ConnectionQueue, runs on serial lanes
+ * created with {@link #newSerialExecutor(String)}: one task of a lane at a time, in
+ * submission order, on whichever executor is current.
+ *
+ * A lane holds a worker for as long as its task runs, e.g. while a pipelined upload waits for
+ * its responses. The worker pool therefore has one thread per lane that has not been shut
+ * down, plus one for {@link #execute}, between {@link #MIN_WORKER_THREADS} and
+ * {@link #MAX_WORKER_THREADS}, so a lane does not wait for the uploads of other lanes. Beyond
+ * that many lanes, and on an executor of the host app, lanes share the threads there are. If
+ * the pool's queue is full when a lane hands over its next task, the lane keeps the task and
+ * tries again on the timer after {@link #REJECTED_RETRY_MILLIS}, so a saturated pool delays a
+ * lane but never stalls it.
+ *
+ * Threads are named "Wigzo-&lt;name&gt;-&lt;n&gt;", run at background priority and exit when
+ * idle for {@link #KEEP_ALIVE_SECONDS}. Queues are bounded by {@link #MAX_QUEUED_TASKS};
+ * tasks beyond that are rejected with a RejectedExecutionException. {@link #stop()} cancels
+ * all delayed and periodic tasks, which is what halting the SDK does.
+ *
+ * The number of live threads, the number of tasks run and rejected, and how long tasks
+ * waited before they started are reported as metrics.
+ */
+class SdkScheduler {
+    static final int MIN_WORKER_THREADS = 2;
+    static final int MAX_WORKER_THREADS = 8;
+    static final int MAX_IO_THREADS = 4;
+    static final int MAX_QUEUED_TASKS = 64;
+    static final long KEEP_ALIVE_SECONDS = 30;
+    static final long REJECTED_RETRY_MILLIS = 250;
+    /**
+     * Java priority that Android maps to THREAD_PRIORITY_BACKGROUND.
+     */
+    static final int THREAD_PRIORITY = 4;
+
+    static final String METRIC_THREADS = "scheduler.threads";
+    static final String METRIC_TASKS = "scheduler.tasks";
+    static final String METRIC_REJECTED = "scheduler.tasks_rejected";
+    static final String METRIC_LATENCY = "scheduler.task_latency_ms";
+    static final String METRIC_MAX_LATENCY = "scheduler.task_latency_ms.max";
+
+    // weight of the latest sample in the moving average of the task latency
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    private final Metrics metrics_;
+    private final AtomicInteger threads_ = new AtomicInteger();
+    private final ScheduledThreadPoolExecutor timer_;
+    private final ThreadPoolExecutor workers_;
+    private final ThreadPoolExecutor io_;
+    private final Set<ScheduledFuture<?>> scheduled_ = Collections.newSetFromMap(new ConcurrentHashMap<ScheduledFuture<?>, Boolean>());
+    private volatile Executor hostExecutor_;
+    // lanes that have not been shut down
+    private int lanes_;
+    private double averageLatencyMillis_ = -1;
+    private long maxLatencyMillis_;
+
+    SdkScheduler(final Metrics metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics must not be null");
+        }
+        metrics_ = metrics;
+        timer_ = new ScheduledThreadPoolExecutor(1, newThreadFactory("Timer"));
+        timer_.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        timer_.allowCoreThreadTimeOut(true);
+        workers_ = new ThreadPoolExecutor(MIN_WORKER_THREADS, MIN_WORKER_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_TASKS), newThreadFactory("Worker"));
+        workers_.allowCoreThreadTimeOut(true);
+        io_ = new ThreadPoolExecutor(MAX_IO_THREADS, MAX_IO_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_TASKS), newThreadFactory("Io"));
+        io_.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the executor background work is run on, or null to use the SDK's own worker threads.
+     * The executor is also used by serial lanes that already exist.
+     */
+    void setExecutor(final Executor executor) {
+        hostExecutor_ = executor;
+    }
+
+    Executor getExecutor() {
+        final Executor hostExecutor = hostExecutor_;
+        return hostExecutor == null ? workers_ : hostExecutor;
+    }
+
+    /**
+     * Returns the timer thread's executor. Prefer {@link #schedule} and
+     * {@link #scheduleWithFixedDelay}, whose tasks are cancelled by {@link #stop()}.
+     */
+    ScheduledExecutorService getTimer() {
+        return timer_;
+    }
+
+    /**
+     * Returns the metrics the scheduler reports to, which the SDK's other background
+     * work shares.
+     */
+    Metrics getMetrics() {
+        return metrics_;
+    }
+
+    /**
+     * Returns the number of worker threads the pool may run at once.
+     */
+    int getWorkerThreads() {
+        return workers_.getMaximumPoolSize();
+    }
+
+    /**
+     * Returns the number of threads the SDK has started that are still alive. Threads of an
+     * executor supplied by the host app are not counted.
+     */
+    int getThreadCount() {
+        return threads_.get();
+    }
+
+    /**
+     * Runs a task on the current executor.
+     * @throws RejectedExecutionException if the executor's queue is full
+     */
+    void execute(final Runnable task) {
+        dispatch(timed(task, System.nanoTime()));
+    }
+
+    /**
+     * Runs a blocking network call on the I/O threads, whatever the current executor is.
+     * @return future completing with the call's result
+     * @throws RejectedExecutionException if the I/O queue is full
+     */
+    <T> Future<T> submitIo(final Callable<T> call) {
+        final FutureTask<T> future = new FutureTask<>(call);
+        try {
+            io_.execute(timed(future, System.nanoTime()));
+        } catch (RejectedExecutionException e) {
+            metrics_.increment(METRIC_REJECTED);
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Runs a short task on the timer thread after the specified delay.
+     */
+    ScheduledFuture<?> schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        return track(timer_.schedule(timed(task, System.nanoTime() + unit.toNanos(delay)), delay, unit));
+    }
+
+    /**
+     * Runs a short task on the timer thread periodically until it is cancelled or the
+     * scheduler is stopped.
+     */
+    ScheduledFuture<?> scheduleWithFixedDelay(final Runnable task, final long initialDelay, final long delay, final TimeUnit unit) {
+        return track(timer_.scheduleWithFixedDelay(task, initialDelay, delay, unit));
+    }
+
+    /**
+     * Cancels all delayed and periodic tasks. Tasks that are running or were submitted for
+     * immediate execution are not affected, and the scheduler can still be used afterwards.
+     */
+    void stop() {
+        for (ScheduledFuture<?> future : scheduled_) {
+            future.cancel(false);
+        }
+        scheduled_.clear();
+        timer_.purge();
+    }
+
+    /**
+     * Returns an executor that runs its tasks one at a time, in submission order, on the
+     * scheduler's current executor.
+     * @param name name of the lane, for debugging
+     */
+    ExecutorService newSerialExecutor(final String name) {
+        final SerialExecutor lane = new SerialExecutor(name);
+        onLanesChanged(1);
+        return lane;
+    }
+
+    /**
+     * Sizes the worker pool to the number of lanes.
+     */
+    private synchronized void onLanesChanged(final int delta) {
+        lanes_ += delta;
+        final int workers = Math.max(MIN_WORKER_THREADS, Math.min(MAX_WORKER_THREADS, lanes_ + 1));
+        // the core size must not exceed the maximum at any time
+        if (workers > workers_.getMaximumPoolSize()) {
+            workers_.setMaximumPoolSize(workers);
+            workers_.setCorePoolSize(workers);
+        } else {
+            workers_.setCorePoolSize(workers);
+            workers_.setMaximumPoolSize(workers);
+        }
+    }
+
+    /**
+     * Returns a factory of named, background priority threads that are counted by the scheduler,
+     * for executors that need threads of their own.
+     */
+    ThreadFactory newThreadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        metrics_.setGauge(METRIC_THREADS, threads_.incrementAndGet());
+                        try {
+                            runnable.run();
+                        } finally {
+                            metrics_.setGauge(METRIC_THREADS, threads_.decrementAndGet());
+                        }
+                    }
+                }, "Wigzo-" + name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(THREAD_PRIORITY);
+                return thread;
+            }
+        };
+    }
+
+    private void dispatch(final Runnable task) {
+        try {
+            getExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            metrics_.increment(METRIC_REJECTED);
+            throw e;
+        }
+    }
+
+    private ScheduledFuture<?> track(final ScheduledFuture<?> future) {
+        for (ScheduledFuture<?> scheduled : scheduled_) {
+            if (scheduled.isDone()) {
+                scheduled_.remove(scheduled);
+            }
+        }
+        scheduled_.add(future);
+        return future;
+    }
+
+    /**
+     * Wraps a task so the time between when it was due and when it started is recorded.
+     */
+    private Runnable timed(final Runnable task, final long dueNanos) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                onStarted(Math.max(0, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - dueNanos)));
+                task.run();
+            }
+        };
+    }
+
+    private synchronized void onStarted(final long latencyMillis) {
+        metrics_.increment(METRIC_TASKS);
+        averageLatencyMillis_ = averageLatencyMillis_ < 0
+                ? latencyMillis
+                : averageLatencyMillis_ + LATENCY_SMOOTHING * (latencyMillis - averageLatencyMillis_);
+        maxLatencyMillis_ = Math.max(maxLatencyMillis_, latencyMillis);
+        metrics_.setGauge(METRIC_LATENCY, averageLatencyMillis_);
+        metrics_.setGauge(METRIC_MAX_LATENCY, maxLatencyMillis_);
+    }
+
+    /**
+     * Serial lane over the scheduler's current executor. At most one of its tasks is handed
+     * to the executor at a time; the others wait in a bounded queue.
+     */
+    private final class SerialExecutor extends AbstractExecutorService {
+        private final String name_;
+        private final ArrayDeque<Runnable> tasks_ = new ArrayDeque<>();
+        private boolean active_;
+        private boolean shutdown_;
+
+        SerialExecutor(final String name) {
+            name_ = name;
+        }
+
+        @Override
+        public synchronized void execute(final Runnable command) {
+            if (shutdown_) {
+                throw new RejectedExecutionException(name_ + " is shut down");
+            }
+            if (tasks_.size() >= MAX_QUEUED_TASKS) {
+                metrics_.increment(METRIC_REJECTED);
+                throw new RejectedExecutionException(name_ + " has too many queued tasks");
+            }
+            tasks_.add(timed(command, System.nanoTime()));
+            if (!active_) {
+                next();
+            }
+        }
+
+        private synchronized void next() {
+            final Runnable task = tasks_.poll();
+            if (task == null) {
+                active_ = false;
+                notifyAll();
+                return;
+            }
+            active_ = true;
+            try {
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            next();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the executor is saturated, the lane stays active and tries again shortly, as
+                // there may never be another submission to wake it up
+                tasks_.addFirst(task);
+                timer_.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        next();
+                    }
+                }, REJECTED_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            release();
+            notifyAll();
+        }
+
+        @Override
+        public synchronized List<Runnable> shutdownNow() {
+            release();
+            final List<Runnable> pending = new ArrayList<>(tasks_);
+            tasks_.clear();
+            notifyAll();
+            return pending;
+        }
+
+        /**
+         * Marks the lane shut down, and gives up its worker the first time.
+         */
+        private void release() {
+            if (!shutdown_) {
+                shutdown_ = true;
+                onLanesChanged(-1);
+            }
+        }
+
+        @Override
+        public synchronized boolean isShutdown() {
+            return shutdown_;
+        }
+
+        @Override
+        public synchronized boolean isTerminated() {
+            return shutdown_ && !active_ && tasks_.isEmpty();
+        }
+
+        @Override
+        public synchronized boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isTerminated()) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+    }
+}
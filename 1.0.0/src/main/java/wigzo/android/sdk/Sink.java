@@ -0,0 +1,97 @@
+package wigzo.android.sdk;
+
+/**
+ * A destination that queued session &amp; event data is uploaded to.
+ *
+ * Every sink has a queue of its own and drains independently of the others. A request is
+ * only queued for the sinks that accept its event type, so a sink that takes a subset of
+ * the data does not keep a copy of everything else. Each request is sent to the endpoint
+ * in the sink's encoding, and is acknowledged by a JSON response with a "result" field
+ * of "Success", like the Wigzo server sends.
+ *
+ * The Wigzo server and the Wigzo mobile events endpoint are built in; further sinks are
+ * added with {@link Wigzo#addSink(Sink)}, for instance with an {@link EndpointSink}.
+ */
+public interface Sink {
+    /**
+     * How a request is sent to the endpoint.
+     */
+    enum Encoding {
+        /**
+         * GET with the request data as the query string.
+         */
+        QUERY_STRING,
+        /**
+         * POST with the request's parameters as the fields of a JSON object.
+         */
+        JSON_BODY,
+        /**
+         * POST of a form with a "requests" field holding a JSON array of query strings,
+         * for collectors that take several requests in one upload.
+         */
+        BULK
+    }
+
+    /**
+     * The kinds of data a request can carry.
+     */
+    enum EventType {
+        SESSION,
+        EVENTS,
+        USER_DETAILS,
+        PICTURE,
+        CRASH,
+        PUSH_TOKEN,
+        REFERRER,
+        OTHER;
+
+        /**
+         * Returns the type of the specified request data. Request data that carries several
+         * kinds, as merged requests do, has the type of its most restrictive part: session
+         * data before events before user details, the order of their default times to live
+         * and of their priority lanes.
+         */
+        static EventType of(final String eventData) {
+            if (eventData.contains("&crash=")) {
+                return CRASH;
+            }
+            if (eventData.contains("&" + UserData.PICTURE_PATH_KEY + "=")) {
+                return PICTURE;
+            }
+            if (eventData.contains("&begin_session=") || eventData.contains("&session_duration=") || eventData.contains("&end_session=")) {
+                return SESSION;
+            }
+            if (eventData.contains("&events=")) {
+                return EVENTS;
+            }
+            if (eventData.contains("&user_details")) {
+                return USER_DETAILS;
+            }
+            if (eventData.contains("&token_session=")) {
+                return PUSH_TOKEN;
+            }
+            if (eventData.contains("&campaign_id=")) {
+                return REFERRER;
+            }
+            return OTHER;
+        }
+    }
+
+    /**
+     * Returns the name of the sink, which must be unique and stay the same across app
+     * launches, because the sink's queue is persisted under it.
+     */
+    String getName();
+
+    /**
+     * Returns the URL requests are sent to.
+     */
+    String getEndpoint();
+
+    Encoding getEncoding();
+
+    /**
+     * Returns true if requests of the specified type are to be sent to this sink.
+     */
+    boolean accepts(EventType type);
+}
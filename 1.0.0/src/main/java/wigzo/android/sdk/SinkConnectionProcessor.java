@@ -0,0 +1,142 @@
+package wigzo.android.sdk;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Submits the data queued for a sink added with {@link Wigzo#addSink(Sink)} to the sink's
+ * endpoint, in the sink's encoding. The upload loop is shared with ConnectionProcessor;
+ * only the requests differ.
+ */
+class SinkConnectionProcessor extends ConnectionProcessor {
+    private static final int CONNECT_TIMEOUT_IN_MILLISECONDS = 30000;
+    private static final int READ_TIMEOUT_IN_MILLISECONDS = 30000;
+
+    private final Sink sink_;
+    private final BatchEncoder bulkEncoder_ = new BatchEncoder() {
+        @Override
+        public boolean isBatchable(final String eventData) {
+            final Sink.EventType type = Sink.EventType.of(eventData);
+            return type != Sink.EventType.PICTURE && sink_.accepts(type);
+        }
+
+        @Override
+        public Transport.Request requestFor(final List<String> eventData) throws IOException {
+            return bulkRequest(eventData);
+        }
+    };
+
+    SinkConnectionProcessor(final Sink sink, final ConnectionStore store, final DeviceId deviceId, final SSLContext sslContext, final Transport transport) {
+        super(sink.getEndpoint(), store, deviceId, sslContext, transport);
+        sink_ = sink;
+    }
+
+    Sink getSink() { return sink_; }
+
+    @Override
+    boolean isCompressed(final String eventData) {
+        // the preset dictionary is only known to the Wigzo server
+        return false;
+    }
+
+    /**
+     * Returns the bulk encoder if the sink takes bulk requests.
+     */
+    @Override
+    BatchEncoder batchEncoder() {
+        return sink_.getEncoding() == Sink.Encoding.BULK ? bulkEncoder_ : null;
+    }
+
+    /**
+     * Builds a bulk request holding all of the specified event data.
+     */
+    private Transport.Request bulkRequest(final List<String> eventData) throws IOException {
+        final JSONArray requests = new JSONArray();
+        for (String data : eventData) {
+            requests.put(data);
+        }
+        return new Transport.Request("POST", sink_.getEndpoint())
+                .setHeader("Content-Type", "application/x-www-form-urlencoded")
+                .setBody(("requests=" + URLEncoder.encode(requests.toString(), "UTF-8")).getBytes("UTF-8"))
+                .setTimeouts(CONNECT_TIMEOUT_IN_MILLISECONDS, READ_TIMEOUT_IN_MILLISECONDS);
+    }
+
+    @Override
+    Transport.Request requestForEventData(final String eventData) throws IOException {
+        final Sink.EventType type = Sink.EventType.of(eventData);
+        if (!sink_.accepts(type)) {
+            // queued before the sink stopped accepting it
+            return null;
+        }
+        final String endpoint = sink_.getEndpoint();
+        final String separator = endpoint.contains("?") ? "&" : "?";
+        final Transport.Request request;
+        if (type == Sink.EventType.PICTURE) {
+            final String picturePath = UserData.getPicturePathFromQuery(new URL(endpoint + separator + eventData));
+            final String boundary = Long.toHexString(System.currentTimeMillis());
+            request = new Transport.Request("POST", endpoint + separator + eventData)
+                    .setHeader("Content-Type", "multipart/form-data; boundary=" + boundary)
+                    .setBody(multipartBody(new File(picturePath), boundary));
+        } else {
+            switch (sink_.getEncoding()) {
+                case JSON_BODY:
+                    request = new Transport.Request("POST", endpoint)
+                            .setHeader("Content-Type", "application/json")
+                            .setBody(toJSON(eventData).toString().getBytes("UTF-8"));
+                    break;
+                case BULK:
+                    return bulkRequest(Collections.singletonList(eventData));
+                default:
+                    request = new Transport.Request("GET", endpoint + separator + eventData);
+                    break;
+            }
+        }
+        return request.setTimeouts(CONNECT_TIMEOUT_IN_MILLISECONDS, READ_TIMEOUT_IN_MILLISECONDS);
+    }
+
+    /**
+     * Converts request data to a JSON object with a field per parameter. Values that are
+     * themselves JSON, such as events and user details, are nested rather than quoted.
+     */
+    static JSONObject toJSON(final String eventData) throws UnsupportedEncodingException {
+        final JSONObject json = new JSONObject();
+        for (String pair : eventData.split("&")) {
+            if (pair.length() == 0) {
+                continue;
+            }
+            final int equals = pair.indexOf('=');
+            final String key = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8");
+            final String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+            try {
+                json.put(key, parseValue(value));
+            } catch (JSONException ignored) {
+                // only thrown for null keys, which split() does not produce
+            }
+        }
+        return json;
+    }
+
+    private static Object parseValue(final String value) {
+        if (value.startsWith("{") || value.startsWith("[")) {
+            try {
+                return new JSONTokener(value).nextValue();
+            } catch (JSONException ignored) {
+                // not JSON after all, sent as a string
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,266 @@
+package wigzo.android.sdk;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent queue of the sinks added with {@link Wigzo#addSink(Sink)}, kept in the
+ * SharedPreferences named {@link #PREFERENCES}. Unlike WigzoStore it holds no events or
+ * location, only the requests waiting to be sent and the preferences of the sinks' pipelines.
+ *
+ * A request queued for several sinks is stored once, together with the names of the sinks
+ * that have not sent it yet, and dropped once the last of them has. The pipeline of a sink
+ * drains the queue through the ConnectionStore returned by {@link #forSink(String)}, which
+ * holds the requests still waiting for that sink. The pipelines of the sinks queue an offer
+ * one after the other, so a request that only differs from the newest one in its sequence
+ * number, and that the sink does not have yet, is the same offer and is added to it. For
+ * this the sinks take their sequence numbers from {@link #getIdempotencyKeys()}, so the one
+ * a request is stored with is unique for every sink that sends it.
+ *
+ * Requests of a sink that was removed are kept in case it is added again. The queue holds at
+ * most {@link #MAX_QUEUED_REQUESTS} requests, beyond that the oldest are dropped, and
+ * {@link #clear()} discards the requests of every sink.
+ *
+ * The methods are synchronized for the same reason as in WigzoStore: the sinks' processors
+ * write to the store from background threads.
+ */
+class SinkStore {
+    static final String PREFERENCES = "WIGZO_SINKS";
+    static final String LEGACY_PREFERENCES_PREFIX = "WIGZO_SINK_";
+    static final int MAX_QUEUED_REQUESTS = 1000;
+    private static final String DELIMITER = ":::";
+    private static final String CONNECTIONS_PREFERENCE = "CONNECTIONS";
+
+    private final Context context_;
+    private final SharedPreferences preferences_;
+    private final IdempotencyKeys keys_;
+
+    /**
+     * @param context used to retrieve storage meta data, must not be null
+     * @throws IllegalArgumentException if context is null
+     */
+    SinkStore(final Context context) {
+        if (context == null) {
+            throw new IllegalArgumentException("must provide valid context");
+        }
+        context_ = context;
+        preferences_ = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        // no sink has an empty name, so the sequence is kept apart from theirs
+        keys_ = new IdempotencyKeys(new Queue(""));
+    }
+
+    /**
+     * Returns the queue of the named sink. Requests and preferences the sink had in a store
+     * of its own, as sinks did before they shared one, are moved over.
+     * @throws IllegalArgumentException if name is not a valid sink name
+     */
+    synchronized Queue forSink(final String name) {
+        if (!EndpointSink.isValidName(name)) {
+            throw new IllegalArgumentException("valid sink name is required");
+        }
+        migrate(name);
+        return new Queue(name);
+    }
+
+    /**
+     * Returns the sequence numbers all sinks queue their requests with.
+     */
+    IdempotencyKeys getIdempotencyKeys() {
+        return keys_;
+    }
+
+    /**
+     * Discards the queued requests and the preferences of all sinks, including removed ones.
+     */
+    synchronized void clear() {
+        preferences_.edit().clear().apply();
+    }
+
+    private void migrate(final String name) {
+        final SharedPreferences legacy = context_.getSharedPreferences(LEGACY_PREFERENCES_PREFIX + name, Context.MODE_PRIVATE);
+        final Map<String, ?> stored = legacy.getAll();
+        if (stored.isEmpty()) {
+            return;
+        }
+        final List<String> entries = entries();
+        final SharedPreferences.Editor editor = preferences_.edit();
+        for (Map.Entry<String, ?> preference : stored.entrySet()) {
+            final String value = String.valueOf(preference.getValue());
+            if (!CONNECTIONS_PREFERENCE.equals(preference.getKey())) {
+                editor.putString(preferenceKey(name, preference.getKey()), value);
+            } else if (value.length() > 0) {
+                for (String connection : value.split(DELIMITER)) {
+                    entries.add(name + " " + connection);
+                }
+            }
+        }
+        write(editor, entries);
+        legacy.edit().clear().apply();
+    }
+
+    /**
+     * Returns the stored entries, oldest first, each the comma separated names of the sinks
+     * it is waiting for, a space and the request data.
+     */
+    private List<String> entries() {
+        final String joinedConnStr = preferences_.getString(CONNECTIONS_PREFERENCE, "");
+        return joinedConnStr.length() == 0 ? new ArrayList<String>() : new ArrayList<>(Arrays.asList(joinedConnStr.split(DELIMITER)));
+    }
+
+    private void write(final SharedPreferences.Editor editor, final List<String> entries) {
+        if (entries.size() > MAX_QUEUED_REQUESTS) {
+            final int dropped = entries.size() - MAX_QUEUED_REQUESTS;
+            entries.subList(0, dropped).clear();
+            if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                Log.w(Wigzo.TAG, "Sink queue is full, dropped " + dropped + " oldest requests");
+            }
+        }
+        editor.putString(CONNECTIONS_PREFERENCE, WigzoStore.join(entries, DELIMITER)).apply();
+    }
+
+    private static String preferenceKey(final String name, final String key) {
+        return name + "/" + key;
+    }
+
+    private static String sinksOf(final String entry) {
+        return entry.substring(0, entry.indexOf(' '));
+    }
+
+    private static String dataOf(final String entry) {
+        return entry.substring(entry.indexOf(' ') + 1);
+    }
+
+    private static boolean isFor(final String entry, final String name) {
+        return ("," + sinksOf(entry) + ",").contains("," + name + ",");
+    }
+
+    /**
+     * Returns the entry without the named sink, or null if it was the last one waiting.
+     */
+    private static String without(final String entry, final String name) {
+        final List<String> sinks = new ArrayList<>(Arrays.asList(sinksOf(entry).split(",")));
+        sinks.remove(name);
+        return sinks.isEmpty() ? null : WigzoStore.join(sinks, ",") + " " + dataOf(entry);
+    }
+
+    /**
+     * The requests waiting for one sink, and the preferences of its pipeline.
+     */
+    class Queue implements ConnectionStore {
+        private final String name_;
+
+        private Queue(final String name) {
+            name_ = name;
+        }
+
+        /**
+         * Returns the sequence numbers shared by all sinks.
+         */
+        IdempotencyKeys getIdempotencyKeys() {
+            return keys_;
+        }
+
+        @Override
+        public String[] connections() {
+            synchronized (SinkStore.this) {
+                final List<String> connections = new ArrayList<>();
+                for (String entry : entries()) {
+                    if (isFor(entry, name_)) {
+                        connections.add(dataOf(entry));
+                    }
+                }
+                return connections.toArray(new String[connections.size()]);
+            }
+        }
+
+        @Override
+        public boolean isEmptyConnections() {
+            synchronized (SinkStore.this) {
+                for (String entry : entries()) {
+                    if (isFor(entry, name_)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+
+        @Override
+        public void addConnection(final String str) {
+            if (str == null || str.length() == 0) {
+                return;
+            }
+            synchronized (SinkStore.this) {
+                final List<String> entries = entries();
+                final int newest = entries.size() - 1;
+                if (newest >= 0 && !isFor(entries.get(newest), name_)
+                        && IdempotencyKeys.withoutSequence(dataOf(entries.get(newest))).equals(IdempotencyKeys.withoutSequence(str))) {
+                    // queued for the other sinks of the same offer
+                    entries.set(newest, sinksOf(entries.get(newest)) + "," + name_ + " " + dataOf(entries.get(newest)));
+                } else {
+                    entries.add(name_ + " " + str);
+                }
+                write(preferences_.edit(), entries);
+            }
+        }
+
+        @Override
+        public void removeConnection(final String str) {
+            if (str != null && str.length() > 0) {
+                removeConnections(Collections.singletonList(str));
+            }
+        }
+
+        @Override
+        public void removeConnections(final Collection<String> strs) {
+            synchronized (SinkStore.this) {
+                final List<String> entries = entries();
+                boolean removed = false;
+                for (String str : strs) {
+                    for (int i = 0; i < entries.size(); i++) {
+                        final String entry = entries.get(i);
+                        if (isFor(entry, name_) && dataOf(entry).equals(str)) {
+                            final String remaining = without(entry, name_);
+                            if (remaining == null) {
+                                entries.remove(i);
+                            } else {
+                                entries.set(i, remaining);
+                            }
+                            removed = true;
+                            break;
+                        }
+                    }
+                }
+                if (removed) {
+                    write(preferences_.edit(), entries);
+                }
+            }
+        }
+
+        @Override
+        public String getPreference(final String key) {
+            synchronized (SinkStore.this) {
+                return preferences_.getString(preferenceKey(name_, key), null);
+            }
+        }
+
+        @Override
+        public void setPreference(final String key, final String value) {
+            synchronized (SinkStore.this) {
+                if (value == null) {
+                    preferences_.edit().remove(preferenceKey(name_, key)).apply();
+                } else {
+                    preferences_.edit().putString(preferenceKey(name_, key), value).apply();
+                }
+            }
+        }
+    }
+}
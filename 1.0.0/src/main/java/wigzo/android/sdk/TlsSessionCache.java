@@ -0,0 +1,174 @@
+package wigzo.android.sdk;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+/**
+ * The SSL context, and with it the TLS session cache, shared by all HTTPS connections of the
+ * SDK, so a connection to a server that was connected to before resumes the earlier session
+ * with an abbreviated handshake instead of a full one.
+ *
+ * The shared instance is rebuilt only when the pinned certificates change. Its client session
+ * cache holds {@link #DEFAULT_SESSION_CACHE_SIZE} sessions unless configured otherwise, and
+ * sessions are resumed for up to {@link #SESSION_TIMEOUT_SECONDS}. The socket factory turns on
+ * session tickets (RFC 5077) on sockets that support them, as the platform's Conscrypt sockets
+ * do, so servers need not keep per-client session state for resumption to work.
+ */
+class TlsSessionCache {
+    static final int DEFAULT_SESSION_CACHE_SIZE = 32;
+    static final int SESSION_TIMEOUT_SECONDS = 12 * 60 * 60;
+
+    private static TlsSessionCache shared_;
+    private static List<String> sharedPins_;
+    private static int sessionCacheSize_ = DEFAULT_SESSION_CACHE_SIZE;
+
+    private final SSLContext sslContext_;
+    private final SSLSocketFactory socketFactory_;
+
+    /**
+     * @param trustManagers trust managers to verify servers with, the system's if null
+     * @param sessionCacheSize maximum number of cached sessions, 0 for no limit
+     * @throws IllegalStateException if the SSL context cannot be created
+     */
+    TlsSessionCache(final TrustManager[] trustManagers, final int sessionCacheSize) {
+        try {
+            sslContext_ = SSLContext.getInstance("TLS");
+            sslContext_.init(null, trustManagers, null);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        configure(sslContext_.getClientSessionContext(), sessionCacheSize);
+        socketFactory_ = new SessionTicketSocketFactory(sslContext_.getSocketFactory());
+    }
+
+    /**
+     * Returns the instance shared by all transports, verifying servers against the specified
+     * pinned certificates, or against the system CA store only if null.
+     * @throws IllegalStateException if the SSL context cannot be created
+     */
+    static synchronized TlsSessionCache shared(final List<String> pinCertificates) {
+        if (shared_ == null || (pinCertificates == null ? sharedPins_ != null : !pinCertificates.equals(sharedPins_))) {
+            final TrustManager[] trustManagers;
+            try {
+                trustManagers = pinCertificates == null ? null : new TrustManager[]{new CertificateTrustManager(pinCertificates)};
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+            shared_ = new TlsSessionCache(trustManagers, sessionCacheSize_);
+            sharedPins_ = pinCertificates == null ? null : new ArrayList<>(pinCertificates);
+        }
+        return shared_;
+    }
+
+    /**
+     * Sets the maximum number of TLS sessions the shared instance keeps for resumption.
+     * @param size number of sessions, 0 for no limit
+     * @throws IllegalArgumentException if size is negative
+     */
+    static synchronized void setSessionCacheSize(final int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size must not be negative");
+        }
+        sessionCacheSize_ = size;
+        if (shared_ != null) {
+            configure(shared_.getSessionContext(), size);
+        }
+    }
+
+    static synchronized int getSessionCacheSize() {
+        return sessionCacheSize_;
+    }
+
+    private static void configure(final SSLSessionContext sessionContext, final int sessionCacheSize) {
+        if (sessionContext != null) {
+            sessionContext.setSessionCacheSize(sessionCacheSize);
+            sessionContext.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        }
+    }
+
+    SSLContext getSSLContext() { return sslContext_; }
+
+    SSLSocketFactory getSocketFactory() { return socketFactory_; }
+
+    SSLSessionContext getSessionContext() { return sslContext_.getClientSessionContext(); }
+
+    /**
+     * Returns a factory whose sockets use session tickets where supported.
+     */
+    static SSLSocketFactory withSessionTickets(final SSLSocketFactory factory) {
+        return factory instanceof SessionTicketSocketFactory ? factory : new SessionTicketSocketFactory(factory);
+    }
+
+    /**
+     * Creates sockets with the delegate and enables session tickets on them. Conscrypt, the
+     * platform's TLS provider, only has a non-public setter for this; on other providers, such
+     * as the JDK's, tickets are governed by the provider's own configuration.
+     */
+    private static class SessionTicketSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate_;
+
+        SessionTicketSocketFactory(final SSLSocketFactory delegate) {
+            delegate_ = delegate;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate_.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate_.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return enableSessionTickets(delegate_.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(final Socket socket, final String host, final int port, final boolean autoClose) throws IOException {
+            return enableSessionTickets(delegate_.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port) throws IOException {
+            return enableSessionTickets(delegate_.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port, final InetAddress localHost, final int localPort) throws IOException {
+            return enableSessionTickets(delegate_.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress host, final int port) throws IOException {
+            return enableSessionTickets(delegate_.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress, final int localPort) throws IOException {
+            return enableSessionTickets(delegate_.createSocket(address, port, localAddress, localPort));
+        }
+
+        private static Socket enableSessionTickets(final Socket socket) {
+            try {
+                final Method setUseSessionTickets = socket.getClass().getMethod("setUseSessionTickets", boolean.class);
+                setUseSessionTickets.invoke(socket, true);
+            } catch (Exception ignored) {
+                // not a Conscrypt socket
+            }
+            return socket;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package wigzo.android.sdk;
+
+/**
+ * Counts the bytes the host app has moved over the network, so the SDK can tell whether
+ * the radio was woken up recently by the app's own traffic.
+ *
+ * Implementations must be thread-safe.
+ */
+public interface TrafficCounter {
+
+    /**
+     * Value returned by {@link #getTotalBytes()} when the platform does not count traffic.
+     */
+    long UNSUPPORTED = -1;
+
+    /**
+     * Returns the bytes sent and received by this app since boot, or {@link #UNSUPPORTED}.
+     */
+    long getTotalBytes();
+}
@@ -0,0 +1,160 @@
+package wigzo.android.sdk;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+
+/**
+ * Transport sends a single HTTP request to a server and returns its response.
+ *
+ * ConnectionProcessor builds {@link Request}s and interprets {@link Response}s, but does no
+ * network I/O itself, so the client library can be swapped (see
+ * {@link Wigzo#setTransport(Transport)}) and the whole upload pipeline can run against
+ * {@link LoopbackTransport} on a plain JVM.
+ *
+ * Implementations must be thread-safe.
+ */
+public interface Transport {
+
+    /**
+     * Sends the request and blocks until its response has been read completely.
+     * @param request request to send, must not be null
+     * @return the server's response, whatever its status code
+     * @throws IOException if no response could be obtained
+     */
+    Response send(Request request) throws IOException;
+
+    /**
+     * Sends the request without blocking the calling thread.
+     * @param request request to send, must not be null
+     * @param callback notified on completion, may be null
+     * @return future completing with the response, or failing with the IOException
+     */
+    Future<Response> sendAsync(Request request, Callback callback);
+
+    /**
+     * Implemented by transports that can set up a connection to a server before the first
+     * request is sent, so that request does not pay for the DNS lookup and the TCP and TLS
+     * handshakes.
+     */
+    interface Preconnect {
+        /**
+         * Resolves the host of the URL and leaves an open connection to it for later requests.
+         * Blocks until done.
+         * @throws IOException if the host could not be reached
+         */
+        void preconnect(String url) throws IOException;
+    }
+
+    /**
+     * Receives the outcome of {@link #sendAsync(Request, Callback)}. Called on a background
+     * thread, not the caller's.
+     */
+    interface Callback {
+        void onResponse(Request request, Response response);
+
+        void onFailure(Request request, IOException e);
+    }
+
+    /**
+     * An HTTP request: method, absolute URL, headers and optional body.
+     */
+    final class Request {
+        public static final int DEFAULT_TIMEOUT_IN_MILLISECONDS = 30000;
+
+        private final String method_;
+        private final String url_;
+        private final Map<String, String> headers_ = new LinkedHashMap<>();
+        private byte[] body_;
+        private int connectTimeout_ = DEFAULT_TIMEOUT_IN_MILLISECONDS;
+        private int readTimeout_ = DEFAULT_TIMEOUT_IN_MILLISECONDS;
+
+        public Request(final String method, final String url) {
+            if (method == null || url == null) {
+                throw new IllegalArgumentException("method and url are required");
+            }
+            method_ = method;
+            url_ = url;
+        }
+
+        public String getMethod() { return method_; }
+
+        public String getUrl() { return url_; }
+
+        public Map<String, String> getHeaders() { return Collections.unmodifiableMap(headers_); }
+
+        public String getHeader(final String name) { return headers_.get(name); }
+
+        public Request setHeader(final String name, final String value) {
+            headers_.put(name, value);
+            return this;
+        }
+
+        public byte[] getBody() { return body_; }
+
+        public Request setBody(final byte[] body) {
+            body_ = body;
+            return this;
+        }
+
+        public int getConnectTimeout() { return connectTimeout_; }
+
+        public int getReadTimeout() { return readTimeout_; }
+
+        public Request setTimeouts(final int connectTimeout, final int readTimeout) {
+            connectTimeout_ = connectTimeout;
+            readTimeout_ = readTimeout;
+            return this;
+        }
+
+        /**
+         * Returns the number of bytes of the body, 0 if there is none.
+         */
+        public int getBodyLength() {
+            return body_ == null ? 0 : body_.length;
+        }
+
+        @Override
+        public String toString() {
+            return method_ + " " + url_;
+        }
+    }
+
+    /**
+     * An HTTP response: status code, headers and the complete body.
+     */
+    final class Response {
+        private final int code_;
+        private final byte[] body_;
+        private final Map<String, String> headers_ = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        public Response(final int code, final byte[] body) {
+            code_ = code;
+            body_ = body == null ? new byte[0] : body;
+        }
+
+        public int getCode() { return code_; }
+
+        public byte[] getBody() { return body_; }
+
+        /**
+         * Returns the value of the named header, ignoring case, or null.
+         */
+        public String getHeader(final String name) { return headers_.get(name); }
+
+        public Response setHeader(final String name, final String value) {
+            headers_.put(name, value);
+            return this;
+        }
+
+        /**
+         * Returns true for 2xx status codes.
+         */
+        public boolean isSuccessful() {
+            return code_ >= 200 && code_ < 300;
+        }
+    }
+}
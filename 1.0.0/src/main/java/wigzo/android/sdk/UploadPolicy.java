@@ -0,0 +1,164 @@
+package wigzo.android.sdk;
+
+import java.util.List;
+
+/**
+ * Decides which queued requests may be sent on the current network.
+ *
+ * Requests are classified by priority. Crash reports and session requests are HIGH and
+ * always sent. Picture uploads and requests larger than {@link #BULK_THRESHOLD_BYTES},
+ * typically big event batches, are BULK: on a metered network they are deferred until an
+ * unmetered one is available, unless they fit into what is left of the daily metered byte
+ * budget. Everything else is NORMAL. The order requests are sent in is decided by the
+ * {@link PriorityLanes}.
+ *
+ * All bytes sent on metered networks count towards the budget, which is kept per UTC day in
+ * the preferences of the WigzoStore so it survives process restarts. Bytes sent are also
+ * reported per network type as metrics.
+ *
+ * One instance is shared by all processors of a ConnectionQueue.
+ */
+class UploadPolicy {
+    enum Priority { HIGH, NORMAL, BULK }
+
+    static final int BULK_THRESHOLD_BYTES = 16 * 1024;
+    static final long DEFAULT_DAILY_METERED_BUDGET_BYTES = 1024 * 1024;
+    static final String PREFERENCE = "METERED_BYTES";
+    static final String METRIC_BYTES_METERED = "http.bytes_sent.metered";
+    static final String METRIC_BYTES_UNMETERED = "http.bytes_sent.unmetered";
+    static final String METRIC_DEFERRED = "uploads.deferred";
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    private final Metrics metrics_;
+    private ConnectionStore store_;
+    private ConnectivityMonitor connectivityMonitor_;
+    private long dailyMeteredBudgetBytes_ = DEFAULT_DAILY_METERED_BUDGET_BYTES;
+    private long day_ = -1;
+    private long meteredBytesToday_;
+
+    UploadPolicy(final Metrics metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics must not be null");
+        }
+        metrics_ = metrics;
+    }
+
+    /**
+     * Sets the store the daily budget usage is persisted in; it is kept in memory if null.
+     */
+    synchronized void setStore(final ConnectionStore store) {
+        store_ = store;
+        day_ = -1;
+    }
+
+    synchronized void setConnectivityMonitor(final ConnectivityMonitor connectivityMonitor) {
+        connectivityMonitor_ = connectivityMonitor;
+    }
+
+    synchronized void setDailyMeteredBudget(final long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("budget must not be negative");
+        }
+        dailyMeteredBudgetBytes_ = bytes;
+    }
+
+    synchronized long getDailyMeteredBudget() {
+        return dailyMeteredBudgetBytes_;
+    }
+
+    /**
+     * Returns the priority of a queued request.
+     */
+    static Priority priorityOf(final String storedEvent) {
+        if (storedEvent.contains("&crash=") || ConnectionProcessor.isOrdered(storedEvent)) {
+            return Priority.HIGH;
+        }
+        if (storedEvent.contains("&" + UserData.PICTURE_PATH_KEY + "=") || storedEvent.length() > BULK_THRESHOLD_BYTES) {
+            return Priority.BULK;
+        }
+        return Priority.NORMAL;
+    }
+
+    /**
+     * Returns the priority of a batch of queued requests sent in one request of the specified
+     * size: HIGH if any of them is, else BULK if any of them is or the batch is large.
+     */
+    static Priority priorityOf(final List<String> storedEvents, final int bytes) {
+        Priority priority = bytes > BULK_THRESHOLD_BYTES ? Priority.BULK : Priority.NORMAL;
+        for (String storedEvent : storedEvents) {
+            final Priority entryPriority = priorityOf(storedEvent);
+            if (entryPriority == Priority.HIGH) {
+                return Priority.HIGH;
+            }
+            if (entryPriority == Priority.BULK) {
+                priority = Priority.BULK;
+            }
+        }
+        return priority;
+    }
+
+    /**
+     * Returns true if a request of the specified priority and size may be sent now.
+     */
+    synchronized boolean allows(final Priority priority, final int bytes, final long now) {
+        if (priority != Priority.BULK || !isMetered()) {
+            return true;
+        }
+        if (meteredBytesToday(now) + bytes <= dailyMeteredBudgetBytes_) {
+            return true;
+        }
+        metrics_.increment(METRIC_DEFERRED);
+        return false;
+    }
+
+    /**
+     * Records the bytes of a request that is being sent.
+     */
+    synchronized void onSent(final int bytes, final long now) {
+        if (isMetered()) {
+            metrics_.add(METRIC_BYTES_METERED, bytes);
+            meteredBytesToday_ = meteredBytesToday(now) + bytes;
+            if (store_ != null) {
+                store_.setPreference(PREFERENCE, day_ + ":" + meteredBytesToday_);
+            }
+        } else {
+            metrics_.add(METRIC_BYTES_UNMETERED, bytes);
+        }
+    }
+
+    /**
+     * Returns the bytes sent on metered networks on the UTC day of the specified time.
+     */
+    synchronized long meteredBytesToday(final long now) {
+        final long today = now / DAY_MILLIS;
+        if (day_ == -1) {
+            load();
+        }
+        if (day_ != today) {
+            day_ = today;
+            meteredBytesToday_ = 0;
+        }
+        return meteredBytesToday_;
+    }
+
+    private boolean isMetered() {
+        return connectivityMonitor_ != null && connectivityMonitor_.isMetered();
+    }
+
+    private void load() {
+        final String stored = store_ == null ? null : store_.getPreference(PREFERENCE);
+        if (stored != null) {
+            final String[] parts = stored.split(":");
+            try {
+                if (parts.length == 2) {
+                    day_ = Long.parseLong(parts[0]);
+                    meteredBytesToday_ = Long.parseLong(parts[1]);
+                }
+            } catch (NumberFormatException ignored) {
+                day_ = -1;
+                meteredBytesToday_ = 0;
+            }
+        }
+    }
+}
@@ -9,13 +9,16 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -38,11 +41,6 @@ public class Wigzo {
      */
     public static final String TAG = "Wigzo";
 
-    /**
-     * Determines how many custom events can be queued locally before
-     * an attempt is made to submit them to a wigzo server.
-     */
-    private static final int EVENT_QUEUE_SIZE_THRESHOLD = 10;
     /**
      * How often onTimer() is called.
      */
@@ -67,15 +65,20 @@ public class Wigzo {
     }
 
     private ConnectionQueue connectionQueue_;
-    @SuppressWarnings("FieldCanBeLocal")
-    private ScheduledExecutorService timerService_;
+    private final SdkScheduler scheduler_;
+    private final RemoteConfigClient remoteConfig_;
+    private final BatchSizer eventBatchSizer_;
+    private Future<?> timerFuture_;
     private EventQueue eventQueue_, mobileQueue;
     private long prevSessionDurationStartTime_;
     private int activityCount_;
     private boolean disableUpdateSessionRequests_;
     private boolean enableLogging_;
+    private boolean backgroundFlushEnabled_ = true;
+    private boolean connectionWarmUpEnabled_;
     private WigzoMessagingMode messagingMode_;
     private Context context_;
+    private SinkStore sinkStore_;
 
     //user data access
     public static UserData userData;
@@ -101,13 +104,23 @@ public class Wigzo {
     Wigzo() {
         connectionQueue_ = new ConnectionQueue();
         Wigzo.userData = new UserData(connectionQueue_);
-        timerService_ = Executors.newSingleThreadScheduledExecutor();
-        timerService_.scheduleWithFixedDelay(new Runnable() {
-            @Override
-            public void run() {
-                onTimer();
-            }
-        }, TIMER_DELAY_IN_SECONDS, TIMER_DELAY_IN_SECONDS, TimeUnit.SECONDS);
+        scheduler_ = connectionQueue_.getScheduler();
+        remoteConfig_ = connectionQueue_.getRemoteConfigClient();
+        eventBatchSizer_ = connectionQueue_.getPipeline().getBatchSizer();
+    }
+
+    /**
+     * Starts calling onTimer() every 60 seconds, unless it is already being called.
+     */
+    private void startTimer() {
+        if (timerFuture_ == null) {
+            timerFuture_ = scheduler_.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    onTimer();
+                }
+            }, TIMER_DELAY_IN_SECONDS, TIMER_DELAY_IN_SECONDS, TimeUnit.SECONDS);
+        }
     }
 
 
@@ -157,22 +170,77 @@ public class Wigzo {
      * @throws IllegalArgumentException if context, serverURL, appKey, or deviceID are invalid
      * @throws IllegalStateException if init has previously been called with different values during the same application instance
      */
-    public synchronized Wigzo init(final Context context, final String serverURL, final String appKey, final String deviceID, DeviceId.Type idMode, final String orgId) {
+    public Wigzo init(final Context context, final String serverURL, final String appKey, final String deviceID, DeviceId.Type idMode, final String orgId) {
+        return init(context, serverURL, appKey, deviceID, idMode, orgId, null);
+    }
+
+    /**
+     * Initializes the Wigzo SDK. Call from your main Activity's onCreate() method.
+     * Must be called before other SDK methods can be used.
+     * @param context application context
+     * @param serverURL URL of the Wigzo server to submit data to; use "https://analytics.wigzo.com" for Wigzo Cloud
+     * @param appKey app key for the application being tracked; find in the Wigzo Dashboard under Management &gt; Applications
+     * @param deviceID unique ID for the device the app is running on; note that null in deviceID means that Wigzo will fall back to OpenUDID, then, if it's not available, to Google Advertising ID
+     * @param idMode enum value specifying which device ID generation strategy Wigzo should use: OpenUDID or Google Advertising ID
+     * @param orgId    unique Id for organization provided by wigzo to organization
+     * @param mobileEndpoint URL of the mobile events endpoint, e.g. of a regional proxy, without query string;
+     *                       null for "https://app.wigzo.com/mobile/events/i"
+     * @return Wigzo instance for easy method chaining
+     * @throws IllegalArgumentException if context, serverURL, appKey, deviceID or mobileEndpoint are invalid
+     * @throws IllegalStateException if init has previously been called with different values during the same application instance
+     */
+    public Wigzo init(final Context context, final String serverURL, final String appKey, final String deviceID, DeviceId.Type idMode, final String orgId, final String mobileEndpoint) {
+        return initWithServers(context, new String[]{serverURL}, appKey, deviceID, idMode, orgId, mobileEndpoint);
+    }
+
+    /**
+     * Initializes the Wigzo SDK with several equivalent Wigzo servers, such as regional ingest
+     * hosts. The SDK measures the round-trip time and error rate of each, sends to the fastest
+     * healthy one and fails over to the next when it stops responding. What it learned about
+     * the servers is kept across app launches.
+     * Call from your main Activity's onCreate() method.
+     * Must be called before other SDK methods can be used.
+     * @param context application context
+     * @param serverURLs URLs of the Wigzo servers to submit data to, in order of preference
+     * @param appKey app key for the application being tracked; find in the Wigzo Dashboard under Management &gt; Applications
+     * @param deviceID unique ID for the device the app is running on; note that null in deviceID means that Wigzo will fall back to OpenUDID, then, if it's not available, to Google Advertising ID
+     * @param idMode enum value specifying which device ID generation strategy Wigzo should use: OpenUDID or Google Advertising ID
+     * @param orgId    unique Id for organization provided by wigzo to organization
+     * @param mobileEndpoint URL of the mobile events endpoint, e.g. of a regional proxy, without query string;
+     *                       null for "https://app.wigzo.com/mobile/events/i"
+     * @return Wigzo instance for easy method chaining
+     * @throws IllegalArgumentException if context, serverURLs, appKey, deviceID or mobileEndpoint are invalid
+     * @throws IllegalStateException if init has previously been called with different values during the same application instance
+     */
+    public synchronized Wigzo initWithServers(final Context context, final String[] serverURLs, final String appKey, final String deviceID, DeviceId.Type idMode, final String orgId, final String mobileEndpoint) {
         if (context == null) {
             throw new IllegalArgumentException("valid context is required");
         }
         if(orgId==null || orgId.length() == 0){
             throw new IllegalArgumentException("Valid Organization Id is required!");
         }
-        if (!isValidURL(serverURL)) {
+        if (serverURLs == null || serverURLs.length == 0) {
             throw new IllegalArgumentException("valid serverURL is required");
         }
+        final List<String> serverURLList = Arrays.asList(serverURLs);
+        for (String url : serverURLList) {
+            if (!isValidURL(url)) {
+                throw new IllegalArgumentException("valid serverURL is required");
+            }
+        }
+        if (new HashSet<>(serverURLList).size() != serverURLList.size()) {
+            throw new IllegalArgumentException("serverURLs must not contain duplicates");
+        }
+        final String serverURL = serverURLs[0];
         if (appKey == null || appKey.length() == 0) {
             throw new IllegalArgumentException("valid appKey is required");
         }
         if (deviceID != null && deviceID.length() == 0) {
             throw new IllegalArgumentException("valid deviceID is required");
         }
+        if (mobileEndpoint != null && !isValidURL(mobileEndpoint)) {
+            throw new IllegalArgumentException("valid mobileEndpoint is required");
+        }
         if (deviceID == null && idMode == null) {
             if (OpenUDIDAdapter.isOpenUDIDAvailable()) idMode = DeviceId.Type.OPEN_UDID;
             else if (AdvertisingIdAdapter.isAdvertisingIdAvailable()) idMode = DeviceId.Type.ADVERTISING_ID;
@@ -183,7 +251,9 @@ public class Wigzo {
         if (deviceID == null && idMode == DeviceId.Type.ADVERTISING_ID && !AdvertisingIdAdapter.isAdvertisingIdAvailable()) {
             throw new IllegalArgumentException("valid deviceID is required because Advertising ID is not available (you need to include Google Play services 4.0+ into your project)");
         }
-        if (eventQueue_ != null && (!connectionQueue_.getServerURL().equals(serverURL) ||
+        final String mobileEndpointURL = mobileEndpoint == null ? ConnectionProcessorWigzoApp.DEFAULT_ENDPOINT : mobileEndpoint;
+        if (eventQueue_ != null && (!connectionQueue_.getServerURLs().equals(serverURLList) ||
+                                    !connectionQueue_.getMobileEndpoint().equals(mobileEndpointURL) ||
                                     !connectionQueue_.getAppKey().equals(appKey) ||
                                     !DeviceId.deviceIDEqualsNullSafe(deviceID, idMode, connectionQueue_.getDeviceId()) )) {
             throw new IllegalStateException("Wigzo cannot be reinitialized with different values");
@@ -209,7 +279,7 @@ public class Wigzo {
 
             deviceIdInstance.init(context, wigzoStore, true);
             connectionQueue_.setOrganizationId(orgId);
-            connectionQueue_.setServerURL(serverURL);
+            connectionQueue_.setServerURLs(serverURLList);
             connectionQueue_.setAppKey(appKey);
             connectionQueue_.setWigzoStore(wigzoStore);
             connectionQueue_.setDeviceId(deviceIdInstance);
@@ -229,19 +299,30 @@ public class Wigzo {
 
             deviceIdInstance.init(context, wigzoAppStore, true);
 
-            connectionQueue_.setServerURL(serverURL);
+            connectionQueue_.setServerURLs(serverURLList);
             connectionQueue_.setAppKey(appKey);
             connectionQueue_.setOrganizationId(orgId);
             connectionQueue_.setWigzoAppStore(wigzoAppStore);
+            connectionQueue_.setMobileEndpoint(mobileEndpointURL);
             connectionQueue_.setDeviceId(deviceIdInstance);
 
             mobileQueue = new EventQueue(wigzoAppStore);
         }
 
         context_ = context;
+        startTimer();
 
         // context is allowed to be changed on the second init call
         connectionQueue_.setContext(context);
+        if (connectionQueue_.getConnectivityMonitor() == null) {
+            connectionQueue_.setConnectivityMonitor(new AndroidConnectivityMonitor(context));
+        }
+        if (backgroundFlushEnabled_ && connectionQueue_.getBackgroundFlushScheduler() == null && JobSchedulerFlushScheduler.isAvailable()) {
+            connectionQueue_.setBackgroundFlushScheduler(new JobSchedulerFlushScheduler(context, connectionQueue_));
+        }
+        if (connectionWarmUpEnabled_) {
+            connectionQueue_.warmUp();
+        }
 
         return this;
     }
@@ -321,6 +402,17 @@ public class Wigzo {
         connectionQueue_.setAppKey(null);
         connectionQueue_.setWigzoStore(null);
         connectionQueue_.setWigzoAppStore(null);
+        connectionQueue_.setMobileEndpoint(null);
+        connectionQueue_.removeSinks();
+        // also what is still queued for sinks removed earlier, or added in an earlier launch
+        if (context_ != null) {
+            getSinkStore().clear();
+        }
+        connectionQueue_.setConnectivityMonitor(null);
+        connectionQueue_.setBackgroundFlushScheduler(null);
+        // the session timer and other delayed work stop with the SDK
+        scheduler_.stop();
+        timerFuture_ = null;
         prevSessionDurationStartTime_ = 0;
         activityCount_ = 0;
     }
@@ -409,6 +501,28 @@ public class Wigzo {
         if (mobileQueue.mobilesize() > 0) {
             connectionQueue_.recordEvents(mobileQueue.mobileEvents());
         }
+
+        // the executor may be frozen as soon as the app is in the background
+        connectionQueue_.scheduleBackgroundFlush(false);
+    }
+
+    /**
+     * Sends the queued data now, for background flush jobs.
+     * @return futures that are done when the data of each sink has been sent,
+     *         empty if not initialized
+     */
+    synchronized List<Future<?>> flush() {
+        if (!isInitialized()) {
+            return Collections.emptyList();
+        }
+        return connectionQueue_.flush();
+    }
+
+    /**
+     * Returns true if nothing is waiting to be sent to any sink.
+     */
+    synchronized boolean isQueueEmpty() {
+        return !connectionQueue_.hasBacklog();
     }
 
     /**
@@ -735,6 +849,245 @@ public class Wigzo {
         return this;
     }
 
+    /**
+     * Enables compression of requests sent to the Wigzo server. Requests are deflated with a
+     * preset dictionary of Wigzo field names, which shrinks the typical few-hundred-byte request
+     * far more than plain gzip would. Servers that do not support it answer with 415, after which
+     * requests are sent uncompressed again. Compression is disabled by default.
+     * @param enable whether or not to compress requests
+     * @return Wigzo instance for easy method chaining
+     */
+    public synchronized Wigzo setRequestCompressionEnabled(final boolean enable) {
+        connectionQueue_.setRequestCompressionEnabled(enable);
+        return this;
+    }
+
+    /**
+     * Returns the number of requests the server rejected permanently, for example with a 4xx
+     * status. Such requests are set aside so they do not block the rest of the queue; at most
+     * 100 are kept per destination, the oldest being discarded first.
+     * @return number of rejected requests kept
+     * @throws IllegalStateException if Wigzo SDK has not been initialized
+     */
+    public synchronized int getDeadLetterCount() {
+        if (!isInitialized()) {
+            throw new IllegalStateException("init must be called before getDeadLetterCount");
+        }
+        return connectionQueue_.getDeadLetterCount();
+    }
+
+    /**
+     * Discards the requests the server rejected permanently.
+     * @return number of requests discarded
+     * @throws IllegalStateException if Wigzo SDK has not been initialized
+     */
+    public synchronized int purgeDeadLetters() {
+        if (!isInitialized()) {
+            throw new IllegalStateException("init must be called before purgeDeadLetters");
+        }
+        return connectionQueue_.purgeDeadLetters();
+    }
+
+    /**
+     * Queues the requests the server rejected permanently again, for example after the
+     * server-side cause was fixed, and starts sending them.
+     * @return number of requests queued
+     * @throws IllegalStateException if Wigzo SDK has not been initialized
+     */
+    public synchronized int replayDeadLetters() {
+        if (!isInitialized()) {
+            throw new IllegalStateException("init must be called before replayDeadLetters");
+        }
+        return connectionQueue_.replayDeadLetters();
+    }
+
+    /**
+     * Sets how many bytes the SDK may send per day on metered networks, such as cellular data,
+     * before it holds back bulk uploads (pictures and large event batches) until the device is
+     * on an unmetered network. Crash reports, sessions and regular events are always sent.
+     * The default is 1 MB; 0 defers all bulk uploads on metered networks.
+     * @param bytes daily budget in bytes, not negative
+     * @return Wigzo instance for easy method chaining
+     * @throws IllegalArgumentException if bytes is negative
+     */
+    public synchronized Wigzo setDailyMeteredDataBudget(final long bytes) {
+        connectionQueue_.getUploadPolicy().setDailyMeteredBudget(bytes);
+        return this;
+    }
+
+    /**
+     * Sets how long queued requests of a type are kept before they are dropped unsent, for
+     * example so that session updates queued while the device was offline for a week do not
+     * hold up current data. The age of a request counts from when it was recorded. Dropped
+     * requests are only counted. The defaults are 2 days for sessions, 30 days for crash
+     * reports, user details and referrers, and 7 days for everything else. The Wigzo server's
+     * configuration can override them for the Wigzo servers.
+     * @param type type of request, see {@link Sink.EventType}
+     * @param seconds time to live in seconds, 0 to keep requests until they are sent
+     * @return Wigzo instance for easy method chaining
+     * @throws IllegalArgumentException if type is null or seconds is negative
+     */
+    public synchronized Wigzo setRequestTimeToLive(final Sink.EventType type, final long seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("seconds must not be negative");
+        }
+        connectionQueue_.getRequestExpiry().setTimeToLive(type, seconds * 1000);
+        return this;
+    }
+
+    /**
+     * Enables or disables radio-aware uploads with the default maximum deferral of 5 minutes.
+     * @see #setRadioAwareUploads(boolean, long)
+     */
+    public synchronized Wigzo setRadioAwareUploads(final boolean enable) {
+        return setRadioAwareUploads(enable, RadioScheduler.DEFAULT_MAX_DEFERRAL_MILLIS / 1000);
+    }
+
+    /**
+     * Enables or disables radio-aware uploads. When enabled, events and other non-urgent data
+     * are held back on metered networks until the app's own traffic has woken the cellular radio
+     * anyway, which saves the battery cost of a radio wakeup per upload. Crash reports and
+     * session begin/end are always sent right away, and nothing is held back for longer than
+     * maxDeferralSeconds. Disabled by default.
+     * @param enable true to hold non-urgent uploads back until the radio is active
+     * @param maxDeferralSeconds longest time data is held back, not negative
+     * @return Wigzo instance for easy method chaining
+     * @throws IllegalArgumentException if maxDeferralSeconds is negative
+     */
+    public synchronized Wigzo setRadioAwareUploads(final boolean enable, final long maxDeferralSeconds) {
+        if (maxDeferralSeconds < 0) {
+            throw new IllegalArgumentException("maxDeferralSeconds must not be negative");
+        }
+        connectionQueue_.setRadioScheduler(!enable ? null : new RadioScheduler(new AndroidTrafficCounter(),
+                maxDeferralSeconds * 1000, RadioScheduler.DEFAULT_RADIO_TAIL_MILLIS, RadioScheduler.DEFAULT_POLL_INTERVAL_MILLIS));
+        return this;
+    }
+
+    /**
+     * Enables or disables background flush jobs. When enabled, on Android 5.0 and later the
+     * SDK schedules a JobScheduler job when the app leaves the foreground, and an expedited one
+     * after a crash, so that end_session, pending events and crash reports are sent even if the
+     * process is frozen or killed in the background. Enabled by default.
+     * @param enable true to schedule background flush jobs
+     * @return Wigzo instance for easy method chaining
+     */
+    public synchronized Wigzo setBackgroundFlushEnabled(final boolean enable) {
+        backgroundFlushEnabled_ = enable;
+        if (!enable) {
+            connectionQueue_.setBackgroundFlushScheduler(null);
+        } else if (context_ != null && connectionQueue_.getBackgroundFlushScheduler() == null && JobSchedulerFlushScheduler.isAvailable()) {
+            connectionQueue_.setBackgroundFlushScheduler(new JobSchedulerFlushScheduler(context_, connectionQueue_));
+        }
+        return this;
+    }
+
+    /**
+     * Enables or disables connection warm-up. When enabled, init resolves the hosts of the
+     * Wigzo server and the mobile events endpoint and opens a connection to each in the
+     * background, so the first upload does not pay for the DNS lookup and the TCP and TLS
+     * handshakes. This costs a HEAD request per endpoint on every launch, even one that
+     * sends nothing. Disabled by default.
+     * @param enable true to warm up connections at init
+     * @return Wigzo instance for easy method chaining
+     */
+    public synchronized Wigzo setConnectionWarmUpEnabled(final boolean enable) {
+        connectionWarmUpEnabled_ = enable;
+        return this;
+    }
+
+    /**
+     * Sets how many TLS sessions are kept so that later connections to the same servers can
+     * resume them with an abbreviated handshake. Sessions are shared by all connections the
+     * SDK makes. Defaults to 32, which is plenty for the few servers the SDK talks to.
+     * @param size maximum number of sessions, 0 for no limit
+     * @return Wigzo instance for easy method chaining
+     * @throws IllegalArgumentException if size is negative
+     */
+    public synchronized Wigzo setTLSSessionCacheSize(final int size) {
+        TlsSessionCache.setSessionCacheSize(size);
+        return this;
+    }
+
+    /**
+     * Adds a destination that session &amp; event data is also sent to, such as a collector of
+     * your own. The sink gets the requests of the event types it accepts from now on, queued
+     * in a store shared by the sinks and sent independently of the Wigzo servers. Sinks are not
+     * remembered across app launches; add them again after each init.
+     * @param sink the destination, see {@link EndpointSink}
+     * @return Wigzo instance for easy method chaining
+     * @throws IllegalStateException if Wigzo SDK has not been initialized
+     * @throws IllegalArgumentException if sink is null or a sink of the same name was already added
+     */
+    public synchronized Wigzo addSink(final Sink sink) {
+        if (!isInitialized()) {
+            throw new IllegalStateException("Wigzo.sharedInstance().init must be called before addSink");
+        }
+        if (sink == null) {
+            throw new IllegalArgumentException("sink must not be null");
+        }
+        connectionQueue_.addSink(sink, getSinkStore().forSink(sink.getName()));
+        return this;
+    }
+
+    /**
+     * Returns the store the queues of all sinks share, created on first use.
+     */
+    private SinkStore getSinkStore() {
+        if (sinkStore_ == null) {
+            sinkStore_ = new SinkStore(context_);
+        }
+        return sinkStore_;
+    }
+
+    /**
+     * Stops sending data to a sink added with {@link #addSink(Sink)}. Data already queued
+     * for it is kept, and sent if the sink is added again; {@link #halt()} discards it.
+     * @param name name of the sink
+     * @return true if the sink was removed, false if there was no such sink
+     * @throws IllegalArgumentException if name is that of a built-in sink
+     */
+    public synchronized boolean removeSink(final String name) {
+        return connectionQueue_.removeSink(name) != null;
+    }
+
+    /**
+     * Sets how many requests may be waiting for the server's response at the same time.
+     * Independent requests overlap, which hides network latency when a backlog is sent;
+     * session requests (begin, update, end) are always sent one at a time and in order.
+     * The default is 4; 1 sends every request only after the previous one was acknowledged.
+     * @param maxRequestsInFlight number of outstanding requests, at least 1
+     * @return Wigzo instance for easy method chaining
+     * @throws IllegalArgumentException if maxRequestsInFlight is less than 1
+     */
+    public synchronized Wigzo setMaxRequestsInFlight(final int maxRequestsInFlight) {
+        connectionQueue_.setMaxRequestsInFlight(maxRequestsInFlight);
+        return this;
+    }
+
+    /**
+     * Replaces the HTTP client used to send data to the Wigzo servers, for example to route
+     * requests through the app's own networking stack. Pass null to restore the default
+     * HttpURLConnection based transport.
+     * @param transport transport used for all further requests, must be thread-safe
+     * @return Wigzo instance for easy method chaining
+     */
+    public synchronized Wigzo setTransport(final Transport transport) {
+        connectionQueue_.setTransport(transport);
+        return this;
+    }
+
+    /**
+     * Runs the SDK's background work, such as uploads, on an executor of the host app instead
+     * of the SDK's own background threads, for example to share a thread pool. Uploads of the
+     * SDK still run one at a time. Pass null to restore the SDK's own threads.
+     * @param executor executor for the SDK's background work
+     * @return Wigzo instance for easy method chaining
+     */
+    public synchronized Wigzo setExecutor(final Executor executor) {
+        scheduler_.setExecutor(executor);
+        return this;
+    }
+
     /**
      * Sets whether debug logging is turned on or off. Logging is disabled by default.
      * @param enableLogging true to enable logging, false to disable logging
@@ -749,6 +1102,22 @@ public class Wigzo {
         return enableLogging_;
     }
 
+    /**
+     * Returns a snapshot of the SDK's network metrics, such as the number of HTTP connections
+     * opened and the share of them that reused a kept-alive socket ("http.connections.reuse_ratio").
+     * @return map of metric names to their current values
+     */
+    public Map<String, Number> getMetrics() {
+        return connectionQueue_.getMetrics().snapshot();
+    }
+
+    /**
+     * Returns the scheduler that runs the SDK's background work.
+     */
+    SdkScheduler getScheduler() {
+        return scheduler_;
+    }
+
     /**
      * Reports duration of last view
      */
@@ -767,14 +1136,18 @@ public class Wigzo {
     }
 
     /**
-     * Submits all of the locally queued events to the server if there are more than 10 of them.
+     * Submits all of the locally queued events to the server if there are at least as many
+     * of them as the server's configuration asks for, 10 by default, or as the batch size of
+     * the Wigzo server's pipeline allows, if that is fewer: the batch size shrinks while
+     * events requests are slow or time out, and grows back while they are fast.
      */
     void sendEventsIfNeeded() {
-        if (eventQueue_.size() >= EVENT_QUEUE_SIZE_THRESHOLD) {
+        final int threshold = Math.min(remoteConfig_.getConfig().getFlushThreshold(), eventBatchSizer_.getBatchSize());
+        if (eventQueue_.size() >= threshold) {
             connectionQueue_.recordEvents(eventQueue_.events());
 
         }
-        if (mobileQueue.mobilesize() >= EVENT_QUEUE_SIZE_THRESHOLD) {
+        if (mobileQueue.mobilesize() >= threshold) {
             connectionQueue_.recordEvents(mobileQueue.mobileEvents());
 
         }
@@ -783,19 +1156,25 @@ public class Wigzo {
 
     /**
      * Called every 60 seconds to send a session heartbeat to the server. Does nothing if there
-     * is not an active application session.
+     * is not an active application session. The heartbeat and the queued events are merged
+     * into one request where possible.
      */
     synchronized void onTimer() {
         final boolean hasActiveSession = activityCount_ > 0;
         if (hasActiveSession) {
-            if (!disableUpdateSessionRequests_) {
-                connectionQueue_.updateSession(roundedSecondsSinceLastSessionDurationUpdate());
-            }
-            if (eventQueue_.size() > 0) {
-                connectionQueue_.recordEvents(eventQueue_.events());
-            }
-            if (mobileQueue.mobilesize() > 0) {
-                connectionQueue_.recordEvents(mobileQueue.events());
+            connectionQueue_.beginCoalescing();
+            try {
+                if (!disableUpdateSessionRequests_) {
+                    connectionQueue_.updateSession(roundedSecondsSinceLastSessionDurationUpdate());
+                }
+                if (eventQueue_.size() > 0) {
+                    connectionQueue_.recordEvents(eventQueue_.events());
+                }
+                if (mobileQueue.mobilesize() > 0) {
+                    connectionQueue_.recordEvents(mobileQueue.events());
+                }
+            } finally {
+                connectionQueue_.endCoalescing();
             }
         }
     }
@@ -877,7 +1256,7 @@ public class Wigzo {
     // for unit testing
     ConnectionQueue getConnectionQueue() { return connectionQueue_; }
     void setConnectionQueue(final ConnectionQueue connectionQueue) { connectionQueue_ = connectionQueue; }
-    ExecutorService getTimerService() { return timerService_; }
+    ExecutorService getTimerService() { return scheduler_.getTimer(); }
     EventQueue getEventQueue() { return eventQueue_; }
     void setEventQueue(final EventQueue eventQueue) { eventQueue_ = eventQueue; }
     long getPrevSessionDurationStartTime() { return prevSessionDurationStartTime_; }
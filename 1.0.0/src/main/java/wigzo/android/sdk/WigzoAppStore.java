@@ -17,7 +17,7 @@ import java.util.Map;
 /**
  * Created by wigzo on 15/3/16.
  */
-public class WigzoAppStore {
+public class WigzoAppStore implements ConnectionStore {
 
     private static final String MOBILE_PREFERENCES = "MOBILE_STORE";
     private static final String DELIMITER = ":::";
@@ -115,6 +115,21 @@ public class WigzoAppStore {
         }
     }
 
+    /**
+     * Removes several connections from the local store with a single write.
+     * @param strs the connections to be removed; those not found are ignored
+     */
+    public synchronized void removeConnections(final Collection<String> strs) {
+        final List<String> connections = new ArrayList<>(Arrays.asList(connections()));
+        boolean removed = false;
+        for (String str : strs) {
+            removed |= connections.remove(str);
+        }
+        if (removed) {
+            preferences1_.edit().putString(MOBILE_CONNECTIONS_PREFERENCE, join(connections, DELIMITER)).apply();
+        }
+    }
+
     /**
      * Adds a custom event to the local store.
      * @param event event to be added to the local store, must not be null
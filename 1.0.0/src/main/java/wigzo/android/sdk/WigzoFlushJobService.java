@@ -0,0 +1,77 @@
+package wigzo.android.sdk;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+import android.os.PersistableBundle;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the background flush jobs scheduled by {@link JobSchedulerFlushScheduler}.
+ *
+ * If Wigzo is initialized in this process the queue is flushed through its ConnectionQueue,
+ * so it never runs concurrently with the queue's own processors. Otherwise the process was
+ * started for the job and the stores are drained directly with the server URLs and device ID
+ * the job was scheduled with.
+ *
+ * NOTE: This class is only public because the system instantiates it.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class WigzoFlushJobService extends JobService {
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        // onStartJob is called on the main thread
+        Wigzo.sharedInstance().getScheduler().execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean drained = false;
+                try {
+                    drained = flush(params.getExtras());
+                } catch (Exception e) {
+                    if (Wigzo.sharedInstance().isLoggingEnabled()) {
+                        Log.w(Wigzo.TAG, "Background flush failed", e);
+                    }
+                }
+                jobFinished(params, !drained);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(final JobParameters params) {
+        // the network went away; whatever was not sent stays queued, try again later
+        return true;
+    }
+
+    private boolean flush(final PersistableBundle extras) throws Exception {
+        final Wigzo wigzo = Wigzo.sharedInstance();
+        if (wigzo.isInitialized()) {
+            // the sinks drain in parallel, wait for all of them
+            for (Future<?> future : wigzo.flush()) {
+                if (future != null) {
+                    future.get();
+                }
+            }
+            return wigzo.isQueueEmpty();
+        }
+        final String serverURL = extras == null ? null : extras.getString(BackgroundFlush.EXTRA_SERVER_URL);
+        final String deviceId = extras == null ? null : extras.getString(BackgroundFlush.EXTRA_DEVICE_ID);
+        if (serverURL == null || deviceId == null) {
+            // nothing we can send with; the data goes out when the app is started again
+            return true;
+        }
+        final String mobileEndpoint = extras.getString(BackgroundFlush.EXTRA_MOBILE_ENDPOINT);
+        // jobs scheduled by older versions only carry the server URL uploads went to
+        final String[] serverURLs = extras.getStringArray(BackgroundFlush.EXTRA_SERVER_URLS);
+        return BackgroundFlush.drain(serverURLs == null ? Collections.singletonList(serverURL) : Arrays.asList(serverURLs), mobileEndpoint,
+                new DeviceId(deviceId), ConnectionProcessor.sharedTransport(null), new AndroidConnectivityMonitor(this),
+                extras.getLong(BackgroundFlush.EXTRA_UPLOADS_STARTED_AT), new WigzoStore(this), new WigzoAppStore(this));
+    }
+}
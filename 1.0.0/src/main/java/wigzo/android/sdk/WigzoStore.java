@@ -25,7 +25,7 @@ import java.util.Map;
  * at a time from the public API side, the internal implementation has a background thread that
  * submits data to a Wigzo server, and it writes to this store as well.
  */
-public class WigzoStore {
+public class WigzoStore implements ConnectionStore {
     private static final String PREFERENCES = "WIGZO_STORE";
     private static final String DELIMITER = ":::";
     private static final String CONNECTIONS_PREFERENCE = "CONNECTIONS";
@@ -122,6 +122,21 @@ public class WigzoStore {
         }
     }
 
+    /**
+     * Removes several connections from the local store with a single write.
+     * @param strs the connections to be removed; those not found are ignored
+     */
+    public synchronized void removeConnections(final Collection<String> strs) {
+        final List<String> connections = new ArrayList<>(Arrays.asList(connections()));
+        boolean removed = false;
+        for (String str : strs) {
+            removed |= connections.remove(str);
+        }
+        if (removed) {
+            preferences_.edit().putString(CONNECTIONS_PREFERENCE, join(connections, DELIMITER)).apply();
+        }
+    }
+
     /**
      * Adds a custom event to the local store.
      * @param event event to be added to the local store, must not be null